@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.loadtest;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.provider.Telephony.Mms;
+
+import com.android.mms.util.PduArchive;
+import com.android.mms.util.PduArchiveImporter;
+import com.android.mms.util.PduArchiveStats;
+import com.google.android.mms.ContentType;
+import com.google.android.mms.InvalidHeaderValueException;
+import com.google.android.mms.pdu_alt.EncodedStringValue;
+import com.google.android.mms.pdu_alt.MultimediaMessagePdu;
+import com.google.android.mms.pdu_alt.PduBody;
+import com.google.android.mms.pdu_alt.PduComposer;
+import com.google.android.mms.pdu_alt.PduHeaders;
+import com.google.android.mms.pdu_alt.RetrieveConf;
+import com.google.android.mms.pdu_alt.SendReq;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Imports a generated archive into a {@link StandInMmsProvider} and checks
+ * what ends up there: every message exactly once, with its Message-ID and
+ * read state. Then imports it again into a provider that is killed a few
+ * batches in, and checks the same once the import is started again, except
+ * that the received messages of the killed batch may show up as unread.
+ *
+ * A quarter of the messages are Send.reqs without a Message-ID, which the
+ * importer tells apart by their Transaction-ID. Every tenth message is in the
+ * archive twice, and a few received ones are in the provider already.
+ *
+ * Options, all --name=value: messages (2000), batch (64), threads (4), and
+ * size, the bytes of the picture in every message (0).
+ *
+ * Run with ./gradlew :benchmark:importCheck -Pargs="--messages=5000"
+ */
+public class ImportCheck {
+    private static final long FIRST_DATE = 1420070400L;
+
+    private final int mMessages;
+    private final int mBatchSize;
+    private final int mThreads;
+    private final byte[] mImage;
+
+    // Every message once, and the archive with the copies
+    private final List<PduArchive.Record> mUnique = new ArrayList<PduArchive.Record>();
+    private final List<PduArchive.Record> mArchived = new ArrayList<PduArchive.Record>();
+    // The received messages that are in the provider before the import
+    private final List<PduArchive.Record> mPresent = new ArrayList<PduArchive.Record>();
+
+    private ImportCheck(Map<String, String> options) {
+        mMessages = getInt(options, "messages", 2000);
+        mBatchSize = getInt(options, "batch", 64);
+        mThreads = getInt(options, "threads", 4);
+        mImage = new byte[getInt(options, "size", 0)];
+        new Random(mImage.length).nextBytes(mImage);
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + options.keySet());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            final int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        new ImportCheck(options).run();
+    }
+
+    private void run() throws Exception {
+        final File file = File.createTempFile("import", ".archive");
+        final File progress = new File(file.getPath() + ".progress");
+        try {
+            writeArchive(file);
+            System.out.println("archive: " + mArchived.size() + " records, " + mUnique.size()
+                    + " messages, " + mPresent.size() + " in the provider already, "
+                    + file.length() + " bytes");
+
+            StandInMmsProvider provider = newProvider();
+            PduArchiveStats stats = newImporter(provider).importArchive(file, null);
+            report("import", stats, provider);
+            check(stats.getDone() == mUnique.size() - mPresent.size(), "imported " + stats);
+            check(stats.getSkipped() == mArchived.size() - mUnique.size() + mPresent.size(),
+                    "skipped " + stats);
+            check(provider.getBatches() > 1 && provider.getLargestBatch() <= mBatchSize,
+                    provider.getBatches() + " batches of up to " + provider.getLargestBatch());
+            check(!progress.exists(), "progress left behind");
+            checkProvider(provider, 0);
+
+            provider = newProvider();
+            provider.killAtBatch(3);
+            try {
+                newImporter(provider).importArchive(file, null);
+                throw new IllegalStateException("import wasn't killed");
+            } catch (StandInMmsProvider.Killed e) {
+                // Expected
+            }
+            check(progress.exists(), "no progress saved");
+            final int before = provider.getRows().size();
+            provider.killAtBatch(-1);
+            stats = newImporter(provider).importArchive(file, null);
+            report("resumed after " + before + " rows", stats, provider);
+            checkProvider(provider, mBatchSize);
+
+            System.out.println("OK");
+        } finally {
+            file.delete();
+            progress.delete();
+        }
+    }
+
+    private PduArchiveImporter newImporter(StandInMmsProvider provider) {
+        final Context context = new Context();
+        context.getContentResolver().addProvider("mms", provider);
+        final PduArchiveImporter importer = new PduArchiveImporter(context);
+        importer.setBatchSize(mBatchSize);
+        importer.setThreads(mThreads);
+        return importer;
+    }
+
+    private StandInMmsProvider newProvider() {
+        final StandInMmsProvider provider = new StandInMmsProvider();
+        for (PduArchive.Record record : mPresent) {
+            final ContentValues values = new ContentValues();
+            values.put(Mms.MESSAGE_ID, record.messageId);
+            values.put(Mms.DATE, Long.valueOf(record.date));
+            provider.insert(Mms.Inbox.CONTENT_URI, values);
+        }
+        return provider;
+    }
+
+    private void writeArchive(File file) throws IOException, InvalidHeaderValueException {
+        final Random random = new Random(mMessages);
+        final PduArchive.Writer writer = new PduArchive.Writer(file);
+        try {
+            for (int i = 0; i < mMessages; i++) {
+                final PduArchive.Record record = newRecord(i);
+                mUnique.add(record);
+                mArchived.add(record);
+                writer.write(record);
+                if (i % 10 == 9) {
+                    final PduArchive.Record copy = mUnique.get(random.nextInt(mUnique.size()));
+                    mArchived.add(copy);
+                    writer.write(copy);
+                }
+                if (i % 40 == 0) {
+                    mPresent.add(record);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    // Received messages, sent ones with the Message-ID of their Send.conf, and
+    // sent ones that never got one
+    private PduArchive.Record newRecord(int i) throws InvalidHeaderValueException {
+        final long date = FIRST_DATE + i;
+        final int flags = i % 3 == 0 ? PduArchive.FLAG_SEEN
+                : PduArchive.FLAG_READ | PduArchive.FLAG_SEEN;
+        final MultimediaMessagePdu pdu;
+        final int msgBox;
+        final String messageId;
+        if (i % 4 < 2) {
+            final RetrieveConf retrieveConf = new RetrieveConf();
+            messageId = "M" + i;
+            retrieveConf.setMessageId(messageId.getBytes());
+            retrieveConf.setFrom(new EncodedStringValue("+15555550101"));
+            retrieveConf.setContentType(ContentType.MULTIPART_RELATED.getBytes());
+            pdu = retrieveConf;
+            msgBox = Mms.MESSAGE_BOX_INBOX;
+        } else {
+            final SendReq sendReq = new SendReq();
+            sendReq.setTransactionId(("T" + i).getBytes());
+            messageId = i % 4 == 2 ? "S" + i : "";
+            pdu = sendReq;
+            msgBox = Mms.MESSAGE_BOX_SENT;
+        }
+        pdu.setMmsVersion(PduHeaders.CURRENT_MMS_VERSION);
+        pdu.setDate(date);
+        pdu.addTo(new EncodedStringValue("+15555550100"));
+
+        final PduBody body = new PduBody();
+        body.addPart(MmscSimulator.newPart("text_0.txt", ContentType.TEXT_PLAIN,
+                ("Message " + i).getBytes()));
+        if (mImage.length > 0) {
+            body.addPart(MmscSimulator.newPart("image_0.jpg", ContentType.IMAGE_JPEG, mImage));
+        }
+        pdu.setBody(body);
+        return new PduArchive.Record(msgBox, flags, date, messageId,
+                new PduComposer(new Context(), pdu).make());
+    }
+
+    // Every message exactly once, with its Message-ID and, unless it was in the
+    // provider already, its read state, which up to unread messages may have lost
+    private void checkProvider(StandInMmsProvider provider, int unread) {
+        final List<ContentValues> rows = provider.getRows();
+        check(rows.size() == mUnique.size(), rows.size() + " rows for "
+                + mUnique.size() + " messages");
+
+        final Map<String, ContentValues> byKey = new HashMap<String, ContentValues>();
+        for (ContentValues row : rows) {
+            final Object messageId = row.get(Mms.MESSAGE_ID);
+            final String key = messageId != null ? messageId.toString()
+                    : row.get(Mms.TRANSACTION_ID) + "/" + row.get(Mms.DATE);
+            check(byKey.put(key, row) == null, "imported twice: " + key);
+        }
+
+        final Set<String> present = new HashSet<String>();
+        for (PduArchive.Record record : mPresent) {
+            present.add(record.messageId);
+        }
+        int lost = 0;
+        for (PduArchive.Record record : mUnique) {
+            final String key = record.messageId.length() > 0 ? record.messageId
+                    : "T" + (record.date - FIRST_DATE) + "/" + record.date;
+            final ContentValues row = byKey.get(key);
+            check(row != null, "missing: " + key);
+            if (!present.contains(record.messageId)) {
+                final int read = (record.flags & PduArchive.FLAG_READ) != 0 ? 1 : 0;
+                final int stored = ((Number) row.get(Mms.READ)).intValue();
+                if (stored != read) {
+                    check(read == 1 && ++lost <= unread, "read state of " + key);
+                }
+            }
+        }
+    }
+
+    private static void report(String name, PduArchiveStats stats,
+            StandInMmsProvider provider) {
+        System.out.println(name + ": " + stats + ", " + provider.getBatches()
+                + " batches of up to " + provider.getLargestBatch() + " updates");
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + message);
+        }
+    }
+
+    private static int getInt(Map<String, String> options, String name, int defaultValue) {
+        final String value = options.remove(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.loadtest;
+
+import android.content.Context;
+
+import com.android.mms.service_alt.MmsConfig;
+import com.android.mms.service_alt.MmsHttpClient;
+import com.android.mms.service_alt.MmsNetworkManager;
+import com.android.mms.transaction.HttpUtils;
+import com.android.mms.util.Instrumentation;
+import com.google.android.mms.ContentType;
+import com.google.android.mms.InvalidHeaderValueException;
+import com.google.android.mms.pdu_alt.EncodedStringValue;
+import com.google.android.mms.pdu_alt.GenericPdu;
+import com.google.android.mms.pdu_alt.NotificationInd;
+import com.google.android.mms.pdu_alt.NotifyRespInd;
+import com.google.android.mms.pdu_alt.PduBody;
+import com.google.android.mms.pdu_alt.PduComposer;
+import com.google.android.mms.pdu_alt.PduHeaders;
+import com.google.android.mms.pdu_alt.PduParser;
+import com.google.android.mms.pdu_alt.RetrieveConf;
+import com.google.android.mms.pdu_alt.SendConf;
+import com.google.android.mms.pdu_alt.SendReq;
+import com.squareup.okhttp.ConnectionPool;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.SocketFactory;
+
+/**
+ * Sends and downloads messages against a {@link MmscSimulator}, through the
+ * HTTP client of either path and the real {@link PduComposer} and
+ * {@link PduParser}, and reports the latency percentiles and the throughput.
+ *
+ * A send composes the M-Send.req, posts it and parses the M-Send.conf. A
+ * download parses the pushed M-Notification.ind, gets the message, parses the
+ * M-Retrieve.conf and posts the M-NotifyResp.ind. A failed request is tried
+ * again right away, up to the number of retries.
+ *
+ * Options, all --name=value:
+ * <ul>
+ * <li>client: "service" for MmsHttpClient, "legacy" for HttpUtils (service)</li>
+ * <li>concurrency: messages in flight at a time (4)</li>
+ * <li>messages: messages sent and downloaded (200)</li>
+ * <li>warmup: messages each way before the measured ones (20)</li>
+ * <li>size: bytes of the picture in every message, 0 for text only (102400)</li>
+ * <li>latency: round trip the MMSC adds to every request, in ms (0)</li>
+ * <li>bandwidth: bytes per second of every connection, 0 for no limit (0)</li>
+ * <li>errors: share of requests answered with 503 (0)</li>
+ * <li>drops: share of requests whose connection is closed unanswered (0)</li>
+ * <li>chunked: answer without a Content-Length (false)</li>
+ * <li>retries: times a failed request is tried again (2)</li>
+ * <li>timeout: the socket timeout of the config, in ms (60000)</li>
+ * </ul>
+ *
+ * Run with ./gradlew :benchmark:loadTest -Pargs="--concurrency=8 --latency=300"
+ */
+public class LoadTest {
+    private static final int SUB_ID = 1;
+
+    private final Context mContext = new Context();
+    private final MmscSimulator mMmsc = new MmscSimulator();
+    private final AtomicLong mNextId = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+
+    private final Transport mTransport;
+    private final int mConcurrency;
+    private final int mMessages;
+    private final int mWarmup;
+    private final int mRetryCount;
+    private final byte[] mImage;
+
+    /**
+     * Moves a PDU to and from the MMSC.
+     */
+    private interface Transport {
+        byte[] post(String url, byte[] pdu) throws Exception;
+
+        byte[] get(String url) throws Exception;
+    }
+
+    /**
+     * The client of the service path, which Lollipop and later use.
+     */
+    private static class ServiceTransport implements Transport {
+        private final MmsHttpClient mClient;
+        private final MmsConfig.Overridden mConfig;
+
+        ServiceTransport(Context context, int timeout) {
+            mClient = new MmsHttpClient(context, SocketFactory.getDefault(),
+                    new MmsNetworkManager(SUB_ID), new ConnectionPool(4, 60000));
+            mConfig = new MmsConfig.Overridden();
+            mConfig.setHttpSocketTimeout(timeout);
+        }
+
+        @Override
+        public byte[] post(String url, byte[] pdu) throws Exception {
+            return mClient.execute(url, pdu, MmsHttpClient.METHOD_POST, false, null, 0, mConfig);
+        }
+
+        @Override
+        public byte[] get(String url) throws Exception {
+            return mClient.execute(url, null, MmsHttpClient.METHOD_GET, false, null, 0, mConfig);
+        }
+    }
+
+    /**
+     * The client of the transactions that run before Lollipop.
+     */
+    private static class LegacyTransport implements Transport {
+        private final Context mContext;
+
+        LegacyTransport(Context context, int timeout) {
+            mContext = context;
+            com.android.mms.MmsConfig.setHttpSocketTimeout(timeout);
+        }
+
+        @Override
+        public byte[] post(String url, byte[] pdu) throws Exception {
+            return HttpUtils.httpConnection(mContext, -1L, url, pdu,
+                    HttpUtils.HTTP_POST_METHOD, false, null, 0);
+        }
+
+        @Override
+        public byte[] get(String url) throws Exception {
+            return HttpUtils.httpConnection(mContext, -1L, url, null,
+                    HttpUtils.HTTP_GET_METHOD, false, null, 0);
+        }
+    }
+
+    /**
+     * The latencies of one direction and how long all of it took.
+     */
+    private static class Result {
+        final long[] latencies;
+        final int failed;
+        final long elapsed;
+
+        Result(long[] latencies, int failed, long elapsed) {
+            this.latencies = latencies;
+            this.failed = failed;
+            this.elapsed = elapsed;
+        }
+    }
+
+    private LoadTest(Map<String, String> options) throws Exception {
+        final int timeout = getInt(options, "timeout", 60 * 1000);
+        final String client = get(options, "client", "service");
+        if ("service".equals(client)) {
+            mTransport = new ServiceTransport(mContext, timeout);
+        } else if ("legacy".equals(client)) {
+            mTransport = new LegacyTransport(mContext, timeout);
+        } else {
+            throw new IllegalArgumentException("Unknown client " + client);
+        }
+        mConcurrency = getInt(options, "concurrency", 4);
+        mMessages = getInt(options, "messages", 200);
+        mWarmup = getInt(options, "warmup", 20);
+        mRetryCount = getInt(options, "retries", 2);
+
+        final int size = getInt(options, "size", 100 * 1024);
+        mImage = new byte[size];
+        new Random(size).nextBytes(mImage);
+
+        mMmsc.setMessageSize(size);
+        mMmsc.setLatency(getInt(options, "latency", 0));
+        mMmsc.setBandwidth(getInt(options, "bandwidth", 0));
+        mMmsc.setErrorRate(Double.parseDouble(get(options, "errors", "0")));
+        mMmsc.setDropRate(Double.parseDouble(get(options, "drops", "0")));
+        mMmsc.setChunked(Boolean.parseBoolean(get(options, "chunked", "false")));
+        if (!options.isEmpty()) {
+            throw new IllegalArgumentException("Unknown options " + options.keySet());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        final Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            final int split = arg.indexOf('=');
+            if (!arg.startsWith("--") || split < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, split), arg.substring(split + 1));
+        }
+        new LoadTest(options).run();
+        // The HTTP client's watchdog thread isn't a daemon
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        mMmsc.start(mConcurrency);
+        final ExecutorService executor = Executors.newFixedThreadPool(mConcurrency);
+        try {
+            System.out.println("mmsc: " + mMmsc.getUrl() + " message size="
+                    + mMmsc.getMessageSize());
+
+            run(executor, mWarmup, true);
+            report("send", run(executor, mMessages, true));
+
+            run(executor, mWarmup, false);
+            report("download", run(executor, mMessages, false));
+
+            System.out.println(mMmsc.getStats());
+        } finally {
+            executor.shutdownNow();
+            mMmsc.stop();
+        }
+    }
+
+    private Result run(ExecutorService executor, int messages, final boolean send)
+            throws InterruptedException {
+        Instrumentation.reset();
+        mRetries.set(0);
+        mBytes.set(0);
+
+        final long start = System.nanoTime();
+        final List<Future<Long>> futures = new ArrayList<Future<Long>>(messages);
+        for (int i = 0; i < messages; i++) {
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    final long start = System.nanoTime();
+                    if (send) {
+                        send();
+                    } else {
+                        download();
+                    }
+                    return System.nanoTime() - start;
+                }
+            }));
+        }
+
+        final long[] latencies = new long[messages];
+        int succeeded = 0;
+        int failed = 0;
+        for (Future<Long> future : futures) {
+            try {
+                latencies[succeeded] = future.get();
+                succeeded++;
+            } catch (ExecutionException e) {
+                failed++;
+                System.err.println((send ? "send" : "download") + " failed: " + e.getCause());
+            }
+        }
+        final long elapsed = System.nanoTime() - start;
+        return new Result(Arrays.copyOf(latencies, succeeded), failed, elapsed);
+    }
+
+    private void send() throws Exception {
+        final byte[] transactionId = ("S" + Long.toHexString(mNextId.incrementAndGet())).getBytes();
+        final byte[] sendReq = new PduComposer(mContext, newSendReq(transactionId)).make();
+        final byte[] response = post(sendReq);
+
+        final GenericPdu pdu = new PduParser(response).parse();
+        if (!(pdu instanceof SendConf)) {
+            throw new IOException("Expected an M-Send.conf, got " + pdu);
+        }
+        final SendConf sendConf = (SendConf) pdu;
+        if (sendConf.getResponseStatus() != PduHeaders.RESPONSE_STATUS_OK
+                || !Arrays.equals(sendConf.getTransactionId(), transactionId)) {
+            throw new IOException("Send rejected, status " + sendConf.getResponseStatus());
+        }
+    }
+
+    private void download() throws Exception {
+        final GenericPdu pdu = new PduParser(mMmsc.newNotification()).parse();
+        if (!(pdu instanceof NotificationInd)) {
+            throw new IOException("Expected an M-Notification.ind, got " + pdu);
+        }
+        final NotificationInd notification = (NotificationInd) pdu;
+
+        final byte[] response = get(new String(notification.getContentLocation()));
+        final GenericPdu retrieveConf = new PduParser(response, true).parse();
+        if (!(retrieveConf instanceof RetrieveConf)) {
+            throw new IOException("Expected an M-Retrieve.conf, got " + retrieveConf);
+        }
+
+        final NotifyRespInd notifyResp = new NotifyRespInd(PduHeaders.CURRENT_MMS_VERSION,
+                notification.getTransactionId(), PduHeaders.STATUS_RETRIEVED);
+        post(new PduComposer(mContext, notifyResp).make());
+    }
+
+    private byte[] post(byte[] pdu) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                final byte[] response = mTransport.post(mMmsc.getUrl(), pdu);
+                mBytes.addAndGet(pdu.length + (response != null ? response.length : 0));
+                return response;
+            } catch (Exception e) {
+                if (attempt >= mRetryCount) {
+                    throw e;
+                }
+                mRetries.incrementAndGet();
+            }
+        }
+    }
+
+    private byte[] get(String url) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                final byte[] response = mTransport.get(url);
+                mBytes.addAndGet(response != null ? response.length : 0);
+                return response;
+            } catch (Exception e) {
+                if (attempt >= mRetryCount) {
+                    throw e;
+                }
+                mRetries.incrementAndGet();
+            }
+        }
+    }
+
+    private SendReq newSendReq(byte[] transactionId) throws InvalidHeaderValueException {
+        final SendReq sendReq = new SendReq();
+        sendReq.addTo(new EncodedStringValue("+15555550101"));
+        sendReq.setTransactionId(transactionId);
+        sendReq.setMessageClass(PduHeaders.MESSAGE_CLASS_PERSONAL_STR.getBytes());
+        sendReq.setPriority(PduHeaders.PRIORITY_NORMAL);
+        sendReq.setDeliveryReport(PduHeaders.VALUE_NO);
+        sendReq.setReadReport(PduHeaders.VALUE_NO);
+        sendReq.setExpiry(7 * 24 * 60 * 60);
+
+        final PduBody body = new PduBody();
+        body.addPart(MmscSimulator.newPart("text_0.txt", ContentType.TEXT_PLAIN,
+                "See you at eight, I'll bring the pictures.".getBytes()));
+        if (mImage.length > 0) {
+            body.addPart(MmscSimulator.newPart("image_0.jpg", ContentType.IMAGE_JPEG, mImage));
+        }
+        sendReq.setBody(body);
+        sendReq.setMessageSize(mImage.length);
+        return sendReq;
+    }
+
+    private void report(String name, Result result) {
+        final long[] latencies = result.latencies;
+        Arrays.sort(latencies);
+        final double seconds = result.elapsed / 1e9;
+        System.out.println(String.format(
+                "%s: %d ok, %d failed, %d retries in %.2f s, %.1f msg/s, %.1f KB/s",
+                name, latencies.length, result.failed, mRetries.get(), seconds,
+                latencies.length / seconds, mBytes.get() / 1024 / seconds));
+        System.out.println(String.format(
+                "  latency ms: p50=%.1f p90=%.1f p99=%.1f max=%.1f",
+                percentile(latencies, 50), percentile(latencies, 90),
+                percentile(latencies, 99), percentile(latencies, 100)));
+        for (int stage = Instrumentation.STAGE_ACQUIRE_NETWORK;
+                stage <= Instrumentation.STAGE_REQUEST; stage++) {
+            final Instrumentation.StageStats stats = Instrumentation.getStats(stage);
+            if (stats.getCount() > 0) {
+                System.out.println("  " + stats);
+            }
+        }
+    }
+
+    // The latency the given share of the sorted latencies stays within, in ms
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        final int index = (int) Math.ceil(sorted.length * percentile / 100) - 1;
+        return sorted[Math.max(index, 0)] / 1e6;
+    }
+
+    private static String get(Map<String, String> options, String name, String defaultValue) {
+        final String value = options.remove(name);
+        return value != null ? value : defaultValue;
+    }
+
+    private static int getInt(Map<String, String> options, String name, int defaultValue) {
+        return Integer.parseInt(get(options, name, String.valueOf(defaultValue)));
+    }
+}
@@ -0,0 +1,415 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.loadtest;
+
+import android.content.Context;
+
+import com.google.android.mms.ContentType;
+import com.google.android.mms.InvalidHeaderValueException;
+import com.google.android.mms.pdu_alt.CharacterSets;
+import com.google.android.mms.pdu_alt.EncodedStringValue;
+import com.google.android.mms.pdu_alt.PduBody;
+import com.google.android.mms.pdu_alt.PduComposer;
+import com.google.android.mms.pdu_alt.PduHeaders;
+import com.google.android.mms.pdu_alt.PduPart;
+import com.google.android.mms.pdu_alt.RetrieveConf;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An MMSC on the loopback interface. It answers an M-Send.req with an
+ * M-Send.conf, hands out M-Notification.inds for messages it then serves as
+ * M-Retrieve.confs, and takes the M-NotifyResp.inds and M-Acknowledge.inds that
+ * close a download.
+ *
+ * Every exchange can be slowed down by a round trip and a bandwidth, and can
+ * fail with an HTTP error or by dropping the connection before the answer.
+ * The bandwidth is per connection, like a radio link each request has to
+ * itself, rather than shared by all of them.
+ *
+ * The MMSC only reads the header fields the encapsulation puts first, the
+ * message type and the transaction ID, so the parse and compose numbers the
+ * harness collects are the client's alone.
+ */
+public class MmscSimulator {
+    private static final String PATH = "/mms";
+    private static final String CONTENT_TYPE = "application/vnd.wap.mms-message";
+
+    // Write and read chunk size, the granularity of the bandwidth
+    private static final int CHUNK_SIZE = 4096;
+
+    // Relative expiry of the notifications, in seconds
+    private static final long EXPIRY = 7 * 24 * 60 * 60;
+
+    private final Random mRandom = new Random();
+    private final AtomicLong mNextId = new AtomicLong();
+    // Transaction IDs of the notifications that weren't answered yet
+    private final ConcurrentHashMap<String, Boolean> mPending =
+            new ConcurrentHashMap<String, Boolean>();
+
+    private final AtomicLong mSendReqs = new AtomicLong();
+    private final AtomicLong mRetrieves = new AtomicLong();
+    private final AtomicLong mNotifyResps = new AtomicLong();
+    private final AtomicLong mAcks = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mDrops = new AtomicLong();
+    private final AtomicLong mRejects = new AtomicLong();
+
+    private volatile int mLatency;
+    private volatile int mBandwidth;
+    private volatile double mErrorRate;
+    private volatile double mDropRate;
+    private volatile boolean mChunked;
+    private volatile byte[] mRetrieveConf;
+
+    private HttpServer mServer;
+    private ExecutorService mExecutor;
+
+    /**
+     * @param latency the round trip every exchange waits before it is answered, in ms
+     */
+    public void setLatency(int latency) {
+        mLatency = latency;
+    }
+
+    /**
+     * @param bandwidth the bytes per second of every connection, both ways, 0 for no limit
+     */
+    public void setBandwidth(int bandwidth) {
+        mBandwidth = bandwidth;
+    }
+
+    /**
+     * @param errorRate the share of exchanges answered with 503 Service Unavailable
+     */
+    public void setErrorRate(double errorRate) {
+        mErrorRate = errorRate;
+    }
+
+    /**
+     * @param dropRate the share of exchanges whose connection is closed instead of answered
+     */
+    public void setDropRate(double dropRate) {
+        mDropRate = dropRate;
+    }
+
+    /**
+     * @param chunked whether answers leave out the Content-Length, the way some MMSCs do
+     */
+    public void setChunked(boolean chunked) {
+        mChunked = chunked;
+    }
+
+    /**
+     * @param imageSize the size of the picture in the messages that are downloaded
+     */
+    public void setMessageSize(int imageSize) throws InvalidHeaderValueException {
+        mRetrieveConf = newRetrieveConf(imageSize);
+    }
+
+    /**
+     * @return the size of the messages that are downloaded
+     */
+    public int getMessageSize() {
+        return mRetrieveConf.length;
+    }
+
+    /**
+     * Start answering on a free port of the loopback interface.
+     *
+     * @param threads the exchanges answered at the same time
+     */
+    public void start(int threads) throws IOException, InvalidHeaderValueException {
+        if (mRetrieveConf == null) {
+            setMessageSize(0);
+        }
+        mExecutor = Executors.newFixedThreadPool(threads);
+        mServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                threads);
+        mServer.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    answer(exchange);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.setExecutor(mExecutor);
+        mServer.start();
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * @return the URL to post to, the MMSC URL of the APN
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + mServer.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * Make a message ready for download and return the notification that is
+     * pushed to the phone for it.
+     */
+    public byte[] newNotification() {
+        final String transactionId = "T" + Long.toHexString(mNextId.incrementAndGet());
+        mPending.put(transactionId, Boolean.TRUE);
+
+        final PduWriter pdu = new PduWriter();
+        pdu.write(PduHeaders.MESSAGE_TYPE);
+        pdu.write(PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND);
+        pdu.write(PduHeaders.TRANSACTION_ID);
+        pdu.writeText(transactionId);
+        pdu.write(PduHeaders.MMS_VERSION);
+        pdu.write(PduHeaders.CURRENT_MMS_VERSION | 0x80);
+        pdu.write(PduHeaders.MESSAGE_CLASS);
+        pdu.write(PduHeaders.MESSAGE_CLASS_PERSONAL);
+        pdu.write(PduHeaders.MESSAGE_SIZE);
+        pdu.writeLongInteger(mRetrieveConf.length);
+        pdu.write(PduHeaders.EXPIRY);
+        final PduWriter expiry = new PduWriter();
+        expiry.write(PduHeaders.VALUE_RELATIVE_TOKEN);
+        expiry.writeLongInteger(EXPIRY);
+        pdu.write(expiry.size());
+        pdu.write(expiry.toByteArray(), 0, expiry.size());
+        pdu.write(PduHeaders.CONTENT_LOCATION);
+        pdu.writeText(getUrl() + "/" + transactionId);
+        return pdu.toByteArray();
+    }
+
+    /**
+     * @return what the MMSC was sent and did, one line
+     */
+    public String getStats() {
+        return "mmsc: sendReqs=" + mSendReqs.get()
+                + " retrieves=" + mRetrieves.get()
+                + " notifyResps=" + mNotifyResps.get()
+                + " acks=" + mAcks.get()
+                + " injectedErrors=" + mErrors.get()
+                + " injectedDrops=" + mDrops.get()
+                + " rejected=" + mRejects.get()
+                + " unanswered=" + mPending.size();
+    }
+
+    private void answer(HttpExchange exchange) throws IOException, InterruptedException {
+        final long start = System.nanoTime();
+        final byte[] request = read(exchange.getRequestBody(), start);
+        TimeUnit.MILLISECONDS.sleep(mLatency);
+
+        final double fault = mRandom.nextDouble();
+        if (fault < mDropRate) {
+            // Closing the exchange before the headers are sent closes the connection
+            mDrops.incrementAndGet();
+            return;
+        }
+        if (fault < mDropRate + mErrorRate) {
+            mErrors.incrementAndGet();
+            exchange.sendResponseHeaders(503, -1);
+            return;
+        }
+
+        if ("GET".equals(exchange.getRequestMethod())) {
+            final String path = exchange.getRequestURI().getPath();
+            final String transactionId = path.substring(path.lastIndexOf('/') + 1);
+            if (!mPending.containsKey(transactionId)) {
+                reject(exchange, 404);
+                return;
+            }
+            mRetrieves.incrementAndGet();
+            write(exchange, mRetrieveConf, System.nanoTime());
+            return;
+        }
+
+        if (request.length < 4 || (request[0] & 0xff) != PduHeaders.MESSAGE_TYPE
+                || (request[2] & 0xff) != PduHeaders.TRANSACTION_ID) {
+            reject(exchange, 400);
+            return;
+        }
+        final String transactionId = readText(request, 3);
+        switch (request[1] & 0xff) {
+            case PduHeaders.MESSAGE_TYPE_SEND_REQ:
+                mSendReqs.incrementAndGet();
+                write(exchange, newSendConf(transactionId), System.nanoTime());
+                break;
+            case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
+            case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
+                if (mPending.remove(transactionId) == null) {
+                    reject(exchange, 404);
+                    return;
+                }
+                if ((request[1] & 0xff) == PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND) {
+                    mAcks.incrementAndGet();
+                } else {
+                    mNotifyResps.incrementAndGet();
+                }
+                exchange.sendResponseHeaders(200, -1);
+                break;
+            default:
+                reject(exchange, 400);
+                break;
+        }
+    }
+
+    private void reject(HttpExchange exchange, int statusCode) throws IOException {
+        mRejects.incrementAndGet();
+        exchange.sendResponseHeaders(statusCode, -1);
+    }
+
+    private byte[] read(InputStream in, long start) throws IOException, InterruptedException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buf = new byte[CHUNK_SIZE];
+        int count;
+        while ((count = in.read(buf)) > 0) {
+            out.write(buf, 0, count);
+            pace(out.size(), start);
+        }
+        return out.toByteArray();
+    }
+
+    private void write(HttpExchange exchange, byte[] body, long start)
+            throws IOException, InterruptedException {
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        // 0 makes the server send the body chunked
+        exchange.sendResponseHeaders(200, mChunked ? 0 : body.length);
+        final OutputStream out = exchange.getResponseBody();
+        for (int offset = 0; offset < body.length; offset += CHUNK_SIZE) {
+            final int count = Math.min(CHUNK_SIZE, body.length - offset);
+            out.write(body, offset, count);
+            out.flush();
+            pace(offset + count, start);
+        }
+        out.close();
+    }
+
+    // Wait until the bytes so far would have taken their time at the bandwidth
+    private void pace(long bytes, long start) throws InterruptedException {
+        final int bandwidth = mBandwidth;
+        if (bandwidth > 0) {
+            final long due = start + TimeUnit.SECONDS.toNanos(bytes) / bandwidth;
+            TimeUnit.NANOSECONDS.sleep(due - System.nanoTime());
+        }
+    }
+
+    private byte[] newSendConf(String transactionId) {
+        final PduWriter pdu = new PduWriter();
+        pdu.write(PduHeaders.MESSAGE_TYPE);
+        pdu.write(PduHeaders.MESSAGE_TYPE_SEND_CONF);
+        pdu.write(PduHeaders.TRANSACTION_ID);
+        pdu.writeText(transactionId);
+        pdu.write(PduHeaders.MMS_VERSION);
+        pdu.write(PduHeaders.CURRENT_MMS_VERSION | 0x80);
+        pdu.write(PduHeaders.RESPONSE_STATUS);
+        pdu.write(PduHeaders.RESPONSE_STATUS_OK);
+        pdu.write(PduHeaders.MESSAGE_ID);
+        pdu.writeText("M" + Long.toHexString(mNextId.incrementAndGet()));
+        return pdu.toByteArray();
+    }
+
+    // The message every notification points to, composed once so that the
+    // compose numbers only hold what the client composed
+    private static byte[] newRetrieveConf(int imageSize) throws InvalidHeaderValueException {
+        final RetrieveConf retrieveConf = new RetrieveConf();
+        retrieveConf.setMmsVersion(PduHeaders.CURRENT_MMS_VERSION);
+        retrieveConf.setMessageId("M0".getBytes());
+        retrieveConf.setDate(System.currentTimeMillis() / 1000);
+        retrieveConf.setFrom(new EncodedStringValue("+15555550101"));
+        retrieveConf.addTo(new EncodedStringValue("+15555550100"));
+        retrieveConf.setContentType(ContentType.MULTIPART_RELATED.getBytes());
+        retrieveConf.setMessageClass(PduHeaders.MESSAGE_CLASS_PERSONAL_STR.getBytes());
+
+        final PduBody body = new PduBody();
+        body.addPart(newPart("text_0.txt", ContentType.TEXT_PLAIN,
+                "Here are the pictures from last night.".getBytes()));
+        if (imageSize > 0) {
+            final byte[] image = new byte[imageSize];
+            new Random(imageSize).nextBytes(image);
+            body.addPart(newPart("image_0.jpg", ContentType.IMAGE_JPEG, image));
+        }
+        retrieveConf.setBody(body);
+        return new PduComposer(new Context(), retrieveConf).make();
+    }
+
+    static PduPart newPart(String name, String contentType, byte[] data) {
+        final PduPart part = new PduPart();
+        part.setName(name.getBytes());
+        part.setContentType(contentType.getBytes());
+        if (contentType.startsWith("text")) {
+            part.setCharset(CharacterSets.UTF_8);
+        }
+        part.setContentLocation(name.getBytes());
+        part.setContentId(name.substring(0, name.lastIndexOf('.')).getBytes());
+        part.setData(data);
+        return part;
+    }
+
+    private static String readText(byte[] pdu, int offset) {
+        if ((pdu[offset] & 0xff) == 0x7f) {
+            offset++;
+        }
+        int end = offset;
+        while (end < pdu.length && pdu[end] != 0) {
+            end++;
+        }
+        return new String(pdu, offset, end - offset);
+    }
+
+    /**
+     * Writes the few header encodings the MMSC answers with.
+     */
+    private static class PduWriter extends ByteArrayOutputStream {
+        void writeText(String text) {
+            final byte[] bytes = text.getBytes();
+            if ((bytes[0] & 0xff) > 0x7f) {
+                write(0x7f);
+            }
+            write(bytes, 0, bytes.length);
+            write(0);
+        }
+
+        void writeLongInteger(long value) {
+            int size = 0;
+            for (long temp = value; temp != 0; temp >>>= 8) {
+                size++;
+            }
+            write(size);
+            for (int i = size - 1; i >= 0; i--) {
+                write((int) (value >>> (8 * i)) & 0xff);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.loadtest;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps the pdu table of the telephony provider in memory, as far as the
+ * stand-in persister fills it. Selections can only test columns for NULL,
+ * e.g. "m_id IS NULL AND tr_id NOT NULL".
+ *
+ * A batch can be made to fail the way a process that is killed fails it: the
+ * import stops, and the updates of the batch are never applied.
+ */
+public class StandInMmsProvider extends ContentProvider {
+    /**
+     * Thrown through the importer, which keeps going after an Exception.
+     */
+    public static class Killed extends Error {
+        Killed(String message) {
+            super(message);
+        }
+    }
+
+    private final ArrayList<ContentValues> mRows = new ArrayList<ContentValues>();
+    private int mBatches;
+    private int mLargestBatch;
+    private int mKillAtBatch = -1;
+
+    /**
+     * @param batch the batch to fail, counting from 1, or -1 for none
+     */
+    public synchronized void killAtBatch(int batch) {
+        mKillAtBatch = batch;
+    }
+
+    /**
+     * @return how many batches were applied
+     */
+    public synchronized int getBatches() {
+        return mBatches;
+    }
+
+    /**
+     * @return the most updates applied in one batch
+     */
+    public synchronized int getLargestBatch() {
+        return mLargestBatch;
+    }
+
+    /**
+     * @return the rows, in the order they were inserted
+     */
+    public synchronized ArrayList<ContentValues> getRows() {
+        return new ArrayList<ContentValues>(mRows);
+    }
+
+    @Override
+    public synchronized Cursor query(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        final String[] clauses = selection != null ? selection.split(" AND ") : new String[0];
+        final MatrixCursor cursor = new MatrixCursor(projection);
+        for (ContentValues row : mRows) {
+            if (matches(row, clauses)) {
+                final Object[] values = new Object[projection.length];
+                for (int i = 0; i < projection.length; i++) {
+                    values[i] = row.get(projection[i]);
+                }
+                cursor.addRow(values);
+            }
+        }
+        return cursor;
+    }
+
+    @Override
+    public synchronized Uri insert(Uri uri, ContentValues values) {
+        final ContentValues row = new ContentValues();
+        row.putAll(values);
+        row.put(Mms._ID, Long.valueOf(mRows.size() + 1));
+        row.put(Mms.MESSAGE_BOX, Integer.valueOf(getMessageBox(uri)));
+        row.put(Mms.READ, Integer.valueOf(0));
+        row.put(Mms.SEEN, Integer.valueOf(0));
+        mRows.add(row);
+        return ContentUris.withAppendedId(Mms.CONTENT_URI, mRows.size());
+    }
+
+    @Override
+    public synchronized int update(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
+        final long id = ContentUris.parseId(uri);
+        if (id < 1 || id > mRows.size()) {
+            return 0;
+        }
+        mRows.get((int) id - 1).putAll(values);
+        return 1;
+    }
+
+    @Override
+    public synchronized void applyBatch(ArrayList<ContentProviderOperation> operations) {
+        mBatches++;
+        if (mBatches == mKillAtBatch) {
+            throw new Killed("Killed at batch " + mBatches);
+        }
+        mLargestBatch = Math.max(mLargestBatch, operations.size());
+        super.applyBatch(operations);
+    }
+
+    private static boolean matches(ContentValues row, String[] clauses) {
+        for (String clause : clauses) {
+            if (clause.endsWith(" IS NULL")) {
+                if (row.get(clause.substring(0, clause.length() - 8)) != null) {
+                    return false;
+                }
+            } else if (clause.endsWith(" NOT NULL")) {
+                if (row.get(clause.substring(0, clause.length() - 9)) == null) {
+                    return false;
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported selection " + clause);
+            }
+        }
+        return true;
+    }
+
+    private static int getMessageBox(Uri uri) {
+        final String box = uri.getLastPathSegment();
+        if ("inbox".equals(box)) {
+            return Mms.MESSAGE_BOX_INBOX;
+        } else if ("sent".equals(box)) {
+            return Mms.MESSAGE_BOX_SENT;
+        } else if ("drafts".equals(box)) {
+            return Mms.MESSAGE_BOX_DRAFTS;
+        }
+        throw new IllegalArgumentException("Not a message box " + uri);
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu_alt;
+
+import android.content.Context;
+
+import com.google.android.mms.ContentType;
+import com.google.android.mms.InvalidHeaderValueException;
+import com.google.android.mms.util_alt.ByteArrayPool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Composes the PDUs sent most often, with the buffer pool warm, the way it is
+ * while messages keep going out, and with the pool emptied before every
+ * message, which allocates every buffer the way PduComposer did before it used
+ * {@link ByteArrayPool}. Compare the two with the gc profiler.
+ *
+ * Run with ./gradlew :benchmark:jmh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PduComposerBenchmark {
+    private static final byte[] TRANSACTION_ID = "T1234567890abcdef".getBytes();
+
+    private final Context mContext = new Context();
+    private final AcknowledgeInd mAck;
+
+    public PduComposerBenchmark() {
+        try {
+            mAck = new AcknowledgeInd(PduHeaders.CURRENT_MMS_VERSION, TRANSACTION_ID);
+        } catch (InvalidHeaderValueException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The message to send, in its own state so only the send benchmarks run
+     * for every size.
+     */
+    @State(Scope.Thread)
+    public static class Message {
+        // A text message, and a picture message with its text
+        @Param({"0", "102400"})
+        public int imageSize;
+
+        SendReq mSendReq;
+
+        @Setup
+        public void setUp() throws InvalidHeaderValueException {
+            mSendReq = newSendReq(imageSize);
+        }
+    }
+
+    private static SendReq newSendReq(int imageSize) throws InvalidHeaderValueException {
+        final SendReq sendReq = new SendReq();
+        sendReq.addTo(new EncodedStringValue("+15555550100"));
+        sendReq.setTransactionId(TRANSACTION_ID);
+        sendReq.setMessageClass(PduHeaders.MESSAGE_CLASS_PERSONAL_STR.getBytes());
+        sendReq.setPriority(PduHeaders.PRIORITY_NORMAL);
+        sendReq.setDeliveryReport(PduHeaders.VALUE_NO);
+        sendReq.setReadReport(PduHeaders.VALUE_NO);
+        sendReq.setExpiry(60 * 60 * 24 * 7);
+
+        final PduBody body = new PduBody();
+        body.addPart(newPart("text_0.txt", ContentType.TEXT_PLAIN,
+                "See you at eight, I'll bring the pictures.".getBytes()));
+        if (imageSize > 0) {
+            final byte[] image = new byte[imageSize];
+            new Random(imageSize).nextBytes(image);
+            body.addPart(newPart("image_0.jpg", ContentType.IMAGE_JPEG, image));
+        }
+        sendReq.setBody(body);
+        sendReq.setMessageSize(imageSize);
+        return sendReq;
+    }
+
+    private static PduPart newPart(String name, String contentType, byte[] data) {
+        final PduPart part = new PduPart();
+        part.setName(name.getBytes());
+        part.setContentType(contentType.getBytes());
+        if (contentType.startsWith("text")) {
+            part.setCharset(CharacterSets.UTF_8);
+        }
+        part.setContentLocation(name.getBytes());
+        part.setContentId(name.substring(0, name.lastIndexOf('.')).getBytes());
+        part.setData(data);
+        return part;
+    }
+
+    @Benchmark
+    public byte[] sendReqPooled(Message message) {
+        return new PduComposer(mContext, message.mSendReq).make();
+    }
+
+    @Benchmark
+    public byte[] sendReqUnpooled(Message message) {
+        ByteArrayPool.trim();
+        return new PduComposer(mContext, message.mSendReq).make();
+    }
+
+    @Benchmark
+    public byte[] ackPooled() {
+        return new PduComposer(mContext, mAck).make();
+    }
+
+    @Benchmark
+    public byte[] ackUnpooled() {
+        ByteArrayPool.trim();
+        return new PduComposer(mContext, mAck).make();
+    }
+}
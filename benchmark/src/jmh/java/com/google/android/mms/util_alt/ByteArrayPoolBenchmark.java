@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util_alt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads an MMS response body the way the http code did before it used
+ * {@link ByteArrayPool}, and the way it does now, so the two can be compared
+ * for time and, with the gc profiler, for allocation.
+ *
+ * Run with ./gradlew :benchmark:jmh
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ByteArrayPoolBenchmark {
+    private static final int READ_BUFFER_SIZE = 4096;
+    private static final int MAX_MESSAGE_SIZE = 300 * 1024;
+
+    // An ack, a text message and a large picture message
+    @Param({"256", "16384", "307200"})
+    public int responseSize;
+
+    private byte[] mResponse;
+
+    @Setup
+    public void setUp() {
+        mResponse = new byte[responseSize];
+        new Random(responseSize).nextBytes(mResponse);
+    }
+
+    /**
+     * MmsHttpClient before pooling: a growing stream and a fresh read buffer.
+     */
+    @Benchmark
+    public byte[] responseUnpooled() throws IOException {
+        final InputStream in = new ByteArrayInputStream(mResponse);
+        final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        final byte[] buf = new byte[READ_BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buf)) > 0) {
+            byteOut.write(buf, 0, count);
+        }
+        return byteOut.toByteArray();
+    }
+
+    /**
+     * MmsHttpClient now: a pooled stream sized from Content-Length.
+     */
+    @Benchmark
+    public byte[] responsePooled() throws IOException {
+        final InputStream in = new ByteArrayInputStream(mResponse);
+        final PooledByteArrayOutputStream byteOut = new PooledByteArrayOutputStream(
+                Math.min(mResponse.length, MAX_MESSAGE_SIZE));
+        final byte[] buf = ByteArrayPool.acquire(READ_BUFFER_SIZE);
+        try {
+            int count;
+            while ((count = in.read(buf)) > 0) {
+                byteOut.write(buf, 0, count);
+            }
+            return byteOut.toByteArray();
+        } finally {
+            ByteArrayPool.release(buf);
+            byteOut.release();
+        }
+    }
+
+    /**
+     * HttpUtils before pooling: a chunked response read into an array of the
+     * largest message size.
+     */
+    @Benchmark
+    public byte[] chunkedUnpooled() throws IOException {
+        final InputStream in = new ByteArrayInputStream(mResponse);
+        final byte[] tempBody = new byte[MAX_MESSAGE_SIZE];
+        int bytesTobeRead = MAX_MESSAGE_SIZE;
+        int offset = 0;
+        int bytesRead;
+        do {
+            bytesRead = in.read(tempBody, offset, bytesTobeRead);
+            if (bytesRead > 0) {
+                bytesTobeRead -= bytesRead;
+                offset += bytesRead;
+            }
+        } while (bytesRead >= 0 && bytesTobeRead > 0);
+        final byte[] body = new byte[offset];
+        System.arraycopy(tempBody, 0, body, 0, offset);
+        return body;
+    }
+
+    /**
+     * HttpUtils now: a chunked response grown in a pooled stream.
+     */
+    @Benchmark
+    public byte[] chunkedPooled() throws IOException {
+        final InputStream in = new ByteArrayInputStream(mResponse);
+        final byte[] buffer = ByteArrayPool.acquire(READ_BUFFER_SIZE);
+        final PooledByteArrayOutputStream tempBody = new PooledByteArrayOutputStream(
+                READ_BUFFER_SIZE);
+        try {
+            int bytesTobeRead = MAX_MESSAGE_SIZE;
+            int bytesRead;
+            do {
+                bytesRead = in.read(buffer, 0, Math.min(buffer.length, bytesTobeRead));
+                if (bytesRead > 0) {
+                    bytesTobeRead -= bytesRead;
+                    tempBody.write(buffer, 0, bytesRead);
+                }
+            } while (bytesRead >= 0 && bytesTobeRead > 0);
+            return tempBody.toByteArray();
+        } finally {
+            ByteArrayPool.release(buffer);
+            tempBody.release();
+        }
+    }
+}
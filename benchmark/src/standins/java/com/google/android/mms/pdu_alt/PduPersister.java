@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu_alt;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+
+import com.google.android.mms.MmsException;
+
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+
+/**
+ * Stands in for the persister, which writes the parts, addresses and threads
+ * of a message through the telephony provider. Only the columns the importer
+ * reads back are written, with one insert.
+ */
+public class PduPersister {
+    private static PduPersister sPersister;
+
+    private final Context mContext;
+
+    private PduPersister(Context context) {
+        mContext = context;
+    }
+
+    /** Get(or create if not exist) an instance of PduPersister */
+    public static synchronized PduPersister getPduPersister(Context context) {
+        if (sPersister == null || sPersister.mContext != context) {
+            sPersister = new PduPersister(context);
+        }
+        return sPersister;
+    }
+
+    public Uri persist(GenericPdu pdu, Uri uri, boolean createThreadId, boolean groupMmsEnabled,
+            HashMap<Uri, InputStream> preOpenedFiles, int subscriptionId)
+            throws MmsException {
+        if (uri == null) {
+            throw new MmsException("Uri may not be null.");
+        }
+
+        final PduHeaders header = pdu.getPduHeaders();
+        final ContentValues values = new ContentValues();
+        final byte[] messageId = header.getTextString(PduHeaders.MESSAGE_ID);
+        if (messageId != null) {
+            values.put(Mms.MESSAGE_ID, toIsoString(messageId));
+        }
+        final byte[] transactionId = header.getTextString(PduHeaders.TRANSACTION_ID);
+        if (transactionId != null) {
+            values.put(Mms.TRANSACTION_ID, toIsoString(transactionId));
+        }
+        final long date = header.getLongInteger(PduHeaders.DATE);
+        if (date != -1) {
+            values.put(Mms.DATE, date);
+        }
+
+        final Uri res = mContext.getContentResolver().insert(uri, values);
+        if (res == null) {
+            throw new MmsException("persist() failed: return null.");
+        }
+        return res;
+    }
+
+    /**
+     * Wrap a byte[] into a String.
+     */
+    public static String toIsoString(byte[] bytes) {
+        try {
+            return new String(bytes, CharacterSets.MIMENAME_ISO_8859_1);
+        } catch (UnsupportedEncodingException e) {
+            // Impossible to reach here!
+            return "";
+        }
+    }
+}
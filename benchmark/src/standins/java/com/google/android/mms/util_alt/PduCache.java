@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util_alt;
+
+import android.net.Uri;
+
+/**
+ * Stands in for the cache of loaded PDUs. The stand-in persister doesn't load
+ * any, so there is nothing to purge.
+ */
+public final class PduCache {
+    private static final PduCache sInstance = new PduCache();
+
+    private PduCache() {}
+
+    public static PduCache getInstance() {
+        return sInstance;
+    }
+
+    public void purge(Uri uri) {
+    }
+}
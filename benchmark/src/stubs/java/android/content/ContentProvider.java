@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.util.ArrayList;
+
+/**
+ * Just enough of the framework class for a stand-in provider.
+ */
+public abstract class ContentProvider {
+    public abstract Cursor query(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder);
+
+    public abstract Uri insert(Uri uri, ContentValues values);
+
+    public abstract int update(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs);
+
+    public void applyBatch(ArrayList<ContentProviderOperation> operations) {
+        for (ContentProviderOperation operation : operations) {
+            operation.apply(this);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import android.net.Uri;
+
+/**
+ * Just enough of the framework class for updates applied in a batch.
+ */
+public class ContentProviderOperation {
+    private final Uri mUri;
+    private final ContentValues mValues;
+
+    private ContentProviderOperation(Builder builder) {
+        mUri = builder.mUri;
+        mValues = builder.mValues;
+    }
+
+    public static Builder newUpdate(Uri uri) {
+        return new Builder(uri);
+    }
+
+    public Uri getUri() {
+        return mUri;
+    }
+
+    public void apply(ContentProvider provider) {
+        provider.update(mUri, mValues, null, null);
+    }
+
+    public static class Builder {
+        private final Uri mUri;
+        private final ContentValues mValues = new ContentValues();
+
+        private Builder(Uri uri) {
+            mUri = uri;
+        }
+
+        public Builder withValue(String key, Object value) {
+            mValues.put(key, value);
+            return this;
+        }
+
+        public ContentProviderOperation build() {
+            return new ContentProviderOperation(this);
+        }
+    }
+}
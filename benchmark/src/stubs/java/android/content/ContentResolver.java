@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import android.database.Cursor;
+import android.net.Uri;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Just enough of the framework class for the PDU code to run on the desktop JVM.
+ * The benchmarks keep part data in memory, so nothing is ever opened. Queries
+ * and updates go to the provider added for the authority, the way the mock
+ * resolver of the framework's tests does it.
+ */
+public class ContentResolver {
+    private final ArrayList<String> mAuthorities = new ArrayList<String>();
+    private final ArrayList<ContentProvider> mProviders = new ArrayList<ContentProvider>();
+
+    public void addProvider(String authority, ContentProvider provider) {
+        mAuthorities.add(authority);
+        mProviders.add(provider);
+    }
+
+    public InputStream openInputStream(Uri uri) throws FileNotFoundException {
+        throw new FileNotFoundException(String.valueOf(uri));
+    }
+
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        return getProvider(uri.getAuthority())
+                .query(uri, projection, selection, selectionArgs, sortOrder);
+    }
+
+    public Uri insert(Uri uri, ContentValues values) {
+        return getProvider(uri.getAuthority()).insert(uri, values);
+    }
+
+    public int update(Uri uri, ContentValues values, String where, String[] selectionArgs) {
+        return getProvider(uri.getAuthority()).update(uri, values, where, selectionArgs);
+    }
+
+    public void applyBatch(String authority, ArrayList<ContentProviderOperation> operations) {
+        getProvider(authority).applyBatch(operations);
+    }
+
+    private ContentProvider getProvider(String authority) {
+        final int index = mAuthorities.indexOf(authority);
+        if (index < 0) {
+            throw new IllegalArgumentException("Unknown authority " + authority);
+        }
+        return mProviders.get(index);
+    }
+}
@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import android.net.Uri;
+
+/**
+ * Just enough of the framework class for a stand-in provider.
+ */
+public class ContentUris {
+    public static long parseId(Uri contentUri) {
+        return Long.parseLong(contentUri.getLastPathSegment());
+    }
+
+    public static Uri withAppendedId(Uri contentUri, long id) {
+        return Uri.withAppendedPath(contentUri, String.valueOf(id));
+    }
+}
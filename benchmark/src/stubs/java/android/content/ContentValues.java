@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import java.util.HashMap;
+import java.util.Set;
+
+/**
+ * Just enough of the framework class for a stand-in provider.
+ */
+public class ContentValues {
+    private final HashMap<String, Object> mValues = new HashMap<String, Object>();
+
+    public void put(String key, String value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Integer value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Long value) {
+        mValues.put(key, value);
+    }
+
+    void put(String key, Object value) {
+        mValues.put(key, value);
+    }
+
+    public void putAll(ContentValues other) {
+        mValues.putAll(other.mValues);
+    }
+
+    public Object get(String key) {
+        return mValues.get(key);
+    }
+
+    public Set<String> keySet() {
+        return mValues.keySet();
+    }
+}
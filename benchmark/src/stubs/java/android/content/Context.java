@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import android.telephony.TelephonyManager;
+
+/**
+ * Just enough of the framework class for the PDU and HTTP code to run on the desktop JVM.
+ */
+public class Context {
+    public static final String TELEPHONY_SERVICE = "phone";
+
+    private final ContentResolver mResolver = new ContentResolver();
+    private final TelephonyManager mTelephonyManager = new TelephonyManager();
+
+    public ContentResolver getContentResolver() {
+        return mResolver;
+    }
+
+    public Object getSystemService(String name) {
+        return TELEPHONY_SERVICE.equals(name) ? mTelephonyManager : null;
+    }
+}
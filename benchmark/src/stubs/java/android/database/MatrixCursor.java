@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database;
+
+import java.util.ArrayList;
+
+/**
+ * Just enough of the framework class for the rows of a stand-in provider.
+ */
+public class MatrixCursor implements Cursor {
+    private final String[] mColumns;
+    private final ArrayList<Object[]> mRows = new ArrayList<Object[]>();
+    private int mPosition = -1;
+
+    public MatrixCursor(String[] columns) {
+        mColumns = columns;
+    }
+
+    public void addRow(Object[] row) {
+        if (row.length != mColumns.length) {
+            throw new IllegalArgumentException("Expected " + mColumns.length + " columns");
+        }
+        mRows.add(row);
+    }
+
+    @Override
+    public boolean moveToNext() {
+        if (mPosition < mRows.size()) {
+            mPosition++;
+        }
+        return mPosition < mRows.size();
+    }
+
+    @Override
+    public String getString(int column) {
+        final Object value = mRows.get(mPosition)[column];
+        return value != null ? value.toString() : null;
+    }
+
+    @Override
+    public long getLong(int column) {
+        final Object value = mRows.get(mPosition)[column];
+        return value != null ? ((Number) value).longValue() : 0;
+    }
+
+    @Override
+    public void close() {
+    }
+}
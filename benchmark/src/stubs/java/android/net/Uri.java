@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+/**
+ * Just enough of the framework class for the PDU code to run on the desktop JVM.
+ */
+public class Uri {
+    private static final String SCHEME_SEPARATOR = "://";
+
+    private final String mUri;
+
+    private Uri(String uri) {
+        mUri = uri;
+    }
+
+    public static Uri parse(String uri) {
+        return new Uri(uri);
+    }
+
+    public static Uri withAppendedPath(Uri base, String pathSegment) {
+        return new Uri(base.mUri + "/" + pathSegment);
+    }
+
+    public String getAuthority() {
+        final int start = mUri.indexOf(SCHEME_SEPARATOR);
+        if (start < 0) {
+            return null;
+        }
+        final int end = mUri.indexOf('/', start + SCHEME_SEPARATOR.length());
+        return mUri.substring(start + SCHEME_SEPARATOR.length(), end < 0 ? mUri.length() : end);
+    }
+
+    public String getLastPathSegment() {
+        return mUri.substring(mUri.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Uri && mUri.equals(((Uri) o).mUri);
+    }
+
+    @Override
+    public int hashCode() {
+        return mUri.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mUri;
+    }
+}
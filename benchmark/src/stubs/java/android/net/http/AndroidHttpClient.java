@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.http;
+
+import android.content.Context;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.params.HttpClientParams;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import java.io.IOException;
+
+/**
+ * The framework client on top of the Apache client it wraps on the device, set
+ * up with the same defaults.
+ */
+public final class AndroidHttpClient {
+    private static final int SOCKET_OPERATION_TIMEOUT = 60 * 1000;
+
+    private final DefaultHttpClient mDelegate;
+
+    private AndroidHttpClient(ClientConnectionManager manager, HttpParams params) {
+        mDelegate = new DefaultHttpClient(manager, params);
+    }
+
+    public static AndroidHttpClient newInstance(String userAgent, Context context) {
+        final HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setStaleCheckingEnabled(params, false);
+        HttpConnectionParams.setConnectionTimeout(params, SOCKET_OPERATION_TIMEOUT);
+        HttpConnectionParams.setSoTimeout(params, SOCKET_OPERATION_TIMEOUT);
+        HttpConnectionParams.setSocketBufferSize(params, 8192);
+        HttpClientParams.setRedirecting(params, false);
+        HttpProtocolParams.setUserAgent(params, userAgent);
+
+        final SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", PlainSocketFactory.getSocketFactory(), 80));
+        return new AndroidHttpClient(
+                new ThreadSafeClientConnManager(params, schemeRegistry), params);
+    }
+
+    public HttpParams getParams() {
+        return mDelegate.getParams();
+    }
+
+    public HttpResponse execute(HttpHost target, HttpRequest request) throws IOException {
+        return mDelegate.execute(target, request);
+    }
+
+    public void close() {
+        mDelegate.getConnectionManager().shutdown();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.net.Uri;
+
+/**
+ * Just enough of the framework class for the columns the importer reads and writes.
+ */
+public final class Telephony {
+    private Telephony() {}
+
+    public static final class Mms {
+        public static final Uri CONTENT_URI = Uri.parse("content://mms");
+
+        public static final String _ID = "_id";
+        public static final String DATE = "date";
+        public static final String MESSAGE_BOX = "msg_box";
+        public static final String READ = "read";
+        public static final String SEEN = "seen";
+        public static final String MESSAGE_ID = "m_id";
+        public static final String TRANSACTION_ID = "tr_id";
+
+        public static final int MESSAGE_BOX_INBOX = 1;
+        public static final int MESSAGE_BOX_SENT = 2;
+        public static final int MESSAGE_BOX_DRAFTS = 3;
+        public static final int MESSAGE_BOX_OUTBOX = 4;
+
+        private Mms() {}
+
+        public static final class Inbox {
+            public static final Uri CONTENT_URI = Uri.parse("content://mms/inbox");
+
+            private Inbox() {}
+        }
+
+        public static final class Sent {
+            public static final Uri CONTENT_URI = Uri.parse("content://mms/sent");
+
+            private Sent() {}
+        }
+
+        public static final class Draft {
+            public static final Uri CONTENT_URI = Uri.parse("content://mms/drafts");
+
+            private Draft() {}
+        }
+    }
+}
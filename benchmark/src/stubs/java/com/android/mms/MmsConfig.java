@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms;
+
+/**
+ * Stands in for the config the legacy transactions load from mms_config.xml,
+ * with its defaults and a setter for what the harness varies.
+ */
+public class MmsConfig {
+    public static final String DEFAULT_HTTP_KEY_X_WAP_PROFILE = "x-wap-profile";
+    public static final String DEFAULT_USER_AGENT = "Android-Mms/2.0";
+
+    private static int mMaxMessageSize = 800 * 1024;            // default to 800k max size
+    private static int mHttpSocketTimeout = 60*1000;            // default to 1 min
+
+    public static int getMaxMessageSize() {
+        return mMaxMessageSize;
+    }
+
+    public static String getUserAgent() {
+        return DEFAULT_USER_AGENT;
+    }
+
+    public static String getUaProfTagName() {
+        return DEFAULT_HTTP_KEY_X_WAP_PROFILE;
+    }
+
+    public static String getUaProfUrl() {
+        return null;
+    }
+
+    public static String getHttpParams() {
+        return null;
+    }
+
+    public static String getHttpParamsLine1Key() {
+        return null;
+    }
+
+    public static int getHttpSocketTimeout() {
+        return mHttpSocketTimeout;
+    }
+
+    public static void setHttpSocketTimeout(int timeout) {
+        mHttpSocketTimeout = timeout;
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service_alt;
+
+import android.content.Context;
+
+/**
+ * Stands in for the per subscription config, which is read from the carrier
+ * resources. Only {@link Overridden} is used, with the defaults of
+ * mms_config.xml and a setter for what the harness varies.
+ */
+public class MmsConfig {
+    /**
+     * The values the HTTP client reads.
+     */
+    public static class Overridden {
+        private int mHttpSocketTimeout = 60 * 1000;
+
+        public int getMaxMessageSize() {
+            return 300 * 1024;
+        }
+
+        public String getUserAgent() {
+            return "Android-Mms/2.0";
+        }
+
+        public String getUaProfTagName() {
+            return "x-wap-profile";
+        }
+
+        public String getUaProfUrl() {
+            return null;
+        }
+
+        public String getHttpParams() {
+            return null;
+        }
+
+        public String getHttpParamMacro(Context context, String macro) {
+            return null;
+        }
+
+        public boolean getSupportHttpCharsetHeader() {
+            return false;
+        }
+
+        public int getHttpSocketTimeout() {
+            return mHttpSocketTimeout;
+        }
+
+        public void setHttpSocketTimeout(int timeout) {
+            mHttpSocketTimeout = timeout;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service_alt;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Stands in for the network manager, which needs the connectivity service to
+ * bring up the MMS network. Hosts are resolved on the default network and
+ * nothing is resolved ahead.
+ */
+public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
+    private final int mSubId;
+
+    public MmsNetworkManager(int subId) {
+        mSubId = subId;
+    }
+
+    @Override
+    public InetAddress[] resolveInetAddresses(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+
+    public void prepareHost(String host, int port, int timeout) {
+    }
+
+    public int getSubId() {
+        return mSubId;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.logger;
+
+/**
+ * Stands in for the logger, which writes to logcat. Warnings and errors go to
+ * stderr, so a harness run still shows what went wrong; the rest is dropped.
+ */
+public class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    public static boolean isLoggable(String tag, int level) {
+        return level >= WARN;
+    }
+
+    public static void v(String tag, String msg) {
+    }
+
+    public static void v(String tag, String msg, Throwable tr) {
+    }
+
+    public static void d(String tag, String msg) {
+    }
+
+    public static void d(String tag, String msg, Throwable tr) {
+    }
+
+    public static void i(String tag, String msg) {
+    }
+
+    public static void i(String tag, String msg, Throwable tr) {
+    }
+
+    public static void w(String tag, String msg) {
+        System.err.println("W/" + tag + ": " + msg);
+    }
+
+    public static void w(String tag, String msg, Throwable tr) {
+        System.err.println("W/" + tag + ": " + msg + ": " + tr);
+    }
+
+    public static void e(String tag, String msg) {
+        System.err.println("E/" + tag + ": " + msg);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        System.err.println("E/" + tag + ": " + msg + ": " + tr);
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Drops the broadcasts, nothing on the desktop JVM listens for them.
+ */
+public class BroadcastUtils {
+    public static void sendExplicitBroadcast(Context context, Intent intent, String action) {
+    }
+}
@@ -0,0 +1,597 @@
+/*
+ * Copyright 2014 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Works out how a text splits into 3GPP SMS segments without going through the
+ * platform's SmsMessage.calculateLength() and SmsManager.divideMessage().
+ * <p/>
+ * The text is encoded with the GSM 7 bit alphabet when some enabled pair of
+ * national language locking / single shift tables covers every character,
+ * picking the pair that needs the fewest segments, and as UCS-2 otherwise.
+ * Encoding, segment count and segment boundaries all come out of a single pass
+ * over the text. Only the bundled {@link GsmAlphabetTables} are used, so this
+ * class has no Android dependencies.
+ * <p/>
+ * {@hide}
+ */
+public final class SmsSegmenter {
+    private static final char ESCAPE = (char) GsmAlphabet.GSM_EXTENDED_ESCAPE;
+
+    /**
+     * UCS-2 code units per segment, without and with a concatenation header.
+     */
+    private static final int MAX_UCS2_UNITS = SmsConstants.MAX_USER_DATA_BYTES / 2;
+    private static final int MAX_UCS2_UNITS_WITH_HEADER =
+            SmsConstants.MAX_USER_DATA_BYTES_WITH_HEADER / 2;
+
+    private static final CharTable[] sLanguageTables =
+            new CharTable[GsmAlphabetTables.LANGUAGE_TABLES.length];
+    private static final CharTable[] sShiftTables =
+            new CharTable[GsmAlphabetTables.LANGUAGE_SHIFT_TABLES.length];
+
+    private static SmsSegmenter sDefault;
+
+    private final TablePair[] mPairs;
+
+    /**
+     * Returns a segmenter using only the default GSM alphabet and extension
+     * table, the same tables {@link GsmAlphabet} enables in this library.
+     */
+    public static synchronized SmsSegmenter getDefault() {
+        if (sDefault == null) {
+            sDefault = new SmsSegmenter(new int[0], new int[0]);
+        }
+        return sDefault;
+    }
+
+    /**
+     * @param lockingShiftTables national language locking shift tables to try
+     *        besides the default alphabet
+     * @param singleShiftTables national language single shift tables to try
+     *        besides the default extension table
+     */
+    public SmsSegmenter(int[] lockingShiftTables, int[] singleShiftTables) {
+        int[] languages = withDefault(lockingShiftTables, GsmAlphabetTables.LANGUAGE_TABLES);
+        int[] shifts = withDefault(singleShiftTables, GsmAlphabetTables.LANGUAGE_SHIFT_TABLES);
+
+        ArrayList<TablePair> pairs = new ArrayList<TablePair>();
+        for (int language : languages) {
+            for (int shift : shifts) {
+                // Same exclusions as GsmAlphabet: Turkish + Turkish and
+                // Portuguese + Spanish are never optimal for any input.
+                if ((language == 1 && shift == 1) || (language == 3 && shift == 2)) {
+                    continue;
+                }
+                pairs.add(new TablePair(language, shift));
+            }
+        }
+        mPairs = pairs.toArray(new TablePair[pairs.size()]);
+    }
+
+    /**
+     * Segments the text in one pass.
+     *
+     * @param text the message body
+     * @return the chosen encoding and the segment boundaries
+     */
+    public Segments segment(CharSequence text) {
+        int length = text.length();
+        int pairCount = mPairs.length;
+        int[] septets = new int[pairCount];
+        int[] fill = new int[pairCount];
+        boolean[] encodable = new boolean[pairCount];
+        IntList[] starts = new IntList[pairCount];
+        Arrays.fill(encodable, true);
+
+        int ucs2Fill = 0;
+        IntList ucs2Starts = new IntList();
+
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+
+            for (int p = 0; p < pairCount; p++) {
+                if (!encodable[p]) {
+                    continue;
+                }
+                int cost = mPairs[p].cost(c);
+                if (cost < 0) {
+                    encodable[p] = false;
+                    continue;
+                }
+                septets[p] += cost;
+                if (fill[p] + cost > mPairs[p].mMultiLimit) {
+                    if (starts[p] == null) {
+                        starts[p] = new IntList();
+                    }
+                    starts[p].add(i);
+                    fill[p] = cost;
+                } else {
+                    fill[p] += cost;
+                }
+            }
+
+            if (ucs2Fill + 1 > MAX_UCS2_UNITS_WITH_HEADER) {
+                if (Character.isLowSurrogate(c) && Character.isHighSurrogate(text.charAt(i - 1))) {
+                    // Don't split a surrogate pair across segments.
+                    ucs2Starts.add(i - 1);
+                    ucs2Fill = 2;
+                } else {
+                    ucs2Starts.add(i);
+                    ucs2Fill = 1;
+                }
+            } else {
+                ucs2Fill++;
+            }
+        }
+
+        int best = -1;
+        int bestCount = Integer.MAX_VALUE;
+        int bestRemaining = -1;
+        for (int p = 0; p < pairCount; p++) {
+            if (!encodable[p]) {
+                continue;
+            }
+            TablePair pair = mPairs[p];
+            int count;
+            int remaining;
+            if (septets[p] <= pair.mSingleLimit) {
+                count = 1;
+                remaining = pair.mSingleLimit - septets[p];
+            } else {
+                count = starts[p] == null ? 1 : starts[p].size() + 1;
+                remaining = pair.mMultiLimit - fill[p];
+            }
+            if (count < bestCount || (count == bestCount && remaining > bestRemaining)) {
+                best = p;
+                bestCount = count;
+                bestRemaining = remaining;
+            }
+        }
+
+        if (best >= 0) {
+            TablePair pair = mPairs[best];
+            int[] segmentStarts = bestCount == 1 ? new int[] { 0 } : starts[best].toArray();
+            return new Segments(SmsConstants.ENCODING_7BIT, pair.mLanguage, pair.mShift,
+                    septets[best], bestRemaining, segmentStarts, length);
+        }
+
+        if (length <= MAX_UCS2_UNITS) {
+            return new Segments(SmsConstants.ENCODING_16BIT, 0, 0, length,
+                    MAX_UCS2_UNITS - length, new int[] { 0 }, length);
+        }
+        return new Segments(SmsConstants.ENCODING_16BIT, 0, 0, length,
+                MAX_UCS2_UNITS_WITH_HEADER - ucs2Fill, ucs2Starts.toArray(), length);
+    }
+
+    /**
+     * Returns a counter that keeps the segment count of a text up to date as
+     * it is edited, for compose boxes that count on every keystroke.
+     */
+    public Counter newCounter() {
+        return new Counter();
+    }
+
+    private static int[] withDefault(int[] tables, String[] available) {
+        int[] codes = new int[tables.length + 1];
+        int count = 1;
+        for (int table : tables) {
+            if (table <= 0 || table >= available.length || available[table].isEmpty()) {
+                continue;
+            }
+            boolean duplicate = false;
+            for (int i = 0; i < count; i++) {
+                duplicate |= codes[i] == table;
+            }
+            if (!duplicate) {
+                codes[count++] = table;
+            }
+        }
+        return Arrays.copyOf(codes, count);
+    }
+
+    private static synchronized CharTable languageTable(int code) {
+        if (sLanguageTables[code] == null) {
+            sLanguageTables[code] = new CharTable(GsmAlphabetTables.LANGUAGE_TABLES[code], false);
+        }
+        return sLanguageTables[code];
+    }
+
+    private static synchronized CharTable shiftTable(int code) {
+        if (sShiftTables[code] == null) {
+            sShiftTables[code] = new CharTable(GsmAlphabetTables.LANGUAGE_SHIFT_TABLES[code], true);
+        }
+        return sShiftTables[code];
+    }
+
+    /**
+     * Result of {@link #segment(CharSequence)}.
+     */
+    public static final class Segments {
+        private final int mEncoding;
+        private final int mLanguageTable;
+        private final int mLanguageShiftTable;
+        private final int mCodeUnitCount;
+        private final int mCodeUnitsRemaining;
+        private final int[] mStarts;
+        private final int mLength;
+
+        Segments(int encoding, int languageTable, int languageShiftTable, int codeUnitCount,
+                int codeUnitsRemaining, int[] starts, int length) {
+            mEncoding = encoding;
+            mLanguageTable = languageTable;
+            mLanguageShiftTable = languageShiftTable;
+            mCodeUnitCount = codeUnitCount;
+            mCodeUnitsRemaining = codeUnitsRemaining;
+            mStarts = starts;
+            mLength = length;
+        }
+
+        /**
+         * @return SmsConstants.ENCODING_7BIT or SmsConstants.ENCODING_16BIT
+         */
+        public int getEncoding() {
+            return mEncoding;
+        }
+
+        /**
+         * @return the national language locking shift table, 0 for the default alphabet
+         */
+        public int getLanguageTable() {
+            return mLanguageTable;
+        }
+
+        /**
+         * @return the national language single shift table, 0 for the default extension table
+         */
+        public int getLanguageShiftTable() {
+            return mLanguageShiftTable;
+        }
+
+        /**
+         * @return septets for 7 bit encoding, 16 bit code units for UCS-2
+         */
+        public int getCodeUnitCount() {
+            return mCodeUnitCount;
+        }
+
+        /**
+         * @return code units left in the last segment
+         */
+        public int getCodeUnitsRemaining() {
+            return mCodeUnitsRemaining;
+        }
+
+        /**
+         * @return the number of segments, at least 1
+         */
+        public int getCount() {
+            return mStarts.length;
+        }
+
+        /**
+         * @return the index into the text of the first character of the segment
+         */
+        public int getStart(int segment) {
+            return mStarts[segment];
+        }
+
+        /**
+         * @return the index into the text just past the last character of the segment
+         */
+        public int getEnd(int segment) {
+            return segment + 1 < mStarts.length ? mStarts[segment + 1] : mLength;
+        }
+
+        /**
+         * Cut the segmented text into the strings to send.
+         */
+        public ArrayList<String> split(CharSequence text) {
+            ArrayList<String> parts = new ArrayList<String>(mStarts.length);
+            for (int i = 0; i < mStarts.length; i++) {
+                parts.add(text.subSequence(getStart(i), getEnd(i)).toString());
+            }
+            return parts;
+        }
+
+        @Override
+        public String toString() {
+            return "Segments { count=" + mStarts.length
+                    + ", encoding=" + mEncoding
+                    + ", codeUnitCount=" + mCodeUnitCount
+                    + ", codeUnitsRemaining=" + mCodeUnitsRemaining
+                    + ", languageTable=" + mLanguageTable
+                    + ", languageShiftTable=" + mLanguageShiftTable
+                    + " }";
+        }
+    }
+
+    /**
+     * Keeps per table pair septet totals for a text being edited. Every edit
+     * only looks at the characters it adds or removes, and the segment count
+     * is derived from the totals without rescanning the text.
+     * <p/>
+     * The counts follow SmsMessage.calculateLength(), which divides the total
+     * by the per-segment capacity. When a two septet character would straddle
+     * a boundary {@link #segment(CharSequence)} can need one segment more.
+     */
+    public final class Counter {
+        private final StringBuilder mText = new StringBuilder();
+        private final int[] mSeptets = new int[mPairs.length];
+        private final int[] mUnencodable = new int[mPairs.length];
+
+        private boolean mDirty = true;
+        private int mEncoding;
+        private int mMessageCount;
+        private int mCodeUnitCount;
+        private int mCodeUnitsRemaining;
+
+        Counter() {
+        }
+
+        public Counter append(CharSequence s) {
+            mText.append(s);
+            int length = s.length();
+            for (int i = 0; i < length; i++) {
+                count(s.charAt(i), 1);
+            }
+            mDirty = true;
+            return this;
+        }
+
+        public Counter append(char c) {
+            mText.append(c);
+            count(c, 1);
+            mDirty = true;
+            return this;
+        }
+
+        /**
+         * Remove the characters in [start, end) of the text.
+         */
+        public Counter delete(int start, int end) {
+            end = Math.min(end, mText.length());
+            for (int i = start; i < end; i++) {
+                count(mText.charAt(i), -1);
+            }
+            mText.delete(start, end);
+            mDirty = true;
+            return this;
+        }
+
+        /**
+         * Replace the whole text.
+         */
+        public Counter set(CharSequence s) {
+            mText.setLength(0);
+            Arrays.fill(mSeptets, 0);
+            Arrays.fill(mUnencodable, 0);
+            return append(s);
+        }
+
+        public int length() {
+            return mText.length();
+        }
+
+        public int getMessageCount() {
+            update();
+            return mMessageCount;
+        }
+
+        public int getEncoding() {
+            update();
+            return mEncoding;
+        }
+
+        public int getCodeUnitCount() {
+            update();
+            return mCodeUnitCount;
+        }
+
+        public int getCodeUnitsRemaining() {
+            update();
+            return mCodeUnitsRemaining;
+        }
+
+        /**
+         * Segment the current text, see {@link SmsSegmenter#segment(CharSequence)}.
+         */
+        public Segments segment() {
+            return SmsSegmenter.this.segment(mText);
+        }
+
+        @Override
+        public String toString() {
+            return mText.toString();
+        }
+
+        private void count(char c, int sign) {
+            for (int p = 0; p < mPairs.length; p++) {
+                int cost = mPairs[p].cost(c);
+                if (cost < 0) {
+                    mUnencodable[p] += sign;
+                } else {
+                    mSeptets[p] += sign * cost;
+                }
+            }
+        }
+
+        private void update() {
+            if (!mDirty) {
+                return;
+            }
+            mDirty = false;
+
+            mMessageCount = Integer.MAX_VALUE;
+            for (int p = 0; p < mPairs.length; p++) {
+                if (mUnencodable[p] != 0) {
+                    continue;
+                }
+                TablePair pair = mPairs[p];
+                int septets = mSeptets[p];
+                int count;
+                int remaining;
+                if (septets <= pair.mSingleLimit) {
+                    count = 1;
+                    remaining = pair.mSingleLimit - septets;
+                } else {
+                    count = (septets + pair.mMultiLimit - 1) / pair.mMultiLimit;
+                    remaining = count * pair.mMultiLimit - septets;
+                }
+                if (count < mMessageCount
+                        || (count == mMessageCount && remaining > mCodeUnitsRemaining)) {
+                    mEncoding = SmsConstants.ENCODING_7BIT;
+                    mMessageCount = count;
+                    mCodeUnitCount = septets;
+                    mCodeUnitsRemaining = remaining;
+                }
+            }
+
+            if (mMessageCount == Integer.MAX_VALUE) {
+                int units = mText.length();
+                mEncoding = SmsConstants.ENCODING_16BIT;
+                mCodeUnitCount = units;
+                if (units <= MAX_UCS2_UNITS) {
+                    mMessageCount = 1;
+                    mCodeUnitsRemaining = MAX_UCS2_UNITS - units;
+                } else {
+                    mMessageCount = (units + MAX_UCS2_UNITS_WITH_HEADER - 1)
+                            / MAX_UCS2_UNITS_WITH_HEADER;
+                    mCodeUnitsRemaining = mMessageCount * MAX_UCS2_UNITS_WITH_HEADER - units;
+                }
+            }
+        }
+    }
+
+    /**
+     * A locking shift table together with a single shift table, and the
+     * septets per segment left once their user data header is paid for.
+     */
+    private static final class TablePair {
+        final int mLanguage;
+        final int mShift;
+        final CharTable mLanguageTable;
+        final CharTable mShiftTable;
+        final int mSingleLimit;
+        final int mMultiLimit;
+
+        TablePair(int language, int shift) {
+            mLanguage = language;
+            mShift = shift;
+            mLanguageTable = languageTable(language);
+            mShiftTable = shiftTable(shift);
+
+            int udhLength;
+            if (language != 0 && shift != 0) {
+                udhLength = GsmAlphabet.UDH_SEPTET_COST_LENGTH
+                        + GsmAlphabet.UDH_SEPTET_COST_TWO_SHIFT_TABLES;
+            } else if (language != 0 || shift != 0) {
+                udhLength = GsmAlphabet.UDH_SEPTET_COST_LENGTH
+                        + GsmAlphabet.UDH_SEPTET_COST_ONE_SHIFT_TABLE;
+            } else {
+                udhLength = 0;
+            }
+            mSingleLimit = SmsConstants.MAX_USER_DATA_SEPTETS - udhLength;
+            if (udhLength == 0) {
+                udhLength = GsmAlphabet.UDH_SEPTET_COST_LENGTH;
+            }
+            mMultiLimit = SmsConstants.MAX_USER_DATA_SEPTETS - udhLength
+                    - GsmAlphabet.UDH_SEPTET_COST_CONCATENATED_MESSAGE;
+        }
+
+        /**
+         * @return septets needed for c, or -1 if neither table has it
+         */
+        int cost(char c) {
+            if (c == ESCAPE) {
+                // GsmAlphabet skips escapes in the text when counting.
+                return 0;
+            }
+            if (mLanguageTable.contains(c)) {
+                return 1;
+            }
+            if (mShiftTable.contains(c)) {
+                return 2; // escape + shift table index
+            }
+            return -1;
+        }
+    }
+
+    /**
+     * Character membership for one GSM table, stored as 256 character pages
+     * that are only allocated when the table has a character in them.
+     */
+    private static final class CharTable {
+        private final boolean[][] mPages = new boolean[256][];
+
+        CharTable(String table, boolean skipSpaces) {
+            for (int i = 0; i < table.length(); i++) {
+                char c = table.charAt(i);
+                if (skipSpaces && c == ' ') {
+                    // Unused positions of shift tables are filled with spaces.
+                    continue;
+                }
+                boolean[] page = mPages[c >>> 8];
+                if (page == null) {
+                    page = new boolean[256];
+                    mPages[c >>> 8] = page;
+                }
+                page[c & 0xff] = true;
+            }
+        }
+
+        boolean contains(char c) {
+            boolean[] page = mPages[c >>> 8];
+            return page != null && page[c & 0xff];
+        }
+    }
+
+    /**
+     * Minimal growable int array.
+     */
+    private static final class IntList {
+        private int[] mValues = new int[4];
+        private int mSize;
+
+        void add(int value) {
+            if (mSize == mValues.length) {
+                mValues = Arrays.copyOf(mValues, mSize * 2);
+            }
+            mValues[mSize++] = value;
+        }
+
+        int get(int index) {
+            return mValues[index];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        /**
+         * @return the values with a leading 0 for the first segment
+         */
+        int[] toArray() {
+            int[] values = new int[mSize + 1];
+            System.arraycopy(mValues, 0, values, 1, mSize);
+            return values;
+        }
+    }
+}
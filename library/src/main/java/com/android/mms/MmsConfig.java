@@ -159,6 +159,14 @@ public class MmsConfig {
         return mHttpParamsLine1Key;
     }
 
+    public static int getMaxImageHeight() {
+        return mMaxImageHeight;
+    }
+
+    public static int getMaxImageWidth() {
+        return mMaxImageWidth;
+    }
+
     public static int getHttpSocketTimeout() {
         return mHttpSocketTimeout;
     }
@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service_alt;
+
+import android.os.SystemClock;
+
+import com.klinker.android.logger.Log;
+
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.SocketFactory;
+
+/**
+ * Remembers host lookups made on the MMS network.
+ *
+ * The DNS server of an MMS APN is often slow, and every transaction looks up
+ * the same MMSC or proxy. Answers are kept per subscription and network for
+ * {@link #TTL}, failed lookups for {@link #NEGATIVE_TTL}, and everything for a
+ * network is dropped once it is lost. A retried request drops the failed
+ * lookups first, see {@link #forgetFailures}, so it doesn't fail straight away
+ * on the lookup that failed the attempt before.
+ *
+ * When a host has more than one address, {@link #prepare} connects to them in
+ * parallel, each one starting a little after the previous, and the address that
+ * answers first is handed out first from then on. That way an MMSC address that
+ * doesn't answer costs one connect timeout per network instead of one per request.
+ */
+public class DnsCache {
+    private static final String TAG = "DnsCache";
+
+    // Carriers almost never move their MMSC, so answers are kept for a while
+    private static final long TTL = 10 * 60 * 1000;
+    // Long enough to not hammer a broken DNS server, short enough to recover quickly
+    private static final long NEGATIVE_TTL = 30 * 1000;
+
+    // How long to wait for one address before also trying the next one
+    private static final long CONNECT_STAGGER = 250;
+
+    private static final int MAX_NETWORKS = 8;
+    private static final int MAX_HOSTS = 16;
+
+    /**
+     * The network used before Lollipop, where there is no
+     * {@link android.net.Network} to tell networks apart.
+     */
+    public static final Object LEGACY_NETWORK = "legacy";
+
+    /**
+     * Does the actual lookup when the answer isn't cached.
+     */
+    public interface Resolver {
+        InetAddress[] resolve(String host) throws UnknownHostException;
+    }
+
+    private static DnsCache sInstance;
+
+    private final LinkedHashMap<String, Map<String, Entry>> mNetworks =
+            new LinkedHashMap<String, Map<String, Entry>>(8, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Map<String, Entry>> eldest) {
+                    return size() > MAX_NETWORKS;
+                }
+            };
+
+    private final ExecutorService mConnectExecutor = Executors.newCachedThreadPool();
+
+    private DnsCache() {
+    }
+
+    public static synchronized DnsCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new DnsCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Look up a host, from the cache if possible.
+     *
+     * @param subId the subscription the network belongs to
+     * @param network the network the lookup is made on
+     * @param host the host to look up
+     * @param resolver does the lookup when it isn't cached
+     * @return the addresses, the one that answered fastest first if known
+     * @throws UnknownHostException if the host doesn't resolve, or didn't recently
+     */
+    public InetAddress[] resolve(int subId, Object network, String host, Resolver resolver)
+            throws UnknownHostException {
+        final String key = getKey(subId, network);
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (this) {
+            final Entry entry = getHosts(key).get(host);
+            if (entry != null && entry.expires > now) {
+                if (entry.addresses == null) {
+                    throw new UnknownHostException(host + " (cached)");
+                }
+                return entry.addresses.clone();
+            }
+        }
+
+        InetAddress[] addresses = null;
+        try {
+            addresses = resolver.resolve(host);
+            if (addresses != null && addresses.length > 0) {
+                addresses = interleave(addresses);
+            } else {
+                // A lookup that returns nothing counts as a failure as well
+                addresses = null;
+                throw new UnknownHostException(host);
+            }
+        } finally {
+            synchronized (this) {
+                getHosts(key).put(host, new Entry(addresses,
+                        now + (addresses == null ? NEGATIVE_TTL : TTL)));
+            }
+        }
+        return addresses.clone();
+    }
+
+    /**
+     * Find out which address of a host answers first, unless that is already
+     * known, so that it is tried first by the next connection. Does nothing
+     * if the host has a single address or doesn't resolve.
+     *
+     * @param subId the subscription the network belongs to
+     * @param network the network to connect on
+     * @param host the host that is about to be connected to
+     * @param port the port that is about to be connected to
+     * @param resolver does the lookup when it isn't cached
+     * @param socketFactory creates sockets on the network
+     * @param timeout how long to wait for any address to answer, in milliseconds
+     */
+    public void prepare(int subId, Object network, String host, int port, Resolver resolver,
+            SocketFactory socketFactory, int timeout) {
+        final InetAddress[] addresses;
+        try {
+            addresses = resolve(subId, network, host, resolver);
+        } catch (UnknownHostException e) {
+            return;
+        }
+        final String key = getKey(subId, network);
+        synchronized (this) {
+            final Entry entry = getHosts(key).get(host);
+            if (addresses.length < 2 || entry == null || entry.raced) {
+                return;
+            }
+            entry.raced = true;
+        }
+
+        final int winner = race(addresses, port, socketFactory, timeout);
+        Log.d(TAG, "prepare: " + host + " answered first on " + (winner < 0 ? "none"
+                : addresses[winner].getHostAddress()) + " of " + addresses.length);
+        if (winner <= 0) {
+            // Either the usual order is already right, or nothing answered and
+            // the next request should just fail the usual way.
+            return;
+        }
+
+        synchronized (this) {
+            final Entry entry = getHosts(key).get(host);
+            if (entry != null && entry.addresses != null) {
+                final InetAddress[] ordered = new InetAddress[addresses.length];
+                ordered[0] = addresses[winner];
+                for (int i = 0, j = 1; i < addresses.length; i++) {
+                    if (i != winner) {
+                        ordered[j++] = addresses[i];
+                    }
+                }
+                entry.addresses = ordered;
+            }
+        }
+    }
+
+    /**
+     * Forget every lookup made on a network, e.g. because it was lost.
+     */
+    public synchronized void invalidate(int subId, Object network) {
+        mNetworks.remove(getKey(subId, network));
+    }
+
+    /**
+     * Forget the failed lookups of a subscription, on every network, so the
+     * next lookup of those hosts is made again.
+     */
+    public synchronized void forgetFailures(int subId) {
+        final String prefix = getKey(subId, "");
+        for (Map.Entry<String, Map<String, Entry>> network : mNetworks.entrySet()) {
+            if (!network.getKey().startsWith(prefix)) {
+                continue;
+            }
+            final Iterator<Entry> hosts = network.getValue().values().iterator();
+            while (hosts.hasNext()) {
+                if (hosts.next().addresses == null) {
+                    hosts.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget every lookup.
+     */
+    public synchronized void clear() {
+        mNetworks.clear();
+    }
+
+    private Map<String, Entry> getHosts(String key) {
+        Map<String, Entry> hosts = mNetworks.get(key);
+        if (hosts == null) {
+            hosts = new LinkedHashMap<String, Entry>(8, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_HOSTS;
+                }
+            };
+            mNetworks.put(key, hosts);
+        }
+        return hosts;
+    }
+
+    private static String getKey(int subId, Object network) {
+        return subId + "/" + network;
+    }
+
+    /**
+     * Connect to the addresses in order, starting the next one whenever the
+     * previous fails or takes longer than {@link #CONNECT_STAGGER}. The first
+     * connection made wins and every socket is closed again.
+     *
+     * @return the index of the address that answered first, or -1 if none did
+     */
+    private int race(InetAddress[] addresses, int port, SocketFactory socketFactory,
+            int timeout) {
+        final ExecutorCompletionService<Integer> completion =
+                new ExecutorCompletionService<Integer>(mConnectExecutor);
+        final List<Future<Integer>> futures = new ArrayList<Future<Integer>>();
+        final Map<Future<Integer>, Attempt> attempts = new HashMap<Future<Integer>, Attempt>();
+        final long deadline = SystemClock.elapsedRealtime() + timeout;
+        int started = start(completion, futures, attempts, addresses, 0, port,
+                socketFactory, timeout);
+        int failed = 0;
+        try {
+            while (failed < addresses.length) {
+                final long now = SystemClock.elapsedRealtime();
+                if (now >= deadline) {
+                    return -1;
+                }
+                final long wait = started < addresses.length
+                        ? Math.min(CONNECT_STAGGER, deadline - now) : deadline - now;
+                final Future<Integer> done = completion.poll(wait, TimeUnit.MILLISECONDS);
+                if (done != null) {
+                    try {
+                        return done.get();
+                    } catch (ExecutionException e) {
+                        Log.d(TAG, "race: " + e.getCause());
+                        failed++;
+                    }
+                }
+                // Either the running ones are taking too long or one of them
+                // failed, in both cases it's time for the next address
+                if (started < addresses.length) {
+                    started = start(completion, futures, attempts, addresses, started, port,
+                            socketFactory, timeout);
+                }
+            }
+            return -1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return -1;
+        } finally {
+            for (Future<Integer> future : futures) {
+                future.cancel(true);
+                attempts.get(future).abandon();
+            }
+        }
+    }
+
+    private static int start(ExecutorCompletionService<Integer> completion,
+            List<Future<Integer>> futures, Map<Future<Integer>, Attempt> attempts,
+            InetAddress[] addresses, int index, int port, SocketFactory socketFactory,
+            int timeout) {
+        final Attempt attempt = new Attempt(index, new InetSocketAddress(addresses[index], port),
+                socketFactory, timeout);
+        final Future<Integer> future = completion.submit(attempt);
+        futures.add(future);
+        attempts.put(future, attempt);
+        return index + 1;
+    }
+
+    /**
+     * Alternate between IPv6 and IPv4 addresses, keeping their order otherwise,
+     * so that a family that doesn't work on the network doesn't delay the other.
+     */
+    private static InetAddress[] interleave(InetAddress[] addresses) {
+        final List<InetAddress> v6 = new ArrayList<InetAddress>();
+        final List<InetAddress> v4 = new ArrayList<InetAddress>();
+        for (InetAddress address : addresses) {
+            (address instanceof Inet6Address ? v6 : v4).add(address);
+        }
+        if (v6.isEmpty() || v4.isEmpty()) {
+            return addresses.clone();
+        }
+
+        // Start with whichever family the resolver preferred
+        final List<InetAddress> first = addresses[0] instanceof Inet6Address ? v6 : v4;
+        final List<InetAddress> second = first == v6 ? v4 : v6;
+        final InetAddress[] result = new InetAddress[addresses.length];
+        for (int i = 0, j = 0; j < result.length; i++) {
+            if (i < first.size()) {
+                result[j++] = first.get(i);
+            }
+            if (i < second.size()) {
+                result[j++] = second.get(i);
+            }
+        }
+        return result;
+    }
+
+    private static class Entry {
+        // null if the lookup failed
+        InetAddress[] addresses;
+        final long expires;
+        // Whether the addresses have already been raced against each other
+        boolean raced;
+
+        Entry(InetAddress[] addresses, long expires) {
+            this.addresses = addresses;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * One connection to one address, closed as soon as it is made.
+     */
+    private static class Attempt implements Callable<Integer> {
+        private final int mIndex;
+        private final InetSocketAddress mAddress;
+        private final SocketFactory mSocketFactory;
+        private final int mTimeout;
+        private Socket mSocket;
+        private boolean mAbandoned;
+
+        Attempt(int index, InetSocketAddress address, SocketFactory socketFactory, int timeout) {
+            mIndex = index;
+            mAddress = address;
+            mSocketFactory = socketFactory;
+            mTimeout = timeout;
+        }
+
+        @Override
+        public Integer call() throws IOException {
+            final Socket socket = mSocketFactory.createSocket();
+            synchronized (this) {
+                if (mAbandoned) {
+                    socket.close();
+                    throw new IOException("abandoned");
+                }
+                mSocket = socket;
+            }
+            try {
+                socket.connect(mAddress, mTimeout);
+                return mIndex;
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Stop the connection if it is still being made.
+         */
+        synchronized void abandon() {
+            mAbandoned = true;
+            close();
+        }
+
+        private synchronized void close() {
+            if (mSocket != null) {
+                try {
+                    mSocket.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+                mSocket = null;
+            }
+        }
+    }
+}
@@ -16,6 +16,7 @@
 
 package com.android.mms.service_alt;
 
+import android.app.Activity;
 import android.app.PendingIntent;
 import android.content.ContentValues;
 import android.content.Context;
@@ -30,6 +31,7 @@ import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.mms.service_alt.exception.MmsHttpException;
+import com.android.mms.util.PushDedupeIndex;
 import com.google.android.mms.MmsException;
 import com.google.android.mms.pdu_alt.GenericPdu;
 import com.google.android.mms.pdu_alt.PduHeaders;
@@ -107,10 +109,14 @@ public class DownloadRequest extends MmsRequest {
     protected Uri persistIfRequired(Context context, int result, byte[] response) {
         if (!mRequestManager.getAutoPersistingPref()) {
             notifyOfDownload(context);
+            PushDedupeIndex.getInstance(context).onDownloadFinished(mLocationUrl,
+                    result == Activity.RESULT_OK);
             return null;
         }
 
-        return persist(context, response, mMmsConfig, mLocationUrl, mSubId, mCreator);
+        final Uri messageUri = persist(context, response, mMmsConfig, mLocationUrl, mSubId, mCreator);
+        PushDedupeIndex.getInstance(context).onDownloadFinished(mLocationUrl, messageUri != null);
+        return messageUri;
     }
 
     public static Uri persist(Context context, byte[] response, MmsConfig.Overridden mmsConfig,
@@ -136,10 +142,31 @@ public class DownloadRequest extends MmsRequest {
                     });
             return null;
         }
+
+        final GenericPdu pdu;
+        try {
+            pdu = (new PduParser(response, mmsConfig.getSupportMmsContentDisposition())).parse();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "DownloadRequest.persistIfRequired: can not parse response", e);
+            return null;
+        }
+        return persistPdu(context, pdu, locationUrl, subId, creator);
+    }
+
+    /**
+     * Persist a message that has already been parsed, for callers that needed
+     * the parsed pdu for something else first.
+     */
+    public static Uri persist(Context context, GenericPdu pdu, String locationUrl, int subId,
+                              String creator) {
+        notifyOfDownload(context);
+        return persistPdu(context, pdu, locationUrl, subId, creator);
+    }
+
+    private static Uri persistPdu(Context context, GenericPdu pdu, String locationUrl, int subId,
+                                  String creator) {
         final long identity = Binder.clearCallingIdentity();
         try {
-            final GenericPdu pdu =
-                    (new PduParser(response, mmsConfig.getSupportMmsContentDisposition())).parse();
             if (pdu == null || !(pdu instanceof RetrieveConf)) {
                 Log.e(TAG, "DownloadRequest.persistIfRequired: invalid parsed PDU");
 
@@ -239,7 +266,7 @@ public class DownloadRequest extends MmsRequest {
         } catch (SQLiteException e) {
             Log.e(TAG, "DownloadRequest.persistIfRequired: can not update message", e);
         } catch (RuntimeException e) {
-            Log.e(TAG, "DownloadRequest.persistIfRequired: can not parse response", e);
+            Log.e(TAG, "DownloadRequest.persistIfRequired: can not persist message", e);
         } finally {
             Binder.restoreCallingIdentity(identity);
         }
@@ -51,7 +51,7 @@ public class MmsConfig {
 
     private static final int MAX_IMAGE_HEIGHT = 480;
     private static final int MAX_IMAGE_WIDTH = 640;
-    private static final int MAX_TEXT_LENGTH = 2000;
+    static final int MAX_TEXT_LENGTH = 2000;
 
     /*
      * MmsConfig keys. These have to stay in sync with the MMS_CONFIG_* values defined in
@@ -183,6 +183,8 @@ public class MmsConfig {
     }
 
     private final int mSubId;
+    // Every value resolved once, for readers that don't have overrides
+    private final MmsConfigSnapshot mSnapshot;
 
     /**
      * This class manages a cached copy of current MMS configuration key values for a particular
@@ -203,6 +205,7 @@ public class MmsConfig {
         // Load mms_config.xml resource overlays
         loadFromResources(context);
         Log.v(TAG, "MmsConfig: all settings -- " + mKeyValues);
+        mSnapshot = new MmsConfigSnapshot(this, null);
     }
 
     /**
@@ -223,6 +226,7 @@ public class MmsConfig {
         // Load mms_config.xml resource overlays
         loadFromResources(context);
         Log.v(TAG, "MmsConfig: all settings -- " + mKeyValues);
+        mSnapshot = new MmsConfigSnapshot(this, null);
     }
 
     /**
@@ -234,6 +238,15 @@ public class MmsConfig {
         return mSubId;
     }
 
+    /**
+     * Return the values of this MmsConfig, resolved once when it was loaded
+     *
+     * @return the snapshot without any overrides applied
+     */
+    public MmsConfigSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
     /**
      * Check a key and its type match the predefined keys and corresponding types
      *
@@ -311,12 +324,16 @@ public class MmsConfig {
         return bundle;
     }
 
-    private String getNullableStringValue(String key) {
-        final Object value = mKeyValues.get(key);
-        if (value != null) {
-            return (String) value;
-        }
-        return null;
+    Object getValue(String key) {
+        return mKeyValues.get(key);
+    }
+
+    String getDeviceUserAgent() {
+        return mUserAgent;
+    }
+
+    String getDeviceUaProfUrl() {
+        return mUaProfUrl;
     }
 
     private void update(String key, String value, String type) {
@@ -374,163 +391,142 @@ public class MmsConfig {
     public static class Overridden {
         // The base MmsConfig
         private final MmsConfig mBase;
-        // The overridden values
-        private final Bundle mOverrides;
+        // The base values with the overrides applied
+        private final MmsConfigSnapshot mSnapshot;
 
         public Overridden(MmsConfig base, Bundle overrides) {
             mBase = base;
-            mOverrides = overrides;
+            // Without overrides the base values can be shared
+            mSnapshot = overrides == null || overrides.isEmpty()
+                    ? base.getSnapshot() : new MmsConfigSnapshot(base, overrides);
         }
 
-        private int getInt(String key) {
-            final Integer def = (Integer) mBase.mKeyValues.get(key);
-            return mOverrides != null ? mOverrides.getInt(key, def) : def;
-        }
-
-        private boolean getBoolean(String key) {
-            final Boolean def = (Boolean) mBase.mKeyValues.get(key);
-            return mOverrides != null ? mOverrides.getBoolean(key, def) : def;
-        }
-
-        private String getString(String key) {
-            if (mOverrides != null && mOverrides.containsKey(key)) {
-                return mOverrides.getString(key);
-            }
-            return mBase.getNullableStringValue(key);
+        public MmsConfigSnapshot getSnapshot() {
+            return mSnapshot;
         }
 
         public int getSmsToMmsTextThreshold() {
-            return getInt(CONFIG_SMS_TO_MMS_TEXT_THRESHOLD);
+            return mSnapshot.getSmsToMmsTextThreshold();
         }
 
         public int getSmsToMmsTextLengthThreshold() {
-            return getInt(CONFIG_SMS_TO_MMS_TEXT_LENGTH_THRESHOLD);
+            return mSnapshot.getSmsToMmsTextLengthThreshold();
         }
 
         public boolean getMmsEnabled() {
-            return getBoolean(CONFIG_ENABLED_MMS);
+            return mSnapshot.getMmsEnabled();
         }
 
         public int getMaxMessageSize() {
-            return getInt(CONFIG_MAX_MESSAGE_SIZE);
+            return mSnapshot.getMaxMessageSize();
         }
 
         public boolean getTransIdEnabled() {
-            return getBoolean(CONFIG_ENABLED_TRANS_ID);
+            return mSnapshot.getTransIdEnabled();
         }
 
         public String getUserAgent() {
-            if (mOverrides != null && mOverrides.containsKey(CONFIG_USER_AGENT)) {
-                return mOverrides.getString(CONFIG_USER_AGENT);
-            }
-            return !TextUtils.isEmpty(mBase.mUserAgent) ?
-                    mBase.mUserAgent : mBase.getNullableStringValue(CONFIG_USER_AGENT);
+            return mSnapshot.getUserAgent();
         }
 
         public String getUaProfTagName() {
-            return getString(CONFIG_UA_PROF_TAG_NAME);
+            return mSnapshot.getUaProfTagName();
         }
 
         public String getUaProfUrl() {
-            if (mOverrides != null && mOverrides.containsKey(CONFIG_UA_PROF_URL)) {
-                return mOverrides.getString(CONFIG_UA_PROF_URL);
-            }
-            return !TextUtils.isEmpty(mBase.mUaProfUrl) ?
-                    mBase.mUaProfUrl : mBase.getNullableStringValue(CONFIG_UA_PROF_URL);
+            return mSnapshot.getUaProfUrl();
         }
 
         public String getHttpParams() {
-            return getString(CONFIG_HTTP_PARAMS);
+            return mSnapshot.getHttpParams();
         }
 
         public String getEmailGateway() {
-            return getString(CONFIG_EMAIL_GATEWAY_NUMBER);
+            return mSnapshot.getEmailGateway();
         }
 
         public int getMaxImageHeight() {
-            return getInt(CONFIG_MAX_IMAGE_HEIGHT);
+            return mSnapshot.getMaxImageHeight();
         }
 
         public int getMaxImageWidth() {
-            return getInt(CONFIG_MAX_IMAGE_WIDTH);
+            return mSnapshot.getMaxImageWidth();
         }
 
         public int getRecipientLimit() {
-            final int limit = getInt(CONFIG_RECIPIENT_LIMIT);
-            return limit < 0 ? Integer.MAX_VALUE : limit;
+            return mSnapshot.getRecipientLimit();
         }
 
         public int getMaxTextLimit() {
-            final int max = getInt(CONFIG_MAX_MESSAGE_TEXT_SIZE);
-            return max > -1 ? max : MAX_TEXT_LENGTH;
+            return mSnapshot.getMaxTextLimit();
         }
 
         public int getHttpSocketTimeout() {
-            return getInt(CONFIG_HTTP_SOCKET_TIMEOUT);
+            return mSnapshot.getHttpSocketTimeout();
         }
 
         public boolean getMultipartSmsEnabled() {
-            return getBoolean(CONFIG_ENABLE_MULTIPART_SMS);
+            return mSnapshot.getMultipartSmsEnabled();
         }
 
         public boolean getSendMultipartSmsAsSeparateMessages() {
-            return getBoolean(CONFIG_SEND_MULTIPART_SMS_AS_SEPARATE_MESSAGES);
+            return mSnapshot.getSendMultipartSmsAsSeparateMessages();
         }
 
         public boolean getSMSDeliveryReportsEnabled() {
-            return getBoolean(CONFIG_ENABLE_SMS_DELIVERY_REPORTS);
+            return mSnapshot.getSMSDeliveryReportsEnabled();
         }
 
         public boolean getNotifyWapMMSC() {
-            return getBoolean(CONFIG_ENABLED_NOTIFY_WAP_MMSC);
+            return mSnapshot.getNotifyWapMMSC();
         }
 
         public boolean isAliasEnabled() {
-            return getBoolean(CONFIG_ALIAS_ENABLED);
+            return mSnapshot.isAliasEnabled();
         }
 
         public int getAliasMinChars() {
-            return getInt(CONFIG_ALIAS_MIN_CHARS);
+            return mSnapshot.getAliasMinChars();
         }
 
         public int getAliasMaxChars() {
-            return getInt(CONFIG_ALIAS_MAX_CHARS);
+            return mSnapshot.getAliasMaxChars();
         }
 
         public boolean getAllowAttachAudio() {
-            return getBoolean(CONFIG_ALLOW_ATTACH_AUDIO);
+            return mSnapshot.getAllowAttachAudio();
         }
 
         public int getMaxSubjectLength() {
-            return getInt(CONFIG_MAX_SUBJECT_LENGTH);
+            return mSnapshot.getMaxSubjectLength();
         }
 
         public boolean getGroupMmsEnabled() {
-            return getBoolean(CONFIG_ENABLE_GROUP_MMS);
+            return mSnapshot.getGroupMmsEnabled();
         }
 
         public boolean getSupportMmsContentDisposition() {
-            return getBoolean(CONFIG_SUPPORT_MMS_CONTENT_DISPOSITION);
+            return mSnapshot.getSupportMmsContentDisposition();
         }
 
         public boolean getShowCellBroadcast() {
-            return getBoolean(CONFIG_CELL_BROADCAST_APP_LINKS);
+            return mSnapshot.getShowCellBroadcast();
         }
 
         public String getNaiSuffix() {
-            return getString(CONFIG_NAI_SUFFIX);
+            return mSnapshot.getNaiSuffix();
         }
 
         public boolean isMmsReadReportsEnabled() {
-            return getBoolean(CONFIG_ENABLE_MMS_READ_REPORTS);
+            return mSnapshot.isMmsReadReportsEnabled();
         }
 
         public boolean isMmsDeliveryReportsEnabled() {
-            return getBoolean(CONFIG_ENABLE_MMS_DELIVERY_REPORTS);
+            return mSnapshot.isMmsDeliveryReportsEnabled();
         }
 
         public boolean getSupportHttpCharsetHeader() {
-            return getBoolean(CONFIG_SUPPORT_HTTP_CHARSET_HEADER);
+            return mSnapshot.getSupportHttpCharsetHeader();
         }
 
         /**
@@ -28,6 +28,7 @@ import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
 import android.util.ArrayMap;
 import com.klinker.android.logger.Log;
 
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -46,13 +47,16 @@ public class MmsConfigManager {
         return sInstance;
     }
 
-    // Map the various subIds to their corresponding MmsConfigs.
-    private final Map<Integer, MmsConfig> mSubIdConfigMap;
+    // Map the various subIds to their corresponding MmsConfigs. The map is never changed,
+    // a reload builds a new one and swaps it in, so readers don't need to lock.
+    private volatile Map<Integer, MmsConfig> mSubIdConfigMap =
+            Collections.<Integer, MmsConfig>emptyMap();
+    // The config for the context without a subscription, built on first use
+    private volatile MmsConfig mDefaultConfig;
     private Context mContext;
     private SubscriptionManager mSubscriptionManager;
 
     private MmsConfigManager() {
-        mSubIdConfigMap = new ArrayMap<Integer, MmsConfig>();
     }
 
     /**
@@ -134,16 +138,33 @@ public class MmsConfigManager {
      *         thread after a recent LISTEN_SUBSCRIPTION_INFO_LIST_CHANGED event.
      */
     public MmsConfig getMmsConfigBySubId(int subId) {
-        MmsConfig mmsConfig;
-        synchronized(mSubIdConfigMap) {
-            mmsConfig = mSubIdConfigMap.get(subId);
-        }
+        MmsConfig mmsConfig = mSubIdConfigMap.get(subId);
         Log.i(TAG, "getMmsConfigBySubId -- for sub: " + subId + " mmsConfig: " + mmsConfig);
         return mmsConfig;
     }
 
+    /**
+     * Find and return the resolved values for a particular subscription id.
+     *
+     * @param subId Subscription id of the desired values
+     * @return the snapshot, or null in the same cases {@link #getMmsConfigBySubId(int)} is null
+     */
+    public MmsConfigSnapshot getSnapshotBySubId(int subId) {
+        MmsConfig mmsConfig = mSubIdConfigMap.get(subId);
+        return mmsConfig == null ? null : mmsConfig.getSnapshot();
+    }
+
+    /**
+     * Return the MmsConfig of the main context, for devices without subscription ids. It is
+     * loaded once and then shared until the configs are loaded again.
+     */
     public MmsConfig getMmsConfig() {
-        return new MmsConfig(mContext);
+        MmsConfig mmsConfig = mDefaultConfig;
+        if (mmsConfig == null) {
+            mmsConfig = new MmsConfig(mContext);
+            mDefaultConfig = mmsConfig;
+        }
+        return mmsConfig;
     }
 
     /**
@@ -153,14 +174,16 @@ public class MmsConfigManager {
      *
      */
     private void load(Context context) {
+        mDefaultConfig = null;
+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
             List<SubscriptionInfo> subs = mSubscriptionManager.getActiveSubscriptionInfoList();
             if (subs == null || subs.size() < 1) {
                 Log.e(TAG, "MmsConfigManager.load -- empty getActiveSubInfoList");
                 return;
             }
-            // Load all the mms_config.xml files in a separate map and then swap with the
-            // real map at the end so we don't block anyone sync'd on the real map.
+            // Load all the mms_config.xml files, with their snapshots, in a separate map
+            // and then swap it in at the end so readers see either all old or all new configs.
             final Map<Integer, MmsConfig> newConfigMap = new ArrayMap<Integer, MmsConfig>();
             for (SubscriptionInfo sub : subs) {
                 Configuration configuration = new Configuration();
@@ -182,10 +205,7 @@ public class MmsConfigManager {
                 int subId = sub.getSubscriptionId();
                 newConfigMap.put(subId, new MmsConfig(subContext, subId));
             }
-            synchronized (mSubIdConfigMap) {
-                mSubIdConfigMap.clear();
-                mSubIdConfigMap.putAll(newConfigMap);
-            }
+            mSubIdConfigMap = Collections.unmodifiableMap(newConfigMap);
         }
     }
 
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service_alt;
+
+import android.os.Bundle;
+import android.text.TextUtils;
+
+/**
+ * An immutable copy of the MMS configuration for one subscription, with every
+ * value already resolved from the defaults, mms_config.xml and the overrides.
+ *
+ * Looking a value up in {@link MmsConfig} goes through a map and a type check
+ * every time, and the overrides add a Bundle lookup on top. The send and
+ * download paths read the same few values for every message, so they are
+ * resolved once here and read as plain fields after that.
+ */
+public final class MmsConfigSnapshot {
+    private final int mSubId;
+
+    private final boolean mMmsEnabled;
+    private final boolean mTransIdEnabled;
+    private final boolean mNotifyWapMMSC;
+    private final boolean mAliasEnabled;
+    private final boolean mAllowAttachAudio;
+    private final boolean mMultipartSmsEnabled;
+    private final boolean mSMSDeliveryReportsEnabled;
+    private final boolean mGroupMmsEnabled;
+    private final boolean mSupportMmsContentDisposition;
+    private final boolean mShowCellBroadcast;
+    private final boolean mSendMultipartSmsAsSeparateMessages;
+    private final boolean mMmsReadReportsEnabled;
+    private final boolean mMmsDeliveryReportsEnabled;
+    private final boolean mSupportHttpCharsetHeader;
+    private final int mMaxMessageSize;
+    private final int mMaxImageHeight;
+    private final int mMaxImageWidth;
+    private final int mRecipientLimit;
+    private final int mHttpSocketTimeout;
+    private final int mAliasMinChars;
+    private final int mAliasMaxChars;
+    private final int mSmsToMmsTextThreshold;
+    private final int mSmsToMmsTextLengthThreshold;
+    private final int mMaxTextLimit;
+    private final int mMaxSubjectLength;
+    private final String mUaProfTagName;
+    private final String mUserAgent;
+    private final String mUaProfUrl;
+    private final String mHttpParams;
+    private final String mEmailGateway;
+    private final String mNaiSuffix;
+
+    /**
+     * @param base the loaded configuration
+     * @param overrides values that take precedence over base, may be null
+     */
+    MmsConfigSnapshot(MmsConfig base, Bundle overrides) {
+        mSubId = base.getSubId();
+
+        mMmsEnabled = getBoolean(base, overrides, MmsConfig.CONFIG_ENABLED_MMS);
+        mTransIdEnabled = getBoolean(base, overrides, MmsConfig.CONFIG_ENABLED_TRANS_ID);
+        mNotifyWapMMSC = getBoolean(base, overrides, MmsConfig.CONFIG_ENABLED_NOTIFY_WAP_MMSC);
+        mAliasEnabled = getBoolean(base, overrides, MmsConfig.CONFIG_ALIAS_ENABLED);
+        mAllowAttachAudio = getBoolean(base, overrides, MmsConfig.CONFIG_ALLOW_ATTACH_AUDIO);
+        mMultipartSmsEnabled = getBoolean(base, overrides, MmsConfig.CONFIG_ENABLE_MULTIPART_SMS);
+        mSMSDeliveryReportsEnabled =
+                getBoolean(base, overrides, MmsConfig.CONFIG_ENABLE_SMS_DELIVERY_REPORTS);
+        mGroupMmsEnabled = getBoolean(base, overrides, MmsConfig.CONFIG_ENABLE_GROUP_MMS);
+        mSupportMmsContentDisposition =
+                getBoolean(base, overrides, MmsConfig.CONFIG_SUPPORT_MMS_CONTENT_DISPOSITION);
+        mShowCellBroadcast = getBoolean(base, overrides, MmsConfig.CONFIG_CELL_BROADCAST_APP_LINKS);
+        mSendMultipartSmsAsSeparateMessages = getBoolean(base, overrides,
+                MmsConfig.CONFIG_SEND_MULTIPART_SMS_AS_SEPARATE_MESSAGES);
+        mMmsReadReportsEnabled =
+                getBoolean(base, overrides, MmsConfig.CONFIG_ENABLE_MMS_READ_REPORTS);
+        mMmsDeliveryReportsEnabled =
+                getBoolean(base, overrides, MmsConfig.CONFIG_ENABLE_MMS_DELIVERY_REPORTS);
+        mSupportHttpCharsetHeader =
+                getBoolean(base, overrides, MmsConfig.CONFIG_SUPPORT_HTTP_CHARSET_HEADER);
+
+        mMaxMessageSize = getInt(base, overrides, MmsConfig.CONFIG_MAX_MESSAGE_SIZE);
+        mMaxImageHeight = getInt(base, overrides, MmsConfig.CONFIG_MAX_IMAGE_HEIGHT);
+        mMaxImageWidth = getInt(base, overrides, MmsConfig.CONFIG_MAX_IMAGE_WIDTH);
+        final int limit = getInt(base, overrides, MmsConfig.CONFIG_RECIPIENT_LIMIT);
+        mRecipientLimit = limit < 0 ? Integer.MAX_VALUE : limit;
+        mHttpSocketTimeout = getInt(base, overrides, MmsConfig.CONFIG_HTTP_SOCKET_TIMEOUT);
+        mAliasMinChars = getInt(base, overrides, MmsConfig.CONFIG_ALIAS_MIN_CHARS);
+        mAliasMaxChars = getInt(base, overrides, MmsConfig.CONFIG_ALIAS_MAX_CHARS);
+        mSmsToMmsTextThreshold =
+                getInt(base, overrides, MmsConfig.CONFIG_SMS_TO_MMS_TEXT_THRESHOLD);
+        mSmsToMmsTextLengthThreshold =
+                getInt(base, overrides, MmsConfig.CONFIG_SMS_TO_MMS_TEXT_LENGTH_THRESHOLD);
+        final int max = getInt(base, overrides, MmsConfig.CONFIG_MAX_MESSAGE_TEXT_SIZE);
+        mMaxTextLimit = max > -1 ? max : MmsConfig.MAX_TEXT_LENGTH;
+        mMaxSubjectLength = getInt(base, overrides, MmsConfig.CONFIG_MAX_SUBJECT_LENGTH);
+
+        mUaProfTagName = getString(base, overrides, MmsConfig.CONFIG_UA_PROF_TAG_NAME);
+        mHttpParams = getString(base, overrides, MmsConfig.CONFIG_HTTP_PARAMS);
+        mEmailGateway = getString(base, overrides, MmsConfig.CONFIG_EMAIL_GATEWAY_NUMBER);
+        mNaiSuffix = getString(base, overrides, MmsConfig.CONFIG_NAI_SUFFIX);
+
+        // The values the device reports win over mms_config.xml, but not over the overrides.
+        if (overrides != null && overrides.containsKey(MmsConfig.CONFIG_USER_AGENT)) {
+            mUserAgent = overrides.getString(MmsConfig.CONFIG_USER_AGENT);
+        } else {
+            mUserAgent = !TextUtils.isEmpty(base.getDeviceUserAgent()) ? base.getDeviceUserAgent()
+                    : (String) base.getValue(MmsConfig.CONFIG_USER_AGENT);
+        }
+        if (overrides != null && overrides.containsKey(MmsConfig.CONFIG_UA_PROF_URL)) {
+            mUaProfUrl = overrides.getString(MmsConfig.CONFIG_UA_PROF_URL);
+        } else {
+            mUaProfUrl = !TextUtils.isEmpty(base.getDeviceUaProfUrl()) ? base.getDeviceUaProfUrl()
+                    : (String) base.getValue(MmsConfig.CONFIG_UA_PROF_URL);
+        }
+    }
+
+    private static int getInt(MmsConfig base, Bundle overrides, String key) {
+        final Integer def = (Integer) base.getValue(key);
+        return overrides != null ? overrides.getInt(key, def) : def;
+    }
+
+    private static boolean getBoolean(MmsConfig base, Bundle overrides, String key) {
+        final Boolean def = (Boolean) base.getValue(key);
+        return overrides != null ? overrides.getBoolean(key, def) : def;
+    }
+
+    private static String getString(MmsConfig base, Bundle overrides, String key) {
+        if (overrides != null && overrides.containsKey(key)) {
+            return overrides.getString(key);
+        }
+        return (String) base.getValue(key);
+    }
+
+    public int getSubId() {
+        return mSubId;
+    }
+
+    public int getSmsToMmsTextThreshold() {
+        return mSmsToMmsTextThreshold;
+    }
+
+    public int getSmsToMmsTextLengthThreshold() {
+        return mSmsToMmsTextLengthThreshold;
+    }
+
+    public boolean getMmsEnabled() {
+        return mMmsEnabled;
+    }
+
+    public int getMaxMessageSize() {
+        return mMaxMessageSize;
+    }
+
+    public boolean getTransIdEnabled() {
+        return mTransIdEnabled;
+    }
+
+    public String getUserAgent() {
+        return mUserAgent;
+    }
+
+    public String getUaProfTagName() {
+        return mUaProfTagName;
+    }
+
+    public String getUaProfUrl() {
+        return mUaProfUrl;
+    }
+
+    public String getHttpParams() {
+        return mHttpParams;
+    }
+
+    public String getEmailGateway() {
+        return mEmailGateway;
+    }
+
+    public int getMaxImageHeight() {
+        return mMaxImageHeight;
+    }
+
+    public int getMaxImageWidth() {
+        return mMaxImageWidth;
+    }
+
+    public int getRecipientLimit() {
+        return mRecipientLimit;
+    }
+
+    public int getMaxTextLimit() {
+        return mMaxTextLimit;
+    }
+
+    public int getHttpSocketTimeout() {
+        return mHttpSocketTimeout;
+    }
+
+    public boolean getMultipartSmsEnabled() {
+        return mMultipartSmsEnabled;
+    }
+
+    public boolean getSendMultipartSmsAsSeparateMessages() {
+        return mSendMultipartSmsAsSeparateMessages;
+    }
+
+    public boolean getSMSDeliveryReportsEnabled() {
+        return mSMSDeliveryReportsEnabled;
+    }
+
+    public boolean getNotifyWapMMSC() {
+        return mNotifyWapMMSC;
+    }
+
+    public boolean isAliasEnabled() {
+        return mAliasEnabled;
+    }
+
+    public int getAliasMinChars() {
+        return mAliasMinChars;
+    }
+
+    public int getAliasMaxChars() {
+        return mAliasMaxChars;
+    }
+
+    public boolean getAllowAttachAudio() {
+        return mAllowAttachAudio;
+    }
+
+    public int getMaxSubjectLength() {
+        return mMaxSubjectLength;
+    }
+
+    public boolean getGroupMmsEnabled() {
+        return mGroupMmsEnabled;
+    }
+
+    public boolean getSupportMmsContentDisposition() {
+        return mSupportMmsContentDisposition;
+    }
+
+    public boolean getShowCellBroadcast() {
+        return mShowCellBroadcast;
+    }
+
+    public String getNaiSuffix() {
+        return mNaiSuffix;
+    }
+
+    public boolean isMmsReadReportsEnabled() {
+        return mMmsReadReportsEnabled;
+    }
+
+    public boolean isMmsDeliveryReportsEnabled() {
+        return mMmsDeliveryReportsEnabled;
+    }
+
+    public boolean getSupportHttpCharsetHeader() {
+        return mSupportHttpCharsetHeader;
+    }
+}
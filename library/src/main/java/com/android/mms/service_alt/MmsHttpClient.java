@@ -17,10 +17,14 @@
 package com.android.mms.service_alt;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.android.mms.service_alt.exception.MmsHttpException;
+import com.android.mms.util.Instrumentation;
+import com.google.android.mms.util_alt.ByteArrayPool;
+import com.google.android.mms.util_alt.PooledByteArrayOutputStream;
 import com.squareup.okhttp.ConnectionPool;
 import com.squareup.okhttp.ConnectionSpec;
 import com.squareup.okhttp.OkHttpClient;
@@ -33,7 +37,6 @@ import com.squareup.okhttp.internal.huc.HttpsURLConnectionImpl;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -44,6 +47,7 @@ import java.net.ProtocolException;
 import java.net.Proxy;
 import java.net.ProxySelector;
 import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
 import java.net.URI;
 import java.net.URL;
 import java.util.ArrayList;
@@ -51,6 +55,10 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import javax.net.SocketFactory;
@@ -59,6 +67,16 @@ import javax.net.ssl.HttpsURLConnection;
 
 /**
  * MMS HTTP client for sending and downloading MMS messages
+ *
+ * Timeouts come from {@link MmsLinkEstimator}: connecting and every read or write
+ * get the stall timeout of the subscription, and the request as a whole is cut
+ * off when it runs past its deadline, which grows with the size of the PDU and,
+ * once the response headers are in, with the size of the response. A response
+ * without a Content-Length gets more time with every chunk that arrives.
+ *
+ * The answer to a POST is waited for at least as long as the configured socket
+ * timeout, however fast the link has been: once the MMSC has the M-Send.req, a
+ * timeout means a retry and the recipients getting the message twice.
  */
 public class MmsHttpClient {
     private static final String TAG = "MmsHttpClient";
@@ -80,6 +98,13 @@ public class MmsHttpClient {
     private static final String HEADER_VALUE_CONTENT_TYPE_WITHOUT_CHARSET =
             "application/vnd.wap.mms-message";
 
+    // Read chunk size, and the starting size of the response when it has no Content-Length
+    private static final int RESPONSE_BUFFER_SIZE = 4096;
+
+    // Cuts off requests that run past their deadline
+    private static final ScheduledExecutorService sWatchdog =
+            Executors.newSingleThreadScheduledExecutor();
+
     private final Context mContext;
     private final SocketFactory mSocketFactory;
     private final MmsNetworkManager mHostResolver;
@@ -122,17 +147,44 @@ public class MmsHttpClient {
                 + (isProxySet ? (", proxy=" + proxyHost + ":" + proxyPort) : "")
                 + ", PDU size=" + (pdu != null ? pdu.length : 0));
         checkMethod(method);
+        final long start = Instrumentation.start();
+        final int subId = mHostResolver.getSubId();
+        final MmsLinkEstimator estimator = MmsLinkEstimator.getInstance();
+        final int defaultTimeout = mmsConfig.getHttpSocketTimeout();
+        final int timeout = estimator.getStallTimeout(subId, defaultTimeout);
+        int statusCode = 0;
+        long bytes = 0;
+        long sendStart = 0;
         HttpURLConnection connection = null;
+        Watchdog watchdog = null;
         try {
             Proxy proxy = null;
+            final URL url = new URL(urlString);
             if (isProxySet) {
-                proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress(proxyHost, proxyPort));
+                // Left unresolved, so the proxy is looked up on the MMS network
+                // through the host resolver rather than on the default one here
+                proxy = new Proxy(Proxy.Type.HTTP,
+                        InetSocketAddress.createUnresolved(proxyHost, proxyPort));
+                mHostResolver.prepareHost(proxyHost, proxyPort, timeout);
+            } else {
+                mHostResolver.prepareHost(url.getHost(),
+                        url.getPort() != -1 ? url.getPort() : url.getDefaultPort(), timeout);
             }
-            final URL url = new URL(urlString);
             // Now get the connection
-            connection = openConnection(url, proxy);
+            connection = openConnection(url, proxy, timeout);
             connection.setDoInput(true);
-            connection.setConnectTimeout(mmsConfig.getHttpSocketTimeout());
+            connection.setConnectTimeout(timeout);
+            watchdog = new Watchdog(connection);
+            if (METHOD_POST.equals(method)) {
+                final int readTimeout = Math.max(timeout, defaultTimeout);
+                connection.setReadTimeout(readTimeout);
+                watchdog.schedule(Math.min(MmsLinkEstimator.MAX_DEADLINE, readTimeout
+                        + estimator.getTransferTime(subId, pdu != null ? pdu.length : 0, true)));
+            } else {
+                connection.setReadTimeout(timeout);
+                watchdog.schedule(estimator.getDeadline(subId, 0, defaultTimeout));
+            }
+            Log.d(TAG, "HTTP: timeout=" + timeout + "ms");
             // ------- COMMON HEADERS ---------
             // Header: Accept
             connection.setRequestProperty(HEADER_ACCEPT, HEADER_VALUE_ACCEPT);
@@ -172,11 +224,13 @@ public class MmsHttpClient {
                 }
                 connection.setFixedLengthStreamingMode(pdu.length);
                 // Sending request body
+                sendStart = SystemClock.elapsedRealtime();
                 final OutputStream out =
                         new BufferedOutputStream(connection.getOutputStream());
                 out.write(pdu);
                 out.flush();
                 out.close();
+                bytes += pdu.length;
             } else if (METHOD_GET.equals(method)) {
                 if (Log.isLoggable(TAG, Log.VERBOSE)) {
                     logHttpHeaders(connection.getRequestProperties());
@@ -184,8 +238,18 @@ public class MmsHttpClient {
                 connection.setRequestMethod(METHOD_GET);
             }
             // Get response
+            final long sent = SystemClock.elapsedRealtime();
             final int responseCode = connection.getResponseCode();
             final String responseMessage = connection.getResponseMessage();
+            final long responded = SystemClock.elapsedRealtime();
+            estimator.onLatency(subId, responded - sent);
+            if (sendStart > 0) {
+                // Writing the body only fills the socket buffer, which can hold a whole
+                // message, so the upload is only known to be done once the answer starts.
+                // That includes the MMSC's time to answer, which errs on the slow side.
+                estimator.onTransfer(subId, pdu.length, responded - sendStart, true);
+            }
+            statusCode = responseCode;
             Log.d(TAG, "HTTP: " + responseCode + " " + responseMessage);
             if (Log.isLoggable(TAG, Log.VERBOSE)) {
                 logHttpHeaders(connection.getHeaderFields());
@@ -194,16 +258,40 @@ public class MmsHttpClient {
                 throw new MmsHttpException(responseCode, responseMessage);
             }
             final InputStream in = new BufferedInputStream(connection.getInputStream());
-            final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-            final byte[] buf = new byte[4096];
-            int count = 0;
-            while ((count = in.read(buf)) > 0) {
-                byteOut.write(buf, 0, count);
+            final int contentLength = connection.getContentLength();
+            // Now that the size of the response is known, give it the time it needs.
+            // Without one, the deadline stays and every chunk extends it.
+            if (contentLength > 0) {
+                watchdog.schedule(estimator.getDeadline(subId, contentLength, defaultTimeout));
+            }
+            final long receiveStart = SystemClock.elapsedRealtime();
+            // Content-Length comes from the server, so it only sizes the buffer up to
+            // the largest message we'd accept; anything beyond that grows as it arrives
+            final PooledByteArrayOutputStream byteOut = new PooledByteArrayOutputStream(
+                    contentLength > 0
+                            ? Math.min(contentLength, mmsConfig.getMaxMessageSize())
+                            : RESPONSE_BUFFER_SIZE);
+            final byte[] buf = ByteArrayPool.acquire(RESPONSE_BUFFER_SIZE);
+            final byte[] responseBody;
+            try {
+                int count = 0;
+                while ((count = in.read(buf)) > 0) {
+                    byteOut.write(buf, 0, count);
+                    if (contentLength <= 0) {
+                        watchdog.extend(estimator.getTransferTime(subId, count, false));
+                    }
+                }
+                in.close();
+                responseBody = byteOut.toByteArray();
+            } finally {
+                ByteArrayPool.release(buf);
+                byteOut.release();
             }
-            in.close();
-            final byte[] responseBody = byteOut.toByteArray();
             Log.d(TAG, "HTTP: response size="
                     + (responseBody != null ? responseBody.length : 0));
+            bytes += responseBody.length;
+            estimator.onTransfer(subId, responseBody.length,
+                    SystemClock.elapsedRealtime() - receiveStart, false);
             return responseBody;
         } catch (MalformedURLException e) {
             final String redactedUrl = redactUrlForNonVerbose(urlString);
@@ -214,12 +302,24 @@ public class MmsHttpClient {
             Log.e(TAG, "HTTP: invalid URL protocol " + redactedUrl, e);
             throw new MmsHttpException(0/*statusCode*/, "Invalid URL protocol " + redactedUrl, e);
         } catch (IOException e) {
-            Log.e(TAG, "HTTP: IO failure", e);
+            if (watchdog != null && watchdog.isExpired()) {
+                Log.e(TAG, "HTTP: deadline exceeded", e);
+                estimator.onTimeout(subId);
+            } else if (e instanceof SocketTimeoutException) {
+                Log.e(TAG, "HTTP: timed out after " + timeout + "ms", e);
+                estimator.onTimeout(subId);
+            } else {
+                Log.e(TAG, "HTTP: IO failure", e);
+            }
             throw new MmsHttpException(0/*statusCode*/, e);
         } finally {
+            if (watchdog != null) {
+                watchdog.cancel();
+            }
             if (connection != null) {
                 connection.disconnect();
             }
+            Instrumentation.record(Instrumentation.STAGE_HTTP, start, bytes, statusCode);
         }
     }
 
@@ -233,10 +333,12 @@ public class MmsHttpClient {
      *
      * @param url The URL to connect to
      * @param proxy The proxy to use
+     * @param writeTimeout The timeout of a single write in ms
      * @return The opened HttpURLConnection
      * @throws MalformedURLException If URL is malformed
      */
-    private HttpURLConnection openConnection(URL url, final Proxy proxy) throws MalformedURLException {
+    private HttpURLConnection openConnection(URL url, final Proxy proxy, int writeTimeout)
+            throws MalformedURLException {
         final String protocol = url.getProtocol();
         OkHttpClient okHttpClient;
         if (protocol.equals("http")) {
@@ -272,6 +374,7 @@ public class MmsHttpClient {
             okHttpClient.setConnectionSpecs(Arrays.asList(ConnectionSpec.CLEARTEXT));
             okHttpClient.setConnectionPool(new ConnectionPool(3, 60000));
             okHttpClient.setSocketFactory(SocketFactory.getDefault());
+            okHttpClient.setWriteTimeout(writeTimeout, TimeUnit.MILLISECONDS);
             Internal.instance.setNetwork(okHttpClient, mHostResolver);
 
             if (proxy != null) {
@@ -285,6 +388,7 @@ public class MmsHttpClient {
             HostnameVerifier verifier = HttpsURLConnection.getDefaultHostnameVerifier();
             okHttpClient.setHostnameVerifier(verifier);
             okHttpClient.setSslSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory());
+            okHttpClient.setWriteTimeout(writeTimeout, TimeUnit.MILLISECONDS);
             okHttpClient.setProxySelector(new ProxySelector() {
                 @Override
                 public List<Proxy> select(URI uri) {
@@ -491,4 +595,72 @@ public class MmsHttpClient {
                 .append("[").append(urlString.length()).append("]");
         return sb.toString();
     }
+
+    /**
+     * Disconnects a connection once its deadline passes, which makes whatever read
+     * or write is blocked on it fail.
+     */
+    private static class Watchdog implements Runnable {
+        private final HttpURLConnection mConnection;
+        private ScheduledFuture<?> mFuture;
+        // In elapsed realtime
+        private long mDeadline;
+        private boolean mCancelled;
+        private volatile boolean mExpired;
+
+        Watchdog(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        /**
+         * Set the deadline, replacing the one set before.
+         *
+         * @param deadline the deadline in ms from now
+         */
+        synchronized void schedule(long deadline) {
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+            mDeadline = SystemClock.elapsedRealtime() + deadline;
+            mFuture = sWatchdog.schedule(this, deadline, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Move the deadline further out. Cheap enough to call for every read:
+         * the watchdog only looks at the new deadline once the old one is up.
+         *
+         * @param time how much later, in ms
+         */
+        synchronized void extend(long time) {
+            mDeadline += time;
+        }
+
+        synchronized void cancel() {
+            mCancelled = true;
+            if (mFuture != null) {
+                mFuture.cancel(false);
+            }
+        }
+
+        boolean isExpired() {
+            return mExpired;
+        }
+
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                final long remaining = mDeadline - SystemClock.elapsedRealtime();
+                if (remaining > 0) {
+                    mFuture = sWatchdog.schedule(this, remaining, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+            mExpired = true;
+            Log.w(TAG, "HTTP: deadline passed, disconnecting");
+            mConnection.disconnect();
+        }
+    }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service_alt;
+
+import com.klinker.android.logger.Log;
+
+import java.util.HashMap;
+
+/**
+ * Estimates how fast the MMS network of each subscription is, from the requests
+ * made on it, and turns that into timeouts for the next requests.
+ *
+ * Two things are tracked: the time between a request being sent and its
+ * response starting, as a smoothed value and its variation the way TCP does
+ * for its retransmission timeout, and the throughput of large transfers. Uplink
+ * and downlink throughput are kept apart, as a cellular uplink is often much
+ * slower than its downlink.
+ * Until a subscription has had a request, the configured socket timeout is used,
+ * like before.
+ *
+ * The timeouts are:
+ * <ul>
+ * <li>the stall timeout, for connecting and for any single read or write. It
+ * follows the measured latency, so a dead link is noticed in seconds instead of
+ * after the full configured timeout;</li>
+ * <li>the deadline of the whole request, the stall timeout plus the time its
+ * bytes take at the measured throughput, with a margin. A large download on a
+ * slow link gets as long as it needs, a small ack doesn't.</li>
+ * </ul>
+ * Each timeout doubles the stall timeout of the subscription, up to a limit,
+ * until a request succeeds again.
+ */
+public class MmsLinkEstimator {
+    private static final String TAG = "MmsLinkEstimator";
+
+    // Weights of a new sample, as in RFC 6298
+    private static final double RTT_ALPHA = 0.125;
+    private static final double RTT_BETA = 0.25;
+    private static final double THROUGHPUT_ALPHA = 0.25;
+
+    // Transfers smaller than this mostly measure latency, not throughput
+    static final int MIN_THROUGHPUT_SAMPLE = 16 * 1024;
+
+    static final int MIN_STALL_TIMEOUT = 5 * 1000;
+    static final int MAX_STALL_TIMEOUT = 2 * 60 * 1000;
+    static final long MAX_DEADLINE = 10 * 60 * 1000;
+    private static final int MAX_BACKOFF = 8;
+
+    // Throughput assumed before one is measured, in bytes per second. A slow 2G link.
+    private static final double DEFAULT_THROUGHPUT = 2 * 1024;
+    // How much longer than expected a transfer may take
+    private static final double THROUGHPUT_MARGIN = 2.0;
+
+    private static MmsLinkEstimator sInstance;
+
+    private final HashMap<Integer, Link> mLinks = new HashMap<Integer, Link>();
+
+    private MmsLinkEstimator() {
+    }
+
+    public static synchronized MmsLinkEstimator getInstance() {
+        if (sInstance == null) {
+            sInstance = new MmsLinkEstimator();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Get the timeout for connecting, and for any single read or write.
+     *
+     * @param subId the subscription the request is made on
+     * @param defaultTimeout the configured socket timeout in ms
+     * @return the timeout in ms
+     */
+    public synchronized int getStallTimeout(int subId, int defaultTimeout) {
+        final Link link = mLinks.get(subId);
+        if (link == null || !link.hasRtt) {
+            return defaultTimeout;
+        }
+        final double timeout = (link.srtt + 4 * link.rttvar) * link.backoff;
+        return (int) Math.max(MIN_STALL_TIMEOUT, Math.min(MAX_STALL_TIMEOUT, timeout));
+    }
+
+    /**
+     * Get how long a request may take in total.
+     *
+     * @param subId the subscription the request is made on
+     * @param bytes how many bytes the request receives, as far as known
+     * @param defaultTimeout the configured socket timeout in ms
+     * @return the deadline in ms from now
+     */
+    public synchronized long getDeadline(int subId, long bytes, int defaultTimeout) {
+        return Math.min(MAX_DEADLINE,
+                getStallTimeout(subId, defaultTimeout) + getTransferTime(subId, bytes, false));
+    }
+
+    /**
+     * Get how long some bytes may take to go through, with the margin.
+     *
+     * @param subId the subscription the request is made on
+     * @param bytes how many bytes
+     * @param upload whether they are sent rather than received
+     * @return the time in ms
+     */
+    public synchronized long getTransferTime(int subId, long bytes, boolean upload) {
+        final Link link = mLinks.get(subId);
+        double throughput = 0;
+        if (link != null) {
+            throughput = upload ? link.uplink : link.downlink;
+        }
+        if (throughput <= 0) {
+            throughput = DEFAULT_THROUGHPUT;
+        }
+        return (long) (bytes * 1000 * THROUGHPUT_MARGIN / throughput);
+    }
+
+    /**
+     * Record the time between a request being sent and its response starting.
+     *
+     * @param subId the subscription the request was made on
+     * @param latency the time in ms
+     */
+    public synchronized void onLatency(int subId, long latency) {
+        final Link link = getLink(subId);
+        if (!link.hasRtt) {
+            link.srtt = latency;
+            link.rttvar = latency / 2.0;
+            link.hasRtt = true;
+        } else {
+            link.rttvar = (1 - RTT_BETA) * link.rttvar + RTT_BETA * Math.abs(link.srtt - latency);
+            link.srtt = (1 - RTT_ALPHA) * link.srtt + RTT_ALPHA * latency;
+        }
+        link.backoff = 1;
+    }
+
+    /**
+     * Record a transfer of a request or response body.
+     *
+     * @param subId the subscription the request was made on
+     * @param bytes the size of the body
+     * @param duration how long the transfer took in ms
+     * @param upload whether the body was sent rather than received
+     */
+    public synchronized void onTransfer(int subId, long bytes, long duration, boolean upload) {
+        if (bytes < MIN_THROUGHPUT_SAMPLE) {
+            return;
+        }
+        final Link link = getLink(subId);
+        final double sample = bytes * 1000.0 / Math.max(1, duration);
+        if (upload) {
+            link.uplink = smooth(link.uplink, sample);
+        } else {
+            link.downlink = smooth(link.downlink, sample);
+        }
+    }
+
+    private static double smooth(double throughput, double sample) {
+        return throughput > 0
+                ? (1 - THROUGHPUT_ALPHA) * throughput + THROUGHPUT_ALPHA * sample
+                : sample;
+    }
+
+    /**
+     * Record a request that timed out, or was cut off at its deadline.
+     *
+     * @param subId the subscription the request was made on
+     */
+    public synchronized void onTimeout(int subId) {
+        final Link link = getLink(subId);
+        link.backoff = Math.min(MAX_BACKOFF, link.backoff * 2);
+        Log.d(TAG, "timeout on sub " + subId + ", backing off x" + link.backoff);
+    }
+
+    private Link getLink(int subId) {
+        Link link = mLinks.get(subId);
+        if (link == null) {
+            link = new Link();
+            mLinks.put(subId, link);
+        }
+        return link;
+    }
+
+    private static class Link {
+        boolean hasRtt;
+        double srtt;
+        double rttvar;
+        // Bytes per second, 0 until measured
+        double uplink;
+        double downlink;
+        int backoff = 1;
+    }
+}
@@ -29,6 +29,7 @@ import android.os.SystemClock;
 import com.klinker.android.logger.Log;
 
 import com.android.mms.service_alt.exception.MmsNetworkException;
+import com.android.mms.util.Instrumentation;
 import com.squareup.okhttp.ConnectionPool;
 
 import java.net.InetAddress;
@@ -116,6 +117,18 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
      * @throws MmsNetworkException if we fail to acquire it
      */
     public Network acquireNetwork() throws MmsNetworkException {
+        final long start = Instrumentation.start();
+        Network network = null;
+        try {
+            network = acquireNetworkInternal();
+            return network;
+        } finally {
+            Instrumentation.record(Instrumentation.STAGE_ACQUIRE_NETWORK, start, 0,
+                    network == null ? Instrumentation.OUTCOME_FAILURE : Instrumentation.OUTCOME_SUCCESS);
+        }
+    }
+
+    private Network acquireNetworkInternal() throws MmsNetworkException {
         synchronized (this) {
             mMmsRequestCount += 1;
             if (mNetwork != null) {
@@ -184,6 +197,7 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
             public void onLost(Network network) {
                 super.onLost(network);
                 Log.d(TAG, "NetworkCallbackListener.onLost: network=" + network);
+                DnsCache.getInstance().invalidate(mSubId, network);
                 synchronized (MmsNetworkManager.this) {
                     releaseRequestLocked(this);
                     MmsNetworkManager.this.notifyAll();
@@ -254,7 +268,36 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
             }
             network = mNetwork;
         }
-        return network.getAllByName(host);
+        return DnsCache.getInstance().resolve(mSubId, network, host, getResolver(network));
+    }
+
+    /**
+     * Find out which address of a host answers fastest on the MMS network before
+     * connecting to it, see {@link DnsCache#prepare}.
+     *
+     * @param host the MMSC or proxy host
+     * @param port the port that will be connected to
+     * @param timeout the connect timeout in milliseconds
+     */
+    public void prepareHost(String host, int port, int timeout) {
+        Network network = null;
+        synchronized (this) {
+            if (mNetwork == null) {
+                return;
+            }
+            network = mNetwork;
+        }
+        DnsCache.getInstance().prepare(mSubId, network, host, port, getResolver(network),
+                network.getSocketFactory(), timeout);
+    }
+
+    private static DnsCache.Resolver getResolver(final Network network) {
+        return new DnsCache.Resolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                return network.getAllByName(host);
+            }
+        };
     }
 
     private ConnectivityManager getConnectivityManager() {
@@ -299,6 +342,13 @@ public class MmsNetworkManager implements com.squareup.okhttp.internal.Network {
         }
     }
 
+    /**
+     * @return the subscription this network is for
+     */
+    public int getSubId() {
+        return mSubId;
+    }
+
     /**
      * Get the APN name for the active network
      *
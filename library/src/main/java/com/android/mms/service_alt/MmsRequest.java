@@ -26,6 +26,7 @@ import android.net.Uri;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.PowerManager;
 import android.provider.Settings;
 import android.service.carrier.CarrierMessagingService;
 import android.telephony.SmsManager;
@@ -35,6 +36,13 @@ import com.klinker.android.send_message.Utils;
 
 import com.android.mms.service_alt.exception.ApnException;
 import com.android.mms.service_alt.exception.MmsHttpException;
+import com.android.mms.util.Instrumentation;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Base class for MMS requests. This has the common logic of sending/downloading MMS.
@@ -43,6 +51,26 @@ public abstract class MmsRequest {
     private static final String TAG = "MmsRequest";
 
     private static final int RETRY_TIMES = 3;
+    // Delay before the first retry, doubled for every next one
+    private static final long RETRY_DELAY = 2 * 1000;
+    // Longest a retry may keep the device awake, in case it never finishes
+    private static final long RETRY_WAKE_LOCK_TIMEOUT = 10 * 60 * 1000;
+
+    // Shared by all requests: each one may add a fifth of a retry, plus one
+    // retry every ten seconds, up to ten saved up
+    private static final RetryBudget sRetryBudget = new RetryBudget(0.2, 0.1, 10);
+
+    // Retries wait here instead of sleeping on the thread of the request. Two threads,
+    // so one slow retry doesn't hold up the others.
+    private static final ScheduledExecutorService sRetryScheduler =
+            Executors.newScheduledThreadPool(2, new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(1);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "MmsRequest retry #" + mCount.getAndIncrement());
+                }
+            });
 
     /**
      * Interface for certain functionalities from MmsService
@@ -138,13 +166,18 @@ public abstract class MmsRequest {
     /**
      * Execute the request
      *
+     * The first attempt is made on the calling thread. If it fails in a way that
+     * is worth retrying, the next attempt is scheduled on a background thread and
+     * this returns; the result is processed once the last attempt is done.
+     *
+     * Callers like a broadcast receiver are gone by then, so from the first retry
+     * until the result is processed the request holds a wake lock of its own.
+     *
      * @param context The context
      * @param networkManager The network manager to use
      */
     public void execute(Context context, MmsNetworkManager networkManager) {
-        int result = SmsManager.MMS_ERROR_UNSPECIFIED;
-        int httpStatusCode = 0;
-        byte[] response = null;
+        final long start = Instrumentation.start();
 
         WifiManager wifi = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
         boolean isWifiEnabled = wifi.isWifiEnabled();
@@ -161,35 +194,80 @@ public abstract class MmsRequest {
             Utils.setMobileDataEnabled(context, true);
         }
 
+        final Execution execution = new Execution(context, networkManager, wifi, isWifiEnabled,
+                start);
         if (!ensureMmsConfigLoaded()) { // Check mms config
             Log.e(TAG, "MmsRequest: mms config is not loaded yet");
-            result = SmsManager.MMS_ERROR_CONFIGURATION_ERROR;
+            execution.finish(SmsManager.MMS_ERROR_CONFIGURATION_ERROR);
         } else if (!prepareForHttpRequest()) { // Prepare request, like reading pdu data from user
             Log.e(TAG, "MmsRequest: failed to prepare for request");
-            result = SmsManager.MMS_ERROR_IO_ERROR;
+            execution.finish(SmsManager.MMS_ERROR_IO_ERROR);
         } else if (!isDataNetworkAvailable(context, mSubId)) {
             Log.e(TAG, "MmsRequest: in airplane mode or mobile data disabled");
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
-                result = SmsManager.MMS_ERROR_NO_DATA_NETWORK;
+                execution.finish(SmsManager.MMS_ERROR_NO_DATA_NETWORK);
             } else {
-                result = 8;
+                execution.finish(8);
             }
         } else { // Execute
-            long retryDelaySecs = 2;
-            // Try multiple times of MMS HTTP request
-            for (int i = 0; i < RETRY_TIMES; i++) {
+            sRetryBudget.onRequest();
+            execution.run();
+        }
+    }
+
+    /**
+     * One execution of the request, over all of its attempts.
+     */
+    private class Execution implements Runnable {
+        private final Context mContext;
+        private final MmsNetworkManager mNetworkManager;
+        private final WifiManager mWifi;
+        private final boolean mWifiEnabled;
+        private final long mStart;
+        private final PowerManager.WakeLock mWakeLock;
+
+        private int mAttempt;
+        private int mHttpStatusCode;
+        private byte[] mResponse;
+
+        Execution(Context context, MmsNetworkManager networkManager, WifiManager wifi,
+                boolean wifiEnabled, long start) {
+            mContext = context;
+            mNetworkManager = networkManager;
+            mWifi = wifi;
+            mWifiEnabled = wifiEnabled;
+            mStart = start;
+            final PowerManager pm = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+            mWakeLock = pm.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "smsmms:mms-request-retry");
+            mWakeLock.setReferenceCounted(false);
+        }
+
+        /**
+         * Make the next attempt, then finish or schedule a retry.
+         */
+        @Override
+        public void run() {
+            if (mAttempt > 0) {
+                Instrumentation.retry(Instrumentation.STAGE_REQUEST, mAttempt);
+                // A lookup that failed the last attempt may only have failed for a moment
+                DnsCache.getInstance().forgetFailures(mSubId);
+            }
+            int result;
+            boolean retry = false;
+            try {
                 try {
-                    try {
-                        networkManager.acquireNetwork();
-                    } catch (Exception e) {
-                        Log.e(TAG, "error acquiring network", e);
-                    }
+                    mNetworkManager.acquireNetwork();
+                } catch (Exception e) {
+                    Log.e(TAG, "error acquiring network", e);
+                }
 
-                    final String apnName = networkManager.getApnName();
+                final String apnName = mNetworkManager.getApnName();
+                try {
+                    ApnSettings apn = null;
+                    final long apnStart = Instrumentation.start();
                     try {
-                        ApnSettings apn = null;
                         try {
-                            apn = ApnSettings.load(context, apnName, mSubId);
+                            apn = ApnSettings.load(mContext, apnName, mSubId);
                         } catch (ApnException e) {
                             // If no APN could be found, fall back to trying without the APN name
                             if (apnName == null) {
@@ -198,52 +276,84 @@ public abstract class MmsRequest {
                             }
                             Log.i(TAG, "MmsRequest: No match with APN name:"
                                     + apnName + ", try with no name");
-                            apn = ApnSettings.load(context, null, mSubId);
+                            apn = ApnSettings.load(mContext, null, mSubId);
                         }
-                        Log.i(TAG, "MmsRequest: using " + apn.toString());
-                        response = doHttp(context, networkManager, apn);
-                        result = Activity.RESULT_OK;
-                        // Success
-                        break;
                     } finally {
-                        networkManager.releaseNetwork();
+                        Instrumentation.record(Instrumentation.STAGE_APN, apnStart, 0,
+                                apn == null ? Instrumentation.OUTCOME_FAILURE
+                                        : Instrumentation.OUTCOME_SUCCESS);
                     }
-                } catch (ApnException e) {
-                    Log.e(TAG, "MmsRequest: APN failure", e);
-                    result = SmsManager.MMS_ERROR_INVALID_APN;
-                    break;
-//                    } catch (MmsNetworkException e) {
-//                        Log.e(TAG, "MmsRequest: MMS network acquiring failure", e);
-//                        result = SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS;
-//                        // Retry
-                } catch (MmsHttpException e) {
-                    Log.e(TAG, "MmsRequest: HTTP or network I/O failure", e);
-                    result = SmsManager.MMS_ERROR_HTTP_FAILURE;
-                    httpStatusCode = e.getStatusCode();
-                    // Retry
-                } catch (Exception e) {
-                    Log.e(TAG, "MmsRequest: unexpected failure", e);
-                    result = SmsManager.MMS_ERROR_UNSPECIFIED;
-                    break;
+                    Log.i(TAG, "MmsRequest: using " + apn.toString());
+                    mResponse = doHttp(mContext, mNetworkManager, apn);
+                    result = Activity.RESULT_OK;
+                } finally {
+                    mNetworkManager.releaseNetwork();
                 }
-                try {
-                    Thread.sleep(retryDelaySecs * 1000, 0/*nano*/);
-                } catch (InterruptedException e) {
+            } catch (ApnException e) {
+                Log.e(TAG, "MmsRequest: APN failure", e);
+                result = SmsManager.MMS_ERROR_INVALID_APN;
+//            } catch (MmsNetworkException e) {
+//                Log.e(TAG, "MmsRequest: MMS network acquiring failure", e);
+//                result = SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS;
+//                // Retry
+            } catch (MmsHttpException e) {
+                Log.e(TAG, "MmsRequest: HTTP or network I/O failure", e);
+                result = SmsManager.MMS_ERROR_HTTP_FAILURE;
+                mHttpStatusCode = e.getStatusCode();
+                retry = true;
+            } catch (Exception e) {
+                Log.e(TAG, "MmsRequest: unexpected failure", e);
+                result = SmsManager.MMS_ERROR_UNSPECIFIED;
+            }
+
+            mAttempt++;
+            if (retry && mAttempt < RETRY_TIMES) {
+                if (sRetryBudget.tryRetry()) {
+                    final long delay = getRetryDelay(mAttempt);
+                    Log.i(TAG, "MmsRequest: retrying in " + delay + "ms");
+                    mWakeLock.acquire(delay + RETRY_WAKE_LOCK_TIMEOUT);
+                    sRetryScheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+                    return;
                 }
-                retryDelaySecs <<= 1;
+                Log.w(TAG, "MmsRequest: retry budget used up, not retrying");
             }
+            finish(result);
         }
 
-        if (!mobileDataEnabled) {
-            Log.v(TAG, "setting mobile data back to disabled");
-            Utils.setMobileDataEnabled(context, false);
-        }
+        /**
+         * Put the network back the way it was and process the result.
+         */
+        void finish(int result) {
+            try {
+                if (!mobileDataEnabled) {
+                    Log.v(TAG, "setting mobile data back to disabled");
+                    Utils.setMobileDataEnabled(mContext, false);
+                }
 
-        if (!useWifi(context)) {
-            wifi.setWifiEnabled(isWifiEnabled);
+                if (!useWifi(mContext)) {
+                    mWifi.setWifiEnabled(mWifiEnabled);
+                }
+
+                Instrumentation.record(Instrumentation.STAGE_REQUEST, mStart,
+                        mResponse == null ? 0 : mResponse.length,
+                        result == Activity.RESULT_OK ? Instrumentation.OUTCOME_SUCCESS : result);
+                processResult(mContext, result, mResponse, mHttpStatusCode);
+            } finally {
+                // Held if this was a retry
+                if (mWakeLock.isHeld()) {
+                    mWakeLock.release();
+                }
+            }
         }
+    }
 
-        processResult(context, result, response, httpStatusCode);
+    /**
+     * @return how long to wait before the given retry, doubling every time with
+     *         some jitter, so requests that failed together don't retry together
+     */
+    private static long getRetryDelay(int retry) {
+        final long delay = RETRY_DELAY << (retry - 1);
+        return delay / 2 + (long) (Math.random() * delay);
     }
 
     /**
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service_alt;
+
+import android.os.SystemClock;
+
+/**
+ * Limits how many retries all requests make together.
+ *
+ * Every request adds a fraction of a retry to the budget, and every retry takes
+ * a whole one, so retries stay a fixed share of the requests. On top of that the
+ * budget slowly refills by itself, so the odd failure can always be retried even
+ * when there is little traffic. When the MMSC or the network is down for
+ * everyone, requests stop retrying after the budget is used up instead of
+ * multiplying the load.
+ */
+public class RetryBudget {
+    private final double mPerRequest;
+    private final double mPerSecond;
+    private final double mMax;
+
+    private double mBalance;
+    private long mUpdated;
+
+    /**
+     * @param perRequest the retries each request adds
+     * @param perSecond the retries added every second
+     * @param max the most retries that can be saved up, which is also the starting balance
+     */
+    public RetryBudget(double perRequest, double perSecond, double max) {
+        mPerRequest = perRequest;
+        mPerSecond = perSecond;
+        mMax = max;
+        mBalance = max;
+        mUpdated = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Count a new request.
+     */
+    public synchronized void onRequest() {
+        refill();
+        mBalance = Math.min(mMax, mBalance + mPerRequest);
+    }
+
+    /**
+     * Take a retry from the budget.
+     *
+     * @return true if there was one, false if the request shouldn't be retried
+     */
+    public synchronized boolean tryRetry() {
+        refill();
+        if (mBalance < 1) {
+            return false;
+        }
+        mBalance -= 1;
+        return true;
+    }
+
+    private void refill() {
+        final long now = SystemClock.elapsedRealtime();
+        mBalance = Math.min(mMax, mBalance + (now - mUpdated) * mPerSecond / 1000);
+        mUpdated = now;
+    }
+}
@@ -44,6 +44,9 @@ import com.klinker.android.logger.Log;
 
 import com.android.mms.logs.LogTag;
 import com.android.mms.MmsConfig;
+import com.android.mms.util.Instrumentation;
+import com.google.android.mms.util_alt.ByteArrayPool;
+import com.google.android.mms.util_alt.PooledByteArrayOutputStream;
 
 public class HttpUtils {
     private static final String TAG = LogTag.TRANSACTION;
@@ -112,6 +115,9 @@ public class HttpUtils {
         }
 
         AndroidHttpClient client = null;
+        final long start = Instrumentation.start();
+        int statusCode = 0;
+        long bytes = method == HTTP_POST_METHOD && pdu != null ? pdu.length : 0;
 
         try {
             // Make sure to use a proxy which supports CONNECT.
@@ -199,6 +205,7 @@ public class HttpUtils {
 
             HttpResponse response = client.execute(target, req);
             StatusLine status = response.getStatusLine();
+            statusCode = status.getStatusCode();
             if (status.getStatusCode() != 200) { // HTTP 200 is success.
                 throw new IOException("HTTP error: " + status.getReasonPhrase());
             }
@@ -222,16 +229,20 @@ public class HttpUtils {
                     }
                     if (entity.isChunked()) {
                         Log.v(TAG, "httpConnection: transfer encoding is chunked");
+                        // Grow the body as it arrives rather than holding a buffer of
+                        // the largest message we'd accept for every response
                         int bytesTobeRead = MmsConfig.getMaxMessageSize();
-                        byte[] tempBody = new byte[bytesTobeRead];
+                        byte[] buffer = ByteArrayPool.acquire(MMS_READ_BUFFER);
+                        PooledByteArrayOutputStream tempBody = new PooledByteArrayOutputStream(
+                                Math.min(bytesTobeRead, MMS_READ_BUFFER));
                         DataInputStream dis = new DataInputStream(entity.getContent());
                         try {
                             int bytesRead = 0;
-                            int offset = 0;
                             boolean readError = false;
                             do {
                                 try {
-                                    bytesRead = dis.read(tempBody, offset, bytesTobeRead);
+                                    bytesRead = dis.read(buffer, 0,
+                                            Math.min(buffer.length, bytesTobeRead));
                                 } catch (IOException e) {
                                     readError = true;
                                     Log.e(TAG, "httpConnection: error reading input stream"
@@ -240,20 +251,20 @@ public class HttpUtils {
                                 }
                                 if (bytesRead > 0) {
                                     bytesTobeRead -= bytesRead;
-                                    offset += bytesRead;
+                                    tempBody.write(buffer, 0, bytesRead);
                                 }
                             } while (bytesRead >= 0 && bytesTobeRead > 0);
-                            if (bytesRead == -1 && offset > 0 && !readError) {
-                                // offset is same as total number of bytes read
+                            if (bytesRead == -1 && tempBody.size() > 0 && !readError) {
                                 // bytesRead will be -1 if the data was read till the eof
-                                body = new byte[offset];
-                                System.arraycopy(tempBody, 0, body, 0, offset);
+                                body = tempBody.toByteArray();
                                 Log.v(TAG, "httpConnection: Chunked response length ["
-                                    + Integer.toString(offset) + "]");
+                                    + Integer.toString(body.length) + "]");
                             } else {
                                 Log.e(TAG, "httpConnection: Response entity too large or empty");
                             }
                         } finally {
+                            ByteArrayPool.release(buffer);
+                            tempBody.release();
                             try {
                                 dis.close();
                             } catch (IOException e) {
@@ -267,6 +278,9 @@ public class HttpUtils {
                     }
                 }
             }
+            if (body != null) {
+                bytes += body.length;
+            }
             return body;
         } catch (URISyntaxException e) {
             handleHttpConnectionException(e, url);
@@ -283,6 +297,7 @@ public class HttpUtils {
             if (client != null) {
                 client.close();
             }
+            Instrumentation.record(Instrumentation.STAGE_HTTP, start, bytes, statusCode);
         }
         return null;
     }
@@ -47,6 +47,7 @@ public class MmsMessageSender implements MessageSender {
     private final Context mContext;
     private final Uri mMessageUri;
     private final long mMessageSize;
+    private int mTransactionPriority = TransactionPriority.INTERACTIVE;
 
     // Default preference values
     private static final boolean DEFAULT_DELIVERY_REPORT_MODE  = false;
@@ -68,6 +69,14 @@ public class MmsMessageSender implements MessageSender {
         }
     }
 
+    /**
+     * Set how urgently the TransactionService sends the message, one of the
+     * {@link TransactionPriority} constants.
+     */
+    public void setTransactionPriority(int priority) {
+        mTransactionPriority = priority;
+    }
+
     public boolean sendMessage(long token) throws MmsException {
         // Load the MMS from the message uri
         if (Log.isLoggable(LogTag.APP, Log.VERBOSE)) {
@@ -123,8 +132,11 @@ public class MmsMessageSender implements MessageSender {
         // Start MMS transaction service
         try {
             SendingProgressTokenManager.put(messageId, token);
+            TransactionPriority.put(messageId, mTransactionPriority);
             mContext.startService(new Intent(mContext, TransactionService.class));
         } catch (Exception e) {
+            // No SendTransaction will ever finish and remove it
+            TransactionPriority.remove(messageId);
             throw new MmsException("transaction service not registered in manifest");
         }
 
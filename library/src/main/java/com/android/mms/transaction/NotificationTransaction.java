@@ -32,6 +32,7 @@ import android.telephony.TelephonyManager;
 import com.android.mms.logs.LogTag;
 import com.android.mms.MmsConfig;
 import com.android.mms.util.DownloadManager;
+import com.android.mms.util.PushDedupeIndex;
 import com.google.android.mms.MmsException;
 import com.google.android.mms.pdu_alt.GenericPdu;
 import com.google.android.mms.pdu_alt.NotificationInd;
@@ -140,7 +141,7 @@ public class NotificationTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        new Thread(this, "NotificationTransaction").start();
+        execute(TransactionExecutor.LANE_DOWNLOAD, this, mUri);
     }
 
     public static boolean allowAutoDownload(Context context) {
@@ -156,6 +157,7 @@ public class NotificationTransaction extends Transaction implements Runnable {
         DownloadManager.init(mContext);
         DownloadManager downloadManager = DownloadManager.getInstance();
         boolean autoDownload = allowAutoDownload(mContext);
+        boolean downloaded = false;
         try {
             if (LOCAL_LOGV) {
                 Log.v(TAG, "Notification transaction launched: " + this);
@@ -241,6 +243,7 @@ public class NotificationTransaction extends Transaction implements Runnable {
             switch (status) {
                 case STATUS_RETRIEVED:
                     mTransactionState.setState(SUCCESS);
+                    downloaded = true;
                     break;
                 case STATUS_DEFERRED:
                     // STATUS_DEFERRED, may be a failed immediate retrieval.
@@ -264,6 +267,9 @@ public class NotificationTransaction extends Transaction implements Runnable {
                 mTransactionState.setState(FAILED);
                 Log.e(TAG, "NotificationTransaction failed.");
             }
+            // A deferred download has nothing to wait for
+            PushDedupeIndex.getInstance(mContext).onDownloadFinished(mContentLocation,
+                    downloaded || !autoDownload);
             notifyObservers();
         }
     }
@@ -81,11 +81,18 @@ public class ProgressCallbackEntity extends ByteArrayEntity {
     }
 
     private void broadcastProgressIfNeeded(int progress) {
-        if (mToken > 0) {
+        broadcastProgress(mContext, mToken, progress);
+    }
+
+    /**
+     * Report the progress of a PDU that is sent without this entity.
+     */
+    public static void broadcastProgress(Context context, long token, int progress) {
+        if (token > 0) {
             Intent intent = new Intent(PROGRESS_STATUS_ACTION);
             intent.putExtra("progress", progress);
-            intent.putExtra("token", mToken);
-            BroadcastUtils.sendExplicitBroadcast(mContext, intent, PROGRESS_STATUS_ACTION);
+            intent.putExtra("token", token);
+            BroadcastUtils.sendExplicitBroadcast(context, intent, PROGRESS_STATUS_ACTION);
         }
     }
 }
@@ -40,6 +40,7 @@ import com.android.mms.logs.LogTag;
 import com.android.mms.service_alt.DownloadRequest;
 import com.android.mms.service_alt.MmsNetworkManager;
 import com.android.mms.service_alt.MmsRequestManager;
+import com.android.mms.util.PushDedupeIndex;
 import com.google.android.mms.ContentType;
 import com.google.android.mms.MmsException;
 import com.google.android.mms.pdu_alt.DeliveryInd;
@@ -55,8 +56,6 @@ import com.klinker.android.send_message.Settings;
 import com.klinker.android.send_message.SmsManagerFactory;
 import com.klinker.android.send_message.Utils;
 
-import java.util.HashSet;
-import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -82,7 +81,6 @@ public class PushReceiver extends BroadcastReceiver {
 
     static final int COLUMN_CONTENT_LOCATION      = 0;
 
-    private static Set<String> downloadedUrls = new HashSet<String>();
     private static final ExecutorService PUSH_RECEIVER_EXECUTOR = Executors.newSingleThreadExecutor();
 
     private class ReceivePushTask extends AsyncTask<Intent,Void,Void> {
@@ -99,19 +97,22 @@ public class PushReceiver extends BroadcastReceiver {
             Log.v(TAG, "receiving a new mms message");
             Intent intent = intents[0];
 
-            // Get raw PDU push-data from the message and parse it
+            // Get raw PDU push-data from the message. Only the headers needed to
+            // route and dedupe it are decoded first, so pushes that get dropped
+            // never pay for a full parse.
             byte[] pushData = intent.getByteArrayExtra("data");
-            PduParser parser = new PduParser(pushData);
-            GenericPdu pdu = parser.parse();
+            GenericPdu peek = PduParser.peekHeaders(pushData,
+                    PduHeaders.CONTENT_LOCATION, PduHeaders.TRANSACTION_ID,
+                    PduHeaders.MESSAGE_ID, PduHeaders.EXPIRY);
 
-            if (null == pdu) {
+            if (null == peek) {
                 Log.e(TAG, "Invalid PUSH data");
                 return null;
             }
 
             PduPersister p = PduPersister.getPduPersister(mContext);
             ContentResolver cr = mContext.getContentResolver();
-            int type = pdu.getMessageType();
+            int type = peek.getMessageType();
             long threadId = -1;
             int subId = intent.getIntExtra("subscription", Settings.DEFAULT_SUBSCRIPTION_ID);
 
@@ -119,13 +120,24 @@ public class PushReceiver extends BroadcastReceiver {
                 switch (type) {
                     case MESSAGE_TYPE_DELIVERY_IND:
                     case MESSAGE_TYPE_READ_ORIG_IND: {
-                        threadId = findThreadId(mContext, pdu, type);
+                        if (getMessageId(peek, type) == null) {
+                            // Mandatory, parse() would have rejected the push
+                            Log.e(TAG, "Invalid PUSH data");
+                            break;
+                        }
+                        threadId = findThreadId(mContext, peek, type);
                         if (threadId == -1) {
                             // The associated SendReq isn't found, therefore skip
                             // processing this PDU.
                             break;
                         }
 
+                        GenericPdu pdu = new PduParser(pushData).parse();
+                        if (null == pdu) {
+                            Log.e(TAG, "Invalid PUSH data");
+                            break;
+                        }
+
                         boolean group;
 
                         try {
@@ -143,7 +155,13 @@ public class PushReceiver extends BroadcastReceiver {
                         break;
                     }
                     case MESSAGE_TYPE_NOTIFICATION_IND: {
-                        NotificationInd nInd = (NotificationInd) pdu;
+                        NotificationInd peekInd = (NotificationInd) peek;
+                        if (peekInd.getContentLocation() == null
+                                || peekInd.getTransactionId() == null) {
+                            // Mandatory, parse() would have rejected the push
+                            Log.e(TAG, "Invalid PUSH data");
+                            break;
+                        }
 
                         boolean appendTransactionId = false;
                         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -155,21 +173,24 @@ public class PushReceiver extends BroadcastReceiver {
                             }
                         }
 
-                        if (MmsConfig.getTransIdEnabled() || appendTransactionId) {
-                            byte [] contentLocation = nInd.getContentLocation();
-                            if ('=' == contentLocation[contentLocation.length - 1]) {
-                                byte [] transactionId = nInd.getTransactionId();
-                                byte [] contentLocationWithId = new byte [contentLocation.length
-                                                                          + transactionId.length];
-                                System.arraycopy(contentLocation, 0, contentLocationWithId,
-                                        0, contentLocation.length);
-                                System.arraycopy(transactionId, 0, contentLocationWithId,
-                                        contentLocation.length, transactionId.length);
-                                nInd.setContentLocation(contentLocationWithId);
-                            }
+                        appendTransactionId |= MmsConfig.getTransIdEnabled();
+                        if (appendTransactionId) {
+                            appendTransactionId((NotificationInd) peek);
                         }
 
-                        if (!isDuplicateNotification(mContext, nInd)) {
+                        PushDedupeIndex dedupeIndex = PushDedupeIndex.getInstance(mContext);
+                        if (!dedupeIndex.contains((NotificationInd) peek)) {
+                            GenericPdu pdu = new PduParser(pushData).parse();
+                            if (null == pdu) {
+                                Log.e(TAG, "Invalid PUSH data");
+                                break;
+                            }
+
+                            NotificationInd nInd = (NotificationInd) pdu;
+                            if (appendTransactionId) {
+                                appendTransactionId(nInd);
+                            }
+
                             // Save the pdu. If we can start downloading the real pdu immediately,
                             // don't allow persist() to create a thread for the notificationInd
                             // because it causes UI jank.
@@ -197,12 +218,9 @@ public class PushReceiver extends BroadcastReceiver {
                                 }
                             }
 
-                            if (downloadedUrls.contains(location)) {
-                                Log.v(TAG, "already added this download, don't download again");
-                                return null;
-                            } else {
-                                downloadedUrls.add(location);
-                            }
+                            // Only recorded for good once the message is stored, so a
+                            // retransmit after a failed download isn't dropped
+                            dedupeIndex.markPending(location, (NotificationInd) peek);
 
                             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
                                 Log.v(TAG, "receiving on a lollipop+ device");
@@ -239,6 +257,9 @@ public class PushReceiver extends BroadcastReceiver {
                                             Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP);
                                     mContext.startService(svc);
                                 } else {
+                                    // Nothing is downloaded until the user asks for it
+                                    dedupeIndex.onDownloadFinished(location, true);
+
                                     Intent notificationBroadcast = new Intent(com.klinker.android.send_message.Transaction.NOTIFY_OF_MMS);
                                     notificationBroadcast.putExtra("receive_through_stock", true);
                                     BroadcastUtils.sendExplicitBroadcast(
@@ -248,8 +269,9 @@ public class PushReceiver extends BroadcastReceiver {
                                 }
                             }
                         } else if (LOCAL_LOGV) {
+                            byte[] rawLocation = ((NotificationInd) peek).getContentLocation();
                             Log.v(TAG, "Skip downloading duplicate message: "
-                                    + new String(nInd.getContentLocation()));
+                                    + (rawLocation != null ? new String(rawLocation) : null));
                         }
                         break;
                     }
@@ -327,14 +349,30 @@ public class PushReceiver extends BroadcastReceiver {
         throw new MmsException("Cannot get X-Mms-Content-Location from: " + uri);
     }
 
-    private static long findThreadId(Context context, GenericPdu pdu, int type) {
-        String messageId;
+    private static void appendTransactionId(NotificationInd nInd) {
+        byte [] contentLocation = nInd.getContentLocation();
+        if ('=' == contentLocation[contentLocation.length - 1]) {
+            byte [] transactionId = nInd.getTransactionId();
+            byte [] contentLocationWithId = new byte [contentLocation.length
+                                                      + transactionId.length];
+            System.arraycopy(contentLocation, 0, contentLocationWithId,
+                    0, contentLocation.length);
+            System.arraycopy(transactionId, 0, contentLocationWithId,
+                    contentLocation.length, transactionId.length);
+            nInd.setContentLocation(contentLocationWithId);
+        }
+    }
 
+    private static byte[] getMessageId(GenericPdu pdu, int type) {
         if (type == MESSAGE_TYPE_DELIVERY_IND) {
-            messageId = new String(((DeliveryInd) pdu).getMessageId());
+            return ((DeliveryInd) pdu).getMessageId();
         } else {
-            messageId = new String(((ReadOrigInd) pdu).getMessageId());
+            return ((ReadOrigInd) pdu).getMessageId();
         }
+    }
+
+    private static long findThreadId(Context context, GenericPdu pdu, int type) {
+        String messageId = new String(getMessageId(pdu, type));
 
         StringBuilder sb = new StringBuilder('(');
         sb.append(Mms.MESSAGE_ID);
@@ -364,30 +402,4 @@ public class PushReceiver extends BroadcastReceiver {
 
         return -1;
     }
-
-    private static boolean isDuplicateNotification(
-            Context context, NotificationInd nInd) {
-        byte[] rawLocation = nInd.getContentLocation();
-        if (rawLocation != null) {
-            String location = new String(rawLocation);
-            String selection = Mms.CONTENT_LOCATION + " = ?";
-            String[] selectionArgs = new String[] { location };
-            Cursor cursor = SqliteWrapper.query(
-                    context, context.getContentResolver(),
-                    Mms.CONTENT_URI, new String[] { Mms._ID },
-                    selection, selectionArgs, null);
-            if (cursor != null) {
-                try {
-                    if (cursor.getCount() > 0) {
-                        // We already received the same notification before.
-                        cursor.close();
-                        //return true;
-                    }
-                } finally {
-                    cursor.close();
-                }
-            }
-        }
-        return false;
-    }
 }
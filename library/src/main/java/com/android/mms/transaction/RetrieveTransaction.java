@@ -124,15 +124,23 @@ public class RetrieveTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        new Thread(this, "RetrieveTransaction").start();
+        execute(TransactionExecutor.LANE_DOWNLOAD, this, mUri);
     }
 
+    /**
+     * Downloads the message, then hands it to the parse, persist and ack stages
+     * on the {@link TransactionExecutor}. This doesn't overlap downloads: the
+     * TransactionService starts the next transaction only once {@link #finish}
+     * has run after the ack. The stages keep parsing and storing off the
+     * download lane and give the ack the priority of its own lane.
+     */
     public void run() {
 //        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
 //            DownloadRequest request = new DownloadRequest(mContentLocation, mUri, null, null, null);
 //            MmsNetworkManager manager = new MmsNetworkManager(mContext);
 //            request.execute(mContext, manager);
 //        } else {
+            final byte[] resp;
             try {
                 // Change the downloading state of the M-Notification.ind.
                 DownloadManager.init(mContext.getApplicationContext());
@@ -140,83 +148,141 @@ public class RetrieveTransaction extends Transaction implements Runnable {
                         mUri, DownloadManager.STATE_DOWNLOADING);
 
                 // Send GET request to MMSC and retrieve the response data.
-                byte[] resp = getPdu(mContentLocation);
-
-                // Parse M-Retrieve.conf
-                RetrieveConf retrieveConf = (RetrieveConf) new PduParser(resp).parse();
-                if (null == retrieveConf) {
-                    throw new MmsException("Invalid M-Retrieve.conf PDU.");
+                resp = getPdu(mContentLocation);
+            } catch (Throwable t) {
+                Log.e(TAG, "error", t);
+                if ("HTTP error: Not Found".equals(t.getMessage())) {
+                    // Delete the expired M-Notification.ind.
+                    SqliteWrapper.delete(mContext, mContext.getContentResolver(),
+                            mUri, null, null);
                 }
+                finish();
+                return;
+            }
 
-                Uri msgUri = null;
-                if (isDuplicateMessage(mContext, retrieveConf)) {
-                    // Mark this transaction as failed to prevent duplicate
-                    // notification to user.
-                    mTransactionState.setState(TransactionState.FAILED);
-                    mTransactionState.setContentUri(mUri);
-                } else {
-                    boolean group;
-                    int subId = Settings.DEFAULT_SUBSCRIPTION_ID;
+            TransactionExecutor.getInstance().executeOrRun(TransactionExecutor.LANE_PARSE,
+                    "RetrieveTransaction parse", new Runnable() {
+                @Override
+                public void run() {
+                    parse(resp);
+                }
+            });
+//        }
+    }
 
-                    try {
-                        group = com.klinker.android.send_message.Transaction.settings.getGroup();
-                        subId = com.klinker.android.send_message.Transaction.settings.getSubscriptionId();
-                    } catch (Exception e) {
-                        group = PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean("group_message", true);
-                    }
+    private void parse(final byte[] resp) {
+        final RetrieveConf retrieveConf;
+        try {
+            // Parse M-Retrieve.conf
+            retrieveConf = (RetrieveConf) new PduParser(resp).parse();
+            if (null == retrieveConf) {
+                throw new MmsException("Invalid M-Retrieve.conf PDU.");
+            }
+        } catch (Throwable t) {
+            Log.e(TAG, "error", t);
+            finish();
+            return;
+        }
 
-                    // Store M-Retrieve.conf into Inbox
-                    PduPersister persister = PduPersister.getPduPersister(mContext);
-                    msgUri = persister.persist(retrieveConf, Inbox.CONTENT_URI, true,
-                            group, null, subId);
+        TransactionExecutor.getInstance().executeOrRun(TransactionExecutor.LANE_RECEIVE,
+                "RetrieveTransaction persist", new Runnable() {
+            @Override
+            public void run() {
+                persist(retrieveConf, resp.length);
+            }
+        });
+    }
 
-                    // Use local time instead of PDU time
-                    ContentValues values = new ContentValues();
-                    values.put(Mms.DATE, System.currentTimeMillis() / 1000L);
-                    values.put(Mms.MESSAGE_SIZE, resp.length);
-                    try {
-                        // Store PDU time as sent time for received message
-                        values.put(Mms.DATE_SENT, retrieveConf.getDate());
-                    } catch (Exception e) {
-                    }
+    private void persist(final RetrieveConf retrieveConf, int size) {
+        boolean acknowledging = false;
+        try {
+            Uri msgUri = null;
+            if (isDuplicateMessage(mContext, retrieveConf)) {
+                // Mark this transaction as failed to prevent duplicate
+                // notification to user.
+                mTransactionState.setState(TransactionState.FAILED);
+                mTransactionState.setContentUri(mUri);
+            } else {
+                boolean group;
+                int subId = Settings.DEFAULT_SUBSCRIPTION_ID;
 
-                    SqliteWrapper.update(mContext, mContext.getContentResolver(),
-                            msgUri, values, null, null);
-
-                    // The M-Retrieve.conf has been successfully downloaded.
-                    mTransactionState.setState(TransactionState.SUCCESS);
-                    mTransactionState.setContentUri(msgUri);
-                    // Remember the location the message was downloaded from.
-                    // Since it's not critical, it won't fail the transaction.
-                    // Copy over the locked flag from the M-Notification.ind in case
-                    // the user locked the message before activating the download.
-                    updateContentLocation(mContext, msgUri, mContentLocation, mLocked);
+                try {
+                    group = com.klinker.android.send_message.Transaction.settings.getGroup();
+                    subId = com.klinker.android.send_message.Transaction.settings.getSubscriptionId();
+                } catch (Exception e) {
+                    group = PreferenceManager.getDefaultSharedPreferences(mContext).getBoolean("group_message", true);
                 }
 
-                // Delete the corresponding M-Notification.ind.
-                SqliteWrapper.delete(mContext, mContext.getContentResolver(),
-                        mUri, null, null);
+                // Store M-Retrieve.conf into Inbox
+                PduPersister persister = PduPersister.getPduPersister(mContext);
+                msgUri = persister.persist(retrieveConf, Inbox.CONTENT_URI, true,
+                        group, null, subId);
 
-                // Send ACK to the Proxy-Relay to indicate we have fetched the
-                // MM successfully.
-                // Don't mark the transaction as failed if we failed to send it.
-                sendAcknowledgeInd(retrieveConf);
-            } catch (Throwable t) {
-                Log.e(TAG, "error", t);
-                if ("HTTP error: Not Found".equals(t.getMessage())) {
-                    // Delete the expired M-Notification.ind.
-                    SqliteWrapper.delete(mContext, mContext.getContentResolver(),
-                            mUri, null, null);
+                // Use local time instead of PDU time
+                ContentValues values = new ContentValues();
+                values.put(Mms.DATE, System.currentTimeMillis() / 1000L);
+                values.put(Mms.MESSAGE_SIZE, size);
+                try {
+                    // Store PDU time as sent time for received message
+                    values.put(Mms.DATE_SENT, retrieveConf.getDate());
+                } catch (Exception e) {
                 }
-            } finally {
-                if (mTransactionState.getState() != TransactionState.SUCCESS) {
-                    mTransactionState.setState(TransactionState.FAILED);
-                    mTransactionState.setContentUri(mUri);
-                    Log.e(TAG, "Retrieval failed.");
+
+                SqliteWrapper.update(mContext, mContext.getContentResolver(),
+                        msgUri, values, null, null);
+
+                // The M-Retrieve.conf has been successfully downloaded.
+                mTransactionState.setState(TransactionState.SUCCESS);
+                mTransactionState.setContentUri(msgUri);
+                // Remember the location the message was downloaded from.
+                // Since it's not critical, it won't fail the transaction.
+                // Copy over the locked flag from the M-Notification.ind in case
+                // the user locked the message before activating the download.
+                updateContentLocation(mContext, msgUri, mContentLocation, mLocked);
+            }
+
+            // Delete the corresponding M-Notification.ind.
+            SqliteWrapper.delete(mContext, mContext.getContentResolver(),
+                    mUri, null, null);
+
+            // Send ACK to the Proxy-Relay to indicate we have fetched the
+            // MM successfully.
+            // Don't mark the transaction as failed if we failed to send it.
+            TransactionExecutor.getInstance().executeOrRun(TransactionExecutor.LANE_ACK,
+                    "RetrieveTransaction ack", new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sendAcknowledgeInd(retrieveConf);
+                    } catch (Throwable t) {
+                        Log.e(TAG, "error", t);
+                    } finally {
+                        finish();
+                    }
                 }
-                notifyObservers();
+            });
+            acknowledging = true;
+        } catch (Throwable t) {
+            Log.e(TAG, "error", t);
+        } finally {
+            if (!acknowledging) {
+                finish();
             }
-//        }
+        }
+    }
+
+    /**
+     * The message is stored and acknowledged, or has failed. Only now are the
+     * observers told, because once nothing is left to process the service gives
+     * up the MMS connection the ack is sent over.
+     */
+    private void finish() {
+        if (mTransactionState.getState() != TransactionState.SUCCESS) {
+            mTransactionState.setState(TransactionState.FAILED);
+            mTransactionState.setContentUri(mUri);
+            Log.e(TAG, "Retrieval failed.");
+        }
+        notifyObservers();
     }
 
     private static boolean isDuplicateMessage(Context context, RetrieveConf rc) {
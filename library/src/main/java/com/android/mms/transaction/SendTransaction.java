@@ -58,7 +58,6 @@ import java.util.Arrays;
 public class SendTransaction extends Transaction implements Runnable {
     private static final String TAG = LogTag.TAG;
 
-    private Thread mThread;
     public final Uri mSendReqURI;
 
     public SendTransaction(Context context,
@@ -77,8 +76,7 @@ public class SendTransaction extends Transaction implements Runnable {
      */
     @Override
     public void process() {
-        mThread = new Thread(this, "SendTransaction");
-        mThread.start();
+        execute(TransactionExecutor.LANE_SEND, this, mSendReqURI);
     }
 
     public void run() {
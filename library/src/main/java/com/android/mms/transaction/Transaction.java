@@ -42,6 +42,9 @@ public abstract class Transaction extends Observable {
     protected TransactionState mTransactionState;
     protected TransactionSettings mTransactionSettings;
 
+    private int mPriority = TransactionPriority.BACKGROUND;
+    private long mQueuedAt;
+
     /**
      * Identifies push requests.
      */
@@ -83,6 +86,24 @@ public abstract class Transaction extends Observable {
      */
     public abstract void process();
 
+    /**
+     * Runs the transaction on a lane of the shared {@link TransactionExecutor}.
+     * When the lane is full the transaction fails straight away, so the
+     * RetryScheduler tries it again later.
+     *
+     * @param lane the executor lane to queue on
+     * @param task the body of the transaction
+     * @param contentUri the message to mark for retry if the lane is full
+     */
+    protected void execute(int lane, Runnable task, Uri contentUri) {
+        String name = getClass().getSimpleName();
+        if (!TransactionExecutor.getInstance().execute(lane, name, task)) {
+            mTransactionState.setState(TransactionState.FAILED);
+            mTransactionState.setContentUri(contentUri);
+            notifyObservers();
+        }
+    }
+
     /**
      * Used to determine whether a transaction is equivalent to this instance.
      *
@@ -101,6 +122,28 @@ public abstract class Transaction extends Observable {
         return mServiceId;
     }
 
+    /**
+     * @return one of the {@link TransactionPriority} constants
+     */
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    /**
+     * @return when the transaction started waiting for the MMS APN, in elapsed realtime
+     */
+    public long getQueuedAt() {
+        return mQueuedAt;
+    }
+
+    public void setQueuedAt(long queuedAt) {
+        mQueuedAt = queuedAt;
+    }
+
     public TransactionSettings getConnectionSettings() {
         return mTransactionSettings;
     }
@@ -183,18 +226,13 @@ public abstract class Transaction extends Observable {
                     false, null, 0);
         }
 
-        return Utils.ensureRouteToMmsNetwork(mContext, mmscUrl, mTransactionSettings.getProxyAddress(), new Utils.Task<byte[]>() {
-            @Override
-            public byte[] run() throws IOException {
-                return HttpUtils.httpConnection(
-                        mContext, token,
-                        mmscUrl,
-                        pdu, HttpUtils.HTTP_POST_METHOD,
-                        mTransactionSettings.isProxySet(),
-                        mTransactionSettings.getProxyAddress(),
-                        mTransactionSettings.getProxyPort());
-            }
-        });
+        return Utils.httpConnection(
+                mContext, token,
+                mmscUrl,
+                pdu, HttpUtils.HTTP_POST_METHOD,
+                mTransactionSettings.isProxySet(),
+                mTransactionSettings.getProxyAddress(),
+                mTransactionSettings.getProxyPort());
     }
 
     /**
@@ -223,20 +261,15 @@ public abstract class Transaction extends Observable {
                     0);
         }
 
-        return Utils.ensureRouteToMmsNetwork(mContext, url, mTransactionSettings.getProxyAddress(), new Utils.Task<byte[]>() {
-            @Override
-            public byte[] run() throws IOException {
-                return HttpUtils.httpConnection(
-                        mContext,
-                        SendingProgressTokenManager.NO_TOKEN,
-                        url,
-                        null,
-                        HttpUtils.HTTP_GET_METHOD,
-                        mTransactionSettings.isProxySet(),
-                        mTransactionSettings.getProxyAddress(),
-                        mTransactionSettings.getProxyPort());
-            }
-        });
+        return Utils.httpConnection(
+                mContext,
+                SendingProgressTokenManager.NO_TOKEN,
+                url,
+                null,
+                HttpUtils.HTTP_GET_METHOD,
+                mTransactionSettings.isProxySet(),
+                mTransactionSettings.getProxyAddress(),
+                mTransactionSettings.getProxyPort());
     }
 
     public static boolean useWifi(Context context) {
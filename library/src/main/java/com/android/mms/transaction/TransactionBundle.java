@@ -62,6 +62,12 @@ public class TransactionBundle {
      */
     public static final String URI = "uri";
 
+    /**
+     * One of the {@link TransactionPriority} constants. Left out, the
+     * TransactionService picks one from the type of the transaction.
+     */
+    public static final String PRIORITY = "priority";
+
     /**
      * This is the real Bundle to be sent to the TransactionService upon calling
      * startService.
@@ -117,6 +123,10 @@ public class TransactionBundle {
                 settings.getProxyPort());
     }
 
+    public void setPriority(int priority) {
+        mBundle.putInt(PRIORITY, priority);
+    }
+
     public Bundle getBundle() {
         return mBundle;
     }
@@ -145,6 +155,13 @@ public class TransactionBundle {
         return mBundle.getInt(PROXY_PORT);
     }
 
+    /**
+     * @return the priority, or -1 if none was set
+     */
+    public int getPriority() {
+        return mBundle.getInt(PRIORITY, -1);
+    }
+
     @Override
     public String toString() {
         return "transactionType: " + getTransactionType() +
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2014 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import android.os.SystemClock;
+
+import com.android.mms.logs.LogTag;
+import com.klinker.android.logger.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The one place transactions and downloads get their threads from.
+ *
+ * Work is split into lanes. A free worker takes the oldest task from the most
+ * urgent lane, so acknowledgements go out before queued sends, and sends go
+ * before bulk downloads. Waiting tasks age: a task that has waited
+ * {@link #LANE_AGING} ranks like one from the next more urgent lane that was
+ * just queued, so a busy lane can hold the others back but not starve them.
+ * Each lane has a limit on how many tasks may wait in it. Anything over the
+ * limit is rejected, and the caller has to back off instead of adding another
+ * thread that fights over the MMS APN.
+ *
+ * Receiving a message runs as a pipeline over the lanes: download, parse,
+ * persist, then ack. Later stages outrank earlier ones, so a message that has
+ * already been downloaded finishes before the next download starts taking
+ * workers. Downloads only overlap on the Lollipop path, where
+ * MmsReceivedReceiver hands over messages as they arrive. The
+ * TransactionService runs one transaction at a time, so each retrieve goes
+ * through all of its stages before the next one starts.
+ */
+public class TransactionExecutor {
+    private static final String TAG = LogTag.TAG;
+
+    /**
+     * M-NotifyResp.ind, M-Acknowledge.ind and read reports: small and time sensitive.
+     */
+    public static final int LANE_ACK = 0;
+    /**
+     * Outgoing messages.
+     */
+    public static final int LANE_SEND = 1;
+    /**
+     * Persisting messages that have already been downloaded.
+     */
+    public static final int LANE_RECEIVE = 2;
+    /**
+     * Parsing downloaded messages.
+     */
+    public static final int LANE_PARSE = 3;
+    /**
+     * Notification handling and message downloads.
+     */
+    public static final int LANE_DOWNLOAD = 4;
+
+    private static final String[] LANE_NAMES = {
+            "ack", "send", "receive", "parse", "download"
+    };
+
+    // How many tasks may wait in each lane, not counting the ones running.
+    private static final int[] LANE_LIMITS = {
+            64, 32, 16, 16, 16
+    };
+
+    // Half of TransactionPriority.AGING_STEP on purpose: lane tasks take seconds,
+    // not the minutes a transaction can hold the APN for, and there are five
+    // lanes to four priorities, so the last lane still catches up sooner.
+    static final long LANE_AGING = 10 * 1000;
+
+    private static final int POOL_SIZE = 3;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static TransactionExecutor sInstance;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final Lane[] mLanes = new Lane[LANE_NAMES.length];
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private TransactionExecutor() {
+        for (int i = 0; i < mLanes.length; i++) {
+            mLanes[i] = new Lane();
+        }
+
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "TransactionExecutor #" + mCount.getAndIncrement());
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public static synchronized TransactionExecutor getInstance() {
+        if (sInstance == null) {
+            sInstance = new TransactionExecutor();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Queue a task on a lane.
+     *
+     * @param lane one of the LANE_ constants
+     * @param name the name the worker thread carries while running the task
+     * @param task the work
+     * @return false if the lane is full and the task was not queued
+     */
+    public boolean execute(int lane, String name, Runnable task) {
+        Lane l = mLanes[lane];
+        if (l.queued.incrementAndGet() > LANE_LIMITS[lane]) {
+            l.queued.decrementAndGet();
+            l.rejected.incrementAndGet();
+            Log.w(TAG, "TransactionExecutor: " + LANE_NAMES[lane] + " lane full, rejecting " + name);
+            return false;
+        }
+
+        l.submitted.incrementAndGet();
+        int depth = l.queued.get();
+        if (depth > l.maxQueued) {
+            // Only read for stats, a lost update here is harmless.
+            l.maxQueued = depth;
+        }
+
+        mExecutor.execute(new LaneTask(lane, mSequence.getAndIncrement(), name, task));
+        return true;
+    }
+
+    /**
+     * Queue a task on a lane, or run it on the calling thread if the lane is
+     * full. Pipeline stages hand their output on with this, so a backed up
+     * stage slows down the one feeding it instead of dropping work.
+     *
+     * @param lane one of the LANE_ constants
+     * @param name the name the worker thread carries while running the task
+     * @param task the work
+     */
+    public void executeOrRun(int lane, String name, Runnable task) {
+        if (!execute(lane, name, task)) {
+            task.run();
+        }
+    }
+
+    /**
+     * An {@link Executor} view of one lane, for AsyncTask.executeOnExecutor().
+     * It throws {@link RejectedExecutionException} when the lane is full.
+     */
+    public Executor forLane(final int lane, final String name) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                if (!TransactionExecutor.this.execute(lane, name, command)) {
+                    throw new RejectedExecutionException(LANE_NAMES[lane] + " lane full");
+                }
+            }
+        };
+    }
+
+    /**
+     * @return the number of tasks waiting in the lane
+     */
+    public int getQueuedCount(int lane) {
+        return mLanes[lane].queued.get();
+    }
+
+    /**
+     * @return the most tasks that have waited in the lane at once
+     */
+    public int getMaxQueuedCount(int lane) {
+        return mLanes[lane].maxQueued;
+    }
+
+    /**
+     * @return the number of tasks the lane has rejected because it was full
+     */
+    public long getRejectedCount(int lane) {
+        return mLanes[lane].rejected.get();
+    }
+
+    /**
+     * @return the number of tasks from the lane that have finished running
+     */
+    public long getCompletedCount(int lane) {
+        return mLanes[lane].completed.get();
+    }
+
+    /**
+     * @return the average time tasks waited in the lane before running, in milliseconds
+     */
+    public long getAverageWaitMillis(int lane) {
+        Lane l = mLanes[lane];
+        long started = l.started.get();
+        return started == 0 ? 0 : l.waitMillis.get() / started;
+    }
+
+    /**
+     * @return the average time tasks from the lane took to run, in milliseconds
+     */
+    public long getAverageRunMillis(int lane) {
+        Lane l = mLanes[lane];
+        long completed = l.completed.get();
+        return completed == 0 ? 0 : l.runMillis.get() / completed;
+    }
+
+    public String getStats() {
+        StringBuilder builder = new StringBuilder("TransactionExecutor:");
+        for (int i = 0; i < mLanes.length; i++) {
+            Lane l = mLanes[i];
+            builder.append(' ').append(LANE_NAMES[i])
+                    .append("[queued=").append(l.queued.get())
+                    .append(" max=").append(l.maxQueued)
+                    .append(" submitted=").append(l.submitted.get())
+                    .append(" rejected=").append(l.rejected.get())
+                    .append(" completed=").append(l.completed.get())
+                    .append(" failed=").append(l.failed.get())
+                    .append(" avgWait=").append(getAverageWaitMillis(i))
+                    .append(" avgRun=").append(getAverageRunMillis(i))
+                    .append(']');
+        }
+        return builder.toString();
+    }
+
+    private static class Lane {
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicLong submitted = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong started = new AtomicLong();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong failed = new AtomicLong();
+        final AtomicLong waitMillis = new AtomicLong();
+        final AtomicLong runMillis = new AtomicLong();
+        volatile int maxQueued;
+    }
+
+    private class LaneTask implements Runnable, Comparable<LaneTask> {
+        private final int mLane;
+        private final long mSequence;
+        private final String mName;
+        private final Runnable mTask;
+        private final long mQueuedAt = SystemClock.elapsedRealtime();
+        // Fixed when queued, so the order in the queue never changes underneath it
+        private final long mDueTime;
+
+        LaneTask(int lane, long sequence, String name, Runnable task) {
+            mLane = lane;
+            mDueTime = mQueuedAt + lane * LANE_AGING;
+            mSequence = sequence;
+            mName = name;
+            mTask = task;
+        }
+
+        @Override
+        public void run() {
+            Lane l = mLanes[mLane];
+            l.queued.decrementAndGet();
+            l.started.incrementAndGet();
+            long start = SystemClock.elapsedRealtime();
+            l.waitMillis.addAndGet(start - mQueuedAt);
+
+            Thread thread = Thread.currentThread();
+            String threadName = thread.getName();
+            thread.setName(mName);
+            try {
+                mTask.run();
+            } catch (RuntimeException e) {
+                l.failed.incrementAndGet();
+                Log.e(TAG, "TransactionExecutor: " + mName + " failed", e);
+            } finally {
+                thread.setName(threadName);
+                l.runMillis.addAndGet(SystemClock.elapsedRealtime() - start);
+                l.completed.incrementAndGet();
+            }
+        }
+
+        @Override
+        public int compareTo(LaneTask another) {
+            if (mDueTime != another.mDueTime) {
+                return mDueTime < another.mDueTime ? -1 : 1;
+            }
+            if (mLane != another.mLane) {
+                return mLane < another.mLane ? -1 : 1;
+            }
+            return mSequence < another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+}
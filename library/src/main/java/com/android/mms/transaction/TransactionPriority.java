@@ -0,0 +1,92 @@
+/*
+ * Copyright 2014 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.transaction;
+
+import java.util.HashMap;
+
+/**
+ * How urgent a transaction is, which decides the order in which the
+ * {@link TransactionService} starts the transactions waiting for the MMS APN.
+ *
+ * Waiting counts as well: a transaction that has waited {@link #AGING_STEP}
+ * ranks like one a level more urgent that was queued just now, so a large
+ * download is held back by a steady stream of sends, but never forever.
+ *
+ * Senders can ask for a priority for a message with {@link #put}, before
+ * starting the service, the same way they hand over their progress token.
+ */
+public class TransactionPriority {
+    /**
+     * Messages the user just sent and is waiting for.
+     */
+    public static final int INTERACTIVE = 0;
+    /**
+     * M-NotifyResp.ind, M-Acknowledge.ind and read reports.
+     */
+    public static final int ACK = 1;
+    /**
+     * Downloads up to {@link #LARGE_DOWNLOAD} bytes.
+     */
+    public static final int DOWNLOAD = 2;
+    /**
+     * Larger downloads, and anything being retried.
+     */
+    public static final int BACKGROUND = 3;
+
+    // Longer than TransactionExecutor.LANE_AGING, as a transaction holds the
+    // MMS APN for much longer than a lane task holds a worker
+    public static final long AGING_STEP = 20 * 1000;
+
+    public static final long LARGE_DOWNLOAD = 300 * 1024;
+
+    private static final HashMap<Long, Integer> PRIORITIES = new HashMap<Long, Integer>();
+
+    private TransactionPriority() {
+    }
+
+    /**
+     * @param size the size of the message from its notification, 0 if not known
+     * @return the priority of downloading it
+     */
+    public static int forDownload(long size) {
+        return size > LARGE_DOWNLOAD ? BACKGROUND : DOWNLOAD;
+    }
+
+    /**
+     * Transactions with the earliest value go first.
+     *
+     * @param priority the priority of the transaction
+     * @param queuedAt when it started waiting, in elapsed realtime
+     * @return the time the transaction is due
+     */
+    public static long getDueTime(int priority, long queuedAt) {
+        return queuedAt + priority * AGING_STEP;
+    }
+
+    synchronized public static int get(long msgId, int defaultPriority) {
+        Integer priority = PRIORITIES.get(msgId);
+        return priority != null ? priority : defaultPriority;
+    }
+
+    synchronized public static void put(long msgId, int priority) {
+        PRIORITIES.put(msgId, priority);
+    }
+
+    synchronized public static void remove(long msgId) {
+        PRIORITIES.remove(msgId);
+    }
+}
@@ -35,6 +35,7 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.Telephony.Mms;
 import android.provider.Telephony.MmsSms;
@@ -311,6 +312,8 @@ public class TransactionService extends Service implements Observer {
                     int columnIndexOfMsgId = cursor.getColumnIndexOrThrow(PendingMessages.MSG_ID);
                     int columnIndexOfMsgType = cursor.getColumnIndexOrThrow(
                             PendingMessages.MSG_TYPE);
+                    int columnIndexOfRetryIndex = cursor.getColumnIndexOrThrow(
+                            PendingMessages.RETRY_INDEX);
 
                     while (cursor.moveToNext()) {
                         int msgType = cursor.getInt(columnIndexOfMsgType);
@@ -427,6 +430,10 @@ public class TransactionService extends Service implements Observer {
                                         cursor.getLong(columnIndexOfMsgId));
                                 TransactionBundle args = new TransactionBundle(
                                         transactionType, uri.toString());
+                                if (cursor.getInt(columnIndexOfRetryIndex) > 0) {
+                                    // Retries make way for anything new
+                                    args.setPriority(TransactionPriority.BACKGROUND);
+                                }
                                 // FIXME: We use the same startId for all MMs.
                                 if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                                     Log.v(TAG, "onNewIntent: launchTransaction uri=" + uri);
@@ -467,6 +474,84 @@ public class TransactionService extends Service implements Observer {
         }
     }
 
+    /**
+     * Pick the priority of a new transaction, unless its bundle asks for one.
+     */
+    private int getPriority(TransactionBundle args) {
+        int priority = args.getPriority();
+        if (priority >= 0) {
+            return priority;
+        }
+
+        switch (args.getTransactionType()) {
+            case Transaction.SEND_TRANSACTION:
+                return TransactionPriority.get(ContentUris.parseId(Uri.parse(args.getUri())),
+                        TransactionPriority.INTERACTIVE);
+            case Transaction.READREC_TRANSACTION:
+                return TransactionPriority.ACK;
+            case Transaction.NOTIFICATION_TRANSACTION:
+                if (!NotificationTransaction.allowAutoDownload(this)) {
+                    // Only sends a deferred M-NotifyResp.ind
+                    return TransactionPriority.ACK;
+                }
+                return TransactionPriority.forDownload(getMessageSize(args.getUri()));
+            default:
+                return TransactionPriority.forDownload(getMessageSize(args.getUri()));
+        }
+    }
+
+    /**
+     * @return the size the notification of a message announced, 0 if not known
+     */
+    private long getMessageSize(String uri) {
+        if (uri == null) {
+            return 0;
+        }
+        Cursor cursor = SqliteWrapper.query(this, getContentResolver(), Uri.parse(uri),
+                new String[] { Mms.MESSAGE_SIZE }, null, null, null);
+        if (cursor == null) {
+            return 0;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Queue a transaction until the MMS APN is free. Callers hold mProcessing.
+     *
+     * A transaction that is queued again, after being taken while another one
+     * held the APN, keeps the time it was first queued, so it doesn't lose
+     * what it has aged.
+     */
+    private void addPending(Transaction transaction) {
+        if (transaction.getQueuedAt() == 0) {
+            transaction.setQueuedAt(SystemClock.elapsedRealtime());
+        }
+        mPending.add(transaction);
+    }
+
+    /**
+     * Take the pending transaction that is due first, see {@link TransactionPriority}.
+     * Callers hold mProcessing.
+     */
+    private Transaction takePending() {
+        int next = 0;
+        long nextDue = Long.MAX_VALUE;
+        for (int i = 0; i < mPending.size(); i++) {
+            Transaction t = mPending.get(i);
+            long due = TransactionPriority.getDueTime(t.getPriority(), t.getQueuedAt());
+            // Ties go to the one queued first
+            if (due < nextDue) {
+                next = i;
+                nextDue = due;
+            }
+        }
+        return mPending.remove(next);
+    }
+
     private static boolean isTransientFailure(int type) {
         return type > MmsSms.NO_ERROR && type < MmsSms.ERR_TYPE_GENERIC_PERMANENT;
     }
@@ -558,6 +643,11 @@ public class TransactionService extends Service implements Observer {
             Log.v(TAG, "update transaction " + serviceId);
         }
 
+        if (transaction instanceof SendTransaction) {
+            TransactionPriority.remove(
+                    ContentUris.parseId(((SendTransaction) transaction).mSendReqURI));
+        }
+
         try {
             synchronized (mProcessing) {
                 mProcessing.remove(transaction);
@@ -881,6 +971,7 @@ public class TransactionService extends Service implements Observer {
                                 return;
                         }
 
+                        transaction.setPriority(getPriority(args));
                         if (!processTransaction(transaction)) {
                             transaction = null;
                             return;
@@ -958,7 +1049,7 @@ public class TransactionService extends Service implements Observer {
             int numProcessTransaction = 0;
             synchronized (mProcessing) {
                 if (mPending.size() != 0) {
-                    transaction = mPending.remove(0);
+                    transaction = takePending();
                 }
                 numProcessTransaction = mProcessing.size();
             }
@@ -1040,7 +1131,7 @@ public class TransactionService extends Service implements Observer {
                 }
                 int connectivityResult = beginMmsConnectivity();
                 if (connectivityResult == 1) {
-                    mPending.add(transaction);
+                    addPending(transaction);
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                         Log.v(TAG, "processTransaction: connResult=APN_REQUEST_STARTED, " +
                                 "defer transaction pending MMS connectivity");
@@ -1056,7 +1147,7 @@ public class TransactionService extends Service implements Observer {
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
                         Log.v(TAG, "Adding transaction to 'mPending' list: " + transaction);
                     }
-                    mPending.add(transaction);
+                    addPending(transaction);
                     return true;
                 } else {
                     if (Log.isLoggable(LogTag.TRANSACTION, Log.VERBOSE)) {
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2014 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import com.android.mms.logs.LogTag;
+import com.klinker.android.logger.Log;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timings, byte counts and outcomes for each stage of sending and downloading
+ * a message.
+ *
+ * Every stage keeps a running histogram that can be read at any time with
+ * {@link #getStats(int)} or {@link #dump()}. Apps that want the raw events,
+ * for example to feed their own metrics library, can register a
+ * {@link StageListener} the same way they register with {@link ExternalLogger}.
+ *
+ * Typical use:
+ * <pre>
+ *     long start = Instrumentation.start();
+ *     ... do the work ...
+ *     Instrumentation.record(Instrumentation.STAGE_COMPOSE, start, bytes, outcome);
+ * </pre>
+ */
+public class Instrumentation {
+
+    /** Waiting for the MMS network to come up. */
+    public static final int STAGE_ACQUIRE_NETWORK = 0;
+    /** Looking up the APN to use. */
+    public static final int STAGE_APN = 1;
+    /** Encoding a pdu with PduComposer. */
+    public static final int STAGE_COMPOSE = 2;
+    /** One HTTP round trip to the MMSC. Outcome is the HTTP status, 0 if there was none. */
+    public static final int STAGE_HTTP = 3;
+    /** Decoding a pdu with PduParser. */
+    public static final int STAGE_PARSE = 4;
+    /** Writing a pdu to the provider with PduPersister. */
+    public static final int STAGE_PERSIST = 5;
+    /** A whole MmsRequest, across retries. Outcome is the SmsManager MMS_ERROR_ code on failure. */
+    public static final int STAGE_REQUEST = 6;
+
+    private static final String[] STAGE_NAMES = {
+            "acquire_network", "apn", "compose", "http", "parse", "persist", "request"
+    };
+
+    public static final int OUTCOME_SUCCESS = 0;
+    public static final int OUTCOME_FAILURE = -1;
+
+    public interface StageListener {
+        /**
+         * Called every time a stage finishes.
+         *
+         * @param stage one of the STAGE_ constants
+         * @param durationNanos how long the stage took
+         * @param bytes the bytes the stage handled, 0 if not applicable
+         * @param outcome OUTCOME_SUCCESS, OUTCOME_FAILURE or a stage specific code
+         */
+        void onStage(int stage, long durationNanos, long bytes, int outcome);
+
+        /**
+         * Called when a stage is about to be tried again.
+         *
+         * @param stage one of the STAGE_ constants
+         * @param attempt the attempt that is starting, 1 for the first retry
+         */
+        void onRetry(int stage, int attempt);
+    }
+
+    private static final String TAG = LogTag.TAG;
+
+    private static final CopyOnWriteArrayList<StageListener> sListeners =
+            new CopyOnWriteArrayList<StageListener>();
+
+    private static final StageStats[] sStats = new StageStats[STAGE_NAMES.length];
+
+    static {
+        for (int i = 0; i < sStats.length; i++) {
+            sStats[i] = new StageStats(STAGE_NAMES[i]);
+        }
+    }
+
+    private Instrumentation() {}
+
+    public static void addListener(StageListener listener) {
+        sListeners.add(listener);
+    }
+
+    public static void removeListener(StageListener listener) {
+        sListeners.remove(listener);
+    }
+
+    /**
+     * @return the start time to pass to {@link #record(int, long, long, int)}
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record a finished stage.
+     *
+     * @param stage one of the STAGE_ constants
+     * @param startNanos the value {@link #start()} returned when the stage began
+     * @param bytes the bytes the stage handled, 0 if not applicable
+     * @param outcome OUTCOME_SUCCESS, OUTCOME_FAILURE or a stage specific code
+     */
+    public static void record(int stage, long startNanos, long bytes, int outcome) {
+        long duration = System.nanoTime() - startNanos;
+        sStats[stage].add(duration, bytes, outcome);
+
+        for (StageListener listener : sListeners) {
+            // Listeners run on the send and download threads; one that throws
+            // mustn't fail the message it is watching
+            try {
+                listener.onStage(stage, duration, bytes, outcome);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Instrumentation: listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Record that a stage is being retried.
+     */
+    public static void retry(int stage, int attempt) {
+        sStats[stage].mRetries.incrementAndGet();
+
+        for (StageListener listener : sListeners) {
+            try {
+                listener.onRetry(stage, attempt);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Instrumentation: listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * @return the aggregated numbers for one of the STAGE_ constants
+     */
+    public static StageStats getStats(int stage) {
+        return sStats[stage];
+    }
+
+    public static String getStageName(int stage) {
+        return STAGE_NAMES[stage];
+    }
+
+    /**
+     * Clear all aggregated numbers, e.g. after exporting them.
+     */
+    public static void reset() {
+        for (StageStats stats : sStats) {
+            stats.reset();
+        }
+    }
+
+    /**
+     * @return every stage's numbers, one line each
+     */
+    public static String dump() {
+        StringBuilder builder = new StringBuilder();
+        for (StageStats stats : sStats) {
+            builder.append(stats).append('\n');
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Running totals and a latency histogram for one stage. Durations fall into
+     * power of two buckets of microseconds, so recording is a few atomic adds
+     * and percentiles are accurate to within a factor of two.
+     */
+    public static class StageStats {
+        /** Bucket i holds durations below 2^i microseconds, the last one everything else. */
+        public static final int BUCKETS = 32;
+
+        private final String mName;
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mTotalNanos = new AtomicLong();
+        private final AtomicLong mMaxNanos = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+        private final AtomicLong mRetries = new AtomicLong();
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final ConcurrentHashMap<Integer, AtomicLong> mOutcomes =
+                new ConcurrentHashMap<Integer, AtomicLong>();
+
+        StageStats(String name) {
+            mName = name;
+        }
+
+        void add(long durationNanos, long bytes, int outcome) {
+            mCount.incrementAndGet();
+            mTotalNanos.addAndGet(durationNanos);
+            mBytes.addAndGet(bytes);
+            mBuckets.incrementAndGet(bucketOf(durationNanos));
+
+            long max = mMaxNanos.get();
+            while (durationNanos > max && !mMaxNanos.compareAndSet(max, durationNanos)) {
+                max = mMaxNanos.get();
+            }
+
+            AtomicLong count = mOutcomes.get(outcome);
+            if (count == null) {
+                AtomicLong created = new AtomicLong();
+                count = mOutcomes.putIfAbsent(outcome, created);
+                if (count == null) {
+                    count = created;
+                }
+            }
+            count.incrementAndGet();
+        }
+
+        void reset() {
+            mCount.set(0);
+            mTotalNanos.set(0);
+            mMaxNanos.set(0);
+            mBytes.set(0);
+            mRetries.set(0);
+            for (int i = 0; i < BUCKETS; i++) {
+                mBuckets.set(i, 0);
+            }
+            mOutcomes.clear();
+        }
+
+        private static int bucketOf(long durationNanos) {
+            long micros = durationNanos / 1000;
+            int bucket = 64 - Long.numberOfLeadingZeros(micros);
+            return bucket < BUCKETS ? bucket : BUCKETS - 1;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getTotalNanos() {
+            return mTotalNanos.get();
+        }
+
+        public long getMaxNanos() {
+            return mMaxNanos.get();
+        }
+
+        public long getBytes() {
+            return mBytes.get();
+        }
+
+        public long getRetries() {
+            return mRetries.get();
+        }
+
+        /**
+         * @return the number of durations that fell into the bucket
+         */
+        public long getBucketCount(int bucket) {
+            return mBuckets.get(bucket);
+        }
+
+        /**
+         * @return how often each outcome was recorded
+         */
+        public Map<Integer, Long> getOutcomes() {
+            Map<Integer, Long> outcomes = new TreeMap<Integer, Long>();
+            for (Map.Entry<Integer, AtomicLong> entry : mOutcomes.entrySet()) {
+                outcomes.put(entry.getKey(), entry.getValue().get());
+            }
+            return outcomes;
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         * @return the upper bound of the bucket holding the percentile, in microseconds
+         */
+        public long getPercentileMicros(double percentile) {
+            long count = 0;
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = mBuckets.get(i);
+                count += buckets[i];
+            }
+            if (count == 0) {
+                return 0;
+            }
+
+            long target = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= target) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+
+        @Override
+        public String toString() {
+            long count = mCount.get();
+            return mName + ": count=" + count
+                    + " avgMs=" + (count == 0 ? 0 : mTotalNanos.get() / count / 1000000)
+                    + " p50Us<" + getPercentileMicros(50)
+                    + " p95Us<" + getPercentileMicros(95)
+                    + " maxMs=" + mMaxNanos.get() / 1000000
+                    + " bytes=" + mBytes.get()
+                    + " retries=" + mRetries.get()
+                    + " outcomes=" + getOutcomes();
+        }
+    }
+}
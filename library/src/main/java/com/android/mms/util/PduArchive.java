@@ -0,0 +1,303 @@
+/*
+ * Copyright 2014 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The file format used to move many MMS between devices at once, see
+ * {@link PduArchiveExporter} and {@link PduArchiveImporter}.
+ *
+ * <pre>
+ * archive = header record* index trailer
+ * header  = magic "MMSA" (4) | version (1)
+ * record  = length (4) | msg_box (1) | flags (1) | date (8) | id-length (2) | m_id | pdu
+ * index   = count (4) | count * (offset (8) | id-length (2) | m_id)
+ * trailer = index offset (8) | magic "MMSI" (4)
+ * </pre>
+ *
+ * The length of a record counts everything after the length itself, and the
+ * pdu is the composed M-Send.req or M-Retrieve.conf, so records can be read
+ * one by one without holding the archive in memory. The index is only written
+ * when the archive is complete. An archive without one, e.g. because the
+ * export was interrupted, can still be read up to its last whole record.
+ */
+public class PduArchive {
+    private static final int HEADER_MAGIC = 0x4d4d5341; // "MMSA"
+    private static final int TRAILER_MAGIC = 0x4d4d5349; // "MMSI"
+    private static final int VERSION = 1;
+
+    static final int HEADER_SIZE = 5;
+    private static final int TRAILER_SIZE = 12;
+
+    // Sanity limit, well above any carrier's maximum message size
+    private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    public static final int FLAG_READ = 0x01;
+    public static final int FLAG_SEEN = 0x02;
+
+    private PduArchive() {
+    }
+
+    /**
+     * One message in the archive.
+     */
+    public static final class Record {
+        /** The Mms.MESSAGE_BOX_* the message was in. */
+        public final int msgBox;
+        /** {@link #FLAG_READ} and {@link #FLAG_SEEN}. */
+        public final int flags;
+        /** The date of the message, in seconds like the provider keeps it. */
+        public final long date;
+        /** The Message-ID, or an empty string if the message doesn't have one. */
+        public final String messageId;
+        /** The composed PDU. */
+        public final byte[] pdu;
+
+        public Record(int msgBox, int flags, long date, String messageId, byte[] pdu) {
+            this.msgBox = msgBox;
+            this.flags = flags;
+            this.date = date;
+            this.messageId = messageId == null ? "" : messageId;
+            this.pdu = pdu;
+        }
+    }
+
+    /**
+     * Where a record starts in the archive, and which message it holds.
+     */
+    public static final class IndexEntry {
+        public final long offset;
+        public final String messageId;
+
+        IndexEntry(long offset, String messageId) {
+            this.offset = offset;
+            this.messageId = messageId;
+        }
+    }
+
+    /**
+     * Writes records one by one and the index once it is closed.
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream mOut;
+        private final List<IndexEntry> mIndex = new ArrayList<IndexEntry>();
+        private long mPosition;
+
+        public Writer(File file) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file),
+                    64 * 1024));
+            mOut.writeInt(HEADER_MAGIC);
+            mOut.writeByte(VERSION);
+            mPosition = HEADER_SIZE;
+        }
+
+        public void write(Record record) throws IOException {
+            final byte[] id = record.messageId.getBytes("ISO-8859-1");
+            final int length = 1 + 1 + 8 + 2 + id.length + record.pdu.length;
+
+            mIndex.add(new IndexEntry(mPosition, record.messageId));
+            mOut.writeInt(length);
+            mOut.writeByte(record.msgBox);
+            mOut.writeByte(record.flags);
+            mOut.writeLong(record.date);
+            mOut.writeShort(id.length);
+            mOut.write(id);
+            mOut.write(record.pdu);
+            mPosition += 4 + length;
+        }
+
+        /**
+         * @return how many records have been written
+         */
+        public int getCount() {
+            return mIndex.size();
+        }
+
+        /**
+         * @return how many bytes have been written
+         */
+        public long getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                final long indexOffset = mPosition;
+                mOut.writeInt(mIndex.size());
+                for (IndexEntry entry : mIndex) {
+                    final byte[] id = entry.messageId.getBytes("ISO-8859-1");
+                    mOut.writeLong(entry.offset);
+                    mOut.writeShort(id.length);
+                    mOut.write(id);
+                }
+                mOut.writeLong(indexOffset);
+                mOut.writeInt(TRAILER_MAGIC);
+            } finally {
+                mOut.close();
+            }
+        }
+    }
+
+    /**
+     * Reads records one by one, optionally starting in the middle of the archive.
+     */
+    public static class Reader implements Closeable {
+        private final DataInputStream mIn;
+        private final long mEnd;
+        private long mPosition;
+
+        /**
+         * @param file the archive
+         * @param offset where to start reading, a value of {@link #getPosition()}
+         *               from earlier, or 0 to start at the first record
+         */
+        public Reader(File file, long offset) throws IOException {
+            final long indexOffset = readIndexOffset(file);
+            mEnd = indexOffset > 0 ? indexOffset : file.length();
+
+            final FileInputStream in = new FileInputStream(file);
+            try {
+                final DataInputStream header = new DataInputStream(in);
+                if (header.readInt() != HEADER_MAGIC || header.readUnsignedByte() != VERSION) {
+                    throw new IOException("Not an MMS archive: " + file);
+                }
+                mPosition = HEADER_SIZE;
+                if (offset > HEADER_SIZE) {
+                    in.getChannel().position(offset);
+                    mPosition = offset;
+                }
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            mIn = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        }
+
+        /**
+         * @return the next record, or null after the last one
+         */
+        public Record next() throws IOException {
+            if (mPosition + 4 > mEnd) {
+                return null;
+            }
+
+            try {
+                final int length = mIn.readInt();
+                if (length < 12 || length > MAX_RECORD_SIZE || mPosition + 4 + length > mEnd) {
+                    // Cut off in the middle of a record
+                    mPosition = mEnd;
+                    return null;
+                }
+                final int msgBox = mIn.readUnsignedByte();
+                final int flags = mIn.readUnsignedByte();
+                final long date = mIn.readLong();
+                final int idLength = mIn.readUnsignedShort();
+                if (idLength > length - 12) {
+                    throw new IOException("Corrupt record at " + mPosition);
+                }
+                final byte[] id = new byte[idLength];
+                mIn.readFully(id);
+                final byte[] pdu = new byte[length - 12 - id.length];
+                mIn.readFully(pdu);
+
+                mPosition += 4 + length;
+                return new Record(msgBox, flags, date, new String(id, "ISO-8859-1"), pdu);
+            } catch (EOFException e) {
+                mPosition = mEnd;
+                return null;
+            }
+        }
+
+        /**
+         * @return where the next record starts
+         */
+        public long getPosition() {
+            return mPosition;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+
+    /**
+     * Read the index of an archive without reading the records.
+     *
+     * @return the index, or null if the archive is incomplete
+     */
+    public static List<IndexEntry> readIndex(File file) throws IOException {
+        final long indexOffset = readIndexOffset(file);
+        if (indexOffset <= 0) {
+            return null;
+        }
+
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            in.getChannel().position(indexOffset);
+            final DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+            final int count = data.readInt();
+            final List<IndexEntry> index = new ArrayList<IndexEntry>(count);
+            for (int i = 0; i < count; i++) {
+                final long offset = data.readLong();
+                final byte[] id = new byte[data.readUnsignedShort()];
+                data.readFully(id);
+                index.add(new IndexEntry(offset, new String(id, "ISO-8859-1")));
+            }
+            return index;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return where the index starts, or -1 if the archive has no trailer
+     */
+    private static long readIndexOffset(File file) throws IOException {
+        final long length = file.length();
+        if (length < HEADER_SIZE + TRAILER_SIZE) {
+            return -1;
+        }
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            raf.seek(length - TRAILER_SIZE);
+            final long indexOffset = raf.readLong();
+            if (raf.readInt() != TRAILER_MAGIC
+                    || indexOffset < HEADER_SIZE || indexOffset > length - TRAILER_SIZE) {
+                return -1;
+            }
+            return indexOffset;
+        } finally {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright 2014 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+
+import com.android.mms.logs.LogTag;
+import com.google.android.mms.MmsException;
+import com.google.android.mms.pdu_alt.GenericPdu;
+import com.google.android.mms.pdu_alt.PduComposer;
+import com.google.android.mms.pdu_alt.PduHeaders;
+import com.google.android.mms.pdu_alt.PduPersister;
+import com.google.android.mms.pdu_alt.SendReq;
+import com.google.android.mms.util_alt.PduCache;
+import com.google.android.mms.util_alt.SqliteWrapper;
+import com.klinker.android.logger.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes every sent and received MMS of a provider into a {@link PduArchive}.
+ *
+ * Messages are loaded with {@link PduPersister} and composed with
+ * {@link PduComposer} on a few threads, and written in the order of their id.
+ * Messages that can't be composed, e.g. drafts without recipients, are
+ * counted as failed and left out. Everything goes through the Context that is
+ * passed in, so a Context with a stand-in provider can be used as well.
+ */
+public class PduArchiveExporter {
+    private static final String TAG = LogTag.TAG;
+
+    private static final String[] PROJECTION = new String[] {
+            Mms._ID, Mms.MESSAGE_BOX, Mms.READ, Mms.SEEN, Mms.DATE, Mms.MESSAGE_ID
+    };
+    private static final int COLUMN_ID = 0;
+    private static final int COLUMN_MESSAGE_BOX = 1;
+    private static final int COLUMN_READ = 2;
+    private static final int COLUMN_SEEN = 3;
+    private static final int COLUMN_DATE = 4;
+    private static final int COLUMN_MESSAGE_ID = 5;
+
+    // Only these carry a body, notifications that were never downloaded don't.
+    private static final String SELECTION = Mms.MESSAGE_TYPE + " IN ("
+            + PduHeaders.MESSAGE_TYPE_SEND_REQ + "," + PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF + ")";
+
+    private final Context mContext;
+    private int mThreads = 4;
+
+    public PduArchiveExporter(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Set how many messages are loaded and composed at the same time.
+     */
+    public void setThreads(int threads) {
+        mThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Write the archive. An existing file is replaced.
+     *
+     * @param file where to write the archive
+     * @param listener told about the progress every few messages, may be null
+     * @return how the export went
+     * @throws IOException if the archive couldn't be written
+     */
+    public PduArchiveStats export(File file, PduArchiveStats.Listener listener)
+            throws IOException {
+        final PduArchiveStats stats = new PduArchiveStats();
+        final Cursor cursor = SqliteWrapper.query(mContext, mContext.getContentResolver(),
+                Mms.CONTENT_URI, PROJECTION, SELECTION, null, Mms._ID);
+        if (cursor == null) {
+            throw new IOException("Couldn't query " + Mms.CONTENT_URI);
+        }
+
+        final PduPersister persister = PduPersister.getPduPersister(mContext);
+        final ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        final PduArchive.Writer writer = new PduArchive.Writer(file);
+        try {
+            // Keep a few messages in flight but write them in order.
+            final ArrayDeque<Future<PduArchive.Record>> pending =
+                    new ArrayDeque<Future<PduArchive.Record>>();
+            while (cursor.moveToNext()) {
+                pending.add(executor.submit(new ExportTask(persister,
+                        ContentUris.withAppendedId(Mms.CONTENT_URI, cursor.getLong(COLUMN_ID)),
+                        cursor.getInt(COLUMN_MESSAGE_BOX),
+                        (cursor.getInt(COLUMN_READ) != 0 ? PduArchive.FLAG_READ : 0)
+                                | (cursor.getInt(COLUMN_SEEN) != 0 ? PduArchive.FLAG_SEEN : 0),
+                        cursor.getLong(COLUMN_DATE),
+                        cursor.getString(COLUMN_MESSAGE_ID))));
+                if (pending.size() >= mThreads * 2) {
+                    write(writer, pending.poll(), stats, listener);
+                }
+            }
+            while (!pending.isEmpty()) {
+                write(writer, pending.poll(), stats, listener);
+            }
+        } finally {
+            executor.shutdownNow();
+            cursor.close();
+            writer.close();
+        }
+
+        stats.finish();
+        Log.i(TAG, "export: " + stats);
+        if (listener != null) {
+            listener.onProgress(stats);
+        }
+        return stats;
+    }
+
+    private static void write(PduArchive.Writer writer, Future<PduArchive.Record> future,
+            PduArchiveStats stats, PduArchiveStats.Listener listener) throws IOException {
+        PduArchive.Record record = null;
+        try {
+            record = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        } catch (ExecutionException e) {
+            Log.e(TAG, "export: couldn't compose message", e.getCause());
+        }
+
+        if (record == null) {
+            stats.addFailed();
+        } else {
+            writer.write(record);
+            stats.addDone(record.pdu.length);
+        }
+        stats.report(listener);
+    }
+
+    private class ExportTask implements Callable<PduArchive.Record> {
+        private final PduPersister mPersister;
+        private final Uri mUri;
+        private final int mMsgBox;
+        private final int mFlags;
+        private final long mDate;
+        private final String mMessageId;
+
+        ExportTask(PduPersister persister, Uri uri, int msgBox, int flags, long date,
+                String messageId) {
+            mPersister = persister;
+            mUri = uri;
+            mMsgBox = msgBox;
+            mFlags = flags;
+            mDate = date;
+            mMessageId = messageId;
+        }
+
+        @Override
+        public PduArchive.Record call() throws MmsException {
+            try {
+                final GenericPdu pdu = mPersister.load(mUri);
+                if (pdu instanceof SendReq && ((SendReq) pdu).getTransactionId() == null) {
+                    // Needed to compose a Send.req, although nobody will look at it
+                    ((SendReq) pdu).setTransactionId(
+                            ("T" + Long.toHexString(ContentUris.parseId(mUri))).getBytes());
+                }
+
+                final byte[] data = new PduComposer(mContext, pdu).make();
+                if (data == null) {
+                    Log.w(TAG, "export: couldn't compose " + mUri);
+                    return null;
+                }
+                return new PduArchive.Record(mMsgBox, mFlags, mDate, mMessageId, data);
+            } finally {
+                // Nobody is going to look at these again soon
+                PduCache.getInstance().purge(mUri);
+            }
+        }
+    }
+}
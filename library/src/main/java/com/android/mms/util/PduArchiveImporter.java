@@ -0,0 +1,416 @@
+/*
+ * Copyright 2014 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+
+import com.android.mms.logs.LogTag;
+import com.google.android.mms.MmsException;
+import com.google.android.mms.pdu_alt.GenericPdu;
+import com.google.android.mms.pdu_alt.MultimediaMessagePdu;
+import com.google.android.mms.pdu_alt.PduHeaders;
+import com.google.android.mms.pdu_alt.PduParser;
+import com.google.android.mms.pdu_alt.PduPersister;
+import com.google.android.mms.pdu_alt.SendReq;
+import com.google.android.mms.util_alt.PduCache;
+import com.google.android.mms.util_alt.SqliteWrapper;
+import com.klinker.android.logger.Log;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Adds the messages of a {@link PduArchive} to a provider.
+ *
+ * Records are read in batches. The messages of a batch are parsed with
+ * {@link PduParser} and persisted with {@link PduPersister} on a few threads,
+ * then their read state and Message-ID are written with one applyBatch. After
+ * each batch, the position in the archive is saved next to it, so an import
+ * that was stopped picks up after the last finished batch when it is started
+ * again.
+ *
+ * Messages whose Message-ID is already in the provider, or earlier in the
+ * archive, are skipped. A Send.req is also recognized by its Transaction-ID and
+ * date, because its Message-ID is only written with the batch, so the batch a
+ * stopped import was working on isn't added a second time when it is started
+ * again. Its Send.reqs get their Message-ID and read state then; its received
+ * messages keep showing up as unread.
+ *
+ * Everything goes through the Context that is passed in, so a Context with a
+ * stand-in provider can be used as well, see ImportCheck in the benchmark module.
+ */
+public class PduArchiveImporter {
+    private static final String TAG = LogTag.TAG;
+
+    private static final String PROGRESS_SUFFIX = ".progress";
+
+    private final Context mContext;
+    private int mThreads = 4;
+    private int mBatchSize = 200;
+    private boolean mGroupMmsEnabled = true;
+    private int mSubscriptionId = -1;
+
+    public PduArchiveImporter(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Set how many messages are parsed and persisted at the same time.
+     */
+    public void setThreads(int threads) {
+        mThreads = Math.max(1, threads);
+    }
+
+    /**
+     * Set how many messages are finished, and their progress saved, together.
+     */
+    public void setBatchSize(int batchSize) {
+        mBatchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * Set whether received messages go into the thread of all their recipients,
+     * see {@link PduPersister#persist}.
+     */
+    public void setGroupMmsEnabled(boolean groupMmsEnabled) {
+        mGroupMmsEnabled = groupMmsEnabled;
+    }
+
+    /**
+     * Set the subscription the messages are stored for.
+     */
+    public void setSubscriptionId(int subscriptionId) {
+        mSubscriptionId = subscriptionId;
+    }
+
+    /**
+     * Import the archive, continuing where an earlier import of it stopped.
+     *
+     * @param file the archive
+     * @param listener told about the progress every few messages, may be null
+     * @return how the import went, not counting messages imported by earlier runs
+     * @throws IOException if the archive couldn't be read
+     */
+    public PduArchiveStats importArchive(File file, PduArchiveStats.Listener listener)
+            throws IOException {
+        final PduArchiveStats stats = new PduArchiveStats();
+        final File progress = new File(file.getPath() + PROGRESS_SUFFIX);
+        final long offset = readProgress(progress);
+        if (offset > 0) {
+            Log.i(TAG, "import: resuming " + file + " at " + offset);
+        }
+
+        final Set<String> knownIds = Collections.synchronizedSet(loadMessageIds());
+        final Map<String, Uri> unfinished =
+                new ConcurrentHashMap<String, Uri>(loadTransactions());
+        final Set<String> knownTransactions =
+                Collections.synchronizedSet(new HashSet<String>(unfinished.keySet()));
+        final PduPersister persister = PduPersister.getPduPersister(mContext);
+        final ExecutorService executor = Executors.newFixedThreadPool(mThreads);
+        final PduArchive.Reader reader = new PduArchive.Reader(file, offset);
+        try {
+            final List<Future<ImportTask>> batch = new ArrayList<Future<ImportTask>>(mBatchSize);
+            PduArchive.Record record;
+            boolean more = true;
+            while (more) {
+                batch.clear();
+                while (batch.size() < mBatchSize && (record = reader.next()) != null) {
+                    if (record.messageId.length() > 0 && !knownIds.add(record.messageId)) {
+                        stats.addSkipped();
+                        continue;
+                    }
+                    batch.add(executor.submit(
+                            new ImportTask(persister, record, knownTransactions, unfinished)));
+                }
+                more = batch.size() == mBatchSize;
+
+                finishBatch(batch, knownIds, stats);
+                writeProgress(progress, reader.getPosition());
+                stats.report(listener);
+            }
+        } finally {
+            executor.shutdownNow();
+            reader.close();
+        }
+
+        progress.delete();
+        stats.finish();
+        Log.i(TAG, "import: " + stats);
+        if (listener != null) {
+            listener.onProgress(stats);
+        }
+        return stats;
+    }
+
+    /**
+     * Wait for the messages of a batch and write their read state and Message-ID.
+     */
+    private void finishBatch(List<Future<ImportTask>> batch, Set<String> knownIds,
+            PduArchiveStats stats) throws IOException {
+        final ArrayList<ContentProviderOperation> operations =
+                new ArrayList<ContentProviderOperation>(batch.size());
+        for (Future<ImportTask> future : batch) {
+            final ImportTask task;
+            try {
+                task = future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            } catch (ExecutionException e) {
+                // Can't arrive here, the task keeps its own failure
+                continue;
+            }
+
+            final PduArchive.Record record = task.mRecord;
+            if (task.mSkipped) {
+                stats.addSkipped();
+                continue;
+            }
+            if (task.mUri == null) {
+                // The run moves on past it, but a later copy in the archive can still
+                // be imported
+                knownIds.remove(record.messageId);
+                if (task.mTransactionKey != null) {
+                    task.mKnownTransactions.remove(task.mTransactionKey);
+                }
+                stats.addFailed();
+                continue;
+            }
+
+            if (task.mResumed) {
+                stats.addSkipped();
+            } else {
+                stats.addDone(record.pdu.length);
+            }
+            final ContentProviderOperation.Builder update =
+                    ContentProviderOperation.newUpdate(task.mUri)
+                    .withValue(Mms.READ, (record.flags & PduArchive.FLAG_READ) != 0 ? 1 : 0)
+                    .withValue(Mms.SEEN, (record.flags & PduArchive.FLAG_SEEN) != 0 ? 1 : 0);
+            if (record.messageId.length() > 0) {
+                // A Send.req doesn't carry its Message-ID, that came with the Send.conf
+                update.withValue(Mms.MESSAGE_ID, record.messageId);
+            }
+            operations.add(update.build());
+        }
+
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            mContext.getContentResolver().applyBatch("mms", operations);
+        } catch (Exception e) {
+            // The messages are there, they just show up as unread
+            Log.e(TAG, "import: couldn't update read state", e);
+        }
+    }
+
+    /**
+     * @return the Message-IDs already in the provider
+     */
+    private Set<String> loadMessageIds() {
+        final Set<String> ids = new HashSet<String>();
+        final Cursor cursor = SqliteWrapper.query(mContext, mContext.getContentResolver(),
+                Mms.CONTENT_URI, new String[] { Mms.MESSAGE_ID },
+                Mms.MESSAGE_ID + " NOT NULL", null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    ids.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * @return the messages in the provider that have no Message-ID, by their
+     *         Transaction-ID and date, see {@link #getTransactionKey}
+     */
+    private Map<String, Uri> loadTransactions() {
+        final Map<String, Uri> transactions = new HashMap<String, Uri>();
+        final Cursor cursor = SqliteWrapper.query(mContext, mContext.getContentResolver(),
+                Mms.CONTENT_URI, new String[] { Mms._ID, Mms.TRANSACTION_ID, Mms.DATE },
+                Mms.MESSAGE_ID + " IS NULL AND " + Mms.TRANSACTION_ID + " NOT NULL",
+                null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    transactions.put(getTransactionKey(cursor.getString(1), cursor.getLong(2)),
+                            ContentUris.withAppendedId(Mms.CONTENT_URI, cursor.getLong(0)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return transactions;
+    }
+
+    private static String getTransactionKey(String transactionId, long date) {
+        return transactionId + "/" + date;
+    }
+
+    private static long readProgress(File progress) {
+        if (!progress.exists()) {
+            return 0;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(progress));
+            return in.readLong();
+        } catch (IOException e) {
+            Log.w(TAG, "import: couldn't read " + progress + ", starting over");
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    private static void writeProgress(File progress, long offset) {
+        // Written aside and renamed, so a crash can't leave half a number behind
+        final File temp = new File(progress.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new FileOutputStream(temp));
+            out.writeLong(offset);
+            out.close();
+            out = null;
+            if (!temp.renameTo(progress)) {
+                Log.w(TAG, "import: couldn't save progress to " + progress);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "import: couldn't save progress to " + progress, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    private static Uri getBoxUri(int msgBox, int messageType) {
+        switch (msgBox) {
+            case Mms.MESSAGE_BOX_INBOX:
+                return Mms.Inbox.CONTENT_URI;
+            case Mms.MESSAGE_BOX_SENT:
+                return Mms.Sent.CONTENT_URI;
+            case Mms.MESSAGE_BOX_DRAFTS:
+                return Mms.Draft.CONTENT_URI;
+            case Mms.MESSAGE_BOX_OUTBOX:
+                // Don't send it again from the new device
+                return Mms.Sent.CONTENT_URI;
+            default:
+                return messageType == PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF
+                        ? Mms.Inbox.CONTENT_URI : Mms.Sent.CONTENT_URI;
+        }
+    }
+
+    private class ImportTask implements Callable<ImportTask> {
+        private final PduPersister mPersister;
+        private final PduArchive.Record mRecord;
+        private final Set<String> mKnownTransactions;
+        private final Map<String, Uri> mUnfinished;
+        private Uri mUri;
+        private String mTransactionKey;
+        private boolean mSkipped;
+        // Added by an earlier import, which stopped before it wrote the Message-ID
+        private boolean mResumed;
+
+        ImportTask(PduPersister persister, PduArchive.Record record,
+                Set<String> knownTransactions, Map<String, Uri> unfinished) {
+            mPersister = persister;
+            mRecord = record;
+            mKnownTransactions = knownTransactions;
+            mUnfinished = unfinished;
+        }
+
+        @Override
+        public ImportTask call() {
+            try {
+                final GenericPdu pdu = new PduParser(mRecord.pdu, true).parse();
+                if (pdu == null) {
+                    Log.w(TAG, "import: couldn't parse " + mRecord.messageId);
+                    return this;
+                }
+
+                // A Send.req doesn't carry its date, but it should come back as it was
+                if (pdu instanceof MultimediaMessagePdu) {
+                    ((MultimediaMessagePdu) pdu).setDate(mRecord.date);
+                }
+
+                if (pdu instanceof SendReq) {
+                    final byte[] transactionId = ((SendReq) pdu).getTransactionId();
+                    if (transactionId != null) {
+                        final String key = getTransactionKey(
+                                PduPersister.toIsoString(transactionId), mRecord.date);
+                        if (!mKnownTransactions.add(key)) {
+                            // Removed, so a second copy in the archive is just skipped
+                            mUri = mRecord.messageId.length() > 0
+                                    ? mUnfinished.remove(key) : null;
+                            mResumed = mUri != null;
+                            mSkipped = !mResumed;
+                            return this;
+                        }
+                        mTransactionKey = key;
+                    }
+                }
+
+                mUri = mPersister.persist(pdu, getBoxUri(mRecord.msgBox, pdu.getMessageType()),
+                        true, mGroupMmsEnabled, null, mSubscriptionId);
+                PduCache.getInstance().purge(mUri);
+            } catch (MmsException e) {
+                Log.e(TAG, "import: couldn't persist " + mRecord.messageId, e);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "import: couldn't import " + mRecord.messageId, e);
+            }
+            return this;
+        }
+    }
+}
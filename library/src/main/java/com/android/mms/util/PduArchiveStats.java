@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import android.os.SystemClock;
+
+/**
+ * Counts what happened to the messages of an archive export or import, and
+ * how fast it went.
+ */
+public class PduArchiveStats {
+    // Listeners are told about the progress after this many messages
+    private static final int REPORT_INTERVAL = 100;
+
+    /**
+     * Told about the progress of an export or import.
+     */
+    public interface Listener {
+        /**
+         * Called every few messages and once more at the end, on the thread
+         * that started the export or import.
+         */
+        void onProgress(PduArchiveStats stats);
+    }
+
+    private final long mStart = SystemClock.elapsedRealtime();
+    private long mEnd;
+    private int mDone;
+    private int mSkipped;
+    private int mFailed;
+    private long mBytes;
+    private int mLastReported;
+
+    synchronized void addDone(long bytes) {
+        mDone++;
+        mBytes += bytes;
+    }
+
+    synchronized void addSkipped() {
+        mSkipped++;
+    }
+
+    synchronized void addFailed() {
+        mFailed++;
+    }
+
+    synchronized void finish() {
+        mEnd = SystemClock.elapsedRealtime();
+    }
+
+    void report(Listener listener) {
+        synchronized (this) {
+            final int handled = mDone + mSkipped + mFailed;
+            if (listener == null || handled - mLastReported < REPORT_INTERVAL) {
+                return;
+            }
+            mLastReported = handled;
+        }
+        listener.onProgress(this);
+    }
+
+    /**
+     * @return how many messages were exported or imported
+     */
+    public synchronized int getDone() {
+        return mDone;
+    }
+
+    /**
+     * @return how many messages were left out because they were already there
+     */
+    public synchronized int getSkipped() {
+        return mSkipped;
+    }
+
+    /**
+     * @return how many messages couldn't be exported or imported
+     */
+    public synchronized int getFailed() {
+        return mFailed;
+    }
+
+    /**
+     * @return the size of the PDUs that were exported or imported
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return how long it took, or has taken so far, in milliseconds
+     */
+    public synchronized long getElapsed() {
+        return (mEnd != 0 ? mEnd : SystemClock.elapsedRealtime()) - mStart;
+    }
+
+    /**
+     * @return the messages exported or imported per second
+     */
+    public synchronized float getMessagesPerSecond() {
+        final long elapsed = getElapsed();
+        return elapsed > 0 ? mDone * 1000f / elapsed : 0;
+    }
+
+    /**
+     * @return the bytes exported or imported per second
+     */
+    public synchronized float getBytesPerSecond() {
+        final long elapsed = getElapsed();
+        return elapsed > 0 ? mBytes * 1000f / elapsed : 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "done=" + mDone + " skipped=" + mSkipped + " failed=" + mFailed
+                + " bytes=" + mBytes + " elapsed=" + getElapsed() + "ms"
+                + " (" + Math.round(getMessagesPerSecond()) + " msg/s, "
+                + Math.round(getBytesPerSecond() / 1024) + " KB/s)";
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright 2014 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.util;
+
+import android.content.Context;
+
+import com.android.mms.logs.LogTag;
+import com.google.android.mms.pdu_alt.NotificationInd;
+import com.klinker.android.logger.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers which m-notification-ind pushes have already been handled, so that
+ * carriers re-sending the same WAP push don't cause a second download.
+ *
+ * Each notification is reduced to a 64-bit key over its transaction id and
+ * content location and kept until the notification's X-Mms-Expiry passes. The
+ * index holds at most {@link #MAX_ENTRIES} keys in memory and is backed by a
+ * small append-only file in the app's private storage, so it survives process
+ * restarts without having to query the MMS provider. The file is rewritten with
+ * only the live keys once it holds twice as many records as there are live keys.
+ *
+ * A notification is only written to the index once its message has been
+ * downloaded. While the download is running it is kept as pending, in memory
+ * only, so a retransmit arriving meanwhile is still dropped, but one arriving
+ * after the download failed, or after the process died, is downloaded again.
+ */
+public class PushDedupeIndex {
+    private static final String TAG = LogTag.TAG;
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final String FILE_NAME = "mms_push_dedupe.idx";
+    private static final int FILE_MAGIC = 0x4d504449; // "MPDI"
+    private static final int FILE_VERSION = 1;
+
+    /** Upper bound on remembered notifications; the oldest are dropped first. */
+    static final int MAX_ENTRIES = 512;
+    /** The file isn't rewritten before it holds this many records. */
+    private static final int MIN_COMPACT_RECORDS = 64;
+
+    private static final long ONE_HOUR = 1000L * 60 * 60;
+    /** Used when the notification carries no usable X-Mms-Expiry. */
+    private static final long DEFAULT_TTL = ONE_HOUR * 24 * 7;
+    private static final long MIN_TTL = ONE_HOUR;
+    private static final long MAX_TTL = ONE_HOUR * 24 * 30;
+    /** How long a download may be pending before retransmits are let through again. */
+    private static final long PENDING_TTL = 1000L * 60 * 15;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static PushDedupeIndex sInstance;
+
+    private final File mFile;
+    // Key -> expiry time in millis, in insertion order.
+    private final LinkedHashMap<Long, Long> mEntries =
+            new LinkedHashMap<Long, Long>(MAX_ENTRIES * 4 / 3 + 1) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+    // Content location -> notification whose download is still running.
+    private final HashMap<String, Pending> mPending = new HashMap<String, Pending>();
+    private boolean mLoaded;
+    // Number of records currently in the file, live or not.
+    private int mFileRecords;
+
+    private PushDedupeIndex(Context context) {
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    public static synchronized PushDedupeIndex getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PushDedupeIndex(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns true if a notification with the same transaction id and content
+     * location has been downloaded, or is being downloaded, and has not expired
+     * yet.
+     */
+    public synchronized boolean contains(NotificationInd nInd) {
+        if (!hasKey(nInd)) {
+            return false;
+        }
+
+        long now = System.currentTimeMillis();
+        long key = keyOf(nInd.getTransactionId(), nInd.getContentLocation());
+        if (isPending(key, now)) {
+            return true;
+        }
+
+        ensureLoaded();
+        Long expiry = mEntries.get(key);
+        if (expiry == null) {
+            return false;
+        }
+        if (expiry < now) {
+            mEntries.remove(key);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Records the notification so later pushes for it are rejected by
+     * {@link #contains(NotificationInd)} until it expires.
+     */
+    public synchronized void add(NotificationInd nInd) {
+        if (!hasKey(nInd)) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        record(keyOf(nInd.getTransactionId(), nInd.getContentLocation()),
+                expiryOf(nInd.getExpiry(), now), now);
+    }
+
+    /**
+     * Rejects later pushes for the notification while its message is being
+     * downloaded from the content location. The notification is only recorded
+     * for good by {@link #onDownloadFinished(String, boolean)}.
+     *
+     * @param contentLocation the location the message is downloaded from
+     * @param nInd the notification that was pushed
+     */
+    public synchronized void markPending(String contentLocation, NotificationInd nInd) {
+        if (contentLocation == null || !hasKey(nInd)) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Iterator<Pending> pending = mPending.values().iterator();
+        while (pending.hasNext()) {
+            if (pending.next().since + PENDING_TTL < now) {
+                pending.remove();
+            }
+        }
+
+        mPending.put(contentLocation, new Pending(
+                keyOf(nInd.getTransactionId(), nInd.getContentLocation()),
+                expiryOf(nInd.getExpiry(), now), now));
+    }
+
+    /**
+     * Ends the pending download from the content location, if there is one.
+     *
+     * @param contentLocation the location the message was downloaded from
+     * @param downloaded true if the message was stored, false to let the
+     *                   next push for it try again
+     */
+    public synchronized void onDownloadFinished(String contentLocation, boolean downloaded) {
+        if (contentLocation == null) {
+            return;
+        }
+
+        Pending pending = mPending.remove(contentLocation);
+        if (pending != null && downloaded) {
+            record(pending.key, pending.expiry, System.currentTimeMillis());
+        }
+    }
+
+    private boolean isPending(long key, long now) {
+        for (Pending pending : mPending.values()) {
+            if (pending.key == key && pending.since + PENDING_TTL >= now) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void record(long key, long expiry, long now) {
+        ensureLoaded();
+
+        // Re-insert so the key moves to the young end of the eviction order.
+        mEntries.remove(key);
+        mEntries.put(key, expiry);
+
+        if (mFileRecords >= Math.max(MIN_COMPACT_RECORDS, mEntries.size() * 2)) {
+            compact(now);
+        } else {
+            append(key, expiry);
+        }
+    }
+
+    private static boolean hasKey(NotificationInd nInd) {
+        return nInd.getTransactionId() != null || nInd.getContentLocation() != null;
+    }
+
+    static long keyOf(byte[] transactionId, byte[] contentLocation) {
+        long hash = FNV_OFFSET_BASIS;
+        if (transactionId != null) {
+            for (byte b : transactionId) {
+                hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+            }
+        }
+        // Separator, so ("ab", "c") and ("a", "bc") don't collide.
+        hash = (hash ^ 0xff) * FNV_PRIME;
+        if (contentLocation != null) {
+            for (byte b : contentLocation) {
+                hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Converts an X-Mms-Expiry date value (seconds, -1 if absent) into the time
+     * the entry may be dropped, clamped so a bogus header neither evicts the
+     * entry immediately nor pins it forever.
+     */
+    static long expiryOf(long expirySeconds, long now) {
+        if (expirySeconds <= 0) {
+            return now + DEFAULT_TTL;
+        }
+
+        long expiry = expirySeconds * 1000;
+        if (expiry < now + MIN_TTL) {
+            return now + MIN_TTL;
+        }
+        if (expiry > now + MAX_TTL) {
+            return now + MAX_TTL;
+        }
+        return expiry;
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (!mFile.exists()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int records = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                Log.w(TAG, "PushDedupeIndex: discarding unrecognized index file");
+            } else {
+                while (true) {
+                    long key;
+                    long expiry;
+                    try {
+                        key = in.readLong();
+                        expiry = in.readLong();
+                    } catch (EOFException e) {
+                        // A torn trailing record is dropped along with the end of file.
+                        break;
+                    }
+                    records++;
+                    if (expiry >= now) {
+                        mEntries.remove(key);
+                        mEntries.put(key, expiry);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "PushDedupeIndex: failed to load index", e);
+        } finally {
+            closeQuietly(in);
+        }
+
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "PushDedupeIndex: loaded " + mEntries.size() + " of " + records
+                    + " records");
+        }
+
+        // Rewrite whenever the file holds anything we didn't keep, including a
+        // header we didn't understand.
+        mFileRecords = records;
+        if (records != mEntries.size() || records == 0) {
+            compact(now);
+        }
+    }
+
+    private void append(long key, long expiry) {
+        DataOutputStream out = null;
+        try {
+            boolean fresh = !mFile.exists() || mFile.length() == 0;
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(mFile, true), 32));
+            if (fresh) {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(FILE_VERSION);
+                mFileRecords = 0;
+            }
+            out.writeLong(key);
+            out.writeLong(expiry);
+            out.flush();
+            mFileRecords++;
+        } catch (IOException e) {
+            Log.e(TAG, "PushDedupeIndex: failed to append to index", e);
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Drops expired keys and rewrites the file with only the live ones. The new
+     * contents are written to a side file and renamed over the old one, so a
+     * crash part way through leaves the previous index intact.
+     */
+    private void compact(long now) {
+        Iterator<Long> expiries = mEntries.values().iterator();
+        while (expiries.hasNext()) {
+            if (expiries.next() < now) {
+                expiries.remove();
+            }
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            for (Map.Entry<Long, Long> entry : mEntries.entrySet()) {
+                out.writeLong(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("rename failed");
+            }
+            mFileRecords = mEntries.size();
+        } catch (IOException e) {
+            Log.e(TAG, "PushDedupeIndex: failed to compact index", e);
+            tmp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    private static class Pending {
+        final long key;
+        final long expiry;
+        final long since;
+
+        Pending(long key, long expiry, long since) {
+            this.key = key;
+            this.expiry = expiry;
+            this.since = since;
+        }
+    }
+
+    private static void closeQuietly(Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+    }
+}
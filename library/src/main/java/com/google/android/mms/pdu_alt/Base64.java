@@ -16,42 +16,39 @@
 
 package com.google.android.mms.pdu_alt;
 
-public class Base64 {
-    /**
-     * Used to get the number of Quadruples.
-     */
-    static final int FOURBYTE = 4;
+import java.util.Arrays;
 
+public class Base64 {
     /**
      * Byte used to pad output.
      */
     static final byte PAD = (byte) '=';
 
     /**
-     * The base length.
+     * Table markers for octets that carry no 6-bit value.
      */
-    static final int BASELENGTH = 255;
+    private static final byte SKIP = -1;
+    private static final byte PADDING = -2;
 
-    // Create arrays to hold the base64 characters
-    private static byte[] base64Alphabet = new byte[BASELENGTH];
+    // Maps every octet to its 6-bit value, SKIP or PADDING.
+    private static final byte[] DECODE_TABLE = new byte[256];
 
-    // Populating the character arrays
+    // Populating the decode table
     static {
-        for (int i = 0; i < BASELENGTH; i++) {
-            base64Alphabet[i] = (byte) -1;
-        }
+        Arrays.fill(DECODE_TABLE, SKIP);
         for (int i = 'Z'; i >= 'A'; i--) {
-            base64Alphabet[i] = (byte) (i - 'A');
+            DECODE_TABLE[i] = (byte) (i - 'A');
         }
         for (int i = 'z'; i >= 'a'; i--) {
-            base64Alphabet[i] = (byte) (i - 'a' + 26);
+            DECODE_TABLE[i] = (byte) (i - 'a' + 26);
         }
         for (int i = '9'; i >= '0'; i--) {
-            base64Alphabet[i] = (byte) (i - '0' + 52);
+            DECODE_TABLE[i] = (byte) (i - '0' + 52);
         }
 
-        base64Alphabet['+'] = 62;
-        base64Alphabet['/'] = 63;
+        DECODE_TABLE['+'] = 62;
+        DECODE_TABLE['/'] = 63;
+        DECODE_TABLE[PAD] = PADDING;
     }
 
     /**
@@ -61,106 +58,80 @@ public class Base64 {
      * @return Array containing decoded data.
      */
     public static byte[] decodeBase64(byte[] base64Data) {
-        // RFC 2045 requires that we discard ALL non-Base64 characters
-        base64Data = discardNonBase64(base64Data);
-
-        // handle the edge case, so we don't have to worry about it later
-        if (base64Data.length == 0) {
-            return new byte[0];
-        }
-
-        int numberQuadruple = base64Data.length / FOURBYTE;
-        byte decodedData[] = null;
-        byte b1 = 0, b2 = 0, b3 = 0, b4 = 0, marker0 = 0, marker1 = 0;
-
-        // Throw away anything not in base64Data
-
-        int encodedIndex = 0;
-        int dataIndex = 0;
-        {
-            // this sizes the output array properly - rlw
-            int lastData = base64Data.length;
-            // ignore the '=' padding
-            while (base64Data[lastData - 1] == PAD) {
-                if (--lastData == 0) {
-                    return new byte[0];
-                }
-            }
-            decodedData = new byte[lastData - numberQuadruple];
-        }
-
-        for (int i = 0; i < numberQuadruple; i++) {
-            dataIndex = i * 4;
-            marker0 = base64Data[dataIndex + 2];
-            marker1 = base64Data[dataIndex + 3];
-
-            b1 = base64Alphabet[base64Data[dataIndex]];
-            b2 = base64Alphabet[base64Data[dataIndex + 1]];
-
-            if (marker0 != PAD && marker1 != PAD) {
-                //No PAD e.g 3cQl
-                b3 = base64Alphabet[marker0];
-                b4 = base64Alphabet[marker1];
-
-                decodedData[encodedIndex] = (byte) (b1 << 2 | b2 >> 4);
-                decodedData[encodedIndex + 1] =
-                    (byte) (((b2 & 0xf) << 4) | ((b3 >> 2) & 0xf));
-                decodedData[encodedIndex + 2] = (byte) (b3 << 6 | b4);
-            } else if (marker0 == PAD) {
-                //Two PAD e.g. 3c[Pad][Pad]
-                decodedData[encodedIndex] = (byte) (b1 << 2 | b2 >> 4);
-            } else if (marker1 == PAD) {
-                //One PAD e.g. 3cQ[Pad]
-                b3 = base64Alphabet[marker0];
-
-                decodedData[encodedIndex] = (byte) (b1 << 2 | b2 >> 4);
-                decodedData[encodedIndex + 1] =
-                    (byte) (((b2 & 0xf) << 4) | ((b3 >> 2) & 0xf));
-            }
-            encodedIndex += 3;
+        byte[] decodedData = new byte[getMaxDecodedLength(base64Data.length)];
+        int decodedLength = decodeBase64(base64Data, 0, base64Data.length, decodedData, 0);
+        if (decodedLength == decodedData.length) {
+            return decodedData;
         }
-        return decodedData;
+        return Arrays.copyOf(decodedData, decodedLength);
     }
 
     /**
-     * Check octect wheter it is a base64 encoding.
+     * Upper bound of the octets {@link #decodeBase64(byte[], int, int, byte[], int)}
+     * writes for the given amount of input.
      *
-     * @param octect to be checked byte
-     * @return ture if it is base64 encoding, false otherwise.
+     * @param length the number of Base64 encoded bytes
+     * @return the size the output buffer needs to have
      */
-    private static boolean isBase64(byte octect) {
-        if (octect == PAD) {
-            return true;
-        } else if (base64Alphabet[octect] == -1) {
-            return false;
-        } else {
-            return true;
-        }
+    public static int getMaxDecodedLength(int length) {
+        return length / 4 * 3 + (length % 4) * 3 / 4;
     }
 
     /**
-     * Discards any characters outside of the base64 alphabet, per
-     * the requirements on page 25 of RFC 2045 - "Any characters
-     * outside of the base64 alphabet are to be ignored in base64
-     * encoded data."
+     * Decodes a slice of Base64 data into the given buffer in a single pass.
+     *
+     * RFC 2045 requires that we discard ALL non-Base64 characters, so they are
+     * skipped as they are met. Padding ends the current quadruple, a trailing
+     * incomplete quadruple is decoded as far as it goes.
      *
-     * @param data The base-64 encoded data to groom
-     * @return The data, less non-base64 characters (see RFC 2045).
+     * @param src buffer containing Base64 data
+     * @param offset start of the data in src
+     * @param length number of bytes of data
+     * @param dst buffer receiving the octets, must have room for
+     *        {@link #getMaxDecodedLength(int)} bytes after dstOffset
+     * @param dstOffset first position written in dst
+     * @return the number of octets written
      */
-    static byte[] discardNonBase64(byte[] data) {
-        byte groomedData[] = new byte[data.length];
-        int bytesCopied = 0;
-
-        for (int i = 0; i < data.length; i++) {
-            if (isBase64(data[i])) {
-                groomedData[bytesCopied++] = data[i];
+    public static int decodeBase64(byte[] src, int offset, int length,
+            byte[] dst, int dstOffset) {
+        int end = offset + length;
+        int out = dstOffset;
+        int quantum = 0;
+        int count = 0;
+
+        for (int i = offset; i < end; i++) {
+            int value = DECODE_TABLE[src[i] & 0xff];
+            if (value >= 0) {
+                quantum = (quantum << 6) | value;
+                if (++count == 4) {
+                    dst[out++] = (byte) (quantum >> 16);
+                    dst[out++] = (byte) (quantum >> 8);
+                    dst[out++] = (byte) quantum;
+                    quantum = 0;
+                    count = 0;
+                }
+            } else if (value == PADDING && count > 0) {
+                out = flush(quantum, count, dst, out);
+                quantum = 0;
+                count = 0;
             }
         }
 
-        byte packedData[] = new byte[bytesCopied];
-
-        System.arraycopy(groomedData, 0, packedData, 0, bytesCopied);
+        return flush(quantum, count, dst, out) - dstOffset;
+    }
 
-        return packedData;
+    /**
+     * Writes out the octets of an incomplete quadruple.
+     */
+    private static int flush(int quantum, int count, byte[] dst, int out) {
+        if (count == 2) {
+            // e.g. 3c[Pad][Pad]
+            dst[out++] = (byte) (quantum >> 4);
+        } else if (count == 3) {
+            // e.g. 3cQ[Pad]
+            dst[out++] = (byte) (quantum >> 10);
+            dst[out++] = (byte) (quantum >> 2);
+        }
+        return out;
     }
 }
@@ -17,6 +17,7 @@
 package com.google.android.mms.pdu_alt;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.HashMap;
 
 public class CharacterSets {
@@ -115,18 +116,29 @@ public class CharacterSets {
         MIMENAME_UTF_16,
     };
 
-    private static final HashMap<Integer, String> MIBENUM_TO_NAME_MAP;
     private static final HashMap<String, Integer> NAME_TO_MIBENUM_MAP;
 
+    /**
+     * The charsets of {@link #MIBENUM_NUMBERS}, null where the platform doesn't
+     * support the charset.
+     */
+    private static final Charset[] CHARSETS;
+
     static {
-        // Create the HashMaps.
-        MIBENUM_TO_NAME_MAP = new HashMap<Integer, String>();
+        // Create the HashMap.
         NAME_TO_MIBENUM_MAP = new HashMap<String, Integer>();
+        CHARSETS = new Charset[MIBENUM_NUMBERS.length];
         assert(MIBENUM_NUMBERS.length == MIME_NAMES.length);
         int count = MIBENUM_NUMBERS.length - 1;
         for(int i = 0; i <= count; i++) {
-            MIBENUM_TO_NAME_MAP.put(MIBENUM_NUMBERS[i], MIME_NAMES[i]);
             NAME_TO_MIBENUM_MAP.put(MIME_NAMES[i], MIBENUM_NUMBERS[i]);
+            if (MIBENUM_NUMBERS[i] != ANY_CHARSET) {
+                try {
+                    CHARSETS[i] = Charset.forName(MIME_NAMES[i]);
+                } catch (IllegalArgumentException e) {
+                    // Unsupported on this platform, decoded as iso-8859-1 instead.
+                }
+            }
         }
     }
 
@@ -142,11 +154,33 @@ public class CharacterSets {
      */
     public static String getMimeName(int mibEnumValue)
             throws UnsupportedEncodingException {
-        String name = MIBENUM_TO_NAME_MAP.get(mibEnumValue);
-        if (name == null) {
+        int index = indexOf(mibEnumValue);
+        if (index < 0) {
             throw new UnsupportedEncodingException();
         }
-        return name;
+        return MIME_NAMES[index];
+    }
+
+    /**
+     * Map an MIBEnum number to the charset which this number is assigned to
+     * by IANA.
+     *
+     * @param mibEnumValue An IANA assigned MIBEnum number.
+     * @return The charset, or null if the number is unknown, is
+     *         {@link #ANY_CHARSET}, or the platform doesn't support it.
+     */
+    public static Charset getCharset(int mibEnumValue) {
+        int index = indexOf(mibEnumValue);
+        return index < 0 ? null : CHARSETS[index];
+    }
+
+    private static int indexOf(int mibEnumValue) {
+        for (int i = 0; i < MIBENUM_NUMBERS.length; i++) {
+            if (MIBENUM_NUMBERS[i] == mibEnumValue) {
+                return i;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -20,7 +20,7 @@ import com.klinker.android.logger.Log;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 
 /**
@@ -31,6 +31,14 @@ public class EncodedStringValue implements Cloneable {
     private static final boolean DEBUG = false;
     private static final boolean LOCAL_LOGV = false;
 
+    private static final Charset DEFAULT_CHARSET =
+            Charset.forName(CharacterSets.DEFAULT_CHARSET_NAME);
+    private static final Charset ISO_8859_1 =
+            Charset.forName(CharacterSets.MIMENAME_ISO_8859_1);
+
+    // Characters with a special meaning in a regular expression
+    private static final String REGEX_META = ".$|()[]{}^?*+\\";
+
     /**
      * The Char-set value.
      */
@@ -41,6 +49,12 @@ public class EncodedStringValue implements Cloneable {
      */
     private byte[] mData;
 
+    /**
+     * The decoded Text-string value, null until {@link #getString()} is
+     * first called and whenever the Char-set or Text-string changes.
+     */
+    private String mString;
+
     /**
      * Constructor.
      *
@@ -70,12 +84,8 @@ public class EncodedStringValue implements Cloneable {
     }
 
     public EncodedStringValue(String data) {
-        try {
-            mData = data.getBytes(CharacterSets.DEFAULT_CHARSET_NAME);
-            mCharacterSet = CharacterSets.DEFAULT_CHARSET;
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Default encoding must be supported.", e);
-        }
+        mData = data.getBytes(DEFAULT_CHARSET);
+        mCharacterSet = CharacterSets.DEFAULT_CHARSET;
     }
 
     /**
@@ -95,6 +105,7 @@ public class EncodedStringValue implements Cloneable {
     public void setCharacterSet(int charset) {
         // TODO: CharSet needs to be validated against MIBEnum.
         mCharacterSet = charset;
+        mString = null;
     }
 
     /**
@@ -122,6 +133,7 @@ public class EncodedStringValue implements Cloneable {
 
         mData = new byte[textString.length];
         System.arraycopy(textString, 0, mData, 0, textString.length);
+        mString = null;
     }
 
     /**
@@ -132,23 +144,23 @@ public class EncodedStringValue implements Cloneable {
      * @return The decoded String.
      */
     public String getString()  {
-        if (CharacterSets.ANY_CHARSET == mCharacterSet) {
-            return new String(mData); // system default encoding.
-        } else {
-            try {
-                String name = CharacterSets.getMimeName(mCharacterSet);
-                return new String(mData, name);
-            } catch (UnsupportedEncodingException e) {
-            	if (LOCAL_LOGV) {
-            		Log.v(TAG, e.getMessage(), e);
-            	}
-            	try {
-                    return new String(mData, CharacterSets.MIMENAME_ISO_8859_1);
-                } catch (UnsupportedEncodingException f) {
-                    return new String(mData); // system default encoding.
+        String string = mString;
+        if (string == null) {
+            if (CharacterSets.ANY_CHARSET == mCharacterSet) {
+                string = new String(mData); // system default encoding.
+            } else {
+                Charset charset = CharacterSets.getCharset(mCharacterSet);
+                if (charset == null) {
+                    if (LOCAL_LOGV) {
+                        Log.v(TAG, "Unsupported charset " + mCharacterSet);
+                    }
+                    charset = ISO_8859_1;
                 }
+                string = new String(mData, charset);
             }
+            mString = string;
         }
+        return string;
     }
 
     /**
@@ -180,6 +192,7 @@ public class EncodedStringValue implements Cloneable {
 
             mData = newTextString.toByteArray();
         }
+        mString = null;
     }
 
     /*
@@ -210,7 +223,12 @@ public class EncodedStringValue implements Cloneable {
      *         string around matches of the given pattern
      */
     public EncodedStringValue[] split(String pattern) {
-        String[] temp = getString().split(pattern);
+        String[] temp;
+        if (pattern.length() == 1 && REGEX_META.indexOf(pattern.charAt(0)) < 0) {
+            temp = split(getString(), pattern.charAt(0), false);
+        } else {
+            temp = getString().split(pattern);
+        }
         EncodedStringValue[] ret = new EncodedStringValue[temp.length];
         for (int i = 0; i < ret.length; ++i) {
             try {
@@ -228,23 +246,50 @@ public class EncodedStringValue implements Cloneable {
      * Extract an EncodedStringValue[] from a given String.
      */
     public static EncodedStringValue[] extract(String src) {
-        String[] values = src.split(";");
+        String[] values = split(src, ';', true);
 
-        ArrayList<EncodedStringValue> list = new ArrayList<EncodedStringValue>();
-        for (int i = 0; i < values.length; i++) {
-            if (values[i].length() > 0) {
-                list.add(new EncodedStringValue(values[i]));
-            }
-        }
-
-        int len = list.size();
+        int len = values.length;
         if (len > 0) {
-            return list.toArray(new EncodedStringValue[len]);
+            EncodedStringValue[] ret = new EncodedStringValue[len];
+            for (int i = 0; i < len; i++) {
+                ret[i] = new EncodedStringValue(values[i]);
+            }
+            return ret;
         } else {
             return null;
         }
     }
 
+    /**
+     * Split a string around a character the same way {@link String#split(String)}
+     * does, without going through a regular expression.
+     *
+     * @param skipEmpty whether to drop every empty value rather than only the trailing ones
+     */
+    private static String[] split(String src, char separator, boolean skipEmpty) {
+        ArrayList<String> values = new ArrayList<String>();
+        int start = 0;
+        int end;
+        while ((end = src.indexOf(separator, start)) >= 0) {
+            if (!skipEmpty || end > start) {
+                values.add(src.substring(start, end));
+            }
+            start = end + 1;
+        }
+        if (start == 0) {
+            // No separator at all, the whole string is the only value
+            return skipEmpty && src.length() == 0 ? new String[0] : new String[] { src };
+        }
+        values.add(src.substring(start));
+
+        // Trailing empty values are dropped
+        int size = values.size();
+        while (size > 0 && values.get(size - 1).length() == 0) {
+            size--;
+        }
+        return values.subList(0, size).toArray(new String[size]);
+    }
+
     /**
      * Concatenate an EncodedStringValue[] into a single String.
      */
@@ -19,12 +19,17 @@ package com.google.android.mms.pdu_alt;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.text.TextUtils;
+import com.android.mms.util.Instrumentation;
 import com.klinker.android.logger.Log;
 
+import com.google.android.mms.util_alt.ByteArrayPool;
+import com.google.android.mms.util_alt.PooledByteArrayOutputStream;
+
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashMap;
 
@@ -137,7 +142,7 @@ public class PduComposer {
         mResolver = context.getContentResolver();
         mPduHeader = pdu.getPduHeaders();
         mStack = new BufferStack();
-        mMessage = new ByteArrayOutputStream();
+        mMessage = new PooledByteArrayOutputStream();
         mPosition = 0;
     }
 
@@ -149,6 +154,19 @@ public class PduComposer {
      *         the PDU is invalid.
      */
     public byte[] make() {
+        long start = Instrumentation.start();
+        byte[] message = null;
+        try {
+            message = makeMessage();
+            return message;
+        } finally {
+            Instrumentation.record(Instrumentation.STAGE_COMPOSE, start,
+                    message == null ? 0 : message.length,
+                    message == null ? Instrumentation.OUTCOME_FAILURE : Instrumentation.OUTCOME_SUCCESS);
+        }
+    }
+
+    private byte[] makeMessage() {
         // Get Message-type.
         int type = mPdu.getMessageType();
 
@@ -159,6 +177,11 @@ public class PduComposer {
                     return null;
                 }
                 break;
+            case PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF:
+                if (makeRetrieveConfPdu() != PDU_COMPOSE_SUCCESS) {
+                    return null;
+                }
+                break;
             case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
                 if (makeNotifyResp() != PDU_COMPOSE_SUCCESS) {
                     return null;
@@ -178,7 +201,18 @@ public class PduComposer {
                 return null;
         }
 
-        return mMessage.toByteArray();
+        byte[] message = mMessage.toByteArray();
+        releaseMessage(mMessage);
+        return message;
+    }
+
+    /**
+     * Hand the storage of a finished message buffer back to the pool.
+     */
+    private static void releaseMessage(ByteArrayOutputStream message) {
+        if (message instanceof PooledByteArrayOutputStream) {
+            ((PooledByteArrayOutputStream) message).release();
+        }
     }
 
     /**
@@ -650,7 +684,7 @@ public class PduComposer {
      */
     private int makeReadRecInd() {
         if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
+            mMessage = new PooledByteArrayOutputStream();
             mPosition = 0;
         }
 
@@ -698,7 +732,7 @@ public class PduComposer {
      */
     private int makeNotifyResp() {
         if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
+            mMessage = new PooledByteArrayOutputStream();
             mPosition = 0;
         }
 
@@ -730,7 +764,7 @@ public class PduComposer {
      */
     private int makeAckInd() {
         if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
+            mMessage = new PooledByteArrayOutputStream();
             mPosition = 0;
         }
 
@@ -759,7 +793,7 @@ public class PduComposer {
      */
     private int makeSendReqPdu() {
         if (mMessage == null) {
-            mMessage = new ByteArrayOutputStream();
+            mMessage = new PooledByteArrayOutputStream();
             mPosition = 0;
         }
 
@@ -838,6 +872,73 @@ public class PduComposer {
         return makeMessageBody();
     }
 
+    /**
+     * Make Retrieve.conf, e.g. to archive a message that was received.
+     */
+    private int makeRetrieveConfPdu() {
+        if (mMessage == null) {
+            mMessage = new PooledByteArrayOutputStream();
+            mPosition = 0;
+        }
+
+        // X-Mms-Message-Type
+        appendOctet(PduHeaders.MESSAGE_TYPE);
+        appendOctet(PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF);
+
+        // X-Mms-Transaction-ID Optional
+        appendHeader(PduHeaders.TRANSACTION_ID);
+
+        //  X-Mms-MMS-Version
+        if (appendHeader(PduHeaders.MMS_VERSION) != PDU_COMPOSE_SUCCESS) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        }
+
+        // Message-ID Optional
+        appendHeader(PduHeaders.MESSAGE_ID);
+
+        // Date
+        if (appendHeader(PduHeaders.DATE) != PDU_COMPOSE_SUCCESS) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        }
+
+        // From Optional
+        if (mPduHeader.getEncodedStringValue(PduHeaders.FROM) != null
+                && appendHeader(PduHeaders.FROM) != PDU_COMPOSE_SUCCESS) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        }
+
+        // To Optional
+        if (appendHeader(PduHeaders.TO) == PDU_COMPOSE_CONTENT_ERROR) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        }
+
+        // Cc Optional
+        if (appendHeader(PduHeaders.CC) == PDU_COMPOSE_CONTENT_ERROR) {
+            return PDU_COMPOSE_CONTENT_ERROR;
+        }
+
+        // Subject Optional
+        appendHeader(PduHeaders.SUBJECT);
+
+        // X-Mms-Message-Class Optional
+        appendHeader(PduHeaders.MESSAGE_CLASS);
+
+        // X-Mms-Priority Optional
+        appendHeader(PduHeaders.PRIORITY);
+
+        // X-Mms-Delivery-Report Optional
+        appendHeader(PduHeaders.DELIVERY_REPORT);
+
+        // X-Mms-Read-Report Optional
+        appendHeader(PduHeaders.READ_REPORT);
+
+        //    Content-Type
+        appendOctet(PduHeaders.CONTENT_TYPE);
+
+        //  Message body
+        return makeMessageBody();
+    }
+
     /**
      * Make message body.
      */
@@ -858,7 +959,7 @@ public class PduComposer {
         appendShortInteger(contentTypeIdentifier.intValue());
 
         // content-type parameter: start
-        PduBody body = ((SendReq) mPdu).getBody();
+        PduBody body = ((MultimediaMessagePdu) mPdu).getBody();
         if (null == body || body.getPartsNum() == 0) {
             // empty message
             appendUintvarInteger(0);
@@ -982,13 +1083,29 @@ public class PduComposer {
             int dataLength = 0; // Just for safety...
             byte[] partData = part.getData();
 
+            ByteBuffer dataBuffer = partData == null ? part.getDataBuffer() : null;
+
             if (partData != null) {
                 arraycopy(partData, 0, partData.length);
                 dataLength = partData.length;
+            } else if (dataBuffer != null) {
+                // Kept outside of the heap, copy it over a block at a time
+                byte[] buffer = ByteArrayPool.acquire(PDU_COMPOSER_BLOCK_SIZE);
+                try {
+                    while (dataBuffer.hasRemaining()) {
+                        int len = Math.min(buffer.length, dataBuffer.remaining());
+                        dataBuffer.get(buffer, 0, len);
+                        mMessage.write(buffer, 0, len);
+                        mPosition += len;
+                        dataLength += len;
+                    }
+                } finally {
+                    ByteArrayPool.release(buffer);
+                }
             } else {
                 InputStream cr = null;
+                byte[] buffer = ByteArrayPool.acquire(PDU_COMPOSER_BLOCK_SIZE);
                 try {
-                    byte[] buffer = new byte[PDU_COMPOSER_BLOCK_SIZE];
                     cr = mResolver.openInputStream(part.getDataUri());
                     int len = 0;
                     while ((len = cr.read(buffer)) != -1) {
@@ -1003,6 +1120,7 @@ public class PduComposer {
                 } catch (RuntimeException e) {
                     return PDU_COMPOSE_CONTENT_ERROR;
                 } finally {
+                    ByteArrayPool.release(buffer);
                     if (cr != null) {
                         try {
                             cr.close();
@@ -1086,7 +1204,7 @@ public class PduComposer {
 
             stackSize = stackSize + 1;
 
-            mMessage = new ByteArrayOutputStream();
+            mMessage = new PooledByteArrayOutputStream();
             mPosition = 0;
         }
 
@@ -1114,9 +1232,17 @@ public class PduComposer {
          *  Append current message to the message before.
          */
         void copy() {
-            arraycopy(toCopy.currentMessage.toByteArray(), 0,
-                    toCopy.currentPosition);
+            ByteArrayOutputStream popped = toCopy.currentMessage;
+            if (popped instanceof PooledByteArrayOutputStream) {
+                // Copy straight out of the pooled storage and recycle it.
+                arraycopy(((PooledByteArrayOutputStream) popped).getBuffer(), 0,
+                        toCopy.currentPosition);
+                releaseMessage(popped);
+            } else {
+                arraycopy(popped.toByteArray(), 0, toCopy.currentPosition);
+            }
 
+            toCopy.currentMessage = null;
             toCopy = null;
         }
 
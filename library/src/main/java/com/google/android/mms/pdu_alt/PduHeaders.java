@@ -330,6 +330,15 @@ public class PduHeaders {
         mHeaderMap = new HashMap<Integer, Object>();
     }
 
+    /**
+     * Get the map the header values are kept in, for {@link PduSerializer}.
+     * Values are stored as set: Integer, Long, byte[], EncodedStringValue or
+     * an ArrayList of EncodedStringValue.
+     */
+    HashMap<Integer, Object> getHeaderMap() {
+        return mHeaderMap;
+    }
+
     /**
      * Get octet value by header field.
      *
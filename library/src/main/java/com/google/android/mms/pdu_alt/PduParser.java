@@ -17,35 +17,35 @@
 package com.google.android.mms.pdu_alt;
 
 import com.android.mms.util.ExternalLogger;
+import com.android.mms.util.Instrumentation;
 import com.google.android.mms.ContentType;
 import com.google.android.mms.InvalidHeaderValueException;
 
 import com.klinker.android.logger.Log;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class PduParser {
     /**
      *  The next are WAP values defined in WSP specification.
      */
-    private static final int QUOTE = 127;
-    private static final int LENGTH_QUOTE = 31;
-    private static final int TEXT_MIN = 32;
-    private static final int TEXT_MAX = 127;
-    private static final int SHORT_INTEGER_MAX = 127;
-    private static final int SHORT_LENGTH_MAX = 30;
-    private static final int LONG_INTEGER_LENGTH_MAX = 8;
-    private static final int QUOTED_STRING_FLAG = 34;
+    private static final int TEXT_MIN = WspReader.TEXT_MIN;
+    private static final int TEXT_MAX = WspReader.TEXT_MAX;
     private static final int END_STRING_FLAG = 0x00;
     //The next two are used by the interface "parseWapString" to
     //distinguish Text-String and Quoted-String.
-    private static final int TYPE_TEXT_STRING = 0;
-    private static final int TYPE_QUOTED_STRING = 1;
-    private static final int TYPE_TOKEN_STRING = 2;
+    private static final int TYPE_TEXT_STRING = WspReader.TYPE_TEXT_STRING;
+    private static final int TYPE_QUOTED_STRING = WspReader.TYPE_QUOTED_STRING;
 
     /**
      * Specify the part position.
@@ -53,10 +53,30 @@ public class PduParser {
     private static final int THE_FIRST_PART = 0;
     private static final int THE_LAST_PART = 1;
 
+    /**
+     * Content-Transfer-Encoding of a part.
+     */
+    private static final int ENCODING_BINARY = 0;
+    private static final int ENCODING_BASE64 = 1;
+    private static final int ENCODING_QUOTED_PRINTABLE = 2;
+
+    /**
+     * Encoded parts at least this large are decoded once all parts have been
+     * walked, in parallel when there is more than one of them.
+     */
+    private static final int PARALLEL_DECODE_THRESHOLD = 64 * 1024;
+    private static final int MAX_DECODE_THREADS = 4;
+    private static ExecutorService sDecodeExecutor = null;
+
+    /**
+     * Scratch output for decoding the smaller encoded parts, reused across parts.
+     */
+    private byte[] mDecodeBuffer = null;
+
     /**
      * The pdu data.
      */
-    private ByteArrayInputStream mPduDataStream = null;
+    private WspReader mPduDataStream = null;
 
     /**
      * Store pdu headers
@@ -97,7 +117,18 @@ public class PduParser {
      * @param parseContentDisposition whether to parse the Content-Disposition part header
      */
     public PduParser(byte[] pduDataStream, boolean parseContentDisposition) {
-        mPduDataStream = new ByteArrayInputStream(pduDataStream);
+        mPduDataStream = new WspReader(pduDataStream);
+        mParseContentDisposition = parseContentDisposition;
+    }
+
+    /**
+     * Constructor over the remaining bytes of a buffer.
+     *
+     * @param pduData pdu data to be parsed
+     * @param parseContentDisposition whether to parse the Content-Disposition part header
+     */
+    public PduParser(ByteBuffer pduData, boolean parseContentDisposition) {
+        mPduDataStream = WspReader.wrap(pduData);
         mParseContentDisposition = parseContentDisposition;
     }
 
@@ -121,6 +152,19 @@ public class PduParser {
             return null;
         }
 
+        long start = Instrumentation.start();
+        int length = mPduDataStream.available();
+        GenericPdu pdu = null;
+        try {
+            pdu = parsePdu();
+            return pdu;
+        } finally {
+            Instrumentation.record(Instrumentation.STAGE_PARSE, start, length,
+                    pdu == null ? Instrumentation.OUTCOME_FAILURE : Instrumentation.OUTCOME_SUCCESS);
+        }
+    }
+
+    private GenericPdu parsePdu() {
         /* parse headers */
         mHeaders = parseHeaders(mPduDataStream);
         if (null == mHeaders) {
@@ -241,30 +285,130 @@ public class PduParser {
         }
     }
 
+    /**
+     * Decode only some header fields of a pdu. The other headers are skipped
+     * without being decoded, the body is never touched and parsing stops as
+     * soon as every requested field was seen. The message type is always
+     * decoded. Mandatory fields are not checked.
+     *
+     * This is meant for push handling and duplicate checks that only need
+     * a few fields such as the transaction id or content location, e.g.
+     * <pre>
+     * NotificationInd ind = (NotificationInd) PduParser.peekHeaders(data,
+     *         PduHeaders.CONTENT_LOCATION, PduHeaders.TRANSACTION_ID);
+     * </pre>
+     *
+     * @param pduData pdu data to be parsed
+     * @param fields header fields to decode, e.g. PduHeaders.CONTENT_LOCATION
+     * @return a pdu of the class matching its message type, holding only the
+     *         requested fields that are present and no body.
+     *         null if parsing error happened or the message type is not supported.
+     */
+    public static GenericPdu peekHeaders(byte[] pduData, int... fields) {
+        if (pduData == null) {
+            return null;
+        }
+
+        boolean[] wanted = new boolean[256];
+        wanted[PduHeaders.MESSAGE_TYPE] = true;
+        for (int field : fields) {
+            if ((field >= 0) && (field < wanted.length)) {
+                wanted[field] = true;
+            }
+        }
+
+        PduParser parser = new PduParser(pduData);
+        PduHeaders headers = parser.parseHeaders(parser.mPduDataStream, wanted);
+        if (null == headers) {
+            return null;
+        }
+
+        switch (headers.getOctet(PduHeaders.MESSAGE_TYPE)) {
+            case PduHeaders.MESSAGE_TYPE_SEND_REQ:
+                return new SendReq(headers);
+            case PduHeaders.MESSAGE_TYPE_SEND_CONF:
+                return new SendConf(headers);
+            case PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND:
+                return new NotificationInd(headers);
+            case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
+                return new NotifyRespInd(headers);
+            case PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF:
+                return new RetrieveConf(headers);
+            case PduHeaders.MESSAGE_TYPE_DELIVERY_IND:
+                return new DeliveryInd(headers);
+            case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
+                return new AcknowledgeInd(headers);
+            case PduHeaders.MESSAGE_TYPE_READ_ORIG_IND:
+                return new ReadOrigInd(headers);
+            case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
+                return new ReadRecInd(headers);
+            default:
+                log("Parser doesn't support this message type in this version!");
+                return null;
+        }
+    }
+
+    /**
+     * Parse pdu headers.
+     *
+     * @param pduDataStream pdu data input stream
+     * @return headers in PduHeaders structure, null when parse fail
+     */
+    protected PduHeaders parseHeaders(WspReader pduDataStream){
+        return parseHeaders(pduDataStream, null);
+    }
+
     /**
      * Parse pdu headers.
      *
      * @param pduDataStream pdu data input stream
+     * @param wanted header fields to decode, indexed by field, or null for all of them.
+     *        Fields are cleared from it once they have been decoded.
      * @return headers in PduHeaders structure, null when parse fail
      */
-    protected PduHeaders parseHeaders(ByteArrayInputStream pduDataStream){
+    private PduHeaders parseHeaders(WspReader pduDataStream, boolean[] wanted){
         if (pduDataStream == null) {
             return null;
         }
         boolean keepParsing = true;
         PduHeaders headers = new PduHeaders();
 
+        // Number of wanted fields that can only appear once, parsing stops when
+        // all of them were decoded unless a multi-valued field was asked for too.
+        int pending = 0;
+        if (null != wanted) {
+            for (boolean w : wanted) {
+                if (w) {
+                    pending++;
+                }
+            }
+            if (wanted[PduHeaders.TO] || wanted[PduHeaders.CC] || wanted[PduHeaders.BCC]) {
+                pending = -1;
+            }
+        }
+
         while (keepParsing && (pduDataStream.available() > 0)) {
-            pduDataStream.mark(1);
-            int headerField = extractByteValue(pduDataStream);
+            int headerField = pduDataStream.peek();
             /* parse custom text header */
             if ((headerField >= TEXT_MIN) && (headerField <= TEXT_MAX)) {
-                pduDataStream.reset();
-                byte [] bVal = parseWapString(pduDataStream, TYPE_TEXT_STRING);
+                /* we should ignore it at the moment, so don't copy it out */
+                pduDataStream.readString(TYPE_TEXT_STRING);
                 if (LOCAL_LOGV) {
-                    Log.v(LOG_TAG, "TextHeader: " + new String(bVal));
+                    Log.v(LOG_TAG, "TextHeader: " + new String(pduDataStream.array(),
+                            pduDataStream.stringOffset(), pduDataStream.stringLength()));
+                }
+                continue;
+            }
+            pduDataStream.skip(1);
+            if ((null != wanted) && !wanted[headerField]) {
+                if (PduHeaders.CONTENT_TYPE == headerField) {
+                    // Content-Type is the last header, the body follows it.
+                    break;
+                }
+                if (!skipHeaderValue(pduDataStream, headerField)) {
+                    log("Corrupt header: " + headerField);
+                    return null;
                 }
-                /* we should ignore it at the moment */
                 continue;
             }
             switch (headerField) {
@@ -595,7 +739,7 @@ public class PduParser {
 
                 case PduHeaders.MESSAGE_CLASS: {
                     /* Message-class-value = Class-identifier | Token-text */
-                    pduDataStream.mark(1);
+                    pduDataStream.mark();
                     int messageClass = extractByteValue(pduDataStream);
                     if (LOCAL_LOGV) {
                         Log.v(LOG_TAG, "parseHeaders: MESSAGE_CLASS: " + headerField
@@ -835,24 +979,72 @@ public class PduParser {
                     log("Unknown header");
                 }
             }
+
+            if ((null != wanted) && (pending > 0)) {
+                wanted[headerField] = false;
+                if (0 == --pending) {
+                    keepParsing = false;
+                }
+            }
         }
 
         return headers;
     }
 
+    /**
+     * Skip the value of a header field without decoding it.
+     *
+     * @param pduDataStream pdu data input stream
+     * @param headerField the header field, already read
+     * @return false if the value runs past the end of data
+     */
+    private static boolean skipHeaderValue(WspReader pduDataStream, int headerField) {
+        switch (headerField) {
+            /* Octet value, parseHeaders takes exactly one octet even when it is out of range */
+            case PduHeaders.MESSAGE_TYPE:
+            case PduHeaders.MMS_VERSION:
+            case PduHeaders.REPORT_ALLOWED:
+            case PduHeaders.ADAPTATION_ALLOWED:
+            case PduHeaders.DELIVERY_REPORT:
+            case PduHeaders.DRM_CONTENT:
+            case PduHeaders.DISTRIBUTION_INDICATOR:
+            case PduHeaders.QUOTAS:
+            case PduHeaders.READ_REPORT:
+            case PduHeaders.STORE:
+            case PduHeaders.STORED:
+            case PduHeaders.TOTALS:
+            case PduHeaders.SENDER_VISIBILITY:
+            case PduHeaders.READ_STATUS:
+            case PduHeaders.CANCEL_STATUS:
+            case PduHeaders.PRIORITY:
+            case PduHeaders.STATUS:
+            case PduHeaders.REPLY_CHARGING:
+            case PduHeaders.MM_STATE:
+            case PduHeaders.RECOMMENDED_RETRIEVAL_MODE:
+            case PduHeaders.CONTENT_CLASS:
+            case PduHeaders.RETRIEVE_STATUS:
+            case PduHeaders.STORE_STATUS:
+            case PduHeaders.RESPONSE_STATUS:
+                return -1 != pduDataStream.skip(1);
+            default:
+                return pduDataStream.skipValue();
+        }
+    }
+
     /**
      * Parse pdu parts.
      *
      * @param pduDataStream pdu data input stream
      * @return parts in PduBody structure
      */
-    protected PduBody parseParts(ByteArrayInputStream pduDataStream) {
+    protected PduBody parseParts(WspReader pduDataStream) {
         if (pduDataStream == null) {
             return null;
         }
 
         int count = parseUnsignedInt(pduDataStream); // get the number of parts
         PduBody body = new PduBody();
+        List<PartDecoder> largeParts = null;
 
         for (int i = 0 ; i < count ; i++) {
             int headerLength = parseUnsignedInt(pduDataStream);
@@ -911,34 +1103,65 @@ public class PduParser {
 
             /* get part's data */
             if (dataLength > 0) {
-                byte[] partData = new byte[dataLength];
                 String partContentType = new String(part.getContentType());
-                pduDataStream.read(partData, 0, dataLength);
                 if (partContentType.equalsIgnoreCase(ContentType.MULTIPART_ALTERNATIVE)) {
                     // parse "multipart/vnd.wap.multipart.alternative".
-                    PduBody childBody = parseParts(new ByteArrayInputStream(partData));
+                    WspReader childStream;
+                    if (dataLength <= pduDataStream.available()) {
+                        // Parse in place, no need to copy the children out.
+                        childStream = new WspReader(pduDataStream.array(),
+                                pduDataStream.position(), dataLength);
+                        pduDataStream.skip(dataLength);
+                    } else {
+                        byte[] partData = new byte[dataLength];
+                        pduDataStream.read(partData, 0, dataLength);
+                        childStream = new WspReader(partData);
+                    }
+                    PduBody childBody = parseParts(childStream);
                     // take the first part of children.
                     part = childBody.getPart(0);
                 } else {
+                    byte[] partData;
+                    int partOffset;
+                    boolean copied;
+                    if (dataLength <= pduDataStream.available()) {
+                        // Decode straight out of the pdu, no need to copy it first.
+                        partData = pduDataStream.array();
+                        partOffset = pduDataStream.position();
+                        pduDataStream.skip(dataLength);
+                        copied = false;
+                    } else {
+                        partData = new byte[dataLength];
+                        pduDataStream.read(partData, 0, dataLength);
+                        partOffset = 0;
+                        copied = true;
+                    }
+
                     // Check Content-Transfer-Encoding.
-                    byte[] partDataEncoding = part.getContentTransferEncoding();
-                    if (null != partDataEncoding) {
-                        String encoding = new String(partDataEncoding);
-                        if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
-                            // Decode "base64" into "binary".
-                            partData = Base64.decodeBase64(partData);
-                        } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
-                            // Decode "quoted-printable" into "binary".
-                            partData = QuotedPrintable.decodeQuotedPrintable(partData);
-                        } else {
-                            // "binary" is the default encoding.
+                    int encoding = getTransferEncoding(part);
+                    if (ENCODING_BINARY == encoding) {
+                        // "binary" is the default encoding.
+                        part.setData(copied ? partData : Arrays.copyOfRange(
+                                partData, partOffset, partOffset + dataLength));
+                    } else if (dataLength >= PARALLEL_DECODE_THRESHOLD) {
+                        if (null == largeParts) {
+                            largeParts = new ArrayList<PartDecoder>();
                         }
+                        largeParts.add(new PartDecoder(part, partData, partOffset,
+                                dataLength, encoding));
+                    } else {
+                        int maxLength = getMaxDecodedLength(dataLength, encoding);
+                        if (null == mDecodeBuffer || mDecodeBuffer.length < maxLength) {
+                            mDecodeBuffer = new byte[Math.max(maxLength, 4 * 1024)];
+                        }
+                        int length = decodePartData(partData, partOffset, dataLength,
+                                encoding, mDecodeBuffer);
+                        if (length < 0) {
+                            log("Decode part data error!");
+                            return null;
+                        }
+                        part.setData(Arrays.copyOf(mDecodeBuffer, length));
                     }
-                    if (null == partData) {
-                        log("Decode part data error!");
-                        return null;
-                    }
-                    part.setData(partData);
                 }
             }
 
@@ -952,9 +1175,124 @@ public class PduParser {
             }
         }
 
+        if (null != largeParts && !decodeLargeParts(largeParts)) {
+            log("Decode part data error!");
+            return null;
+        }
+
         return body;
     }
 
+    /**
+     * Map the Content-Transfer-Encoding of a part to one of the ENCODING_ values.
+     */
+    private static int getTransferEncoding(PduPart part) {
+        byte[] partDataEncoding = part.getContentTransferEncoding();
+        if (null != partDataEncoding) {
+            String encoding = new String(partDataEncoding);
+            if (encoding.equalsIgnoreCase(PduPart.P_BASE64)) {
+                return ENCODING_BASE64;
+            } else if (encoding.equalsIgnoreCase(PduPart.P_QUOTED_PRINTABLE)) {
+                return ENCODING_QUOTED_PRINTABLE;
+            }
+        }
+        return ENCODING_BINARY;
+    }
+
+    private static int getMaxDecodedLength(int length, int encoding) {
+        return ENCODING_BASE64 == encoding ? Base64.getMaxDecodedLength(length) : length;
+    }
+
+    /**
+     * Decode part data into dst, which must have room for
+     * getMaxDecodedLength(length, encoding) bytes.
+     *
+     * @return the decoded length, -1 if the data could not be decoded
+     */
+    private static int decodePartData(byte[] src, int offset, int length,
+            int encoding, byte[] dst) {
+        if (ENCODING_BASE64 == encoding) {
+            // Decode "base64" into "binary".
+            return Base64.decodeBase64(src, offset, length, dst, 0);
+        } else {
+            // Decode "quoted-printable" into "binary".
+            return QuotedPrintable.decodeQuotedPrintable(src, offset, length, dst, 0);
+        }
+    }
+
+    /**
+     * Decode the large encoded parts found by parseParts, spreading them over
+     * the decode threads when there is more than one.
+     *
+     * @return false if any part could not be decoded
+     */
+    private static boolean decodeLargeParts(List<PartDecoder> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0).call();
+        }
+
+        List<Future<Boolean>> results;
+        try {
+            results = getDecodeExecutor().invokeAll(parts);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        boolean success = true;
+        for (Future<Boolean> result : results) {
+            try {
+                success &= result.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                Log.e(LOG_TAG, "Failed to decode part", e.getCause());
+                success = false;
+            }
+        }
+        return success;
+    }
+
+    private static synchronized ExecutorService getDecodeExecutor() {
+        if (null == sDecodeExecutor) {
+            int threads = Math.min(MAX_DECODE_THREADS,
+                    Runtime.getRuntime().availableProcessors());
+            sDecodeExecutor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        }
+        return sDecodeExecutor;
+    }
+
+    /**
+     * Decodes the data of one encoded part and stores it in the part.
+     */
+    private static class PartDecoder implements Callable<Boolean> {
+        private final PduPart mPart;
+        private final byte[] mSrc;
+        private final int mOffset;
+        private final int mLength;
+        private final int mEncoding;
+
+        PartDecoder(PduPart part, byte[] src, int offset, int length, int encoding) {
+            mPart = part;
+            mSrc = src;
+            mOffset = offset;
+            mLength = length;
+            mEncoding = encoding;
+        }
+
+        @Override
+        public Boolean call() {
+            byte[] data = new byte[getMaxDecodedLength(mLength, mEncoding)];
+            int length = decodePartData(mSrc, mOffset, mLength, mEncoding, data);
+            if (length < 0) {
+                return false;
+            }
+            mPart.setData(length == data.length ? data : Arrays.copyOf(data, length));
+            return true;
+        }
+    }
+
     /**
      * Log status.
      *
@@ -972,32 +1310,9 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer, -1 when failed
      */
-    protected static int parseUnsignedInt(ByteArrayInputStream pduDataStream) {
-        /**
-         * From wap-230-wsp-20010705-a.pdf
-         * The maximum size of a uintvar is 32 bits.
-         * So it will be encoded in no more than 5 octets.
-         */
+    protected static int parseUnsignedInt(WspReader pduDataStream) {
         assert(null != pduDataStream);
-        int result = 0;
-        int temp = pduDataStream.read();
-        if (temp == -1) {
-            return temp;
-        }
-
-        while((temp & 0x80) != 0) {
-            result = result << 7;
-            result |= temp & 0x7F;
-            temp = pduDataStream.read();
-            if (temp == -1) {
-                return temp;
-            }
-        }
-
-        result = result << 7;
-        result |= temp & 0x7F;
-
-        return result;
+        return pduDataStream.readUintvar();
     }
 
     /**
@@ -1006,27 +1321,9 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the integer
      */
-    protected static int parseValueLength(ByteArrayInputStream pduDataStream) {
-        /**
-         * From wap-230-wsp-20010705-a.pdf
-         * Value-length = Short-length | (Length-quote Length)
-         * Short-length = <Any octet 0-30>
-         * Length-quote = <Octet 31>
-         * Length = Uintvar-integer
-         * Uintvar-integer = 1*5 OCTET
-         */
+    protected static int parseValueLength(WspReader pduDataStream) {
         assert(null != pduDataStream);
-        int temp = pduDataStream.read();
-        assert(-1 != temp);
-        int first = temp & 0xFF;
-
-        if (first <= SHORT_LENGTH_MAX) {
-            return first;
-        } else if (first == LENGTH_QUOTE) {
-            return parseUnsignedInt(pduDataStream);
-        }
-
-        throw new RuntimeException ("Value length > LENGTH_QUOTE!");
+        return pduDataStream.readValueLength();
     }
 
     /**
@@ -1035,23 +1332,20 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the EncodedStringValue
      */
-    protected static EncodedStringValue parseEncodedStringValue(ByteArrayInputStream pduDataStream){
+    protected static EncodedStringValue parseEncodedStringValue(WspReader pduDataStream){
         /**
          * From OMA-TS-MMS-ENC-V1_3-20050927-C.pdf
          * Encoded-string-value = Text-string | Value-length Char-set Text-string
          */
         assert(null != pduDataStream);
-        pduDataStream.mark(1);
         EncodedStringValue returnValue = null;
         int charset = 0;
-        int temp = pduDataStream.read();
-        assert(-1 != temp);
-        int first = temp & 0xFF;
+        int first = pduDataStream.peek() & 0xFF;
         if (first == 0) {
+            pduDataStream.skip(1);
             return new EncodedStringValue("");
         }
 
-        pduDataStream.reset();
         if (first < TEXT_MIN) {
             parseValueLength(pduDataStream);
 
@@ -1080,7 +1374,7 @@ public class PduParser {
      * @param stringType TYPE_TEXT_STRING or TYPE_QUOTED_STRING
      * @return the string without End-of-string in byte array
      */
-    protected static byte[] parseWapString(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseWapString(WspReader pduDataStream,
             int stringType) {
         assert(null != pduDataStream);
         /**
@@ -1098,32 +1392,12 @@ public class PduParser {
          * Token-text = Token End-of-string
          */
 
-        // Mark supposed beginning of Text-string
-        // We will have to mark again if first char is QUOTE or QUOTED_STRING_FLAG
-        pduDataStream.mark(1);
-
-        // Check first char
-        int temp = pduDataStream.read();
-        assert(-1 != temp);
-        if ((TYPE_QUOTED_STRING == stringType) &&
-                (QUOTED_STRING_FLAG == temp)) {
-            // Mark again if QUOTED_STRING_FLAG and ignore it
-            pduDataStream.mark(1);
-        } else if ((TYPE_TEXT_STRING == stringType) &&
-                (QUOTE == temp)) {
-            // Mark again if QUOTE and ignore it
-            pduDataStream.mark(1);
-        } else {
-            // Otherwise go back to origin
-            pduDataStream.reset();
-        }
-
-        // We are now definitely at the beginning of string
         /**
          * Return *TOKEN or *TEXT (Text-String without QUOTE,
          * Quoted-String without QUOTED_STRING_FLAG and without End-of-string)
          */
-        return getWapString(pduDataStream, stringType);
+        pduDataStream.readString(stringType);
+        return pduDataStream.stringBytes();
     }
 
     /**
@@ -1202,46 +1476,15 @@ public class PduParser {
         return false;
     }
 
-    protected static byte[] getWapString(ByteArrayInputStream pduDataStream,
-            int stringType) {
-        assert(null != pduDataStream);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        int temp = pduDataStream.read();
-        assert(-1 != temp);
-        while((-1 != temp) && ('\0' != temp)) {
-            // check each of the character
-            if (stringType == TYPE_TOKEN_STRING) {
-                if (isTokenCharacter(temp)) {
-                    out.write(temp);
-                }
-            } else {
-                if (isText(temp)) {
-                    out.write(temp);
-                }
-            }
-
-            temp = pduDataStream.read();
-            assert(-1 != temp);
-        }
-
-        if (out.size() > 0) {
-            return out.toByteArray();
-        }
-
-        return null;
-    }
-
     /**
      * Extract a byte value from the input stream.
      *
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int extractByteValue(ByteArrayInputStream pduDataStream) {
+    protected static int extractByteValue(WspReader pduDataStream) {
         assert(null != pduDataStream);
-        int temp = pduDataStream.read();
-        assert(-1 != temp);
-        return temp & 0xFF;
+        return pduDataStream.readByte();
     }
 
     /**
@@ -1250,7 +1493,7 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return the byte
      */
-    protected static int parseShortInteger(ByteArrayInputStream pduDataStream) {
+    protected static int parseShortInteger(WspReader pduDataStream) {
         /**
          * From wap-230-wsp-20010705-a.pdf
          * Short-integer = OCTET
@@ -1259,9 +1502,7 @@ public class PduParser {
          * and with the value in the remaining least significant bits.
          */
         assert(null != pduDataStream);
-        int temp = pduDataStream.read();
-        assert(-1 != temp);
-        return temp & 0x7F;
+        return pduDataStream.readShortInteger();
     }
 
     /**
@@ -1270,36 +1511,9 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseLongInteger(ByteArrayInputStream pduDataStream) {
-        /**
-         * From wap-230-wsp-20010705-a.pdf
-         * Long-integer = Short-length Multi-octet-integer
-         * The Short-length indicates the length of the Multi-octet-integer
-         * Multi-octet-integer = 1*30 OCTET
-         * The content octets shall be an unsigned integer value
-         * with the most significant octet encoded first (big-endian representation).
-         * The minimum number of octets must be used to encode the value.
-         * Short-length = <Any octet 0-30>
-         */
+    protected static long parseLongInteger(WspReader pduDataStream) {
         assert(null != pduDataStream);
-        int temp = pduDataStream.read();
-        assert(-1 != temp);
-        int count = temp & 0xFF;
-
-        if (count > LONG_INTEGER_LENGTH_MAX) {
-            throw new RuntimeException("Octet count greater than 8 and I can't represent that!");
-        }
-
-        long result = 0;
-
-        for (int i = 0 ; i < count ; i++) {
-            temp = pduDataStream.read();
-            assert(-1 != temp);
-            result <<= 8;
-            result += (temp & 0xFF);
-        }
-
-        return result;
+        return pduDataStream.readLongInteger();
     }
 
     /**
@@ -1308,21 +1522,9 @@ public class PduParser {
      * @param pduDataStream pdu data input stream
      * @return long integer
      */
-    protected static long parseIntegerValue(ByteArrayInputStream pduDataStream) {
-        /**
-         * From wap-230-wsp-20010705-a.pdf
-         * Integer-Value = Short-integer | Long-integer
-         */
+    protected static long parseIntegerValue(WspReader pduDataStream) {
         assert(null != pduDataStream);
-        pduDataStream.mark(1);
-        int temp = pduDataStream.read();
-        assert(-1 != temp);
-        pduDataStream.reset();
-        if (temp > SHORT_INTEGER_MAX) {
-            return parseShortInteger(pduDataStream);
-        } else {
-            return parseLongInteger(pduDataStream);
-        }
+        return pduDataStream.readIntegerValue();
     }
 
     /**
@@ -1332,15 +1534,12 @@ public class PduParser {
      * @param length area size
      * @return the values in this area
      */
-    protected static int skipWapValue(ByteArrayInputStream pduDataStream, int length) {
+    protected static int skipWapValue(WspReader pduDataStream, int length) {
         assert(null != pduDataStream);
-        byte[] area = new byte[length];
-        int readLen = pduDataStream.read(area, 0, length);
-        if (readLen < length) { //The actually read length is lower than the length
+        if (pduDataStream.available() <= 0) {
             return -1;
-        } else {
-            return readLen;
         }
+        return pduDataStream.skip(length);
     }
 
     /**
@@ -1351,7 +1550,7 @@ public class PduParser {
      * @param map to store parameters of Content-Type field
      * @param length length of all the parameters
      */
-    protected static void parseContentTypeParams(ByteArrayInputStream pduDataStream,
+    protected static void parseContentTypeParams(WspReader pduDataStream,
             HashMap<Integer, Object> map, Integer length) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1398,9 +1597,7 @@ public class PduParser {
                  */
                 case PduPart.P_TYPE:
                 case PduPart.P_CT_MR_TYPE:
-                    pduDataStream.mark(1);
-                    int first = extractByteValue(pduDataStream);
-                    pduDataStream.reset();
+                    int first = pduDataStream.peek() & 0xFF;
                     if (first > TEXT_MAX) {
                         // Short-integer (well-known type)
                         int index = parseShortInteger(pduDataStream);
@@ -1462,9 +1659,7 @@ public class PduParser {
                      * Equivalent to the special RFC2616 charset value "*"
                      */
                 case PduPart.P_CHARSET:
-                    pduDataStream.mark(1);
-                    int firstValue = extractByteValue(pduDataStream);
-                    pduDataStream.reset();
+                    int firstValue = pduDataStream.peek() & 0xFF;
                     //Check first char
                     if (((firstValue > TEXT_MIN) && (firstValue < TEXT_MAX)) ||
                             (END_STRING_FLAG == firstValue)) {
@@ -1534,7 +1729,7 @@ public class PduParser {
      * @param map to store parameters in Content-Type header field
      * @return Content-Type value
      */
-    protected static byte[] parseContentType(ByteArrayInputStream pduDataStream,
+    protected static byte[] parseContentType(WspReader pduDataStream,
             HashMap<Integer, Object> map) {
         /**
          * From wap-230-wsp-20010705-a.pdf
@@ -1545,21 +1740,13 @@ public class PduParser {
         assert(null != pduDataStream);
 
         byte[] contentType = null;
-        pduDataStream.mark(1);
-        int temp = pduDataStream.read();
-        assert(-1 != temp);
-        pduDataStream.reset();
-
-        int cur = (temp & 0xFF);
+        int cur = pduDataStream.peek() & 0xFF;
 
         if (cur < TEXT_MIN) {
             int length = parseValueLength(pduDataStream);
             int startPos = pduDataStream.available();
-            pduDataStream.mark(1);
-            temp = pduDataStream.read();
-            assert(-1 != temp);
-            pduDataStream.reset();
-            int first = (temp & 0xFF);
+            pduDataStream.mark();
+            int first = pduDataStream.peek() & 0xFF;
 
             if ((first >= TEXT_MIN) && (first <= TEXT_MAX)) {
                 contentType = parseWapString(pduDataStream, TYPE_TEXT_STRING);
@@ -1605,7 +1792,7 @@ public class PduParser {
      * @param length length of the headers
      * @return true if parse successfully, false otherwise
      */
-    protected boolean parsePartHeaders(ByteArrayInputStream pduDataStream,
+    protected boolean parsePartHeaders(WspReader pduDataStream,
             PduPart part, int length) {
         assert(null != pduDataStream);
         assert(null != part);
@@ -1681,7 +1868,7 @@ public class PduParser {
                          */
                         if (mParseContentDisposition) {
                             int len = parseValueLength(pduDataStream);
-                            pduDataStream.mark(1);
+                            pduDataStream.mark();
                             int thisStartPos = pduDataStream.available();
                             int thisEndPos = 0;
                             int value = pduDataStream.read();
@@ -1712,8 +1899,7 @@ public class PduParser {
                                 thisEndPos = pduDataStream.available();
                                 if (thisStartPos - thisEndPos < len) {
                                     int last = len - (thisStartPos - thisEndPos);
-                                    byte[] temp = new byte[last];
-                                    pduDataStream.read(temp, 0, last);
+                                    pduDataStream.skip(last);
                                 }
                             }
 
@@ -1733,14 +1919,18 @@ public class PduParser {
                     break;
                 }
             } else if ((header >= TEXT_MIN) && (header <= TEXT_MAX)) {
-                // Not assigned header.
-                byte[] tempHeader = parseWapString(pduDataStream, TYPE_TEXT_STRING);
-                byte[] tempValue = parseWapString(pduDataStream, TYPE_TEXT_STRING);
-
-                // Check the header whether it is "Content-Transfer-Encoding".
-                if (true ==
-                    PduPart.CONTENT_TRANSFER_ENCODING.equalsIgnoreCase(new String(tempHeader))) {
-                    part.setContentTransferEncoding(tempValue);
+                // Not assigned header. The octet just read is the first
+                // character of its name, step back so the name is complete.
+                pduDataStream.position(pduDataStream.position() - 1);
+                pduDataStream.readString(TYPE_TEXT_STRING);
+
+                // Check the header whether it is "Content-Transfer-Encoding",
+                // only that value is copied out.
+                if (pduDataStream.stringEqualsIgnoreCase(PduPart.CONTENT_TRANSFER_ENCODING)) {
+                    part.setContentTransferEncoding(
+                            parseWapString(pduDataStream, TYPE_TEXT_STRING));
+                } else {
+                    pduDataStream.readString(TYPE_TEXT_STRING);
                 }
 
                 tempPos = pduDataStream.available();
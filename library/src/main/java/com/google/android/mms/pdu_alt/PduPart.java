@@ -18,6 +18,7 @@ package com.google.android.mms.pdu_alt;
 
 import android.net.Uri;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -118,6 +119,11 @@ public class PduPart {
       */
      private byte[] mPartData = null;
 
+     /**
+      * Part data that isn't on the heap, e.g. mapped from the part store.
+      */
+     private ByteBuffer mDataBuffer = null;
+
      private static final String TAG = "PduPart";
 
      /**
@@ -127,6 +133,14 @@ public class PduPart {
          mPartHeader = new HashMap<Integer, Object>();
      }
 
+     /**
+      * Get the map the part headers are kept in, for {@link PduSerializer}.
+      * Values are stored as set: Integer or byte[].
+      */
+     Map<Integer, Object> getPartHeader() {
+         return mPartHeader;
+     }
+
      /**
       * Set part data. The data are stored as byte array.
       *
@@ -162,11 +176,41 @@ public class PduPart {
      public int getDataLength() {
          if(mPartData != null){
              return mPartData.length;
+         } else if (mDataBuffer != null) {
+             return mDataBuffer.remaining();
          } else {
              return 0;
          }
      }
 
+     /**
+      * Set part data that is kept outside of the heap. Unlike {@link #setData}
+      * the data isn't copied, so the buffer must not change afterwards.
+      *
+      * @param buffer the data, from its position to its limit
+      */
+     public void setDataBuffer(ByteBuffer buffer) {
+         mDataBuffer = buffer != null ? buffer.asReadOnlyBuffer() : null;
+     }
+
+     /**
+      * Get the part data without copying it. This is the only way to get at
+      * data set with {@link #setDataBuffer}, {@link #getData} returns null
+      * for it.
+      *
+      * @return A read-only view of the data, or null if the data wasn't set
+      *         or is stored as Uri.
+      */
+     public ByteBuffer getDataBuffer() {
+         if (mDataBuffer != null) {
+             return mDataBuffer.duplicate();
+         } else if (mPartData != null) {
+             return ByteBuffer.wrap(mPartData).asReadOnlyBuffer();
+         } else {
+             return null;
+         }
+     }
+
 
      /**
       * Set data uri. The data are stored as Uri.
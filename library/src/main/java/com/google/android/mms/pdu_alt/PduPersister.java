@@ -35,22 +35,27 @@ import android.provider.Telephony.Mms.Addr;
 import android.provider.Telephony.Mms.Part;
 import android.provider.Telephony.MmsSms;
 import android.provider.Telephony.MmsSms.PendingMessages;
-import android.provider.Telephony.Threads;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 
 import com.android.mms.service_alt.SubscriptionIdChecker;
+import com.android.mms.util.Instrumentation;
 import com.google.android.mms.ContentType;
 import com.google.android.mms.InvalidHeaderValueException;
 import com.google.android.mms.MmsException;
+import com.google.android.mms.util_alt.ByteArrayPool;
 import com.google.android.mms.util_alt.DownloadDrmHelper;
 import com.google.android.mms.util_alt.DrmConvertSession;
 import com.google.android.mms.util_alt.PduCache;
 import com.google.android.mms.util_alt.PduCacheEntry;
+import com.google.android.mms.util_alt.PduDiskCache;
+import com.google.android.mms.util_alt.PduPartStore;
 import com.google.android.mms.util_alt.SqliteWrapper;
 import com.klinker.android.logger.Log;
+import com.klinker.android.send_message.RecipientNormalizer;
 import com.klinker.android.send_message.Settings;
+import com.klinker.android.send_message.ThreadIdCache;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -59,11 +64,23 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * This class is the high-level manager of PDU storage.
@@ -77,6 +94,13 @@ public class PduPersister {
     private static final int DEFAULT_SUBSCRIPTION = 0;
     private static final int MAX_TEXT_BODY_SIZE = 300 * 1024;
 
+    // Part data is copied through a buffer between these sizes, depending on how much there is.
+    private static final int MIN_COPY_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_COPY_BUFFER_SIZE = 256 * 1024;
+
+    // How many part payloads persist() writes at the same time.
+    private static final int PART_WRITER_THREADS = 3;
+
     /**
      * The uri of temporary drm objects.
      */
@@ -96,6 +120,15 @@ public class PduPersister {
     public static final int PROC_STATUS_COMPLETED           = 3;
 
     private static PduPersister sPersister;
+
+    private static volatile boolean sParallelPartWrites = true;
+    private static volatile boolean sDiskCacheEnabled = true;
+    private static volatile boolean sPartStoreEnabled = false;
+    private static ExecutorService sPartWriter;
+
+    // Messages are saved under a dummy id until all of their parts are written. The ids have to
+    // be unique, or two messages saved at once would end up with each other's parts.
+    private static final AtomicLong sLastDummyId = new AtomicLong();
     private static final PduCache PDU_CACHE_INSTANCE;
 
     private static final int[] ADDRESS_FIELDS = new int[] {
@@ -291,8 +324,71 @@ public class PduPersister {
         mDrmManagerClient = new DrmManagerClient(context);
         mTelephonyManager = (TelephonyManager)context
                 .getSystemService(Context.TELEPHONY_SERVICE);
+        PDU_CACHE_INSTANCE.setDiskCache(sDiskCacheEnabled
+                ? PduDiskCache.getInstance(context) : null);
      }
 
+    /**
+     * Choose whether {@link #persist} writes the payloads of media parts at the same time
+     * or one after the other. Parallel writes are on by default.
+     */
+    public static void setParallelPartWrites(boolean enabled) {
+        sParallelPartWrites = enabled;
+    }
+
+    /**
+     * Choose whether messages loaded by {@link #load} are also kept on disk, so that loading
+     * them again after they were dropped from memory skips most of the provider queries.
+     * The disk cache is on by default, and the choice applies from the next
+     * {@link #getPduPersister} call that creates a persister.
+     */
+    public static void setDiskCacheEnabled(boolean enabled) {
+        sDiskCacheEnabled = enabled;
+        if (!enabled) {
+            PDU_CACHE_INSTANCE.setDiskCache(null);
+        }
+    }
+
+    /**
+     * Choose whether the data of media parts is kept in the library's own {@link PduPartStore}
+     * instead of the part files of the provider. {@link #load} then hands it out through
+     * {@link PduPart#getDataBuffer}, mapped rather than copied onto the heap. Only turn this on
+     * if nothing reads the data through the part Uri, as the provider's files stay empty.
+     * Off by default.
+     */
+    public static void setPartStoreEnabled(boolean enabled) {
+        sPartStoreEnabled = enabled;
+    }
+
+    private static synchronized ExecutorService getPartWriter() {
+        if (sPartWriter == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(PART_WRITER_THREADS,
+                    PART_WRITER_THREADS, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(1);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, "PduPersister part writer #"
+                                    + mCount.getAndIncrement());
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sPartWriter = executor;
+        }
+        return sPartWriter;
+    }
+
+    private static long nextDummyId() {
+        while (true) {
+            long last = sLastDummyId.get();
+            long next = Math.max(System.currentTimeMillis(), last + 1);
+            if (sLastDummyId.compareAndSet(last, next)) {
+                return next;
+            }
+        }
+    }
+
     /** Get(or create if not exist) an instance of PduPersister */
     public static PduPersister getPduPersister(Context context) {
         if ((sPersister == null)) {
@@ -431,7 +527,20 @@ public class PduPersister {
                 // For images/audio/video, we won't keep their data in Part
                 // because their renderer accept Uri as source.
                 String type = toIsoString(contentType);
-                if (!ContentType.isImageType(type)
+                ByteBuffer stored = getStoredData(msgId, partId, type);
+                if (stored != null) {
+                    // Media from the part store is mapped rather than copied, anything
+                    // else is copied like it would be from the provider.
+                    if (ContentType.isImageType(type)
+                            || ContentType.isAudioType(type)
+                            || ContentType.isVideoType(type)) {
+                        part.setDataBuffer(stored);
+                    } else {
+                        byte[] bytes = new byte[stored.remaining()];
+                        stored.get(bytes);
+                        part.setData(bytes);
+                    }
+                } else if (!ContentType.isImageType(type)
                         && !ContentType.isAudioType(type)
                         && !ContentType.isVideoType(type)) {
                     ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -484,6 +593,37 @@ public class PduPersister {
         return parts;
     }
 
+    /**
+     * @return the data of a part from the part store, or null if it isn't kept there
+     */
+    private ByteBuffer getStoredData(long msgId, long partId, String contentType) {
+        if (!sPartStoreEnabled || contentType == null || !isMediaPayload(contentType)) {
+            return null;
+        }
+        return PduPartStore.getInstance(mContext).get(msgId, partId);
+    }
+
+    /**
+     * Give the media parts of a body their data from the part store again, after
+     * they were read from somewhere that only keeps their Uri.
+     */
+    private void attachStoredData(long msgId, PduBody body) {
+        if (!sPartStoreEnabled || body == null) {
+            return;
+        }
+        for (int i = 0; i < body.getPartsNum(); i++) {
+            PduPart part = body.getPart(i);
+            if (part.getDataUri() != null && part.getDataLength() == 0
+                    && part.getContentType() != null) {
+                ByteBuffer stored = getStoredData(msgId, ContentUris.parseId(part.getDataUri()),
+                        toIsoString(part.getContentType()));
+                if (stored != null) {
+                    part.setDataBuffer(stored);
+                }
+            }
+        }
+    }
+
     private void loadAddress(long msgId, PduHeaders headers) {
         Cursor c = SqliteWrapper.query(mContext, mContentResolver,
                 Uri.parse("content://mms/" + msgId + "/addr"),
@@ -554,6 +694,20 @@ public class PduPersister {
                 PDU_CACHE_INSTANCE.setUpdating(uri, true);
             }
 
+            // A message loaded before may still be on disk, which is much quicker to
+            // read than the pdu, addr and part tables.
+            cacheEntry = PDU_CACHE_INSTANCE.getFromDisk(mContext, uri);
+            if (cacheEntry != null) {
+                pdu = cacheEntry.getPdu();
+                msgBox = cacheEntry.getMessageBox();
+                threadId = cacheEntry.getThreadId();
+                if (pdu instanceof MultimediaMessagePdu) {
+                    attachStoredData(ContentUris.parseId(uri),
+                            ((MultimediaMessagePdu) pdu).getBody());
+                }
+                return pdu;
+            }
+
             Cursor c = SqliteWrapper.query(mContext, mContentResolver, uri,
                     PDU_PROJECTION, null, null, null);
             PduHeaders headers = new PduHeaders();
@@ -705,6 +859,39 @@ public class PduPersister {
 
     public Uri persistPart(PduPart part, long msgId, HashMap<Uri, InputStream> preOpenedFiles)
             throws MmsException {
+        String contentType = getPersistedContentType(part);
+        Uri res = insertPart(part, msgId, contentType);
+
+        persistData(part, res, msgId, contentType, preOpenedFiles);
+        // After successfully store the data, we should update
+        // the dataUri of the part.
+        part.setDataUri(res);
+
+        return res;
+    }
+
+    /**
+     * @return the content type the part is saved with
+     * @throws MmsException if the part has none
+     */
+    private static String getPersistedContentType(PduPart part) throws MmsException {
+        String contentType = getPartContentType(part);
+        if (contentType == null) {
+            throw new MmsException("MIME type of the part must be set.");
+        }
+
+        // There is no "image/jpg" in Android (and it's an invalid mimetype).
+        // Change it to "image/jpeg"
+        if (ContentType.IMAGE_JPG.equals(contentType)) {
+            contentType = ContentType.IMAGE_JPEG;
+        }
+        return contentType;
+    }
+
+    /**
+     * Insert the row of a part, without its data.
+     */
+    private Uri insertPart(PduPart part, long msgId, String contentType) throws MmsException {
         Uri uri = Uri.parse("content://mms/" + msgId + "/part");
         ContentValues values = new ContentValues(8);
 
@@ -713,21 +900,10 @@ public class PduPersister {
             values.put(Part.CHARSET, charset);
         }
 
-        String contentType = getPartContentType(part);
-        if (contentType != null) {
-            // There is no "image/jpg" in Android (and it's an invalid mimetype).
-            // Change it to "image/jpeg"
-            if (ContentType.IMAGE_JPG.equals(contentType)) {
-                contentType = ContentType.IMAGE_JPEG;
-            }
-
-            values.put(Part.CONTENT_TYPE, contentType);
-            // To ensure the SMIL part is always the first part.
-            if (ContentType.APP_SMIL.equals(contentType)) {
-                values.put(Part.SEQ, -1);
-            }
-        } else {
-            throw new MmsException("MIME type of the part must be set.");
+        values.put(Part.CONTENT_TYPE, contentType);
+        // To ensure the SMIL part is always the first part.
+        if (ContentType.APP_SMIL.equals(contentType)) {
+            values.put(Part.SEQ, -1);
         }
 
         if (part.getFilename() != null) {
@@ -760,13 +936,94 @@ public class PduPersister {
         if (res == null) {
             throw new MmsException("Failed to persist part, return null.");
         }
+        return res;
+    }
 
-        persistData(part, res, contentType, preOpenedFiles);
-        // After successfully store the data, we should update
-        // the dataUri of the part.
-        part.setDataUri(res);
+    /**
+     * Persist every part of a body under msgId. All rows are inserted first. Then the data of
+     * the media parts is written on the part writer pool, several at a time, while text, SMIL
+     * and DRM parts are written on the calling thread. If any part fails, all parts saved under
+     * msgId are deleted again.
+     */
+    private void persistParts(PduBody body, final long msgId,
+            final HashMap<Uri, InputStream> preOpenedFiles) throws MmsException {
+        final int partsNum = body.getPartsNum();
+        final Uri[] uris = new Uri[partsNum];
+        final String[] contentTypes = new String[partsNum];
+        boolean[] parallel = new boolean[partsNum];
+        int parallelCount = 0;
+
+        MmsException failure = null;
+        List<Future<Void>> writes = new ArrayList<Future<Void>>();
+        try {
+            for (int i = 0; i < partsNum; i++) {
+                PduPart part = body.getPart(i);
+                contentTypes[i] = getPersistedContentType(part);
+                uris[i] = insertPart(part, msgId, contentTypes[i]);
 
-        return res;
+                parallel[i] = sParallelPartWrites && isMediaPayload(contentTypes[i]);
+                if (parallel[i]) {
+                    parallelCount++;
+                }
+            }
+
+            for (int i = 0; i < partsNum; i++) {
+                final PduPart part = body.getPart(i);
+                final int index = i;
+                if (parallel[i] && parallelCount > 1) {
+                    writes.add(getPartWriter().submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws MmsException {
+                            persistData(part, uris[index], msgId, contentTypes[index],
+                                    preOpenedFiles);
+                            part.setDataUri(uris[index]);
+                            return null;
+                        }
+                    }));
+                } else {
+                    persistData(part, uris[i], msgId, contentTypes[i], preOpenedFiles);
+                    part.setDataUri(uris[i]);
+                }
+            }
+        } catch (MmsException e) {
+            failure = e;
+        }
+
+        // Whatever happened, wait for the writes that did start before going on.
+        for (Future<Void> write : writes) {
+            try {
+                write.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof MmsException
+                            ? (MmsException) e.getCause() : new MmsException(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (failure == null) {
+                    failure = new MmsException(e);
+                }
+            }
+        }
+
+        if (failure != null) {
+            SqliteWrapper.delete(mContext, mContentResolver,
+                    Uri.parse("content://mms/" + msgId + "/part"), null, null);
+            if (sPartStoreEnabled) {
+                PduPartStore.getInstance(mContext).remove(msgId);
+            }
+            throw failure;
+        }
+    }
+
+    /**
+     * @return true for parts whose data is streamed to a file rather than stored as text
+     */
+    private static boolean isMediaPayload(String contentType) {
+        return !ContentType.TEXT_PLAIN.equals(contentType)
+                && !ContentType.APP_SMIL.equals(contentType)
+                && !ContentType.TEXT_HTML.equals(contentType)
+                && !DownloadDrmHelper.isDrmConvertNeeded(contentType);
     }
 
     private static String cutString(String src, int expectSize) {
@@ -805,12 +1062,13 @@ public class PduPersister {
      *
      * @param part The PDU part which contains data to be saved.
      * @param uri The URI of the part.
+     * @param msgId The ID of the message the part belongs to.
      * @param contentType The MIME type of the part.
      * @param preOpenedFiles if not null, a map of preopened InputStreams for the parts.
      * @throws MmsException Cannot find source data or error occurred
      *         while saving the data.
      */
-    private void persistData(PduPart part, Uri uri,
+    private void persistData(PduPart part, Uri uri, long msgId,
             String contentType, HashMap<Uri, InputStream> preOpenedFiles)
             throws MmsException {
         OutputStream os = null;
@@ -843,6 +1101,17 @@ public class PduPersister {
                 }
             } else {
                 boolean isDrm = DownloadDrmHelper.isDrmConvertNeeded(contentType);
+                ByteBuffer dataBuffer = data == null ? part.getDataBuffer() : null;
+                if (sPartStoreEnabled && !isDrm && (data != null || dataBuffer != null)) {
+                    PduPartStore.getInstance(mContext).put(msgId, ContentUris.parseId(uri),
+                            data != null ? ByteBuffer.wrap(data) : dataBuffer);
+                    return;
+                }
+                if (dataBuffer != null) {
+                    // Loaded from the part store, which has been turned off since
+                    data = new byte[dataBuffer.remaining()];
+                    dataBuffer.get(data);
+                }
                 if (isDrm) {
                     if (uri != null) {
                         try {
@@ -893,18 +1162,25 @@ public class PduPersister {
                         Log.v(TAG, "Saving data to: " + uri);
                     }
 
-                    byte[] buffer = new byte[8192];
-                    for (int len = 0; (len = is.read(buffer)) != -1; ) {
-                        if (!isDrm) {
-                            os.write(buffer, 0, len);
-                        } else {
-                            byte[] convertedData = drmConvertSession.convert(buffer, len);
-                            if (convertedData != null) {
-                                os.write(convertedData, 0, convertedData.length);
+                    // Big sources, where their size is known, get a bigger buffer.
+                    int bufferSize = Math.max(MIN_COPY_BUFFER_SIZE,
+                            Math.min(is.available(), MAX_COPY_BUFFER_SIZE));
+                    byte[] buffer = ByteArrayPool.acquire(bufferSize);
+                    try {
+                        for (int len = 0; (len = is.read(buffer)) != -1; ) {
+                            if (!isDrm) {
+                                os.write(buffer, 0, len);
                             } else {
-                                throw new MmsException("Error converting drm data.");
+                                byte[] convertedData = drmConvertSession.convert(buffer, len);
+                                if (convertedData != null) {
+                                    os.write(convertedData, 0, convertedData.length);
+                                } else {
+                                    throw new MmsException("Error converting drm data.");
+                                }
                             }
                         }
+                    } finally {
+                        ByteArrayPool.release(buffer);
                     }
                 } else {
                     if (LOCAL_LOGV) {
@@ -1015,6 +1291,17 @@ public class PduPersister {
         persistAddress(msgId, type, array);
     }
 
+    /**
+     * Find or create the thread for the recipients, through the shared cache.
+     */
+    private long getOrCreateThreadId(Set<String> recipients) {
+        long threadId = ThreadIdCache.getInstance(mContext).getOrCreateThreadId(recipients);
+        if (threadId == -1) {
+            throw new IllegalArgumentException("Unable to find or allocate a thread ID.");
+        }
+        return threadId;
+    }
+
     /**
      * Update headers of a SendReq.
      *
@@ -1120,15 +1407,15 @@ public class PduPersister {
             }
         }
         if (!recipients.isEmpty()) {
-            long threadId = Threads.getOrCreateThreadId(mContext, recipients);
+            long threadId = getOrCreateThreadId(recipients);
             values.put(Mms.THREAD_ID, threadId);
         }
 
         SqliteWrapper.update(mContext, mContentResolver, uri, values, null, null);
     }
 
-    private void updatePart(Uri uri, PduPart part, HashMap<Uri, InputStream> preOpenedFiles)
-            throws MmsException {
+    private void updatePart(Uri uri, PduPart part, long msgId,
+            HashMap<Uri, InputStream> preOpenedFiles) throws MmsException {
         ContentValues values = new ContentValues(7);
 
         int charset = part.getCharset();
@@ -1177,7 +1464,7 @@ public class PduPersister {
         // 2. The Uri of the part is different from the current one.
         if ((part.getData() != null)
                 || (uri != part.getDataUri())) {
-            persistData(part, uri, contentType, preOpenedFiles);
+            persistData(part, uri, msgId, contentType, preOpenedFiles);
         }
     }
 
@@ -1253,7 +1540,7 @@ public class PduPersister {
 
             // Update the modified parts.
             for (Entry<Uri, PduPart> e : toBeUpdated.entrySet()) {
-                updatePart(e.getKey(), e.getValue(), preOpenedFiles);
+                updatePart(e.getKey(), e.getValue(), msgId, preOpenedFiles);
             }
         } finally {
             synchronized(PDU_CACHE_INSTANCE) {
@@ -1283,6 +1570,21 @@ public class PduPersister {
     public Uri persist(GenericPdu pdu, Uri uri, boolean createThreadId, boolean groupMmsEnabled,
             HashMap<Uri, InputStream> preOpenedFiles, int subscriptionId)
             throws MmsException {
+        long start = Instrumentation.start();
+        Uri res = null;
+        try {
+            res = persistPdu(pdu, uri, createThreadId, groupMmsEnabled, preOpenedFiles,
+                    subscriptionId);
+            return res;
+        } finally {
+            Instrumentation.record(Instrumentation.STAGE_PERSIST, start, 0,
+                    res == null ? Instrumentation.OUTCOME_FAILURE : Instrumentation.OUTCOME_SUCCESS);
+        }
+    }
+
+    private Uri persistPdu(GenericPdu pdu, Uri uri, boolean createThreadId,
+            boolean groupMmsEnabled, HashMap<Uri, InputStream> preOpenedFiles, int subscriptionId)
+            throws MmsException {
         if (uri == null) {
             throw new MmsException("Uri may not be null.");
         }
@@ -1375,6 +1677,7 @@ public class PduPersister {
         }
 
         HashSet<String> recipients = new HashSet<String>();
+        RecipientMatcher matcher = new RecipientMatcher(subscriptionId);
         int msgType = pdu.getMessageType();
         // Here we only allocate thread ID for M-Notification.ind,
         // M-Retrieve.conf and M-Send.req.
@@ -1386,7 +1689,7 @@ public class PduPersister {
             switch (msgType) {
                 case PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND:
                 case PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF:
-                    loadRecipients(PduHeaders.FROM, recipients, addressMap, false);
+                    loadRecipients(PduHeaders.FROM, recipients, matcher, addressMap, false);
 
                     // For received messages when group MMS is enabled, we want to associate this
                     // message with the thread composed of all the recipients -- all but our own
@@ -1395,30 +1698,30 @@ public class PduPersister {
                     // was addressed to or the TO field. Our own number is in that TO field and
                     // we have to ignore it in loadRecipients.
                     if (groupMmsEnabled) {
-                        loadRecipients(PduHeaders.TO, recipients, addressMap, true);
+                        loadRecipients(PduHeaders.TO, recipients, matcher, addressMap, true);
 
                         // Also load any numbers in the CC field to address group messaging
                         // compatibility issues with devices that place numbers in this field
                         // for group messages.
-                        loadRecipients(PduHeaders.CC, recipients, addressMap, true);
+                        loadRecipients(PduHeaders.CC, recipients, matcher, addressMap, true);
                     }
                     break;
                 case PduHeaders.MESSAGE_TYPE_SEND_REQ:
-                    loadRecipients(PduHeaders.TO, recipients, addressMap, false);
+                    loadRecipients(PduHeaders.TO, recipients, matcher, addressMap, false);
                     break;
             }
             long threadId = DUMMY_THREAD_ID;
             if (createThreadId && !recipients.isEmpty()) {
                 // Given all the recipients associated with this message, find (or create) the
                 // correct thread.
-                threadId = Threads.getOrCreateThreadId(mContext, recipients);
+                threadId = getOrCreateThreadId(recipients);
             }
             values.put(Mms.THREAD_ID, threadId);
         }
 
         // Save parts first to avoid inconsistent message is loaded
         // while saving the parts.
-        long dummyId = System.currentTimeMillis(); // Dummy ID of the msg.
+        long dummyId = nextDummyId(); // Dummy ID of the msg.
 
         // Figure out if this PDU is a text-only message
         boolean textOnly = true;
@@ -1439,10 +1742,10 @@ public class PduPersister {
                     // Otherwise, a slideshow with two text slides would be marked as textOnly.
                     textOnly = false;
                 }
+                persistParts(body, dummyId, preOpenedFiles);
                 for (int i = 0; i < partsNum; i++) {
                     PduPart part = body.getPart(i);
                     messageSize += part.getDataLength();
-                    persistPart(part, dummyId, preOpenedFiles);
 
                     // If we've got anything besides text/plain or SMIL part, then we've got
                     // an mms message with some other type of attachment.
@@ -1487,6 +1790,9 @@ public class PduPersister {
         SqliteWrapper.update(mContext, mContentResolver,
                              Uri.parse("content://mms/" + dummyId + "/part"),
                              values, null, null);
+        if (sPartStoreEnabled) {
+            PduPartStore.getInstance(mContext).rekey(dummyId, msgId);
+        }
         // We should return the longest URI of the persisted PDU, for
         // example, if input URI is "content://mms/inbox" and the _ID of
         // persisted PDU is '8', we should return "content://mms/inbox/8"
@@ -1516,7 +1822,8 @@ public class PduPersister {
      * @param excludeMyNumber if true, the number of this phone will be excluded from recipients
      */
     private void loadRecipients(int addressType, HashSet<String> recipients,
-            HashMap<Integer, EncodedStringValue[]> addressMap, boolean excludeMyNumber) {
+            RecipientMatcher matcher, HashMap<Integer, EncodedStringValue[]> addressMap,
+            boolean excludeMyNumber) {
         EncodedStringValue[] array = addressMap.get(addressType);
         if (array == null) {
             return;
@@ -1528,19 +1835,51 @@ public class PduPersister {
         if (excludeMyNumber && array.length == 1 && addressType == PduHeaders.TO) {
             return;
         }
-        String myNumber = excludeMyNumber ? mTelephonyManager.getLine1Number() : null;
         for (EncodedStringValue v : array) {
             if (v != null) {
                 String number = v.getString();
-                if ((myNumber == null || !PhoneNumberUtils.compare(number, myNumber)) &&
-                        !recipients.contains(number)) {
-                    // Only add numbers which aren't my own number.
+                // Only add numbers which aren't my own number, and only the first spelling
+                // of each number.
+                if (matcher.add(number, excludeMyNumber)) {
                     recipients.add(number);
                 }
             }
         }
     }
 
+    /**
+     * Tracks the recipients of one message by their normalized keys, so the same person
+     * written two ways is only added once.
+     */
+    private class RecipientMatcher {
+        private final RecipientNormalizer mNormalizer =
+                RecipientNormalizer.getInstance(mContext);
+        private final HashSet<String> mKeys = new HashSet<String>();
+        private final int mSubId;
+
+        RecipientMatcher(int subId) {
+            mSubId = subId;
+        }
+
+        /**
+         * @return true if the address is new and should be added to the recipients
+         */
+        boolean add(String address, boolean excludeMyNumber) {
+            if (address == null) {
+                return false;
+            }
+            String key = mNormalizer.normalize(address);
+            if (mKeys.contains(key)) {
+                return false;
+            }
+            if (excludeMyNumber && mNormalizer.isMyNumber(address, key, mSubId)) {
+                return false;
+            }
+            mKeys.add(key);
+            return true;
+        }
+    }
+
     /**
      * Move a PDU object from one location to another.
      *
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu_alt;
+
+import android.net.Uri;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes a {@link GenericPdu} in a compact binary form and reads it back,
+ * for handing parsed PDUs between components or keeping them on disk.
+ *
+ * Unlike {@link PduComposer} and {@link PduParser} this doesn't go through
+ * WSP encoding: every header is written as its field, a type and the value
+ * the same way it is held in {@link PduHeaders}, so reading a PDU back is
+ * little more than filling a map. Any header can be written, whatever the
+ * message type.
+ *
+ * Part data is only written when the part holds it in memory. A part whose
+ * data is kept in a file, like the media parts loaded by
+ * {@link PduPersister#load}, is written as its data Uri and the data stays
+ * where it is.
+ *
+ * <pre>
+ * pdu     = magic "MMSP" (4) | version (1) | count (1) | header* | has-body (1) | body?
+ * header  = field (1) | type (1) | value
+ * body    = count (var) | part*
+ * part    = count (1) | (field (1) | type (1) | value)* | uri | data
+ * </pre>
+ *
+ * Lengths, charsets and long values are written in as many bytes as they
+ * need, 7 bits per byte, so most headers take only a few bytes more than
+ * their text.
+ */
+public class PduSerializer {
+    private static final int MAGIC = 0x4d4d5350; // "MMSP"
+    private static final int VERSION = 1;
+
+    private static final int TYPE_OCTET = 1;
+    private static final int TYPE_LONG = 2;
+    private static final int TYPE_TEXT = 3;
+    private static final int TYPE_ENCODED = 4;
+    private static final int TYPE_ENCODED_LIST = 5;
+    private static final int TYPE_INTEGER = 6;
+
+    private PduSerializer() {
+    }
+
+    /**
+     * Serialize a PDU.
+     *
+     * @param pdu the PDU, which may have a body
+     * @return the serialized PDU
+     * @throws IOException if a header holds a value that can't be written
+     */
+    public static byte[] serialize(GenericPdu pdu) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        final DataOutputStream out = new DataOutputStream(bytes);
+        write(pdu, out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read a PDU serialized with {@link #serialize}.
+     *
+     * @param data the serialized PDU
+     * @return the PDU, of the class that matches its message type
+     * @throws IOException if the data isn't a serialized PDU or is cut off
+     */
+    public static GenericPdu deserialize(byte[] data) throws IOException {
+        return read(new ByteArrayInputStream(data), data.length);
+    }
+
+    /**
+     * Write a PDU to a stream, see {@link #serialize}.
+     */
+    public static void write(GenericPdu pdu, DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+
+        final HashMap<Integer, Object> headers = pdu.getPduHeaders().getHeaderMap();
+        out.writeByte(headers.size());
+        for (Map.Entry<Integer, Object> header : headers.entrySet()) {
+            out.writeByte(header.getKey());
+            writeValue(header.getValue(), out);
+        }
+
+        final PduBody body = pdu instanceof MultimediaMessagePdu
+                ? ((MultimediaMessagePdu) pdu).getBody() : null;
+        out.writeBoolean(body != null);
+        if (body == null) {
+            return;
+        }
+
+        final int partsNum = body.getPartsNum();
+        writeVarLong(partsNum, out);
+        for (int i = 0; i < partsNum; i++) {
+            final PduPart part = body.getPart(i);
+            final Map<Integer, Object> partHeaders = part.getPartHeader();
+            out.writeByte(partHeaders.size());
+            for (Map.Entry<Integer, Object> header : partHeaders.entrySet()) {
+                out.writeByte(header.getKey());
+                writeValue(header.getValue(), out);
+            }
+
+            final Uri uri = part.getDataUri();
+            out.writeBoolean(uri != null);
+            if (uri != null) {
+                out.writeUTF(uri.toString());
+            }
+            writeBytes(part.getData(), out);
+        }
+    }
+
+    /**
+     * Read a PDU from a stream, see {@link #deserialize}.
+     *
+     * @param stream the stream, positioned at the start of the PDU
+     * @param length the number of bytes left in the stream. No value longer
+     *               than this is read, so a damaged length fails with an
+     *               IOException instead of running out of memory.
+     */
+    public static GenericPdu read(InputStream stream, long length) throws IOException {
+        final Input in = new Input(stream, length);
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new IOException("Not a serialized PDU");
+        }
+
+        final PduHeaders headers = new PduHeaders();
+        final HashMap<Integer, Object> headerMap = headers.getHeaderMap();
+        for (int count = in.readUnsignedByte(); count > 0; count--) {
+            final int field = in.readUnsignedByte();
+            headerMap.put(field, readValue(in));
+        }
+
+        PduBody body = null;
+        if (in.readBoolean()) {
+            body = new PduBody();
+            for (long partsNum = readVarLong(in); partsNum > 0; partsNum--) {
+                final PduPart part = new PduPart();
+                final Map<Integer, Object> partHeaders = part.getPartHeader();
+                for (int count = in.readUnsignedByte(); count > 0; count--) {
+                    final int field = in.readUnsignedByte();
+                    partHeaders.put(field, readValue(in));
+                }
+                if (in.readBoolean()) {
+                    part.setDataUri(Uri.parse(in.readUTF()));
+                }
+                part.setData(readBytes(in));
+                body.addPart(part);
+            }
+        }
+
+        final int messageType = headers.getOctet(PduHeaders.MESSAGE_TYPE);
+        switch (messageType) {
+            case PduHeaders.MESSAGE_TYPE_SEND_REQ:
+                return body != null ? new SendReq(headers, body) : new SendReq(headers);
+            case PduHeaders.MESSAGE_TYPE_RETRIEVE_CONF:
+                return body != null ? new RetrieveConf(headers, body) : new RetrieveConf(headers);
+            case PduHeaders.MESSAGE_TYPE_SEND_CONF:
+                return new SendConf(headers);
+            case PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND:
+                return new NotificationInd(headers);
+            case PduHeaders.MESSAGE_TYPE_NOTIFYRESP_IND:
+                return new NotifyRespInd(headers);
+            case PduHeaders.MESSAGE_TYPE_ACKNOWLEDGE_IND:
+                return new AcknowledgeInd(headers);
+            case PduHeaders.MESSAGE_TYPE_DELIVERY_IND:
+                return new DeliveryInd(headers);
+            case PduHeaders.MESSAGE_TYPE_READ_REC_IND:
+                return new ReadRecInd(headers);
+            case PduHeaders.MESSAGE_TYPE_READ_ORIG_IND:
+                return new ReadOrigInd(headers);
+            default:
+                throw new IOException("Unsupported PDU type: " + Integer.toHexString(messageType));
+        }
+    }
+
+    private static void writeValue(Object value, DataOutputStream out) throws IOException {
+        if (value instanceof Integer) {
+            // Octet headers and the charset of a part are the only Integers
+            final int intValue = (Integer) value;
+            if (intValue >= 0 && intValue <= 0xFF) {
+                out.writeByte(TYPE_OCTET);
+                out.writeByte(intValue);
+            } else {
+                out.writeByte(TYPE_INTEGER);
+                writeVarLong(intValue, out);
+            }
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            writeVarLong((Long) value, out);
+        } else if (value instanceof byte[]) {
+            out.writeByte(TYPE_TEXT);
+            writeBytes((byte[]) value, out);
+        } else if (value instanceof EncodedStringValue) {
+            out.writeByte(TYPE_ENCODED);
+            writeEncodedStringValue((EncodedStringValue) value, out);
+        } else if (value instanceof ArrayList) {
+            final ArrayList<?> list = (ArrayList<?>) value;
+            out.writeByte(TYPE_ENCODED_LIST);
+            writeVarLong(list.size(), out);
+            for (Object item : list) {
+                writeEncodedStringValue((EncodedStringValue) item, out);
+            }
+        } else {
+            throw new IOException("Can't serialize header value " + value);
+        }
+    }
+
+    private static Object readValue(Input in) throws IOException {
+        final int type = in.readUnsignedByte();
+        switch (type) {
+            case TYPE_OCTET:
+                return in.readUnsignedByte();
+            case TYPE_INTEGER:
+                return (int) readVarLong(in);
+            case TYPE_LONG:
+                return readVarLong(in);
+            case TYPE_TEXT:
+                return readBytes(in);
+            case TYPE_ENCODED:
+                return readEncodedStringValue(in);
+            case TYPE_ENCODED_LIST:
+                final long size = readVarLong(in);
+                // Every value takes at least two bytes
+                if (size < 0 || size > in.remaining() / 2) {
+                    throw new IOException("Bad list size " + size);
+                }
+                final ArrayList<EncodedStringValue> list = new ArrayList<EncodedStringValue>((int) size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readEncodedStringValue(in));
+                }
+                return list;
+            default:
+                throw new IOException("Unknown header value type " + type);
+        }
+    }
+
+    private static void writeEncodedStringValue(EncodedStringValue value, DataOutputStream out)
+            throws IOException {
+        writeVarLong(value.getCharacterSet(), out);
+        writeBytes(value.getTextString(), out);
+    }
+
+    private static EncodedStringValue readEncodedStringValue(Input in)
+            throws IOException {
+        final int charset = (int) readVarLong(in);
+        final byte[] text = readBytes(in);
+        if (text == null) {
+            throw new IOException("Missing text");
+        }
+        return new EncodedStringValue(charset, text);
+    }
+
+    private static void writeBytes(byte[] value, DataOutputStream out) throws IOException {
+        if (value == null) {
+            writeVarLong(-1, out);
+        } else {
+            writeVarLong(value.length, out);
+            out.write(value);
+        }
+    }
+
+    private static byte[] readBytes(Input in) throws IOException {
+        final long length = readVarLong(in);
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.remaining()) {
+            throw new IOException("Bad length " + length);
+        }
+        final byte[] value = new byte[(int) length];
+        in.readFully(value);
+        return value;
+    }
+
+    /**
+     * Write a number in as few bytes as it needs, 7 bits per byte. Small
+     * negative numbers stay short as well.
+     */
+    private static void writeVarLong(long value, DataOutputStream out) throws IOException {
+        long zigzag = (value << 1) ^ (value >> 63);
+        while ((zigzag & ~0x7FL) != 0) {
+            out.writeByte((int) ((zigzag & 0x7F) | 0x80));
+            zigzag >>>= 7;
+        }
+        out.writeByte((int) zigzag);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long zigzag = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final int b = in.readUnsignedByte();
+            zigzag |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed number");
+    }
+
+    /**
+     * Keeps count of the bytes left, so lengths can be checked before
+     * anything is allocated for them.
+     */
+    private static class Input extends DataInputStream {
+        Input(InputStream in, long length) {
+            super(new Counter(in, length));
+        }
+
+        long remaining() {
+            return ((Counter) in).mRemaining;
+        }
+    }
+
+    private static class Counter extends FilterInputStream {
+        private long mRemaining;
+
+        Counter(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int count = super.read(b, off, len);
+            if (count > 0) {
+                mRemaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long count = super.skip(n);
+            mRemaining -= count;
+            return count;
+        }
+    }
+}
@@ -16,11 +16,25 @@
 
 package com.google.android.mms.pdu_alt;
 
-import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
 
 public class QuotedPrintable {
     private static byte ESCAPE_CHAR = '=';
 
+    // Maps every octet to its hex digit value, -1 if it isn't one.
+    private static final byte[] HEX_TABLE = new byte[256];
+
+    static {
+        Arrays.fill(HEX_TABLE, (byte) -1);
+        for (int i = '0'; i <= '9'; i++) {
+            HEX_TABLE[i] = (byte) (i - '0');
+        }
+        for (int i = 'A'; i <= 'F'; i++) {
+            HEX_TABLE[i] = (byte) (i - 'A' + 10);
+            HEX_TABLE[i - 'A' + 'a'] = (byte) (i - 'A' + 10);
+        }
+    }
+
     /**
      * Decodes an array quoted-printable characters into an array of original bytes.
      * Escaped characters are converted back to their original representation.
@@ -39,29 +53,52 @@ public class QuotedPrintable {
         if (bytes == null) {
             return null;
         }
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        for (int i = 0; i < bytes.length; i++) {
-            int b = bytes[i];
+        byte[] buffer = new byte[bytes.length];
+        int length = decodeQuotedPrintable(bytes, 0, bytes.length, buffer, 0);
+        if (length < 0) {
+            return null;
+        }
+        return length == buffer.length ? buffer : Arrays.copyOf(buffer, length);
+    }
+
+    /**
+     * Decodes a slice of quoted-printable characters into the given buffer in
+     * a single pass. The output is never longer than the input, so dst needs
+     * room for length bytes after dstOffset.
+     *
+     * @param src buffer containing quoted-printable characters
+     * @param offset start of the data in src
+     * @param length number of bytes of data
+     * @param dst buffer receiving the original bytes
+     * @param dstOffset first position written in dst
+     * @return the number of bytes written,
+     *         -1 if quoted-printable decoding is unsuccessful.
+     */
+    public static int decodeQuotedPrintable(byte[] src, int offset, int length,
+            byte[] dst, int dstOffset) {
+        int end = offset + length;
+        int out = dstOffset;
+        for (int i = offset; i < end; i++) {
+            byte b = src[i];
             if (b == ESCAPE_CHAR) {
-                try {
-                    if('\r' == (char)bytes[i + 1] &&
-                            '\n' == (char)bytes[i + 2]) {
-                        i += 2;
-                        continue;
-                    }
-                    int u = Character.digit((char) bytes[++i], 16);
-                    int l = Character.digit((char) bytes[++i], 16);
-                    if (u == -1 || l == -1) {
-                        return null;
-                    }
-                    buffer.write((char) ((u << 4) + l));
-                } catch (ArrayIndexOutOfBoundsException e) {
-                    return null;
+                // Both a soft line break and an escape need two more bytes.
+                if (i + 2 >= end) {
+                    return -1;
+                }
+                if ('\r' == src[i + 1] && '\n' == src[i + 2]) {
+                    i += 2;
+                    continue;
+                }
+                int u = HEX_TABLE[src[++i] & 0xff];
+                int l = HEX_TABLE[src[++i] & 0xff];
+                if (u == -1 || l == -1) {
+                    return -1;
                 }
+                dst[out++] = (byte) ((u << 4) + l);
             } else {
-                buffer.write(b);
+                dst[out++] = b;
             }
         }
-        return buffer.toByteArray();
+        return out - dstOffset;
     }
 }
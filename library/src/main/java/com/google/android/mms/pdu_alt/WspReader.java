@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.pdu_alt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Cursor over an encoded WSP/MMS byte array.
+ *
+ * Unlike a ByteArrayInputStream, every primitive works directly on the
+ * backing array and position, and text strings are reported as slices of
+ * that array instead of being copied into a new buffer per token. The last
+ * string scanned by {@link #readString(int)} stays available through
+ * {@link #stringOffset()}, {@link #stringLength()} and {@link #stringBytes()}
+ * until the next string is read.
+ *
+ * Reading past the end behaves like ByteArrayInputStream: single byte reads
+ * return -1 and bulk reads are short.
+ */
+public final class WspReader {
+    /**
+     * The next are WAP values defined in WSP specification.
+     */
+    static final int QUOTE = 127;
+    static final int LENGTH_QUOTE = 31;
+    static final int TEXT_MIN = 32;
+    static final int TEXT_MAX = 127;
+    static final int SHORT_INTEGER_MAX = 127;
+    static final int SHORT_LENGTH_MAX = 30;
+    static final int LONG_INTEGER_LENGTH_MAX = 8;
+    static final int QUOTED_STRING_FLAG = 34;
+
+    /**
+     * String types understood by {@link #readString(int)}.
+     */
+    public static final int TYPE_TEXT_STRING = 0;
+    public static final int TYPE_QUOTED_STRING = 1;
+    public static final int TYPE_TOKEN_STRING = 2;
+
+    /**
+     * Character classes, indexed by octet value.
+     */
+    private static final byte CLASS_TEXT = 1;
+    private static final byte CLASS_TOKEN = 2;
+    private static final byte[] CHAR_CLASS = new byte[256];
+
+    static {
+        for (int ch = 0; ch < 256; ch++) {
+            byte cls = 0;
+            if (PduParser.isText(ch)) {
+                cls |= CLASS_TEXT;
+            }
+            if (PduParser.isTokenCharacter(ch)) {
+                cls |= CLASS_TOKEN;
+            }
+            CHAR_CLASS[ch] = cls;
+        }
+    }
+
+    private final byte[] mBuf;
+    private final int mStart;
+    private final int mLimit;
+    private int mPos;
+    private int mMark;
+
+    /**
+     * Bounds of the last string read, and how many of its octets
+     * survived the character class filter.
+     */
+    private int mStrStart;
+    private int mStrEnd;
+    private int mStrLength;
+    private byte mStrMask;
+
+    /**
+     * Constructor.
+     *
+     * @param data encoded data
+     */
+    public WspReader(byte[] data) {
+        this(data, 0, data.length);
+    }
+
+    /**
+     * Constructor over a slice of an array. The slice is not copied.
+     *
+     * @param data encoded data
+     * @param offset first octet of the slice
+     * @param length length of the slice
+     */
+    public WspReader(byte[] data, int offset, int length) {
+        if ((offset < 0) || (length < 0) || (offset + length > data.length)) {
+            throw new IndexOutOfBoundsException();
+        }
+        mBuf = data;
+        mStart = offset;
+        mLimit = offset + length;
+        mPos = offset;
+        mMark = offset;
+    }
+
+    /**
+     * Create a reader over the remaining octets of a buffer. Heap buffers are
+     * read in place; other buffers are copied once. The buffer's position is
+     * not changed.
+     *
+     * @param buffer encoded data
+     * @return the reader
+     */
+    public static WspReader wrap(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return new WspReader(buffer.array(),
+                    buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        byte[] copy = new byte[buffer.remaining()];
+        buffer.duplicate().get(copy);
+        return new WspReader(copy);
+    }
+
+    /**
+     * @return the backing array, offsets returned by this reader index into it
+     */
+    public byte[] array() {
+        return mBuf;
+    }
+
+    /**
+     * @return the current position in the backing array
+     */
+    public int position() {
+        return mPos;
+    }
+
+    /**
+     * Move the cursor.
+     *
+     * @param position new position in the backing array
+     */
+    public void position(int position) {
+        if ((position < mStart) || (position > mLimit)) {
+            throw new IndexOutOfBoundsException();
+        }
+        mPos = position;
+    }
+
+    /**
+     * @return the number of octets left to read
+     */
+    public int available() {
+        return mLimit - mPos;
+    }
+
+    /**
+     * Remember the current position for {@link #reset()}.
+     */
+    public void mark() {
+        mMark = mPos;
+    }
+
+    /**
+     * Go back to the last marked position, or the start if none was marked.
+     */
+    public void reset() {
+        mPos = mMark;
+    }
+
+    /**
+     * @return the next octet as 0-255, or -1 at the end of data
+     */
+    public int read() {
+        return (mPos < mLimit) ? (mBuf[mPos++] & 0xFF) : -1;
+    }
+
+    /**
+     * @return the next octet as 0-255 without consuming it, or -1 at the end of data
+     */
+    public int peek() {
+        return (mPos < mLimit) ? (mBuf[mPos] & 0xFF) : -1;
+    }
+
+    /**
+     * Copy octets out of the data.
+     *
+     * @return the number of octets copied, -1 at the end of data
+     */
+    public int read(byte[] dst, int offset, int length) {
+        if (mPos >= mLimit) {
+            return -1;
+        }
+        int count = Math.min(length, mLimit - mPos);
+        System.arraycopy(mBuf, mPos, dst, offset, count);
+        mPos += count;
+        return count;
+    }
+
+    /**
+     * Skip octets.
+     *
+     * @param length number of octets to skip
+     * @return length, or -1 if fewer octets were left (the cursor is then at the end)
+     */
+    public int skip(int length) {
+        if (length > mLimit - mPos) {
+            mPos = mLimit;
+            return -1;
+        }
+        mPos += length;
+        return length;
+    }
+
+    /**
+     * Parse an octet, same as {@link #read()} with the end of data reported as 255.
+     */
+    public int readByte() {
+        return read() & 0xFF;
+    }
+
+    /**
+     * Parse Uintvar-integer.
+     *
+     * @return the integer, -1 when failed
+     */
+    public int readUintvar() {
+        /**
+         * From wap-230-wsp-20010705-a.pdf
+         * The maximum size of a uintvar is 32 bits.
+         * So it will be encoded in no more than 5 octets.
+         */
+        final byte[] buf = mBuf;
+        final int limit = mLimit;
+        int pos = mPos;
+        int result = 0;
+        int temp;
+        do {
+            if (pos >= limit) {
+                mPos = pos;
+                return -1;
+            }
+            temp = buf[pos++];
+            result = (result << 7) | (temp & 0x7F);
+        } while ((temp & 0x80) != 0);
+        mPos = pos;
+        return result;
+    }
+
+    /**
+     * Parse Value-length.
+     *
+     * @return the length
+     */
+    public int readValueLength() {
+        /**
+         * From wap-230-wsp-20010705-a.pdf
+         * Value-length = Short-length | (Length-quote Length)
+         * Short-length = <Any octet 0-30>
+         * Length-quote = <Octet 31>
+         * Length = Uintvar-integer
+         */
+        int first = read() & 0xFF;
+        if (first <= SHORT_LENGTH_MAX) {
+            return first;
+        } else if (first == LENGTH_QUOTE) {
+            return readUintvar();
+        }
+
+        throw new RuntimeException("Value length > LENGTH_QUOTE!");
+    }
+
+    /**
+     * Parse Short-integer.
+     *
+     * @return the value
+     */
+    public int readShortInteger() {
+        return read() & 0x7F;
+    }
+
+    /**
+     * Parse Long-integer.
+     *
+     * @return the value
+     */
+    public long readLongInteger() {
+        /**
+         * From wap-230-wsp-20010705-a.pdf
+         * Long-integer = Short-length Multi-octet-integer
+         * Multi-octet-integer = 1*30 OCTET, big-endian
+         */
+        int count = read() & 0xFF;
+        if (count > LONG_INTEGER_LENGTH_MAX) {
+            throw new RuntimeException("Octet count greater than 8 and I can't represent that!");
+        }
+
+        final byte[] buf = mBuf;
+        int pos = mPos;
+        int inRange = Math.min(count, mLimit - pos);
+        long result = 0;
+        for (int i = 0; i < inRange; i++) {
+            result = (result << 8) + (buf[pos++] & 0xFF);
+        }
+        for (int i = inRange; i < count; i++) {
+            // Past the end; ByteArrayInputStream used to yield -1 here.
+            result = (result << 8) + 0xFF;
+        }
+        mPos = pos;
+        return result;
+    }
+
+    /**
+     * Parse Integer-Value.
+     *
+     * @return the value
+     */
+    public long readIntegerValue() {
+        /**
+         * From wap-230-wsp-20010705-a.pdf
+         * Integer-Value = Short-integer | Long-integer
+         */
+        if (peek() > SHORT_INTEGER_MAX) {
+            return readShortInteger();
+        } else {
+            return readLongInteger();
+        }
+    }
+
+    /**
+     * Skip a header value of unknown type, using the general encoding rules.
+     *
+     * @return false if the value runs past the end of data
+     */
+    public boolean skipValue() {
+        /**
+         * From wap-230-wsp-20010705-a.pdf, chapter 8.4.1.2
+         * The first octet of a value tells how it continues:
+         * 0 - 30    This octet is followed by the indicated number (0 - 30) of data octets
+         * 31        This octet is followed by a uintvar, which indicates the number
+         *           of data octets after it
+         * 32 - 127  The value is a text string, terminated by a zero octet (NUL character)
+         * 128 - 255 It is an encoded 7-bit value; this header has no more data
+         */
+        int first = read();
+        if (first == -1) {
+            return false;
+        } else if (first <= SHORT_LENGTH_MAX) {
+            return skip(first) != -1;
+        } else if (first == LENGTH_QUOTE) {
+            int length = readUintvar();
+            return (length >= 0) && (skip(length) != -1);
+        } else if (first <= TEXT_MAX) {
+            mPos--;
+            readString(TYPE_TEXT_STRING);
+            return true;
+        }
+        return true;
+    }
+
+    /**
+     * Scan Text-string, Quoted-string or Token-text without copying it.
+     * The leading Quote (or quotation mark) and the End-of-string octet are
+     * consumed but are not part of the slice.
+     *
+     * @param stringType TYPE_TEXT_STRING, TYPE_QUOTED_STRING or TYPE_TOKEN_STRING
+     * @return the number of valid TEXT (or TOKEN) octets in the string
+     */
+    public int readString(int stringType) {
+        /**
+         * From wap-230-wsp-20010705-a.pdf
+         * Text-string = [Quote] *TEXT End-of-string
+         * Quoted-string = <Octet 34> *TEXT End-of-string
+         * Token-text = Token End-of-string
+         */
+        final byte[] buf = mBuf;
+        final int limit = mLimit;
+        int pos = mPos;
+        if (pos < limit) {
+            int first = buf[pos] & 0xFF;
+            if (((TYPE_QUOTED_STRING == stringType) && (QUOTED_STRING_FLAG == first))
+                    || ((TYPE_TEXT_STRING == stringType) && (QUOTE == first))) {
+                pos++;
+            }
+        }
+
+        final byte mask = (stringType == TYPE_TOKEN_STRING) ? CLASS_TOKEN : CLASS_TEXT;
+        final int start = pos;
+        int valid = 0;
+        while ((pos < limit) && (buf[pos] != 0)) {
+            if ((CHAR_CLASS[buf[pos] & 0xFF] & mask) != 0) {
+                valid++;
+            }
+            pos++;
+        }
+        mStrStart = start;
+        mStrEnd = pos;
+        mStrLength = valid;
+        mStrMask = mask;
+
+        // Consume End-of-string.
+        mPos = (pos < limit) ? pos + 1 : pos;
+        return valid;
+    }
+
+    /**
+     * @return offset of the last string in the backing array
+     */
+    public int stringOffset() {
+        return mStrStart;
+    }
+
+    /**
+     * @return the number of octets in the last string, including any that
+     *         {@link #stringBytes()} filters out as invalid
+     */
+    public int stringLength() {
+        return mStrEnd - mStrStart;
+    }
+
+    /**
+     * Copy the valid octets of the last string.
+     *
+     * @return the string without End-of-string, null if it was empty
+     */
+    public byte[] stringBytes() {
+        if (mStrLength == 0) {
+            return null;
+        }
+        byte[] out = new byte[mStrLength];
+        if (mStrLength == mStrEnd - mStrStart) {
+            System.arraycopy(mBuf, mStrStart, out, 0, mStrLength);
+        } else {
+            // Invalid octets were seen; filter with the same class as the scan.
+            int j = 0;
+            for (int i = mStrStart; (i < mStrEnd) && (j < out.length); i++) {
+                if ((CHAR_CLASS[mBuf[i] & 0xFF] & mStrMask) != 0) {
+                    out[j++] = mBuf[i];
+                }
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Compare the last string against an ASCII value, ignoring case.
+     *
+     * @param value the value to compare with
+     * @return true if equal
+     */
+    public boolean stringEqualsIgnoreCase(String value) {
+        int length = mStrEnd - mStrStart;
+        if ((mStrLength != length) || (value.length() != length)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            int a = mBuf[mStrStart + i] & 0xFF;
+            int b = value.charAt(i);
+            if (a != b) {
+                if ((a >= 'A') && (a <= 'Z')) {
+                    a += 'a' - 'A';
+                }
+                if ((b >= 'A') && (b <= 'Z')) {
+                    b += 'a' - 'A';
+                }
+                if (a != b) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
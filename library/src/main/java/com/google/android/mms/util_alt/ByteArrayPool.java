@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util_alt;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A small pool of byte arrays shared by the pdu composer and the http code, so
+ * that sending and acknowledging messages doesn't allocate fresh buffers for
+ * every request.
+ *
+ * Arrays come in a fixed set of size classes, each holding a few free arrays
+ * in lock-free slots. Requests larger than the biggest class are allocated
+ * directly and dropped on release.
+ */
+public final class ByteArrayPool {
+    private static final int[] CLASS_SIZES = {
+            1024, 4 * 1024, 16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024
+    };
+
+    // Free arrays kept per size class, fewer for the large ones.
+    private static final int[] CLASS_SLOTS = {
+            16, 8, 4, 4, 2, 1
+    };
+
+    private static final AtomicReferenceArray<byte[]>[] sSlots;
+
+    private static final AtomicLong sHits = new AtomicLong();
+    private static final AtomicLong sMisses = new AtomicLong();
+    private static final AtomicLong sDropped = new AtomicLong();
+
+    static {
+        @SuppressWarnings("unchecked")
+        AtomicReferenceArray<byte[]>[] slots = new AtomicReferenceArray[CLASS_SIZES.length];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new AtomicReferenceArray<byte[]>(CLASS_SLOTS[i]);
+        }
+        sSlots = slots;
+    }
+
+    private ByteArrayPool() {
+    }
+
+    /**
+     * Get an array of at least minSize bytes. Its contents are undefined.
+     *
+     * @param minSize the smallest acceptable length
+     * @return an array that should be handed back to {@link #release(byte[])}
+     *         once the caller is done with it
+     */
+    public static byte[] acquire(int minSize) {
+        int sizeClass = sizeClassOf(minSize);
+        if (sizeClass < 0) {
+            sMisses.incrementAndGet();
+            return new byte[minSize];
+        }
+
+        AtomicReferenceArray<byte[]> slots = sSlots[sizeClass];
+        for (int i = 0; i < slots.length(); i++) {
+            byte[] buffer = slots.get(i);
+            if (buffer != null && slots.compareAndSet(i, buffer, null)) {
+                sHits.incrementAndGet();
+                return buffer;
+            }
+        }
+
+        sMisses.incrementAndGet();
+        return new byte[CLASS_SIZES[sizeClass]];
+    }
+
+    /**
+     * Hand an array back to the pool. Arrays that weren't handed out by
+     * {@link #acquire(int)}, or that don't fit in a full size class, are left
+     * to the garbage collector. The caller must not touch the array afterwards.
+     *
+     * @param buffer the array to release, may be null
+     */
+    public static void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        int sizeClass = sizeClassOf(buffer.length);
+        if (sizeClass < 0 || CLASS_SIZES[sizeClass] != buffer.length) {
+            return;
+        }
+
+        AtomicReferenceArray<byte[]> slots = sSlots[sizeClass];
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, buffer)) {
+                return;
+            }
+        }
+        sDropped.incrementAndGet();
+    }
+
+    /**
+     * Drop every pooled array, e.g. when the system is low on memory.
+     */
+    public static void trim() {
+        for (AtomicReferenceArray<byte[]> slots : sSlots) {
+            for (int i = 0; i < slots.length(); i++) {
+                slots.set(i, null);
+            }
+        }
+    }
+
+    /**
+     * @return the number of acquire() calls served from the pool
+     */
+    public static long getHitCount() {
+        return sHits.get();
+    }
+
+    /**
+     * @return the number of acquire() calls that had to allocate
+     */
+    public static long getMissCount() {
+        return sMisses.get();
+    }
+
+    /**
+     * @return the number of released arrays dropped because their class was full
+     */
+    public static long getDroppedCount() {
+        return sDropped.get();
+    }
+
+    /**
+     * @return the fraction of acquire() calls served from the pool, 0 if none
+     */
+    public static float getHitRate() {
+        long hits = sHits.get();
+        long total = hits + sMisses.get();
+        return total == 0 ? 0f : (float) hits / total;
+    }
+
+    public static String getStats() {
+        return "ByteArrayPool: hits=" + sHits.get() + " misses=" + sMisses.get()
+                + " dropped=" + sDropped.get() + " hitRate=" + getHitRate();
+    }
+
+    /**
+     * @return the index of the smallest class holding size bytes, -1 if none does
+     */
+    private static int sizeClassOf(int size) {
+        for (int i = 0; i < CLASS_SIZES.length; i++) {
+            if (size <= CLASS_SIZES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -17,6 +17,7 @@
 package com.google.android.mms.util_alt;
 
 import android.content.ContentUris;
+import android.content.Context;
 import android.content.UriMatcher;
 import android.net.Uri;
 import android.provider.Telephony.Mms;
@@ -73,6 +74,7 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     private final HashMap<Integer, HashSet<Uri>> mMessageBoxes;
     private final HashMap<Long, HashSet<Uri>> mThreads;
     private final HashSet<Uri> mUpdating;
+    private PduDiskCache mDiskCache;
 
     private PduCache() {
         mMessageBoxes = new HashMap<Integer, HashSet<Uri>>();
@@ -112,10 +114,44 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
             msgBox.add(finalKey);
             thread.add(finalKey);
         }
+        // Also when memory is full, that's when the disk helps most
+        if (mDiskCache != null && finalKey != null) {
+            mDiskCache.put(finalKey, entry);
+        }
         setUpdating(uri, false);
         return result;
     }
 
+    /**
+     * Keep entries on disk as well, to fall back to with {@link #getFromDisk}.
+     *
+     * @param diskCache the disk cache, or null to stop using it
+     */
+    synchronized public void setDiskCache(PduDiskCache diskCache) {
+        mDiskCache = diskCache;
+    }
+
+    /**
+     * Look for an entry on disk, for when it isn't in memory. This reads a
+     * file, so it shouldn't be called while holding the lock of the cache.
+     *
+     * @param context checks the entry against the provider of this context
+     * @param uri the Uri of the message
+     * @return the entry, or null if there is none
+     */
+    public PduCacheEntry getFromDisk(Context context, Uri uri) {
+        final PduDiskCache diskCache;
+        final Uri key;
+        synchronized (this) {
+            diskCache = mDiskCache;
+            key = normalizeKey(uri);
+        }
+        if (diskCache == null || key == null) {
+            return null;
+        }
+        return diskCache.get(context, key);
+    }
+
     synchronized public void setUpdating(Uri uri, boolean updating) {
         if (updating) {
             mUpdating.add(uri);
@@ -161,6 +197,9 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
 
     private PduCacheEntry purgeSingleEntry(Uri key) {
         mUpdating.remove(key);
+        if (mDiskCache != null) {
+            mDiskCache.purge(key);
+        }
         PduCacheEntry entry = super.purge(key);
         if (entry != null) {
             removeFromThreads(key, entry);
@@ -173,6 +212,9 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
     @Override
     synchronized public void purgeAll() {
         super.purgeAll();
+        if (mDiskCache != null) {
+            mDiskCache.purgeAll();
+        }
 
         mMessageBoxes.clear();
         mThreads.clear();
@@ -218,6 +260,9 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
             if (msgBox != null) {
                 for (Uri key : msgBox) {
                     mUpdating.remove(key);
+                    if (mDiskCache != null) {
+                        mDiskCache.purge(key);
+                    }
                     PduCacheEntry entry = super.purge(key);
                     if (entry != null) {
                         removeFromThreads(key, entry);
@@ -243,6 +288,9 @@ public final class PduCache extends AbstractCache<Uri, PduCacheEntry> {
         if (thread != null) {
             for (Uri key : thread) {
                 mUpdating.remove(key);
+                if (mDiskCache != null) {
+                    mDiskCache.purge(key);
+                }
                 PduCacheEntry entry = super.purge(key);
                 if (entry != null) {
                     removeFromMessageBoxes(key, entry);
@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util_alt;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Telephony.Mms;
+
+import com.google.android.mms.pdu_alt.GenericPdu;
+import com.google.android.mms.pdu_alt.MultimediaMessagePdu;
+import com.google.android.mms.pdu_alt.PduSerializer;
+import com.klinker.android.logger.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps recently loaded messages on disk, serialized with {@link PduSerializer},
+ * for {@link PduCache} to fall back to when a message isn't in memory, e.g.
+ * after the process was restarted.
+ *
+ * Loading a message from the provider takes a query each for the pdu, addr and
+ * part tables, plus reading the file of every text part. A cached message takes
+ * one file read and a single row query, which checks that the message is still
+ * there and still the same one, and gives its current box and thread. Media
+ * parts are kept as their Uri, so the cache stays small.
+ *
+ * Only messages with a body are kept, the others load quickly anyway. Files are
+ * written on a background thread, and at most {@link #MAX_ENTRIES} files or
+ * {@link #MAX_BYTES} bytes are kept, the least recently used are dropped first.
+ */
+public final class PduDiskCache {
+    private static final String TAG = "PduDiskCache";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final String DIRECTORY = "pdu_cache";
+    private static final String SUFFIX = ".pdu";
+    private static final int FILE_MAGIC = 0x4d504443; // "MPDC"
+    private static final int FILE_VERSION = 1;
+    // Magic, version and date
+    private static final int FILE_HEADER_SIZE = 16;
+
+    static final int MAX_ENTRIES = 200;
+    static final long MAX_BYTES = 4 * 1024 * 1024;
+    // Anything the provider changed behind our back is gone by then
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000;
+
+    private static final String[] PROJECTION = new String[] {
+            Mms.MESSAGE_BOX, Mms.THREAD_ID, Mms.DATE
+    };
+
+    private static PduDiskCache sInstance;
+
+    private final File mDirectory;
+    // Message id -> file size, least recently used first
+    private final LinkedHashMap<Long, Long> mEntries =
+            new LinkedHashMap<Long, Long>(MAX_ENTRIES * 4 / 3 + 1, 0.75f, true);
+    private long mBytes;
+    private boolean mLoaded;
+
+    // Writes and deletes happen in the order they were asked for
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+    private PduDiskCache(Context context) {
+        mDirectory = new File(context.getCacheDir(), DIRECTORY);
+    }
+
+    public static synchronized PduDiskCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PduDiskCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Read a message from disk.
+     *
+     * @param context checks the message against the provider of this context
+     * @param uri the normalized key, content://mms/ID
+     * @return the entry, or null if it isn't cached or the message changed since
+     */
+    public PduCacheEntry get(Context context, Uri uri) {
+        final long id = ContentUris.parseId(uri);
+        synchronized (this) {
+            ensureLoaded();
+            if (!mEntries.containsKey(id)) {
+                return null;
+            }
+        }
+
+        final File file = getFile(id);
+        if (!file.exists()) {
+            // Still waiting to be written
+            return null;
+        }
+        if (System.currentTimeMillis() - file.lastModified() > MAX_AGE) {
+            purge(uri);
+            return null;
+        }
+
+        final long date;
+        final GenericPdu pdu;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                throw new IOException("Unrecognized file");
+            }
+            date = in.readLong();
+            pdu = PduSerializer.read(in, file.length() - FILE_HEADER_SIZE);
+        } catch (IOException e) {
+            // Written by an older version, or damaged
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "get: couldn't read " + file + ": " + e);
+            }
+            purge(uri);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+
+        // Ids are reused once the newest message is deleted, so make sure
+        // this is still the message that was cached.
+        final Cursor c = SqliteWrapper.query(context, context.getContentResolver(), uri,
+                PROJECTION, null, null, null);
+        try {
+            if (c == null || !c.moveToFirst() || c.getLong(2) != date) {
+                purge(uri);
+                return null;
+            }
+            if (LOCAL_LOGV) {
+                Log.v(TAG, "get: " + uri + " read from disk");
+            }
+            return new PduCacheEntry(pdu, c.getInt(0), c.getLong(1));
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * Write a message to disk, unless it is already there. The message is
+     * serialized right away and written later.
+     *
+     * @param uri the normalized key, content://mms/ID
+     * @param entry the message
+     */
+    public void put(Uri uri, PduCacheEntry entry) {
+        final GenericPdu pdu = entry.getPdu();
+        if (!(pdu instanceof MultimediaMessagePdu)) {
+            return;
+        }
+
+        final long id = ContentUris.parseId(uri);
+        synchronized (this) {
+            ensureLoaded();
+            if (mEntries.containsKey(id)) {
+                return;
+            }
+        }
+
+        final byte[] data;
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeLong(((MultimediaMessagePdu) pdu).getDate());
+            PduSerializer.write(pdu, out);
+            out.flush();
+            data = bytes.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG, "put: couldn't serialize " + uri, e);
+            return;
+        }
+
+        synchronized (this) {
+            final Long previous = mEntries.put(id, (long) data.length);
+            if (previous != null) {
+                // Put by another thread in the meantime
+                mEntries.put(id, previous);
+                return;
+            }
+            mBytes += data.length;
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(id, data);
+                }
+            });
+            trim();
+        }
+    }
+
+    /**
+     * Drop a message from disk.
+     *
+     * @param uri the normalized key, content://mms/ID
+     */
+    public synchronized void purge(Uri uri) {
+        ensureLoaded();
+        remove(ContentUris.parseId(uri));
+    }
+
+    /**
+     * Drop every message from disk.
+     */
+    public synchronized void purgeAll() {
+        mEntries.clear();
+        mBytes = 0;
+        mLoaded = true;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                final File[] files = mDirectory.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        file.delete();
+                    }
+                }
+            }
+        });
+    }
+
+    private void remove(final long id) {
+        final Long size = mEntries.remove(id);
+        if (size == null) {
+            return;
+        }
+        mBytes -= size;
+        mWriter.execute(new Runnable() {
+            @Override
+            public void run() {
+                getFile(id).delete();
+            }
+        });
+    }
+
+    private void trim() {
+        while (mEntries.size() > MAX_ENTRIES || mBytes > MAX_BYTES) {
+            remove(mEntries.keySet().iterator().next());
+        }
+    }
+
+    /**
+     * Find the files written by earlier processes, oldest first.
+     */
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long l = lhs.lastModified();
+                final long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        final long now = System.currentTimeMillis();
+        for (File file : files) {
+            final String name = file.getName();
+            long id = -1;
+            if (name.endsWith(SUFFIX)) {
+                try {
+                    id = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    // Not ours
+                }
+            }
+            if (id < 0 || now - file.lastModified() > MAX_AGE) {
+                file.delete();
+                continue;
+            }
+            mEntries.put(id, file.length());
+            mBytes += file.length();
+        }
+        trim();
+    }
+
+    private void write(long id, byte[] data) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "write: couldn't create " + mDirectory);
+            return;
+        }
+
+        // Written aside and renamed, so nobody reads half a file
+        final File temp = new File(mDirectory, id + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            out.write(data);
+            out.close();
+            out = null;
+            if (!temp.renameTo(getFile(id))) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "write: couldn't write " + temp, e);
+            temp.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    private File getFile(long id) {
+        return new File(mDirectory, id + SUFFIX);
+    }
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util_alt;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.klinker.android.logger.Log;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps the data of media parts in files owned by the library instead of the
+ * part files of the provider, see
+ * {@link com.google.android.mms.pdu_alt.PduPersister#setPartStoreEnabled}.
+ *
+ * Data is appended to segment files of up to {@link #MAX_SEGMENT_SIZE} bytes
+ * with one positional write per part, so parts of a message can be written at
+ * the same time. An append-only index file records where each part is, by part
+ * id and the id of its message. Reading a part maps its bytes straight from the
+ * segment, so a large video is never copied onto the heap, only small parts
+ * are read into a buffer.
+ *
+ * The store doesn't hear about messages deleted from the provider. Once per
+ * process, {@link #prune} drops the parts whose rows are gone, and a segment
+ * file is deleted as soon as none of its parts are left.
+ */
+public final class PduPartStore {
+    private static final String TAG = "PduPartStore";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final String DIRECTORY = "mms_parts";
+    private static final String INDEX_FILE = "index";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final int INDEX_MAGIC = 0x4d505049; // "MPPI"
+    private static final int INDEX_VERSION = 1;
+
+    private static final int RECORD_PUT = 1;
+    private static final int RECORD_REMOVE = 2;
+    // type (1) | part id (8) | msg id (8) | segment (4) | offset (8) | length (4)
+    private static final int RECORD_SIZE = 33;
+
+    static final long MAX_SEGMENT_SIZE = 32 * 1024 * 1024;
+    // Mapping has a cost of its own, below this a copy is cheaper
+    private static final int MIN_MAP_SIZE = 64 * 1024;
+
+    private static final Uri PART_URI = Uri.parse("content://mms/part");
+    private static final String[] PART_PROJECTION = new String[] { "_id", "mid" };
+
+    private static PduPartStore sInstance;
+
+    private final File mDirectory;
+    // Part id -> where its data is
+    private final HashMap<Long, Entry> mEntries = new HashMap<Long, Entry>();
+    private final HashMap<Integer, Segment> mSegments = new HashMap<Integer, Segment>();
+    private Segment mCurrent;
+    private FileOutputStream mIndex;
+    private boolean mLoaded;
+
+    private final ExecutorService mPruner = Executors.newSingleThreadExecutor();
+
+    private PduPartStore(Context context) {
+        mDirectory = new File(context.getFilesDir(), DIRECTORY);
+    }
+
+    public static synchronized PduPartStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new PduPartStore(context.getApplicationContext());
+            final Context pruneContext = context.getApplicationContext();
+            final PduPartStore store = sInstance;
+            store.mPruner.execute(new Runnable() {
+                @Override
+                public void run() {
+                    store.prune(pruneContext);
+                }
+            });
+        }
+        return sInstance;
+    }
+
+    /**
+     * Store the data of a part.
+     *
+     * @param msgId the id of the message, may be a temporary one, see {@link #rekey}
+     * @param partId the id of the part row
+     * @param data the data, from its position to its limit, which is left as it was
+     * @throws IOException if the data couldn't be written
+     */
+    public void put(long msgId, long partId, ByteBuffer data) throws IOException {
+        final int length = data.remaining();
+        final Segment segment;
+        final long offset;
+        synchronized (this) {
+            ensureLoaded();
+            if (mCurrent == null || mCurrent.size + length > MAX_SEGMENT_SIZE) {
+                final Segment full = mCurrent;
+                mCurrent = openSegment(full == null ? 0 : full.id + 1);
+                if (full != null) {
+                    deleteIfUnused(full);
+                }
+            }
+            segment = mCurrent;
+            offset = segment.size;
+            // Reserve the space, so other parts can be written at the same time
+            segment.size += length;
+            segment.writing++;
+        }
+
+        boolean written = false;
+        try {
+            final ByteBuffer buffer = data.duplicate();
+            long position = offset;
+            while (buffer.hasRemaining()) {
+                position += segment.channel.write(buffer, position);
+            }
+            written = true;
+        } finally {
+            synchronized (this) {
+                segment.writing--;
+                if (written) {
+                    add(partId, new Entry(msgId, segment.id, offset, length));
+                } else {
+                    deleteIfUnused(segment);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the data of a part, mapped if it is large.
+     *
+     * @param msgId the id of the message the part belongs to
+     * @param partId the id of the part row
+     * @return a read-only buffer with the data, or null if it isn't stored here
+     */
+    public ByteBuffer get(long msgId, long partId) {
+        final Entry entry;
+        final Segment segment;
+        synchronized (this) {
+            ensureLoaded();
+            entry = mEntries.get(partId);
+            // Part ids are reused once the newest part is deleted
+            if (entry == null || entry.msgId != msgId) {
+                return null;
+            }
+            segment = mSegments.get(entry.segment);
+            if (segment == null) {
+                return null;
+            }
+            segment.reading++;
+        }
+
+        try {
+            if (entry.length >= MIN_MAP_SIZE) {
+                return segment.channel.map(FileChannel.MapMode.READ_ONLY, entry.offset,
+                        entry.length);
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(entry.length);
+            long position = entry.offset;
+            while (buffer.hasRemaining()) {
+                final int read = segment.channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Segment " + entry.segment + " is cut off");
+                }
+                position += read;
+            }
+            buffer.flip();
+            return buffer.asReadOnlyBuffer();
+        } catch (IOException e) {
+            Log.e(TAG, "get: couldn't read part " + partId, e);
+            return null;
+        } finally {
+            synchronized (this) {
+                segment.reading--;
+                deleteIfUnused(segment);
+            }
+        }
+    }
+
+    /**
+     * Move the parts stored under one message id to another, once a message
+     * saved under a temporary id gets its real one.
+     */
+    public synchronized void rekey(long oldMsgId, long newMsgId) {
+        ensureLoaded();
+        final ArrayList<Long> partIds = new ArrayList<Long>();
+        for (Map.Entry<Long, Entry> entry : mEntries.entrySet()) {
+            if (entry.getValue().msgId == oldMsgId) {
+                partIds.add(entry.getKey());
+            }
+        }
+        for (long partId : partIds) {
+            final Entry entry = mEntries.get(partId);
+            add(partId, new Entry(newMsgId, entry.segment, entry.offset, entry.length));
+        }
+    }
+
+    /**
+     * Drop the parts of a message.
+     */
+    public synchronized void remove(long msgId) {
+        ensureLoaded();
+        final ArrayList<Long> partIds = new ArrayList<Long>();
+        for (Map.Entry<Long, Entry> entry : mEntries.entrySet()) {
+            if (entry.getValue().msgId == msgId) {
+                partIds.add(entry.getKey());
+            }
+        }
+        for (long partId : partIds) {
+            removePart(partId);
+        }
+    }
+
+    /**
+     * Drop the parts whose row is no longer in the provider, and rewrite the
+     * index without the records of dropped parts. A part whose id was reused
+     * for another message is never read, as it is looked up together with its
+     * message id, and its space is freed once the new part is stored or deleted.
+     *
+     * @param context the context whose provider the parts belong to
+     */
+    public void prune(Context context) {
+        final HashMap<Long, Entry> before;
+        synchronized (this) {
+            ensureLoaded();
+            before = new HashMap<Long, Entry>(mEntries);
+        }
+        if (before.isEmpty()) {
+            return;
+        }
+
+        // Part id -> msg id of the rows that are still there
+        final HashMap<Long, Long> rows = new HashMap<Long, Long>();
+        final Cursor c = SqliteWrapper.query(context, context.getContentResolver(), PART_URI,
+                PART_PROJECTION, null, null, null);
+        if (c == null) {
+            return;
+        }
+        try {
+            while (c.moveToNext()) {
+                rows.put(c.getLong(0), c.getLong(1));
+            }
+        } finally {
+            c.close();
+        }
+
+        synchronized (this) {
+            int removed = 0;
+            for (Map.Entry<Long, Entry> entry : before.entrySet()) {
+                final long partId = entry.getKey();
+                // Only the row matters here, its msg id may be about to change,
+                // see rekey(). Leave alone what changed since the query.
+                if (!rows.containsKey(partId) && mEntries.get(partId) == entry.getValue()) {
+                    removePart(partId);
+                    removed++;
+                }
+            }
+            Log.d(TAG, "prune: dropped " + removed + " of " + before.size() + " parts");
+            compactIndex();
+        }
+    }
+
+    private void add(long partId, Entry entry) {
+        final Entry previous = mEntries.put(partId, entry);
+        if (previous != null) {
+            release(previous);
+        }
+        mSegments.get(entry.segment).live++;
+        appendRecord(RECORD_PUT, partId, entry);
+    }
+
+    private void removePart(long partId) {
+        final Entry entry = mEntries.remove(partId);
+        if (entry != null) {
+            release(entry);
+            appendRecord(RECORD_REMOVE, partId, entry);
+        }
+    }
+
+    private void release(Entry entry) {
+        final Segment segment = mSegments.get(entry.segment);
+        if (segment != null) {
+            segment.live--;
+            deleteIfUnused(segment);
+        }
+    }
+
+    /**
+     * Delete a segment none of whose parts are left, unless it is still being
+     * written to or read from.
+     */
+    private void deleteIfUnused(Segment segment) {
+        if (segment.live > 0 || segment.writing > 0 || segment.reading > 0
+                || segment == mCurrent) {
+            return;
+        }
+        mSegments.remove(segment.id);
+        try {
+            segment.file.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+        getSegmentFile(segment.id).delete();
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "deleted segment " + segment.id);
+        }
+    }
+
+    private void appendRecord(int type, long partId, Entry entry) {
+        if (mIndex == null) {
+            return;
+        }
+
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put((byte) type);
+        record.putLong(partId);
+        record.putLong(entry.msgId);
+        record.putInt(entry.segment);
+        record.putLong(entry.offset);
+        record.putInt(entry.length);
+        try {
+            // One write, so a crash can only cut off the last record
+            mIndex.write(record.array());
+        } catch (IOException e) {
+            Log.e(TAG, "couldn't write index", e);
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded) {
+            return;
+        }
+        mLoaded = true;
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "couldn't create " + mDirectory);
+            return;
+        }
+
+        final File indexFile = new File(mDirectory, INDEX_FILE);
+        if (indexFile.exists()) {
+            readIndex(indexFile);
+        }
+
+        // Open what the index refers to, and drop what it doesn't
+        final HashMap<Integer, Integer> live = new HashMap<Integer, Integer>();
+        for (Entry entry : mEntries.values()) {
+            final Integer count = live.get(entry.segment);
+            live.put(entry.segment, count == null ? 1 : count + 1);
+        }
+        int newest = -1;
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final int id = getSegmentId(file);
+                if (id < 0) {
+                    continue;
+                }
+                if (!live.containsKey(id)) {
+                    file.delete();
+                    continue;
+                }
+                try {
+                    final Segment segment = openSegment(id);
+                    segment.live = live.get(id);
+                    newest = Math.max(newest, id);
+                } catch (IOException e) {
+                    Log.e(TAG, "couldn't open " + file, e);
+                }
+            }
+        }
+
+        // Parts whose segment is gone can't be read anymore
+        final Iterator<Entry> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            if (!mSegments.containsKey(iterator.next().segment)) {
+                iterator.remove();
+            }
+        }
+
+        if (newest >= 0) {
+            mCurrent = mSegments.get(newest);
+        }
+        compactIndex();
+    }
+
+    private void readIndex(File indexFile) {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                Log.w(TAG, "discarding unrecognized index");
+                return;
+            }
+            while (true) {
+                final int type = in.readUnsignedByte();
+                final long partId = in.readLong();
+                final long msgId = in.readLong();
+                final int segment = in.readInt();
+                final long offset = in.readLong();
+                final int length = in.readInt();
+                if (type == RECORD_PUT) {
+                    mEntries.put(partId, new Entry(msgId, segment, offset, length));
+                } else if (type == RECORD_REMOVE) {
+                    mEntries.remove(partId);
+                }
+            }
+        } catch (EOFException e) {
+            // Done, possibly with a record cut off by a crash
+        } catch (IOException e) {
+            Log.e(TAG, "couldn't read index", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a new index with only the parts that are there, and append to it
+     * from then on.
+     */
+    private void compactIndex() {
+        if (mIndex != null) {
+            try {
+                mIndex.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+            mIndex = null;
+        }
+
+        final File indexFile = new File(mDirectory, INDEX_FILE);
+        final File temp = new File(mDirectory, INDEX_FILE + ".tmp");
+        try {
+            final ByteBuffer header = ByteBuffer.allocate(8);
+            header.putInt(INDEX_MAGIC);
+            header.putInt(INDEX_VERSION);
+            mIndex = new FileOutputStream(temp);
+            mIndex.write(header.array());
+            for (Map.Entry<Long, Entry> entry : mEntries.entrySet()) {
+                appendRecord(RECORD_PUT, entry.getKey(), entry.getValue());
+            }
+            mIndex.close();
+            if (!temp.renameTo(indexFile)) {
+                throw new IOException("couldn't rename " + temp);
+            }
+            mIndex = new FileOutputStream(indexFile, true);
+        } catch (IOException e) {
+            // Parts written from now on are lost after a restart, nothing worse
+            Log.e(TAG, "couldn't write index", e);
+            mIndex = null;
+        }
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        final Segment segment = new Segment(id, new RandomAccessFile(getSegmentFile(id), "rw"));
+        segment.size = segment.channel.size();
+        mSegments.put(id, segment);
+        return segment;
+    }
+
+    private File getSegmentFile(int id) {
+        return new File(mDirectory, SEGMENT_PREFIX + id);
+    }
+
+    private static int getSegmentId(File file) {
+        final String name = file.getName();
+        if (!name.startsWith(SEGMENT_PREFIX)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(SEGMENT_PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static class Entry {
+        final long msgId;
+        final int segment;
+        final long offset;
+        final int length;
+
+        Entry(long msgId, int segment, long offset, int length) {
+            this.msgId = msgId;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private static class Segment {
+        final int id;
+        final RandomAccessFile file;
+        final FileChannel channel;
+        // Bytes written or reserved
+        long size;
+        // Parts in the index, and parts being written or read right now
+        int live;
+        int writing;
+        int reading;
+
+        Segment(int id, RandomAccessFile file) {
+            this.id = id;
+            this.file = file;
+            this.channel = file.getChannel();
+        }
+    }
+}
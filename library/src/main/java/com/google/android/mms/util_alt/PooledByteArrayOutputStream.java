@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2015 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.google.android.mms.util_alt;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A ByteArrayOutputStream whose storage is borrowed from {@link ByteArrayPool}.
+ * Call {@link #release()} once the contents are no longer needed; the stream
+ * stays usable afterwards and starts over empty.
+ */
+public class PooledByteArrayOutputStream extends ByteArrayOutputStream {
+    private static final byte[] EMPTY = new byte[0];
+    private static final int DEFAULT_SIZE = 1024;
+
+    public PooledByteArrayOutputStream() {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * @param size the expected number of bytes, used to pick the first buffer
+     */
+    public PooledByteArrayOutputStream(int size) {
+        super(0);
+        buf = ByteArrayPool.acquire(Math.max(size, 1));
+    }
+
+    @Override
+    public synchronized void write(int b) {
+        ensureCapacity(count + 1);
+        buf[count++] = (byte) b;
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+        if ((off < 0) || (len < 0) || (off > b.length) || (off + len > b.length)) {
+            throw new IndexOutOfBoundsException();
+        }
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, buf, count, len);
+        count += len;
+    }
+
+    /**
+     * Direct access to the backing array; only the first {@link #size()} bytes
+     * are meaningful and the array goes back to the pool on release().
+     */
+    public synchronized byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * Return the backing array to the pool and empty the stream.
+     */
+    public synchronized void release() {
+        ByteArrayPool.release(buf);
+        buf = EMPTY;
+        count = 0;
+    }
+
+    private void ensureCapacity(int minCapacity) {
+        if (minCapacity <= buf.length) {
+            return;
+        }
+
+        int newCapacity = Math.max(buf.length << 1, minCapacity);
+        byte[] newBuf = ByteArrayPool.acquire(newCapacity);
+        System.arraycopy(buf, 0, newBuf, 0, count);
+        ByteArrayPool.release(buf);
+        buf = newBuf;
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright 2013 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.telephony.SmsManager;
+import android.text.TextUtils;
+
+import com.klinker.android.logger.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds SMS that should only go out after the user's send delay, so they can
+ * still be cancelled.
+ * <p/>
+ * All pending messages share one scheduler thread. Messages that come due within
+ * the same tick are dispatched together, with one provider query per batch to
+ * drop messages whose row was deleted in the meantime. Pending messages are
+ * written to a file and an alarm is kept for the earliest one, so they still
+ * go out if the process dies while they wait.
+ */
+public class DelayedSmsScheduler {
+    private static final String TAG = "DelayedSmsScheduler";
+
+    static final String ACTION_DISPATCH = "com.klinker.android.send_message.DISPATCH_DELAYED_SMS";
+
+    private static final String FILE_NAME = "delayed_sms.json";
+
+    /**
+     * Messages due within this many milliseconds of each other go out together.
+     */
+    private static final long TICK = 250;
+
+    private static DelayedSmsScheduler sInstance;
+
+    private final Context mContext;
+    private final File mFile;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    // Pending messages in the order they were scheduled.
+    private final List<DelayedSms> mPending = new ArrayList<DelayedSms>();
+    private ScheduledFuture<?> mNextDispatch;
+    private long mNextDispatchTime;
+
+    private DelayedSmsScheduler(Context context) {
+        mContext = context;
+        mFile = new File(context.getFilesDir(), FILE_NAME);
+        load();
+    }
+
+    public static synchronized DelayedSmsScheduler getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DelayedSmsScheduler(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Send a multipart SMS once the delay has passed, unless the message is
+     * cancelled or its row is deleted from the provider before then.
+     *
+     * @param messageUri the saved message, used to cancel and to check it still exists
+     * @param subscriptionId the subscription to send with
+     * @param address the recipient
+     * @param parts the divided message body
+     * @param sentIntents the sent intents handed to SmsManager
+     * @param deliveryIntents the delivery intents handed to SmsManager
+     * @param sentIntent the intent behind sentIntents, kept to rebuild them after process death
+     * @param deliveredIntent the intent behind deliveryIntents, null if there are none
+     * @param requestCode the request code the pending intents were created with
+     * @param delay the delay in milliseconds, 0 to send right away
+     */
+    public void schedule(Uri messageUri, int subscriptionId, String address,
+                         ArrayList<String> parts, ArrayList<PendingIntent> sentIntents,
+                         ArrayList<PendingIntent> deliveryIntents, Intent sentIntent,
+                         Intent deliveredIntent, int requestCode, long delay) {
+        DelayedSms sms = new DelayedSms();
+        sms.messageUri = messageUri;
+        sms.subscriptionId = subscriptionId;
+        sms.address = address;
+        sms.parts = new ArrayList<String>(parts);
+        sms.sentIntents = new ArrayList<PendingIntent>(sentIntents);
+        sms.deliveryIntents = new ArrayList<PendingIntent>(deliveryIntents);
+        sms.requestCode = requestCode;
+        sms.dueTime = System.currentTimeMillis() + Math.max(delay, 0);
+        // A message that isn't delayed is sent before the process could die, so
+        // it isn't persisted.
+        sms.delayed = delay > 0 && messageUri != null;
+        if (sms.delayed) {
+            sms.sentIntentUri = sentIntent == null
+                    ? null : sentIntent.toUri(Intent.URI_INTENT_SCHEME);
+            sms.deliveredIntentUri = deliveredIntent == null
+                    ? null : deliveredIntent.toUri(Intent.URI_INTENT_SCHEME);
+        }
+
+        synchronized (this) {
+            mPending.add(sms);
+            reschedule();
+        }
+
+        if (sms.delayed) {
+            persist();
+        }
+    }
+
+    /**
+     * Cancel every pending send of the message.
+     *
+     * @param messageUri the uri the message was scheduled with
+     * @return true if something was cancelled
+     */
+    public boolean cancel(Uri messageUri) {
+        boolean cancelled = false;
+        synchronized (this) {
+            Iterator<DelayedSms> iterator = mPending.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().matches(messageUri)) {
+                    iterator.remove();
+                    cancelled = true;
+                }
+            }
+            if (cancelled) {
+                reschedule();
+            }
+        }
+
+        if (cancelled) {
+            Log.v(TAG, "cancelled delayed send of " + messageUri);
+            persist();
+        }
+        return cancelled;
+    }
+
+    /**
+     * @return true if the message is still waiting to be sent
+     */
+    public synchronized boolean isPending(Uri messageUri) {
+        for (DelayedSms sms : mPending) {
+            if (sms.matches(messageUri)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called from the alarm, sends whatever has come due on the scheduler thread.
+     */
+    void onAlarm(final BroadcastReceiver.PendingResult result) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    dispatchDue();
+                } finally {
+                    if (result != null) {
+                        result.finish();
+                    }
+                }
+            }
+        });
+    }
+
+    private void dispatchDue() {
+        List<DelayedSms> due = new ArrayList<DelayedSms>();
+        synchronized (this) {
+            long limit = System.currentTimeMillis() + TICK;
+            Iterator<DelayedSms> iterator = mPending.iterator();
+            while (iterator.hasNext()) {
+                DelayedSms sms = iterator.next();
+                if (sms.dueTime <= limit) {
+                    due.add(sms);
+                    iterator.remove();
+                }
+            }
+            mNextDispatch = null;
+            reschedule();
+        }
+
+        if (due.isEmpty()) {
+            return;
+        }
+
+        // Save the messages as taken before sending any of them. If the process
+        // dies part way through, a message is rather lost than sent twice.
+        for (DelayedSms sms : due) {
+            if (sms.delayed) {
+                persist();
+                break;
+            }
+        }
+
+        Set<Uri> existing = findExisting(due);
+        for (DelayedSms sms : due) {
+            if (sms.messageUri != null && !existing.contains(sms.messageUri)) {
+                Log.v("send_transaction", "message not sent after delay, no longer exists");
+                continue;
+            }
+
+            try {
+                SmsManager smsManager = SmsManagerFactory.createSmsManager(sms.subscriptionId);
+                smsManager.sendMultipartTextMessage(sms.address, null, sms.parts,
+                        sms.getSentIntents(mContext), sms.getDeliveryIntents(mContext));
+                Log.v("send_transaction", "message sent after delay");
+            } catch (Exception e) {
+                Log.e(TAG, "exception thrown", e);
+            }
+        }
+    }
+
+    /**
+     * Look up which of the delayed messages still exist, with one query per
+     * table instead of one per message.
+     */
+    private Set<Uri> findExisting(List<DelayedSms> due) {
+        Map<Uri, Map<String, Uri>> byTable = new HashMap<Uri, Map<String, Uri>>();
+        Set<Uri> existing = new HashSet<Uri>();
+        for (DelayedSms sms : due) {
+            if (sms.messageUri == null) {
+                continue;
+            }
+
+            String id = sms.messageUri.getLastPathSegment();
+            if (id == null || !TextUtils.isDigitsOnly(id)) {
+                if (exists(sms.messageUri)) {
+                    existing.add(sms.messageUri);
+                }
+                continue;
+            }
+
+            String path = sms.messageUri.getPath();
+            Uri table = sms.messageUri.buildUpon()
+                    .path(path.substring(0, path.length() - id.length()))
+                    .build();
+            Map<String, Uri> ids = byTable.get(table);
+            if (ids == null) {
+                ids = new HashMap<String, Uri>();
+                byTable.put(table, ids);
+            }
+            ids.put(id, sms.messageUri);
+        }
+
+        for (Map.Entry<Uri, Map<String, Uri>> entry : byTable.entrySet()) {
+            Map<String, Uri> ids = entry.getValue();
+            String selection = "_id IN (" + TextUtils.join(",", ids.keySet()) + ")";
+            Cursor query = null;
+            try {
+                query = mContext.getContentResolver().query(entry.getKey(),
+                        new String[] {"_id"}, selection, null, null);
+                while (query != null && query.moveToNext()) {
+                    Uri uri = ids.get(query.getString(0));
+                    if (uri != null) {
+                        existing.add(uri);
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "error checking delayed messages", e);
+            } finally {
+                if (query != null) {
+                    query.close();
+                }
+            }
+        }
+
+        return existing;
+    }
+
+    private boolean exists(Uri messageUri) {
+        Cursor query = mContext.getContentResolver()
+                .query(messageUri, new String[] {"_id"}, null, null, null);
+        if (query != null && query.moveToFirst()) {
+            query.close();
+            return true;
+        } else {
+            if (query != null) {
+                query.close();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Point the scheduler thread and the alarm at the earliest pending message.
+     * Must hold the lock.
+     */
+    private void reschedule() {
+        long next = Long.MAX_VALUE;
+        long nextDelayed = Long.MAX_VALUE;
+        for (DelayedSms sms : mPending) {
+            next = Math.min(next, sms.dueTime);
+            if (sms.delayed) {
+                nextDelayed = Math.min(nextDelayed, sms.dueTime);
+            }
+        }
+
+        if (mNextDispatch != null && mNextDispatchTime != next) {
+            mNextDispatch.cancel(false);
+            mNextDispatch = null;
+        }
+        if (mNextDispatch == null && next != Long.MAX_VALUE) {
+            mNextDispatchTime = next;
+            mNextDispatch = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    dispatchDue();
+                }
+            }, Math.max(next - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+        }
+
+        AlarmManager alarmManager =
+                (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        PendingIntent alarm = PendingIntent.getBroadcast(mContext, 0,
+                new Intent(ACTION_DISPATCH).setClass(mContext, DelayedSmsReceiver.class),
+                PendingIntent.FLAG_UPDATE_CURRENT);
+        if (nextDelayed == Long.MAX_VALUE) {
+            alarmManager.cancel(alarm);
+        } else {
+            alarmManager.set(AlarmManager.RTC_WAKEUP, nextDelayed, alarm);
+        }
+    }
+
+    private void persist() {
+        JSONArray array = new JSONArray();
+        synchronized (this) {
+            for (DelayedSms sms : mPending) {
+                if (!sms.delayed) {
+                    continue;
+                }
+                try {
+                    array.put(sms.toJson());
+                } catch (JSONException e) {
+                    Log.e(TAG, "failed to save delayed message", e);
+                }
+            }
+        }
+
+        File tmp = new File(mFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(array.toString().getBytes("UTF-8"));
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to save delayed messages", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    private void load() {
+        if (!mFile.exists()) {
+            return;
+        }
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(mFile);
+            byte[] data = new byte[(int) mFile.length()];
+            int read = 0;
+            while (read < data.length) {
+                int count = in.read(data, read, data.length - read);
+                if (count < 0) {
+                    break;
+                }
+                read += count;
+            }
+
+            JSONArray array = new JSONArray(new String(data, 0, read, "UTF-8"));
+            synchronized (this) {
+                for (int i = 0; i < array.length(); i++) {
+                    mPending.add(DelayedSms.fromJson(array.getJSONObject(i)));
+                }
+                Log.v(TAG, "restored " + mPending.size() + " delayed messages");
+                reschedule();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "failed to load delayed messages", e);
+        } catch (JSONException e) {
+            Log.e(TAG, "failed to load delayed messages", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) { }
+            }
+        }
+    }
+
+    private static class DelayedSms {
+        Uri messageUri;
+        int subscriptionId;
+        String address;
+        ArrayList<String> parts;
+        // Null after a restore, rebuilt from the intent uris.
+        ArrayList<PendingIntent> sentIntents;
+        ArrayList<PendingIntent> deliveryIntents;
+        String sentIntentUri;
+        String deliveredIntentUri;
+        int requestCode;
+        long dueTime;
+        boolean delayed;
+
+        boolean matches(Uri uri) {
+            return messageUri != null && messageUri.equals(uri);
+        }
+
+        ArrayList<PendingIntent> getSentIntents(Context context) {
+            if (sentIntents == null) {
+                sentIntents = rebuild(context, sentIntentUri);
+            }
+            return sentIntents;
+        }
+
+        ArrayList<PendingIntent> getDeliveryIntents(Context context) {
+            if (deliveryIntents == null) {
+                deliveryIntents = rebuild(context, deliveredIntentUri);
+            }
+            return deliveryIntents;
+        }
+
+        private ArrayList<PendingIntent> rebuild(Context context, String intentUri) {
+            ArrayList<PendingIntent> intents = new ArrayList<PendingIntent>(parts.size());
+            PendingIntent pendingIntent = null;
+            if (intentUri != null) {
+                try {
+                    pendingIntent = PendingIntent.getBroadcast(context, requestCode,
+                            Intent.parseUri(intentUri, Intent.URI_INTENT_SCHEME),
+                            PendingIntent.FLAG_UPDATE_CURRENT);
+                } catch (URISyntaxException e) {
+                    Log.e(TAG, "failed to restore intent", e);
+                }
+            }
+            for (int i = 0; i < parts.size(); i++) {
+                intents.add(pendingIntent);
+            }
+            return intents;
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("uri", messageUri.toString());
+            json.put("subscription", subscriptionId);
+            json.put("address", address);
+            json.put("parts", new JSONArray(parts));
+            json.put("sent", sentIntentUri);
+            json.put("delivered", deliveredIntentUri);
+            json.put("request_code", requestCode);
+            json.put("due", dueTime);
+            return json;
+        }
+
+        static DelayedSms fromJson(JSONObject json) throws JSONException {
+            DelayedSms sms = new DelayedSms();
+            sms.messageUri = Uri.parse(json.getString("uri"));
+            sms.subscriptionId = json.getInt("subscription");
+            sms.address = json.getString("address");
+            JSONArray parts = json.getJSONArray("parts");
+            sms.parts = new ArrayList<String>(parts.length());
+            for (int i = 0; i < parts.length(); i++) {
+                sms.parts.add(parts.getString(i));
+            }
+            sms.sentIntentUri = json.optString("sent", null);
+            sms.deliveredIntentUri = json.optString("delivered", null);
+            sms.requestCode = json.getInt("request_code");
+            sms.dueTime = json.getLong("due");
+            sms.delayed = true;
+            return sms;
+        }
+    }
+}
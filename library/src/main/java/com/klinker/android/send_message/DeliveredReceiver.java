@@ -16,95 +16,38 @@
 
 package com.klinker.android.send_message;
 
-import android.app.Activity;
-import android.content.BroadcastReceiver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
 import com.klinker.android.logger.Log;
 
-import java.util.Calendar;
-
 public abstract class DeliveredReceiver extends StatusUpdatedReceiver {
 
     @Override
     public void updateInInternalDatabase(Context context, Intent intent, int resultCode) {
-        Log.v("delivery_receiver", "marking message as delivered");
+        updateInInternalDatabase(context, intent, resultCode, null);
+    }
 
-        final Uri uri = getUri(intent);
+    @Override
+    void updateInInternalDatabase(Context context, Intent intent, int resultCode,
+                                  PendingResult result) {
+        Log.v("delivery_receiver", "marking message as delivered");
+        SmsStatusAggregator aggregator = SmsStatusAggregator.getInstance(context);
+        Uri uri = getUri(intent);
 
         try {
-            switch (resultCode) {
-                case Activity.RESULT_OK:
-                    // notify user that message was delivered
-                    Intent delivered = new Intent(Transaction.NOTIFY_OF_DELIVERY);
-                    delivered.putExtra("result", true);
-                    delivered.putExtra("message_uri", uri == null ? "" : uri.toString());
-                    BroadcastUtils.sendExplicitBroadcast(
-                            context, delivered, Transaction.NOTIFY_OF_DELIVERY);
-
-                    if (uri != null) {
-                        ContentValues values = new ContentValues();
-                        values.put("status", "0");
-                        values.put("date_sent", Calendar.getInstance().getTimeInMillis());
-                        values.put("read", true);
-                        context.getContentResolver().update(uri, values, null, null);
-                    } else {
-                        Cursor query = context.getContentResolver().query(Uri.parse("content://sms/sent"), null, null, null, "date desc");
-
-                        // mark message as delivered in database
-                        if (query.moveToFirst()) {
-                            String id = query.getString(query.getColumnIndex("_id"));
-                            ContentValues values = new ContentValues();
-                            values.put("status", "0");
-                            values.put("date_sent", Calendar.getInstance().getTimeInMillis());
-                            values.put("read", true);
-                            context.getContentResolver().update(Uri.parse("content://sms/sent"), values, "_id=" + id, null);
-                        }
-
-                        query.close();
-                    }
-
-                    break;
-                case Activity.RESULT_CANCELED:
-                    // notify user that message failed to be delivered
-                    Intent notDelivered = new Intent(Transaction.NOTIFY_OF_DELIVERY);
-                    notDelivered.putExtra("result", false);
-                    notDelivered.putExtra("message_uri", uri == null ? "" : uri.toString());
-                    BroadcastUtils.sendExplicitBroadcast(
-                            context, notDelivered, Transaction.NOTIFY_OF_DELIVERY);
-
-                    if (uri != null) {
-                        ContentValues values = new ContentValues();
-                        values.put("status", "64");
-                        values.put("date_sent", Calendar.getInstance().getTimeInMillis());
-                        values.put("read", true);
-                        values.put("error_code", resultCode);
-                        context.getContentResolver().update(uri, values, null, null);
-                    } else {
-                        Cursor query2 = context.getContentResolver().query(Uri.parse("content://sms/sent"), null, null, null, "date desc");
-
-                        // mark failed in database
-                        if (query2.moveToFirst()) {
-                            String id = query2.getString(query2.getColumnIndex("_id"));
-                            ContentValues values = new ContentValues();
-                            values.put("status", "64");
-                            values.put("read", true);
-                            values.put("error_code", resultCode);
-                            context.getContentResolver().update(Uri.parse("content://sms/sent"), values, "_id=" + id, null);
-                        }
-
-                        query2.close();
-                    }
-                    break;
+            if (uri == null) {
+                // a guess, made again for every part: if another message was sent in
+                // the meantime, the parts of this one are counted against different rows
+                uri = aggregator.findNewest(Uri.parse("content://sms/sent"));
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
 
-        BroadcastUtils.sendExplicitBroadcast(context, new Intent(), Transaction.REFRESH);
+        // the user is notified, and the status written, once every part has reported
+        aggregator.onDelivered(uri, intent.getIntExtra(SmsStatusAggregator.EXTRA_PARTS, 1), resultCode,
+                result);
     }
 
     private Uri getUri(Intent intent) {
@@ -0,0 +1,365 @@
+/*
+ * Copyright 2013 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import android.graphics.Bitmap;
+
+import com.klinker.android.logger.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Turns the images attached to an MMS into JPEG data that fits the carrier's
+ * message size limit.
+ * <p/>
+ * The byte budget is split between the images, and budget that a small image
+ * doesn't use goes to the bigger ones. An image that fits its share is encoded
+ * exactly as {@link Message#bitmapToByteArray(Bitmap)} would. Otherwise the
+ * JPEG quality is searched down, and if that isn't enough the image is scaled
+ * down as well, within the configured maximum dimensions. Images are encoded in
+ * parallel, and the result is cached per bitmap so resending the same message
+ * doesn't encode again.
+ */
+public class MediaPreparer {
+    private static final String TAG = "MediaPreparer";
+
+    private static final int DEFAULT_QUALITY = 90;
+    private static final int MIN_QUALITY = 50;
+
+    // Encodes per image before settling for the smallest result.
+    private static final int MAX_PASSES = 6;
+
+    // Room left for headers, the smil document and part headers.
+    private static final int MESSAGE_OVERHEAD = 2 * 1024;
+    private static final int PART_OVERHEAD = 256;
+
+    private static final int MAX_THREADS = 4;
+
+    private static ExecutorService sExecutor;
+
+    // Keyed on the bitmap, so entries go away with it.
+    private static final Map<Bitmap, Encoded> sCache = new WeakHashMap<Bitmap, Encoded>();
+
+    private MediaPreparer() {
+    }
+
+    /**
+     * Work out how many bytes the images of a message may use.
+     *
+     * @param maxMessageSize the carrier's limit for the whole message
+     * @param otherBytes the size of every part that isn't one of the images
+     * @param parts the total number of parts, images included
+     * @return the bytes left for the images
+     */
+    public static int getImageBudget(int maxMessageSize, int otherBytes, int parts) {
+        return Math.max(maxMessageSize - otherBytes - MESSAGE_OVERHEAD - parts * PART_OVERHEAD, 0);
+    }
+
+    /**
+     * Encode the images so that together they fit in the budget, as far as the
+     * minimum quality and scale allow.
+     *
+     * @param images the images to encode, null entries become empty arrays
+     * @param budget the total bytes the images may use
+     * @param maxWidth the widest an image may be scaled to when it has to shrink
+     * @param maxHeight the tallest an image may be scaled to when it has to shrink
+     * @return the JPEG data, in the same order as the images
+     */
+    public static byte[][] prepareImages(Bitmap[] images, int budget, int maxWidth, int maxHeight) {
+        byte[][] output = new byte[images.length][];
+        if (images.length == 0) {
+            return output;
+        }
+
+        // First pass, at the default quality, tells us which images fit as they are.
+        byte[][] full = encodeAll(images, new Target[images.length], false);
+
+        int remaining = budget;
+        int oversized = 0;
+        int share = budget / images.length;
+        for (int i = 0; i < images.length; i++) {
+            if (full[i].length <= share) {
+                output[i] = full[i];
+                remaining -= full[i].length;
+            } else {
+                oversized++;
+            }
+        }
+
+        if (oversized == 0) {
+            return output;
+        }
+
+        // The rest split what the small ones left over.
+        int oversizedShare = Math.max(remaining / oversized, 0);
+        Target[] targets = new Target[images.length];
+        for (int i = 0; i < images.length; i++) {
+            if (output[i] == null) {
+                if (full[i].length <= oversizedShare) {
+                    output[i] = full[i];
+                } else {
+                    targets[i] = new Target(oversizedShare, full[i].length, maxWidth, maxHeight);
+                }
+            }
+        }
+
+        byte[][] fitted = encodeAll(images, targets, true);
+        for (int i = 0; i < images.length; i++) {
+            if (output[i] == null) {
+                output[i] = fitted[i];
+            }
+        }
+        return output;
+    }
+
+    /**
+     * @param onlyTargeted skip the images that have no target
+     */
+    private static byte[][] encodeAll(final Bitmap[] images, final Target[] targets,
+                                      boolean onlyTargeted) {
+        byte[][] output = new byte[images.length][];
+        List<Integer> pending = new ArrayList<Integer>();
+        for (int i = 0; i < images.length; i++) {
+            if (images[i] == null) {
+                output[i] = new byte[0];
+            } else if (targets[i] != null || !onlyTargeted) {
+                pending.add(i);
+            }
+        }
+
+        if (pending.isEmpty()) {
+            return output;
+        } else if (pending.size() == 1) {
+            int i = pending.get(0);
+            output[i] = encode(images[i], targets[i]);
+            return output;
+        }
+
+        List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(pending.size());
+        for (final int i : pending) {
+            futures.add(getExecutor().submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return encode(images[i], targets[i]);
+                }
+            }));
+        }
+
+        for (int j = 0; j < pending.size(); j++) {
+            int i = pending.get(j);
+            try {
+                output[i] = futures.get(j).get();
+            } catch (InterruptedException e) {
+                Log.e(TAG, "interrupted while encoding", e);
+                output[i] = encode(images[i], targets[i]);
+            } catch (ExecutionException e) {
+                Log.e(TAG, "error encoding image", e);
+                output[i] = Message.bitmapToByteArray(images[i]);
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Encode one image, at the default quality when there's no target.
+     */
+    private static byte[] encode(Bitmap image, Target target) {
+        int generation = image.getGenerationId();
+        Encoded cached;
+        synchronized (sCache) {
+            cached = sCache.get(image);
+            if (cached == null || cached.generation != generation) {
+                cached = new Encoded(generation);
+                sCache.put(image, cached);
+            }
+        }
+
+        synchronized (cached) {
+            if (target == null) {
+                if (cached.full == null) {
+                    cached.full = compress(image, DEFAULT_QUALITY);
+                }
+                return cached.full;
+            }
+
+            if (cached.fitted == null || cached.fittedBudget != target.budget) {
+                cached.fitted = fit(image, target);
+                cached.fittedBudget = target.budget;
+            }
+            return cached.fitted;
+        }
+    }
+
+    /**
+     * Search quality, then scale, for the largest encoding that fits the target.
+     */
+    private static byte[] fit(Bitmap image, Target target) {
+        Bitmap source = image;
+        byte[] best = null;
+        int size = target.fullSize;
+        int passes = 0;
+
+        try {
+            while (passes < MAX_PASSES) {
+                // Search between the minimum and the default quality, guessing
+                // from how far over the last attempt was.
+                int low = MIN_QUALITY;
+                int high = DEFAULT_QUALITY;
+                int quality = estimateQuality(size, target.budget);
+                byte[] fitting = null;
+                byte[] smallest = null;
+                while (low <= high && passes < MAX_PASSES) {
+                    byte[] data = compress(source, quality);
+                    passes++;
+                    if (smallest == null || data.length < smallest.length) {
+                        smallest = data;
+                    }
+                    if (data.length <= target.budget) {
+                        fitting = data;
+                        low = quality + 5;
+                    } else {
+                        high = quality - 5;
+                    }
+                    if (fitting != null && fitting.length > target.budget * 9 / 10) {
+                        // Close enough, another pass won't buy much.
+                        break;
+                    }
+                    quality = (low + high) / 2;
+                }
+
+                if (fitting != null) {
+                    return fitting;
+                }
+                if (smallest != null && (best == null || smallest.length < best.length)) {
+                    best = smallest;
+                }
+
+                // Even the lowest quality is too big, so shrink the image.
+                Bitmap scaled = scale(source, best.length, target);
+                if (scaled == null) {
+                    break;
+                }
+                if (source != image) {
+                    source.recycle();
+                }
+                source = scaled;
+                size = best.length;
+            }
+        } finally {
+            if (source != image) {
+                source.recycle();
+            }
+        }
+
+        Log.v(TAG, "image still over budget after " + passes + " passes: " + best.length
+                + " > " + target.budget);
+        return best;
+    }
+
+    /**
+     * A first guess at the quality, assuming size falls roughly linearly with it.
+     */
+    private static int estimateQuality(int size, int budget) {
+        if (size <= 0) {
+            return DEFAULT_QUALITY;
+        }
+        int quality = (int) ((long) DEFAULT_QUALITY * budget / size);
+        return Math.max(MIN_QUALITY, Math.min(DEFAULT_QUALITY, quality));
+    }
+
+    /**
+     * Scale the image down by about as much as the data has to shrink, and at
+     * least to within the maximum dimensions.
+     *
+     * @return the scaled bitmap, or null if it can't get any smaller
+     */
+    private static Bitmap scale(Bitmap source, int size, Target target) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+
+        // Data size goes roughly with the pixel count.
+        double factor = Math.sqrt((double) target.budget / size) * 0.95;
+
+        // Match the limits to the orientation of the image.
+        int maxLong = Math.max(target.maxWidth, target.maxHeight);
+        int maxShort = Math.min(target.maxWidth, target.maxHeight);
+        if (maxLong > 0 && maxShort > 0) {
+            int longSide = Math.max(width, height);
+            int shortSide = Math.min(width, height);
+            factor = Math.min(factor, Math.min((double) maxLong / longSide,
+                    (double) maxShort / shortSide));
+        }
+
+        int newWidth = (int) (width * factor);
+        int newHeight = (int) (height * factor);
+        if (newWidth < 1 || newHeight < 1 || (newWidth >= width && newHeight >= height)) {
+            return null;
+        }
+
+        return Bitmap.createScaledBitmap(source, newWidth, newHeight, true);
+    }
+
+    private static byte[] compress(Bitmap image, int quality) {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        image.compress(Bitmap.CompressFormat.JPEG, quality, stream);
+        return stream.toByteArray();
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            int threads = Math.min(Runtime.getRuntime().availableProcessors(), MAX_THREADS);
+            sExecutor = Executors.newFixedThreadPool(Math.max(threads, 1));
+        }
+        return sExecutor;
+    }
+
+    private static class Target {
+        final int budget;
+        final int fullSize;
+        final int maxWidth;
+        final int maxHeight;
+
+        Target(int budget, int fullSize, int maxWidth, int maxHeight) {
+            this.budget = budget;
+            this.fullSize = fullSize;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+        }
+    }
+
+    private static class Encoded {
+        final int generation;
+        // At the default quality and size.
+        byte[] full;
+        // The last fit, and the budget it was made for.
+        byte[] fitted;
+        int fittedBudget;
+
+        Encoded(int generation) {
+            this.generation = generation;
+        }
+    }
+}
@@ -19,6 +19,7 @@ package com.klinker.android.send_message;
 import android.graphics.Bitmap;
 import android.net.Uri;
 
+import com.android.mms.transaction.TransactionPriority;
 import com.klinker.android.logger.Log;
 
 import java.io.ByteArrayOutputStream;
@@ -64,6 +65,7 @@ public class Message {
     private List<Part> parts = new ArrayList<Part>();
     private boolean save;
     private int delay;
+    private int priority = TransactionPriority.INTERACTIVE;
     private Uri messageUri;
 
     /**
@@ -409,6 +411,18 @@ public class Message {
         this.delay = delay;
     }
 
+    /**
+     * Sets how urgently the message is sent compared to other MMS work, like
+     * downloads and retries
+     * NOTE: this is only applicable for MMS messages sent through the TransactionService
+     *
+     * @param priority one of the TransactionPriority constants, TransactionPriority.INTERACTIVE
+     *                 by default
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+    }
+
     /**
      * Method to add another recipient to the object
      *
@@ -531,6 +545,15 @@ public class Message {
         return this.delay;
     }
 
+    /**
+     * Gets how urgently the message is sent
+     *
+     * @return one of the TransactionPriority constants
+     */
+    public int getPriority() {
+        return this.priority;
+    }
+
     /**
      * Static method to convert a bitmap into a byte array to easily send it over http
      *
@@ -30,7 +30,9 @@ import com.android.mms.service_alt.DownloadRequest;
 import com.android.mms.service_alt.MmsConfig;
 import com.android.mms.transaction.DownloadManager;
 import com.android.mms.transaction.HttpUtils;
+import com.android.mms.transaction.TransactionExecutor;
 import com.android.mms.transaction.TransactionSettings;
+import com.android.mms.util.PushDedupeIndex;
 import com.android.mms.util.SendingProgressTokenManager;
 import com.google.android.mms.InvalidHeaderValueException;
 import com.google.android.mms.MmsException;
@@ -51,8 +53,8 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import static com.google.android.mms.pdu_alt.PduHeaders.STATUS_RETRIEVED;
 
@@ -69,8 +71,6 @@ public abstract class MmsReceivedReceiver extends BroadcastReceiver {
     private static final String LOCATION_SELECTION =
             Telephony.Mms.MESSAGE_TYPE + "=? AND " + Telephony.Mms.CONTENT_LOCATION + " =?";
 
-    private static final ExecutorService RECEIVE_NOTIFICATION_EXECUTOR = Executors.newSingleThreadExecutor();
-
     public abstract void onMessageReceived(Context context, Uri messageUri);
     public abstract void onError(Context context, String error);
 
@@ -89,68 +89,127 @@ public abstract class MmsReceivedReceiver extends BroadcastReceiver {
         Log.v(TAG, "MMS has finished downloading, persisting it to the database");
 
         final String path = intent.getStringExtra(EXTRA_FILE_PATH);
-        final int subscriptionId = intent.getIntExtra(SUBSCRIPTION_ID, Utils.getDefaultSubscriptionId());
         Log.v(TAG, path);
 
-        new Thread(new Runnable() {
+        // Reading and parsing, persisting and acknowledging each run as their own
+        // stage, so the ack for one message can go out while the next one is
+        // still being parsed or written to the database.
+        boolean queued = TransactionExecutor.getInstance().execute(
+                TransactionExecutor.LANE_PARSE, "MmsReceivedReceiver parse", new Runnable() {
             @Override
             public void run() {
-                FileInputStream reader = null;
-                Uri messageUri = null;
-                String errorMessage = null;
+                parse(context, intent, path);
+            }
+        });
 
+        if (!queued) {
+            // Leave the downloaded file alone and let the location be downloaded again
+            DownloadManager.finishDownload(intent.getStringExtra(EXTRA_LOCATION_URL));
+            onError(context, "MMS received, too many messages waiting to be saved");
+        }
+    }
+
+    private void parse(final Context context, final Intent intent, String path) {
+        FileInputStream reader = null;
+        final File downloadFile = new File(path);
+        final byte[] response;
+
+        try {
+            final int nBytes = (int) downloadFile.length();
+            reader = new FileInputStream(downloadFile);
+            response = new byte[nBytes];
+            reader.read(response, 0, nBytes);
+        } catch (FileNotFoundException e) {
+            String errorMessage = "MMS received, file not found exception";
+            Log.e(TAG, errorMessage, e);
+            finish(context, intent, null, errorMessage);
+            return;
+        } catch (IOException e) {
+            String errorMessage = "MMS received, io exception";
+            Log.e(TAG, errorMessage, e);
+            finish(context, intent, null, errorMessage);
+            return;
+        } finally {
+            if (reader != null) {
                 try {
-                    File mDownloadFile = new File(path);
-                    final int nBytes = (int) mDownloadFile.length();
-                    reader = new FileInputStream(mDownloadFile);
-                    final byte[] response = new byte[nBytes];
-                    reader.read(response, 0, nBytes);
-
-                    List<CommonAsyncTask> tasks = getNotificationTask(context, intent, response);
-
-                    messageUri = DownloadRequest.persist(context, response,
-                            new MmsConfig.Overridden(new MmsConfig(context), null),
-                            intent.getStringExtra(EXTRA_LOCATION_URL),
-                            subscriptionId, null);
-
-                    Log.v(TAG, "response saved successfully");
-                    Log.v(TAG, "response length: " + response.length);
-                    mDownloadFile.delete();
-
-                    if (tasks != null) {
-                        Log.v(TAG, "running the common async notifier for download");
-                        for (CommonAsyncTask task : tasks)
-                            task.executeOnExecutor(RECEIVE_NOTIFICATION_EXECUTOR);
-                    }
-                } catch (FileNotFoundException e) {
-                    errorMessage = "MMS received, file not found exception";
-                    Log.e(TAG, errorMessage, e);
+                    reader.close();
                 } catch (IOException e) {
-                    errorMessage = "MMS received, io exception";
-                    Log.e(TAG, errorMessage, e);
-                } finally {
-                    if (reader != null) {
-                        try {
-                            reader.close();
-                        } catch (IOException e) {
-                            errorMessage = "MMS received, io exception";
-                            Log.e(TAG, "MMS received, io exception", e);
-                        }
-                    }
+                    Log.e(TAG, "MMS received, io exception", e);
                 }
+            }
+        }
+
+        GenericPdu pdu = null;
+        if (response.length > 0) {
+            try {
+                pdu = new PduParser(response, new MmsConfig.Overridden(new MmsConfig(context), null)
+                        .getSupportMmsContentDisposition()).parse();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "MMS received, can not parse response", e);
+            }
+        }
 
-                handleHttpError(context, intent);
-                DownloadManager.finishDownload(intent.getStringExtra(EXTRA_LOCATION_URL));
+        // The tasks need the M-Notification.ind, which persisting deletes
+        final List<CommonAsyncTask> tasks = getNotificationTask(context, intent, pdu);
+        final GenericPdu parsed = pdu;
 
-                if (messageUri != null) {
-                    onMessageReceived(context, messageUri);
-                }
+        TransactionExecutor.getInstance().executeOrRun(TransactionExecutor.LANE_RECEIVE,
+                "MmsReceivedReceiver persist", new Runnable() {
+            @Override
+            public void run() {
+                persist(context, intent, downloadFile, response, parsed, tasks);
+            }
+        });
+    }
 
-                if (errorMessage != null) {
-                    onError(context, errorMessage);
+    private void persist(Context context, Intent intent, File downloadFile, byte[] response,
+                         GenericPdu pdu, List<CommonAsyncTask> tasks) {
+        final int subscriptionId = intent.getIntExtra(SUBSCRIPTION_ID, Utils.getDefaultSubscriptionId());
+        final String locationUrl = intent.getStringExtra(EXTRA_LOCATION_URL);
+
+        Uri messageUri;
+        if (pdu != null) {
+            messageUri = DownloadRequest.persist(context, pdu, locationUrl, subscriptionId, null);
+        } else {
+            // Let the full path record why the response couldn't be used
+            messageUri = DownloadRequest.persist(context, response,
+                    new MmsConfig.Overridden(new MmsConfig(context), null),
+                    locationUrl, subscriptionId, null);
+        }
+
+        Log.v(TAG, "response saved successfully");
+        Log.v(TAG, "response length: " + response.length);
+        downloadFile.delete();
+
+        if (tasks != null) {
+            Log.v(TAG, "running the common async notifier for download");
+            Executor executor = TransactionExecutor.getInstance()
+                    .forLane(TransactionExecutor.LANE_ACK, "MmsReceivedReceiver ack");
+            for (CommonAsyncTask task : tasks) {
+                try {
+                    task.executeOnExecutor(executor);
+                } catch (RejectedExecutionException e) {
+                    Log.e(TAG, "too many acknowledgements waiting, dropping one", e);
                 }
             }
-        }).start();
+        }
+
+        finish(context, intent, messageUri, null);
+    }
+
+    private void finish(Context context, Intent intent, Uri messageUri, String errorMessage) {
+        handleHttpError(context, intent);
+        DownloadManager.finishDownload(intent.getStringExtra(EXTRA_LOCATION_URL));
+        PushDedupeIndex.getInstance(context).onDownloadFinished(
+                intent.getStringExtra(EXTRA_LOCATION_URL), messageUri != null);
+
+        if (messageUri != null) {
+            onMessageReceived(context, messageUri);
+        }
+
+        if (errorMessage != null) {
+            onError(context, errorMessage);
+        }
     }
 
     private void handleHttpError(Context context, Intent intent) {
@@ -338,8 +397,8 @@ public abstract class MmsReceivedReceiver extends BroadcastReceiver {
         }
     }
 
-    private List<CommonAsyncTask> getNotificationTask(Context context, Intent intent, byte[] response) {
-        if (response.length == 0) {
+    private List<CommonAsyncTask> getNotificationTask(Context context, Intent intent, GenericPdu pdu) {
+        if (pdu == null) {
             Log.v(TAG, "MmsReceivedReceiver.sendNotification blank response");
             return null;
         }
@@ -349,10 +408,7 @@ public abstract class MmsReceivedReceiver extends BroadcastReceiver {
             return null;
         }
 
-        final GenericPdu pdu =
-                (new PduParser(response, new MmsConfig.Overridden(new MmsConfig(context), null).
-                        getSupportMmsContentDisposition())).parse();
-        if (pdu == null || !(pdu instanceof RetrieveConf)) {
+        if (!(pdu instanceof RetrieveConf)) {
             android.util.Log.e(TAG, "MmsReceivedReceiver.sendNotification failed to parse pdu");
             return null;
         }
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns addresses into keys that are equal when they point at the same
+ * person, so recipients can be compared and deduplicated by hashing.
+ * <p/>
+ * Phone numbers become E.164 when the country is known, so "+1 555 123 4567",
+ * "(555) 123-4567" and "15551234567" share a key. Email addresses lose their
+ * display name and case. Anything else only loses its formatting. Keys are
+ * cached, and so are our own numbers for each subscription. The country is
+ * checked again every few minutes, and the caches are dropped when it changed,
+ * e.g. after a SIM swap or when roaming.
+ */
+public class RecipientNormalizer {
+    private static final int MAX_CACHED_KEYS = 512;
+
+    // Our own numbers are looked up again after this long, in case the SIM changed.
+    private static final long MY_NUMBERS_TTL = 5 * 60 * 1000;
+
+    // The country is looked up again after this long, and the cached keys made
+    // with the old one are dropped if it changed.
+    private static final long COUNTRY_TTL = 5 * 60 * 1000;
+
+    // Numbers that couldn't be made E.164 are matched on this many trailing digits,
+    // the same as PhoneNumberUtils.compare() does.
+    private static final int MIN_MATCH = 7;
+
+    private static RecipientNormalizer sInstance;
+
+    private final Context mContext;
+    private final TelephonyManager mTelephonyManager;
+
+    private final LinkedHashMap<String, String> mKeys =
+            new LinkedHashMap<String, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_CACHED_KEYS;
+                }
+            };
+    private final Map<Integer, MyNumbers> mMyNumbers = new HashMap<Integer, MyNumbers>();
+    private String mCountryIso;
+    private long mCountryCheckedAt;
+
+    private RecipientNormalizer(Context context) {
+        mContext = context;
+        mTelephonyManager = (TelephonyManager) context.getSystemService(Context.TELEPHONY_SERVICE);
+    }
+
+    public static synchronized RecipientNormalizer getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new RecipientNormalizer(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Get the key for an address.
+     *
+     * @param address a phone number, email address or anything else a message can come from
+     * @return the key, or null if address is null
+     */
+    public String normalize(String address) {
+        if (address == null) {
+            return null;
+        }
+
+        synchronized (this) {
+            checkCountry();
+            String key = mKeys.get(address);
+            if (key != null) {
+                return key;
+            }
+        }
+
+        String key = computeKey(address.trim());
+        synchronized (this) {
+            mKeys.put(address, key);
+        }
+        return key;
+    }
+
+    /**
+     * Check whether an address is one of our own numbers.
+     *
+     * @param address the address to check
+     * @param key the address's key from {@link #normalize(String)}
+     * @param subId the subscription the message came in on
+     */
+    public boolean isMyNumber(String address, String key, int subId) {
+        MyNumbers myNumbers = getMyNumbers(subId);
+        if (myNumbers.keys.contains(key)) {
+            return true;
+        }
+
+        // Without the country, keys of the same number can still differ. Fall back to
+        // the loose comparison for those, but only where the last digits agree.
+        if (!key.startsWith("+") || myNumbers.hasLocalOnly) {
+            String tail = getTail(key);
+            if (tail != null && myNumbers.tails.contains(tail)) {
+                for (String number : myNumbers.numbers) {
+                    if (PhoneNumberUtils.compare(address, number)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forget our own numbers and the country, e.g. after a SIM change.
+     */
+    public synchronized void invalidate() {
+        mMyNumbers.clear();
+        mKeys.clear();
+        mCountryIso = null;
+        mCountryCheckedAt = 0;
+    }
+
+    private MyNumbers getMyNumbers(int subId) {
+        synchronized (this) {
+            MyNumbers myNumbers = mMyNumbers.get(subId);
+            if (myNumbers != null && SystemClock.elapsedRealtime() - myNumbers.loadedAt
+                    < MY_NUMBERS_TTL) {
+                return myNumbers;
+            }
+        }
+
+        MyNumbers myNumbers = new MyNumbers();
+        addMyNumber(myNumbers, Utils.getMyPhoneNumberFromSubscription(mContext, subId));
+        addMyNumber(myNumbers, mTelephonyManager.getLine1Number());
+
+        synchronized (this) {
+            mMyNumbers.put(subId, myNumbers);
+        }
+        return myNumbers;
+    }
+
+    private void addMyNumber(MyNumbers myNumbers, String number) {
+        if (TextUtils.isEmpty(number) || myNumbers.numbers.contains(number)) {
+            return;
+        }
+
+        String key = normalize(number);
+        myNumbers.numbers.add(number);
+        myNumbers.keys.add(key);
+        if (!key.startsWith("+")) {
+            myNumbers.hasLocalOnly = true;
+        }
+        String tail = getTail(key);
+        if (tail != null) {
+            myNumbers.tails.add(tail);
+        }
+    }
+
+    private String computeKey(String address) {
+        if (Utils.isEmailAddress(address)) {
+            return Utils.extractAddrSpec(address).toLowerCase(Locale.US);
+        }
+
+        String stripped = hasLetters(address) ? null : PhoneNumberUtils.stripSeparators(address);
+        if (TextUtils.isEmpty(stripped)) {
+            // Not a number at all, e.g. an alphanumeric sender id.
+            return address.toLowerCase(Locale.US);
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            String e164 = formatE164(stripped);
+            if (e164 != null) {
+                return e164;
+            }
+        }
+        return stripped;
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private String formatE164(String number) {
+        String countryIso = getCountryIso();
+        if (countryIso == null) {
+            return null;
+        }
+        return PhoneNumberUtils.formatNumberToE164(number, countryIso);
+    }
+
+    private synchronized String getCountryIso() {
+        checkCountry();
+        return mCountryIso;
+    }
+
+    /**
+     * Look the country up again if it is due, and forget everything that was
+     * worked out with the old one if it changed. Must hold the lock.
+     */
+    private void checkCountry() {
+        final long now = SystemClock.elapsedRealtime();
+        if (mCountryCheckedAt != 0 && now - mCountryCheckedAt < COUNTRY_TTL) {
+            return;
+        }
+        mCountryCheckedAt = now;
+
+        String iso = mTelephonyManager.getSimCountryIso();
+        if (TextUtils.isEmpty(iso)) {
+            iso = mTelephonyManager.getNetworkCountryIso();
+        }
+        if (TextUtils.isEmpty(iso)) {
+            iso = Locale.getDefault().getCountry();
+        }
+        iso = TextUtils.isEmpty(iso) ? null : iso.toUpperCase(Locale.US);
+
+        if (!TextUtils.equals(iso, mCountryIso)) {
+            mKeys.clear();
+            mMyNumbers.clear();
+            mCountryIso = iso;
+        }
+    }
+
+    private static boolean hasLetters(String address) {
+        for (int i = 0; i < address.length(); i++) {
+            if (Character.isLetter(address.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String getTail(String key) {
+        int digits = 0;
+        for (int i = key.length() - 1; i >= 0 && digits < MIN_MATCH; i--) {
+            if (!Character.isDigit(key.charAt(i))) {
+                return null;
+            }
+            digits++;
+        }
+        return digits < MIN_MATCH ? null : key.substring(key.length() - MIN_MATCH);
+    }
+
+    private static class MyNumbers {
+        final Set<String> numbers = new HashSet<String>();
+        final Set<String> keys = new HashSet<String>();
+        final Set<String> tails = new HashSet<String>();
+        final long loadedAt = SystemClock.elapsedRealtime();
+        boolean hasLocalOnly;
+    }
+}
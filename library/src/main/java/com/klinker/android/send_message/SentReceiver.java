@@ -16,78 +16,39 @@
 
 package com.klinker.android.send_message;
 
-import android.app.Activity;
-import android.content.BroadcastReceiver;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.net.Uri;
-import android.telephony.SmsManager;
 import com.klinker.android.logger.Log;
 
 public abstract class SentReceiver extends StatusUpdatedReceiver {
 
     @Override
     public void updateInInternalDatabase(Context context, Intent intent, int resultCode) {
+        updateInInternalDatabase(context, intent, resultCode, null);
+    }
+
+    @Override
+    void updateInInternalDatabase(Context context, Intent intent, int resultCode,
+                                  PendingResult result) {
         Log.v("sent_receiver", "marking message as sent");
-        final Uri uri = getUri(intent);
+        SmsStatusAggregator aggregator = SmsStatusAggregator.getInstance(context);
+        Uri uri = getUri(intent);
 
         try {
-            switch (resultCode) {
-                case Activity.RESULT_OK:
-                    if (uri != null) {
-                        try {
-                            Log.v("sent_receiver", "using supplied uri");
-                            ContentValues values = new ContentValues();
-                            values.put("type", 2);
-                            values.put("read", 1);
-                            context.getContentResolver().update(uri, values, null, null);
-                        } catch (NullPointerException e) {
-                            markFirstAsSent(context);
-                        }
-                    } else {
-                        markFirstAsSent(context);
-                    }
-
-                    break;
-                case SmsManager.RESULT_ERROR_GENERIC_FAILURE:
-                case SmsManager.RESULT_ERROR_NO_SERVICE:
-                case SmsManager.RESULT_ERROR_NULL_PDU:
-                case SmsManager.RESULT_ERROR_RADIO_OFF:
-                    if (uri != null) {
-                        Log.v("sent_receiver", "using supplied uri");
-                        ContentValues values = new ContentValues();
-                        values.put("type", 5);
-                        values.put("read", true);
-                        values.put("error_code", resultCode);
-                        context.getContentResolver().update(uri, values, null, null);
-                    } else {
-                        Log.v("sent_receiver", "using first message");
-                        Cursor query = context.getContentResolver().query(Uri.parse("content://sms/outbox"), null, null, null, null);
-
-                        // mark message failed
-                        if (query != null && query.moveToFirst()) {
-                            String id = query.getString(query.getColumnIndex("_id"));
-                            ContentValues values = new ContentValues();
-                            values.put("type", 5);
-                            values.put("read", 1);
-                            values.put("error_code", resultCode);
-                            context.getContentResolver().update(Uri.parse("content://sms/outbox"), values, "_id=" + id, null);
-
-                            query.close();
-                        }
-                    }
-
-                    BroadcastUtils.sendExplicitBroadcast(
-                            context, new Intent(), Transaction.NOTIFY_SMS_FAILURE);
-                    break;
+            if (uri == null) {
+                Log.v("sent_receiver", "using first message");
+                // a guess, made again for every part: if another message was sent in
+                // the meantime, the parts of this one are counted against different rows
+                uri = aggregator.findNewest(Uri.parse("content://sms/outbox"));
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
 
-        BroadcastUtils.sendExplicitBroadcast(context, new Intent(), Transaction.REFRESH);
+        // the status is written, and the app refreshed, once every part has reported
+        aggregator.onSent(uri, intent.getIntExtra(SmsStatusAggregator.EXTRA_PARTS, 1), resultCode,
+                result);
     }
 
     private Uri getUri(Intent intent) {
@@ -105,20 +66,4 @@ public abstract class SentReceiver extends StatusUpdatedReceiver {
 
         return uri;
     }
-
-    private void markFirstAsSent(Context context) {
-        Log.v("sent_receiver", "using first message");
-        Cursor query = context.getContentResolver().query(Uri.parse("content://sms/outbox"), null, null, null, null);
-
-        // mark message as sent successfully
-        if (query != null && query.moveToFirst()) {
-            String id = query.getString(query.getColumnIndex("_id"));
-            ContentValues values = new ContentValues();
-            values.put("type", 2);
-            values.put("read", 1);
-            context.getContentResolver().update(Uri.parse("content://sms/outbox"), values, "_id=" + id, null);
-
-            query.close();
-        }
-    }
 }
@@ -0,0 +1,408 @@
+/*
+ * Copyright 2013 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import android.app.Activity;
+import android.content.BroadcastReceiver;
+import android.content.ContentProviderOperation;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.telephony.SmsManager;
+
+import com.klinker.android.logger.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the sent and delivered callbacks of SMS and writes one status per
+ * message instead of one per part.
+ * <p/>
+ * Every part of a multipart message reports on its own. The parts of a message
+ * are counted here, and its status is only written once all of them have
+ * reported, one of them failed, or the rest didn't report in time. Messages
+ * that finish within the same short window are written in one applyBatch, and
+ * the window ends with a single {@link Transaction#REFRESH} broadcast and at
+ * most one {@link Transaction#NOTIFY_SMS_FAILURE}.
+ * <p/>
+ * The broadcast of the part that finishes a message, by being its last part
+ * or by failing it, is kept going until the status is written, so the process
+ * isn't killed with the status only in memory. The broadcasts of the other
+ * parts are finished right away: ordered and manifest receivers get them one
+ * at a time, so keeping one going would hold back the parts after it.
+ */
+public class SmsStatusAggregator {
+    private static final String TAG = "SmsStatusAggregator";
+
+    /**
+     * The number of parts the message was sent in, put on the sent and
+     * delivered intents. Messages without it count as a single part.
+     */
+    public static final String EXTRA_PARTS = "message_parts";
+
+    private static final int TYPE_SENT = 0;
+    private static final int TYPE_DELIVERED = 1;
+
+    /**
+     * How long finished messages are collected before they are written.
+     */
+    private static final long WINDOW = 250;
+
+    /**
+     * How long to wait for the rest of the sent callbacks after the first one.
+     */
+    private static final long PART_TIMEOUT = 30 * 1000;
+
+    /**
+     * How long to wait for the rest of the delivery reports after the first one.
+     */
+    private static final long DELIVERY_TIMEOUT = 10 * 60 * 1000;
+
+    // Remembered so that parts reporting after a timeout or a failure don't
+    // overwrite the status that was written, unless they report a failure
+    // where success was written. Maps to whether the written status failed.
+    private static final int MAX_FINISHED = 512;
+
+    private static SmsStatusAggregator sInstance;
+
+    private final Context mContext;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final Map<String, Status> mPending = new HashMap<String, Status>();
+    private final List<Status> mReady = new ArrayList<Status>();
+    private final LinkedHashMap<String, Boolean> mFinished =
+            new LinkedHashMap<String, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                    return size() > MAX_FINISHED;
+                }
+            };
+    private boolean mFlushScheduled;
+
+    private SmsStatusAggregator(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized SmsStatusAggregator getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new SmsStatusAggregator(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Record the sent callback of one part.
+     *
+     * @param uri the message, null if it couldn't be found
+     * @param parts the number of parts the message was sent in
+     * @param resultCode the result code the callback came with
+     */
+    public void onSent(Uri uri, int parts, int resultCode) {
+        onSent(uri, parts, resultCode, null);
+    }
+
+    /**
+     * Record the sent callback of one part, from a receiver that is kept going
+     * until the status is written.
+     *
+     * @param result the receiver's result, finished here once it isn't needed
+     */
+    public void onSent(Uri uri, int parts, int resultCode,
+                       BroadcastReceiver.PendingResult result) {
+        add(TYPE_SENT, uri, parts, resultCode, result);
+    }
+
+    /**
+     * Record the delivery report of one part.
+     *
+     * @param uri the message, null if it couldn't be found
+     * @param parts the number of parts the message was sent in
+     * @param resultCode the result code the report came with
+     */
+    public void onDelivered(Uri uri, int parts, int resultCode) {
+        onDelivered(uri, parts, resultCode, null);
+    }
+
+    /**
+     * Record the delivery report of one part, from a receiver that is kept
+     * going until the status is written.
+     *
+     * @param result the receiver's result, finished here once it isn't needed
+     */
+    public void onDelivered(Uri uri, int parts, int resultCode,
+                            BroadcastReceiver.PendingResult result) {
+        add(TYPE_DELIVERED, uri, parts, resultCode, result);
+    }
+
+    /**
+     * Find the newest message in a box, for callbacks that didn't say which
+     * message they are for.
+     *
+     * @return the message, or null if the box is empty
+     */
+    public Uri findNewest(Uri box) {
+        Cursor query = mContext.getContentResolver().query(box, new String[]{"_id"},
+                null, null, "date desc limit 1");
+        if (query == null) {
+            return null;
+        }
+
+        try {
+            if (query.moveToFirst()) {
+                return ContentUris.withAppendedId(Uri.parse("content://sms"), query.getLong(0));
+            }
+        } finally {
+            query.close();
+        }
+        return null;
+    }
+
+    private synchronized void add(int type, Uri uri, int parts, int resultCode,
+                                  BroadcastReceiver.PendingResult result) {
+        if (uri == null) {
+            // Nothing to write, but the app still hears about it.
+            Status status = new Status(type, null, 1);
+            status.add(resultCode, result);
+            mReady.add(status);
+            scheduleFlush();
+            return;
+        }
+
+        final String key = type + ":" + uri;
+        Boolean finishedFailed = mFinished.get(key);
+        if (finishedFailed != null) {
+            Status late = new Status(type, uri, 1);
+            late.add(resultCode, result);
+            if (late.failed && !finishedFailed) {
+                Log.v(TAG, "late part failed for " + key);
+                finish(key, late);
+            } else {
+                Log.v(TAG, "ignoring late part for " + key);
+                late.finishResults();
+            }
+            return;
+        }
+
+        Status status = mPending.get(key);
+        if (status == null) {
+            status = new Status(type, uri, Math.max(parts, 1));
+            mPending.put(key, status);
+            if (status.expected > 1) {
+                final Status started = status;
+                mExecutor.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        expire(key, started);
+                    }
+                }, type == TYPE_SENT ? PART_TIMEOUT : DELIVERY_TIMEOUT, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        status.add(resultCode, result);
+        if (status.failed || status.received >= status.expected) {
+            finish(key, status);
+        } else {
+            // The next part can't be received while this one is kept going
+            status.finishResults();
+        }
+    }
+
+    private synchronized void expire(String key, Status status) {
+        if (mPending.get(key) == status) {
+            Log.v(TAG, key + ": only " + status.received + " of " + status.expected
+                    + " parts reported");
+            finish(key, status);
+        }
+    }
+
+    private void finish(String key, Status status) {
+        mPending.remove(key);
+        mFinished.put(key, status.failed);
+        mReady.add(status);
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled) {
+            return;
+        }
+        mFlushScheduled = true;
+
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                flush();
+            }
+        }, WINDOW, TimeUnit.MILLISECONDS);
+    }
+
+    private void flush() {
+        List<Status> ready;
+        synchronized (this) {
+            ready = new ArrayList<Status>(mReady);
+            mReady.clear();
+            mFlushScheduled = false;
+        }
+
+        write(ready);
+
+        boolean failed = false;
+        for (Status status : ready) {
+            if (status.type == TYPE_SENT) {
+                failed |= status.failed;
+            } else if (status.failed || status.succeeded) {
+                // notify user whether the message was delivered
+                Intent delivered = new Intent(Transaction.NOTIFY_OF_DELIVERY);
+                delivered.putExtra("result", !status.failed);
+                delivered.putExtra("message_uri", status.uri == null ? "" : status.uri.toString());
+                BroadcastUtils.sendExplicitBroadcast(
+                        mContext, delivered, Transaction.NOTIFY_OF_DELIVERY);
+            }
+        }
+
+        if (failed) {
+            BroadcastUtils.sendExplicitBroadcast(
+                    mContext, new Intent(), Transaction.NOTIFY_SMS_FAILURE);
+        }
+        BroadcastUtils.sendExplicitBroadcast(mContext, new Intent(), Transaction.REFRESH);
+
+        for (Status status : ready) {
+            status.finishResults();
+        }
+    }
+
+    private void write(List<Status> ready) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<ContentProviderOperation>();
+        for (Status status : ready) {
+            ContentValues values = status.getValues();
+            if (status.uri != null && values != null) {
+                operations.add(ContentProviderOperation.newUpdate(status.uri)
+                        .withValues(values).build());
+            }
+        }
+
+        if (operations.isEmpty()) {
+            return;
+        }
+
+        try {
+            mContext.getContentResolver().applyBatch("sms", operations);
+        } catch (Exception e) {
+            Log.e(TAG, "batch update failed, updating one by one", e);
+            for (Status status : ready) {
+                ContentValues values = status.getValues();
+                if (status.uri != null && values != null) {
+                    try {
+                        mContext.getContentResolver().update(status.uri, values, null, null);
+                    } catch (Exception f) {
+                        Log.e(TAG, "failed to update " + status.uri, f);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Status {
+        final int type;
+        final Uri uri;
+        final int expected;
+        int received;
+        boolean succeeded;
+        boolean failed;
+        int errorCode;
+        // Receivers kept going until the status is written
+        final List<BroadcastReceiver.PendingResult> results =
+                new ArrayList<BroadcastReceiver.PendingResult>(1);
+
+        Status(int type, Uri uri, int expected) {
+            this.type = type;
+            this.uri = uri;
+            this.expected = expected;
+        }
+
+        void add(int resultCode, BroadcastReceiver.PendingResult result) {
+            if (result != null) {
+                results.add(result);
+            }
+            received++;
+            if (type == TYPE_SENT) {
+                switch (resultCode) {
+                    case Activity.RESULT_OK:
+                        succeeded = true;
+                        break;
+                    case SmsManager.RESULT_ERROR_GENERIC_FAILURE:
+                    case SmsManager.RESULT_ERROR_NO_SERVICE:
+                    case SmsManager.RESULT_ERROR_NULL_PDU:
+                    case SmsManager.RESULT_ERROR_RADIO_OFF:
+                        failed = true;
+                        errorCode = resultCode;
+                        break;
+                }
+            } else {
+                switch (resultCode) {
+                    case Activity.RESULT_OK:
+                        succeeded = true;
+                        break;
+                    case Activity.RESULT_CANCELED:
+                        failed = true;
+                        errorCode = resultCode;
+                        break;
+                }
+            }
+        }
+
+        void finishResults() {
+            for (BroadcastReceiver.PendingResult result : results) {
+                result.finish();
+            }
+            results.clear();
+        }
+
+        /**
+         * @return the final status of the message, null if there is nothing to write
+         */
+        ContentValues getValues() {
+            if (!failed && !succeeded) {
+                return null;
+            }
+
+            ContentValues values = new ContentValues();
+            values.put("read", 1);
+            if (type == TYPE_SENT) {
+                values.put("type", failed ? 5 : 2);
+            } else {
+                values.put("status", failed ? "64" : "0");
+                values.put("date_sent", System.currentTimeMillis());
+            }
+            if (failed) {
+                values.put("error_code", errorCode);
+            }
+            return values;
+        }
+    }
+}
@@ -12,14 +12,27 @@ public abstract class StatusUpdatedReceiver extends BroadcastReceiver {
     // allows the implementer to update the status of the message in their database
     public abstract void onMessageStatusUpdated(Context context, Intent intent, int receiverResultCode);
 
+    // Like updateInInternalDatabase(), for receivers that write the status later. The
+    // result is finished once the status has been written.
+    void updateInInternalDatabase(Context context, Intent intent, int receiverResultCode,
+                                  PendingResult result) {
+        try {
+            updateInInternalDatabase(context, intent, receiverResultCode);
+        } finally {
+            result.finish();
+        }
+    }
+
     @Override
     public final void onReceive(final Context context, final Intent intent) {
         final int resultCode = getResultCode();
+        // keep the process around until the status is written
+        final PendingResult result = goAsync();
         new Thread(new Runnable() {
             @Override
             public void run() {
                 onMessageStatusUpdated(context, intent, resultCode);
-                updateInInternalDatabase(context, intent, resultCode);
+                updateInInternalDatabase(context, intent, resultCode, result);
             }
         }).start();
     }
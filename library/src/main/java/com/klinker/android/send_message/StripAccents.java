@@ -16,7 +16,7 @@
 
 package com.klinker.android.send_message;
 
-import android.telephony.SmsMessage;
+import com.android.internal.telephony.SmsSegmenter;
 
 public class StripAccents {
 
@@ -34,15 +34,51 @@ public class StripAccents {
             "\u03A9IYIYABEZHIKMNOPTYXAEHIO\u03A9IY\u00DC\u00FC\u00D6\u00F6acelnszzACELNSZZAAAEEIIOOUU" +
             "aaeiouucescrzdtnaieoyuESCRZDTNAEIOYUUrlloRLLOIIee";
 
+    private static char[] sReplacements;
+
     public static String stripAccents(String s) {
-        int[] messageData = SmsMessage.calculateLength(s, false);
+        if (SmsSegmenter.getDefault().segment(s).getCount() != 1) {
+            char[] replacements = getReplacements();
+            char[] chars = s.toCharArray();
+            boolean changed = false;
+            for (int i = 0; i < chars.length; i++) {
+                char c = chars[i];
+                char replacement = c < replacements.length ? replacements[c] : 0;
+                if (replacement != 0) {
+                    chars[i] = replacement;
+                    changed = true;
+                }
+            }
 
-        if (messageData[0] != 1) {
-            for (int i = 0; i < characters.length(); i++) {
-                s = s.replaceAll(characters.substring(i, i + 1), gsm.substring(i, i + 1));
+            if (changed) {
+                s = new String(chars);
             }
         }
 
         return s;
     }
+
+    /**
+     * Maps each accented character to its GSM replacement, 0 if it has none.
+     * The first mapping listed for a character wins, like the chained
+     * replaceAll() calls this replaces.
+     */
+    private static synchronized char[] getReplacements() {
+        if (sReplacements == null) {
+            char max = 0;
+            for (int i = 0; i < characters.length(); i++) {
+                max = (char) Math.max(max, characters.charAt(i));
+            }
+
+            char[] replacements = new char[max + 1];
+            for (int i = 0; i < characters.length(); i++) {
+                char c = characters.charAt(i);
+                if (replacements[c] == 0) {
+                    replacements[c] = gsm.charAt(i);
+                }
+            }
+            sReplacements = replacements;
+        }
+        return sReplacements;
+    }
 }
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2013 Jacob Klinker
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.klinker.android.send_message;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.text.TextUtils;
+
+import com.google.android.mms.util_alt.SqliteWrapper;
+import com.klinker.android.logger.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remembers which conversation thread belongs to a set of recipients, so
+ * sending and receiving don't have to ask the provider every time.
+ * <p/>
+ * Entries are keyed on the recipients after normalizing them with
+ * {@link RecipientNormalizer} and sorting them, and the least recently used
+ * ones are dropped once the cache is full. Any change
+ * to the conversations makes every entry suspect, because a thread may have
+ * been deleted. Suspect entries aren't handed out. Shortly after the change,
+ * one query checks which of their threads still exist, and those entries are
+ * trusted again.
+ */
+public class ThreadIdCache {
+    private static final String TAG = "ThreadIdCache";
+
+    private static final Uri CONVERSATIONS_URI = Uri.parse("content://mms-sms/conversations");
+    private static final Uri SIMPLE_CONVERSATIONS_URI = CONVERSATIONS_URI.buildUpon()
+            .appendQueryParameter("simple", "true").build();
+
+    private static final int MAX_ENTRIES = 256;
+
+    /**
+     * Changes often come in bursts, e.g. while a message is being saved, so
+     * entries are only checked again after things have been quiet this long.
+     */
+    private static final long VALIDATE_DELAY = 500;
+
+    private static ThreadIdCache sInstance;
+
+    private final Context mContext;
+    private final ScheduledExecutorService mExecutor =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private final LinkedHashMap<String, Entry> mEntries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                    return size() > MAX_ENTRIES;
+                }
+            };
+
+    // Bumped on every change to the conversations. An entry can only be
+    // trusted if it was looked up or checked in the current generation.
+    private long mGeneration;
+    private boolean mValidationPending;
+
+    private long mHits;
+    private long mMisses;
+
+    private ThreadIdCache(Context context) {
+        mContext = context;
+        context.getContentResolver().registerContentObserver(CONVERSATIONS_URI, true,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        invalidate();
+                    }
+                });
+    }
+
+    public static synchronized ThreadIdCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ThreadIdCache(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Gets the thread for the recipients, creating it if there isn't one yet.
+     *
+     * @param recipients the people in the conversation
+     * @return the thread id, or -1 if the provider couldn't give one
+     */
+    public long getOrCreateThreadId(Set<String> recipients) {
+        String key = getKey(recipients);
+        long generation;
+        synchronized (this) {
+            Entry entry = mEntries.get(key);
+            if (entry != null && entry.generation == mGeneration) {
+                mHits++;
+                return entry.threadId;
+            }
+            mMisses++;
+            generation = mGeneration;
+        }
+
+        long threadId = Utils.queryThreadId(mContext, recipients);
+        if (threadId != -1) {
+            put(key, threadId, generation);
+        }
+        return threadId;
+    }
+
+    /**
+     * Gets the threads for many sets of recipients at once. Sets that are
+     * already known are answered from the cache and every other distinct set
+     * is looked up only once.
+     *
+     * @param recipientSets the people in each conversation
+     * @return the thread ids in the same order, -1 where the provider couldn't give one
+     */
+    public long[] getOrCreateThreadIds(List<Set<String>> recipientSets) {
+        long[] threadIds = new long[recipientSets.size()];
+        String[] keys = new String[recipientSets.size()];
+        Map<String, Set<String>> missing = new LinkedHashMap<String, Set<String>>();
+        long generation;
+
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = getKey(recipientSets.get(i));
+        }
+
+        synchronized (this) {
+            generation = mGeneration;
+            for (int i = 0; i < keys.length; i++) {
+                Entry entry = mEntries.get(keys[i]);
+                if (entry != null && entry.generation == mGeneration) {
+                    mHits++;
+                    threadIds[i] = entry.threadId;
+                } else {
+                    mMisses++;
+                    threadIds[i] = -1;
+                    if (!missing.containsKey(keys[i])) {
+                        missing.put(keys[i], recipientSets.get(i));
+                    }
+                }
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return threadIds;
+        }
+
+        Map<String, Long> resolved = new HashMap<String, Long>();
+        for (Map.Entry<String, Set<String>> miss : missing.entrySet()) {
+            long threadId = Utils.queryThreadId(mContext, miss.getValue());
+            if (threadId != -1) {
+                resolved.put(miss.getKey(), threadId);
+                put(miss.getKey(), threadId, generation);
+            }
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            if (threadIds[i] == -1 && resolved.containsKey(keys[i])) {
+                threadIds[i] = resolved.get(keys[i]);
+            }
+        }
+        return threadIds;
+    }
+
+    /**
+     * Forget everything, e.g. after restoring a backup of the conversations.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mGeneration++;
+    }
+
+    public synchronized String getStats() {
+        return "ThreadIdCache: entries=" + mEntries.size() + " hits=" + mHits
+                + " misses=" + mMisses;
+    }
+
+    private synchronized void put(String key, long threadId, long generation) {
+        // If the conversations changed while the provider was being asked,
+        // the answer is already suspect and gets checked with the others.
+        mEntries.put(key, new Entry(threadId, generation));
+    }
+
+    private void invalidate() {
+        synchronized (this) {
+            mGeneration++;
+            if (mEntries.isEmpty() || mValidationPending) {
+                return;
+            }
+            mValidationPending = true;
+        }
+
+        mExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                validate();
+            }
+        }, VALIDATE_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Check which suspect entries still point at a thread, trust those again
+     * and drop the rest.
+     */
+    private void validate() {
+        long generation;
+        Set<Long> threadIds = new HashSet<Long>();
+        synchronized (this) {
+            mValidationPending = false;
+            generation = mGeneration;
+            for (Entry entry : mEntries.values()) {
+                if (entry.generation != generation) {
+                    threadIds.add(entry.threadId);
+                }
+            }
+        }
+
+        if (threadIds.isEmpty()) {
+            return;
+        }
+
+        Set<Long> existing = queryExisting(threadIds);
+
+        synchronized (this) {
+            if (existing == null) {
+                Log.v(TAG, "couldn't check threads, clearing cache");
+                mEntries.clear();
+                return;
+            }
+
+            Iterator<Entry> iterator = mEntries.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (!existing.contains(entry.threadId)) {
+                    iterator.remove();
+                } else if (generation == mGeneration) {
+                    // Otherwise something changed again while checking, and the
+                    // next validation has already been scheduled.
+                    entry.generation = generation;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the ids out of threadIds that are still in the provider, or null if it couldn't be asked
+     */
+    private Set<Long> queryExisting(Set<Long> threadIds) {
+        Cursor cursor = SqliteWrapper.query(mContext, mContext.getContentResolver(),
+                SIMPLE_CONVERSATIONS_URI, new String[]{"_id"},
+                "_id IN (" + TextUtils.join(",", threadIds) + ")", null, null);
+        if (cursor == null) {
+            return null;
+        }
+
+        Set<Long> existing = new HashSet<Long>();
+        try {
+            while (cursor.moveToNext()) {
+                existing.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return existing;
+    }
+
+    /**
+     * Recipients that only differ in formatting or order give the same key.
+     */
+    private String getKey(Set<String> recipients) {
+        RecipientNormalizer normalizer = RecipientNormalizer.getInstance(mContext);
+        TreeSet<String> normalized = new TreeSet<String>();
+        for (String recipient : recipients) {
+            if (recipient != null) {
+                normalized.add(normalizer.normalize(recipient));
+            }
+        }
+        return TextUtils.join(",", new ArrayList<String>(normalized));
+    }
+
+    private static class Entry {
+        final long threadId;
+        long generation;
+
+        Entry(long threadId, long generation) {
+            this.threadId = threadId;
+            this.generation = generation;
+        }
+    }
+}
@@ -28,9 +28,9 @@ import android.os.Looper;
 import android.os.Parcelable;
 import android.provider.Telephony;
 import android.telephony.SmsManager;
-import android.telephony.SmsMessage;
 import android.text.TextUtils;
 
+import com.android.internal.telephony.SmsSegmenter;
 import com.android.mms.MmsConfig;
 import com.android.mms.service_alt.MmsNetworkManager;
 import com.android.mms.service_alt.MmsRequestManager;
@@ -147,12 +147,12 @@ public class Transaction {
                 for (String address : message.getAddresses()) {
                     sendMmsMessage(message.getText(), message.getFromAddress(), new String[] { address },
                             message.getImages(), message.getImageNames(), message.getParts(), message.getSubject(),
-                            message.getSave(), message.getMessageUri());
+                            message.getSave(), message.getMessageUri(), message.getPriority());
                 }
             } else {
                 sendMmsMessage(message.getText(), message.getFromAddress(), message.getAddresses(),
                         message.getImages(), message.getImageNames(), message.getParts(), message.getSubject(),
-                        message.getSave(), message.getMessageUri());
+                        message.getSave(), message.getMessageUri(), message.getPriority());
             }
         } else {
             sendSmsMessage(message.getText(), message.getAddresses(), threadId, message.getDelay(),
@@ -223,6 +223,16 @@ public class Transaction {
                 text += "\n" + settings.getSignature();
             }
 
+            // attempt to create correct thread ids if one is not supplied, all in one go
+            long[] threadIds = null;
+            if (threadId == NO_THREAD_ID || addresses.length > 1) {
+                List<Set<String>> recipientSets = new ArrayList<Set<String>>(addresses.length);
+                for (String address : addresses) {
+                    recipientSets.add(Collections.singleton(address));
+                }
+                threadIds = Utils.getOrCreateThreadIds(context, recipientSets);
+            }
+
             // save the message for each of the addresses
             for (int i = 0; i < addresses.length; i++) {
                 Calendar cal = Calendar.getInstance();
@@ -233,9 +243,8 @@ public class Transaction {
                 values.put("read", 1);
                 values.put("type", 4);
 
-                // attempt to create correct thread id if one is not supplied
-                if (threadId == NO_THREAD_ID || addresses.length > 1) {
-                    threadId = Utils.getOrCreateThreadId(context, addresses[i]);
+                if (threadIds != null) {
+                    threadId = threadIds[i];
                 }
 
                 Log.v("send_transaction", "saving message with thread id: " + threadId);
@@ -255,36 +264,6 @@ public class Transaction {
 
                 Log.v("send_transaction", "message id: " + messageId);
 
-                // set up sent and delivered pending intents to be used with message request
-                Intent sentIntent;
-                if (explicitSentSmsReceiver == null) {
-                    sentIntent = new Intent(SMS_SENT);
-                    BroadcastUtils.addClassName(context, sentIntent, SMS_SENT);
-                } else {
-                    sentIntent = explicitSentSmsReceiver;
-                }
-
-                sentIntent.putExtra("message_uri", messageUri == null ? "" : messageUri.toString());
-                sentIntent.putExtra(SENT_SMS_BUNDLE, sentMessageParcelable);
-                PendingIntent sentPI = PendingIntent.getBroadcast(
-                        context, messageId, sentIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-
-                Intent deliveredIntent;
-                if (explicitDeliveredSmsReceiver == null) {
-                    deliveredIntent = new Intent(SMS_DELIVERED);
-                    BroadcastUtils.addClassName(context, deliveredIntent, SMS_DELIVERED);
-                } else {
-                    deliveredIntent = explicitDeliveredSmsReceiver;
-                }
-
-                deliveredIntent.putExtra("message_uri", messageUri == null ? "" : messageUri.toString());
-                deliveredIntent.putExtra(DELIVERED_SMS_BUNDLE, deliveredParcelable);
-                PendingIntent deliveredPI = PendingIntent.getBroadcast(
-                        context, messageId, deliveredIntent, PendingIntent.FLAG_UPDATE_CURRENT);
-
-                ArrayList<PendingIntent> sPI = new ArrayList<PendingIntent>();
-                ArrayList<PendingIntent> dPI = new ArrayList<PendingIntent>();
-
                 String body = text;
 
                 // edit the body of the text if unicode needs to be stripped
@@ -299,15 +278,17 @@ public class Transaction {
                 SmsManager smsManager = SmsManagerFactory.createSmsManager(settings);
                 Log.v("send_transaction", "found sms manager");
 
+                // divide the body first, so the receivers know how many parts to wait for
+                List<ArrayList<String>> messages = new ArrayList<ArrayList<String>>();
                 if (settings.getSplit()) {
                     Log.v("send_transaction", "splitting message");
                     // figure out the length of supported message
-                    int[] splitData = SmsMessage.calculateLength(body, false);
+                    SmsSegmenter.Segments segments = SmsSegmenter.getDefault().segment(body);
 
                     // we take the current length + the remaining length to get the total number of characters
                     // that message set can support, and then divide by the number of message that will require
                     // to get the length supported by a single message
-                    int length = (body.length() + splitData[2]) / splitData[0];
+                    int length = (body.length() + segments.getCodeUnitsRemaining()) / segments.getCount();
                     Log.v("send_transaction", "length: " + length);
 
                     boolean counter = false;
@@ -318,23 +299,67 @@ public class Transaction {
 
                     // get the split messages
                     String[] textToSend = splitByLength(body, length, counter);
+                    for (String message : textToSend) {
+                        messages.add(smsManager.divideMessage(message));
+                    }
+                } else {
+                    messages.add(smsManager.divideMessage(body));
+                }
 
-                    // send each message part to each recipient attached to message
-                    for (int j = 0; j < textToSend.length; j++) {
-                        ArrayList<String> parts = smsManager.divideMessage(textToSend[j]);
+                int partCount = 0;
+                for (ArrayList<String> parts : messages) {
+                    partCount += parts.size();
+                }
 
+                // set up sent and delivered pending intents to be used with message request
+                Intent sentIntent;
+                if (explicitSentSmsReceiver == null) {
+                    sentIntent = new Intent(SMS_SENT);
+                    BroadcastUtils.addClassName(context, sentIntent, SMS_SENT);
+                } else {
+                    sentIntent = explicitSentSmsReceiver;
+                }
+
+                sentIntent.putExtra("message_uri", messageUri == null ? "" : messageUri.toString());
+                sentIntent.putExtra(SmsStatusAggregator.EXTRA_PARTS, partCount);
+                sentIntent.putExtra(SENT_SMS_BUNDLE, sentMessageParcelable);
+                PendingIntent sentPI = PendingIntent.getBroadcast(
+                        context, messageId, sentIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+                Intent deliveredIntent;
+                if (explicitDeliveredSmsReceiver == null) {
+                    deliveredIntent = new Intent(SMS_DELIVERED);
+                    BroadcastUtils.addClassName(context, deliveredIntent, SMS_DELIVERED);
+                } else {
+                    deliveredIntent = explicitDeliveredSmsReceiver;
+                }
+
+                deliveredIntent.putExtra("message_uri", messageUri == null ? "" : messageUri.toString());
+                deliveredIntent.putExtra(SmsStatusAggregator.EXTRA_PARTS, partCount);
+                deliveredIntent.putExtra(DELIVERED_SMS_BUNDLE, deliveredParcelable);
+                PendingIntent deliveredPI = PendingIntent.getBroadcast(
+                        context, messageId, deliveredIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+                if (settings.getSplit()) {
+                    // send each message part to each recipient attached to message
+                    for (ArrayList<String> parts : messages) {
+                        ArrayList<PendingIntent> sPI = new ArrayList<PendingIntent>();
+                        ArrayList<PendingIntent> dPI = new ArrayList<PendingIntent>();
                         for (int k = 0; k < parts.size(); k++) {
                             sPI.add(saveMessage ? sentPI : null);
                             dPI.add(settings.getDeliveryReports() && saveMessage ? deliveredPI : null);
                         }
 
                         Log.v("send_transaction", "sending split message");
-                        sendDelayedSms(smsManager, addresses[i], parts, sPI, dPI, delay, messageUri);
+                        sendDelayedSms(addresses[i], parts, sPI, dPI, sentIntent, deliveredIntent,
+                                messageId, delay, messageUri);
                     }
                 } else {
                     Log.v("send_transaction", "sending without splitting");
                     // send the message normally without forcing anything to be split
-                    ArrayList<String> parts = smsManager.divideMessage(body);
+                    ArrayList<String> parts = messages.get(0);
+                    ArrayList<PendingIntent> sPI = new ArrayList<PendingIntent>();
+                    ArrayList<PendingIntent> dPI = new ArrayList<PendingIntent>();
 
                     for (int j = 0; j < parts.size(); j++) {
                         sPI.add(saveMessage ? sentPI : null);
@@ -344,7 +369,8 @@ public class Transaction {
                     if (Utils.isDefaultSmsApp(context)) {
                         try {
                             Log.v("send_transaction", "sent message");
-                            sendDelayedSms(smsManager, addresses[i], parts, sPI, dPI, delay, messageUri);
+                            sendDelayedSms(addresses[i], parts, sPI, dPI, sentIntent, deliveredIntent,
+                                    messageId, delay, messageUri);
                         } catch (Exception e) {
                             // whoops...
                             Log.v("send_transaction", "error sending message");
@@ -369,42 +395,29 @@ public class Transaction {
         }
     }
 
-    private void sendDelayedSms(final SmsManager smsManager, final String address,
-                                final ArrayList<String> parts, final ArrayList<PendingIntent> sPI,
-                                final ArrayList<PendingIntent> dPI, final int delay, final Uri messageUri) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    Thread.sleep(delay);
-                } catch (Exception e) { }
-
-                if (checkIfMessageExistsAfterDelay(messageUri)) {
-                    Log.v("send_transaction", "message sent after delay");
-                    try {
-                        smsManager.sendMultipartTextMessage(address, null, parts, sPI, dPI);
-                    } catch (Exception e) {
-                        Log.e(TAG, "exception thrown", e);
-                    }
-                } else {
-                    Log.v("send_transaction", "message not sent after delay, no longer exists");
-                }
-            }
-        }).start();
+    private void sendDelayedSms(String address, ArrayList<String> parts,
+                                ArrayList<PendingIntent> sPI, ArrayList<PendingIntent> dPI,
+                                Intent sentIntent, Intent deliveredIntent, int requestCode,
+                                int delay, Uri messageUri) {
+        DelayedSmsScheduler.getInstance(context).schedule(messageUri, settings.getSubscriptionId(),
+                address, parts, sPI, dPI, sentIntent,
+                settings.getDeliveryReports() ? deliveredIntent : null, requestCode, delay);
     }
 
-    private boolean checkIfMessageExistsAfterDelay(Uri messageUti) {
-        Cursor query = context.getContentResolver().query(messageUti, new String[] {"_id"}, null, null, null);
-        if (query != null && query.moveToFirst()) {
-            query.close();
-            return true;
-        } else {
-            return false;
-        }
+    /**
+     * Cancels a message that was sent with a delay and hasn't gone out yet.
+     *
+     * @param context the context
+     * @param messageUri the uri of the saved message
+     * @return true if the message was still waiting and won't be sent
+     */
+    public static boolean cancelDelayedSms(Context context, Uri messageUri) {
+        return DelayedSmsScheduler.getInstance(context).cancel(messageUri);
     }
 
     private void sendMmsMessage(String text, String fromAddress, String[] addresses, Bitmap[] image,
-                                String[] imageNames, List<Message.Part> parts, String subject, boolean save, Uri messageUri) {
+                                String[] imageNames, List<Message.Part> parts, String subject, boolean save, Uri messageUri,
+                                int priority) {
         // merge the string[] of addresses into a single string so they can be inserted into the database easier
         String address = "";
 
@@ -417,14 +430,30 @@ public class Transaction {
         // create the parts to send
         ArrayList<MMSPart> data = new ArrayList<MMSPart>();
 
-        for (int i = 0; i < image.length; i++) {
-            // turn bitmap into byte array to be stored
-            byte[] imageBytes = Message.bitmapToByteArray(image[i]);
+        // whatever the other parts don't use is left for the images
+        int otherBytes = 0;
+        int partCount = image.length;
+        if (parts != null) {
+            for (Message.Part p : parts) {
+                otherBytes += p.getMedia() == null ? 0 : p.getMedia().length;
+            }
+            partCount += parts.size();
+        }
+        if (text != null && !text.equals("")) {
+            otherBytes += text.getBytes().length;
+            partCount++;
+        }
 
+        // turn the bitmaps into byte arrays that fit the message size limit
+        int budget = MediaPreparer.getImageBudget(MmsConfig.getMaxMessageSize(), otherBytes, partCount);
+        byte[][] imageData = MediaPreparer.prepareImages(image, budget,
+                MmsConfig.getMaxImageWidth(), MmsConfig.getMaxImageHeight());
+
+        for (int i = 0; i < image.length; i++) {
             MMSPart part = new MMSPart();
             part.MimeType = "image/jpeg";
             part.Name = (imageNames != null) ? imageNames[i] : ("image_" + System.currentTimeMillis());
-            part.Data = imageBytes;
+            part.Data = imageData[i];
             data.add(part);
         }
 
@@ -460,6 +489,7 @@ public class Transaction {
                 info = getBytes(context, saveMessage, fromAddress, address.split(" "),
                         data.toArray(new MMSPart[data.size()]), subject);
                 MmsMessageSender sender = new MmsMessageSender(context, info.location, info.bytes.length);
+                sender.setTransactionPriority(priority);
                 sender.sendMessage(info.token);
 
                 IntentFilter filter = new IntentFilter();
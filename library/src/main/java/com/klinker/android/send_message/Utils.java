@@ -8,17 +8,25 @@ import android.net.ConnectivityManager;
 import android.net.Network;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.preference.PreferenceManager;
 import android.provider.Telephony;
 import android.telephony.SmsManager;
-import android.telephony.SmsMessage;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 
+import com.android.internal.telephony.SmsSegmenter;
+import com.android.mms.service_alt.DnsCache;
+import com.android.mms.service_alt.MmsConfig;
+import com.android.mms.service_alt.MmsConfigManager;
+import com.android.mms.service_alt.MmsHttpClient;
 import com.android.mms.service_alt.MmsNetworkManager;
+import com.android.mms.service_alt.exception.MmsHttpException;
 import com.android.mms.service_alt.exception.MmsNetworkException;
+import com.android.mms.transaction.HttpUtils;
+import com.android.mms.transaction.ProgressCallbackEntity;
 import com.google.android.mms.util_alt.SqliteWrapper;
 import com.klinker.android.logger.Log;
 
@@ -27,7 +35,10 @@ import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 import java.util.regex.Matcher;
@@ -46,6 +57,10 @@ public class Utils {
     private static final String TAG = "Utils";
     public static final int DEFAULT_SUBSCRIPTION_ID = 1;
 
+    // One per subscription, so that requests running at the same time share the network
+    private static final Map<Integer, MmsNetworkManager> sNetworkManagers =
+            new HashMap<Integer, MmsNetworkManager>();
+
     /**
      * Gets the current users phone number
      *
@@ -80,6 +95,126 @@ public class Utils {
         T run() throws IOException;
     }
 
+    /**
+     * Send or retrieve a PDU over the MMS network.
+     *
+     * From Lollipop on, the request goes through an {@link MmsHttpClient} whose sockets and
+     * host lookups are bound to the acquired MMS network. Nothing process wide is changed, so
+     * several requests can run at the same time and the rest of the app's traffic stays on the
+     * default network. Before Lollipop, a route to the MMSC or proxy is requested and the
+     * request is made with {@link HttpUtils}.
+     *
+     * @param context is the context of the activity or service
+     * @param token the token to report sending progress with
+     * @param url the MMSC to post to or the message to retrieve
+     * @param pdu the PDU to post, null for {@link HttpUtils#HTTP_GET_METHOD}
+     * @param method {@link HttpUtils#HTTP_POST_METHOD} or {@link HttpUtils#HTTP_GET_METHOD}
+     * @param isProxySet whether the APN has a proxy
+     * @param proxyHost the proxy of the APN
+     * @param proxyPort the proxy port of the APN
+     * @return the response body
+     * @throws java.io.IOException if the network couldn't be acquired or the request failed
+     */
+    public static byte[] httpConnection(Context context, long token, String url, byte[] pdu,
+            int method, boolean isProxySet, String proxyHost, int proxyPort) throws IOException {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return httpConnectionLollipop(context, token, url, pdu, method, isProxySet,
+                    proxyHost, proxyPort);
+        } else {
+            ensureRouteToHost(context, url, proxyHost);
+            return HttpUtils.httpConnection(context, token, url, pdu, method, isProxySet,
+                    proxyHost, proxyPort);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static byte[] httpConnectionLollipop(Context context, long token, String url,
+            byte[] pdu, int method, boolean isProxySet, String proxyHost, int proxyPort)
+            throws IOException {
+        final int subId = getDefaultSubscriptionId();
+        final MmsNetworkManager networkManager = getNetworkManager(context, subId);
+        final boolean post = method == HttpUtils.HTTP_POST_METHOD;
+        try {
+            networkManager.acquireNetwork();
+            final MmsHttpClient client = networkManager.getOrCreateHttpClient();
+            if (client == null) {
+                throw new IOException("MMS network is not ready");
+            }
+
+            if (post) {
+                ProgressCallbackEntity.broadcastProgress(context, token,
+                        ProgressCallbackEntity.PROGRESS_START);
+            }
+            boolean completed = false;
+            try {
+                final byte[] response = client.execute(url, pdu,
+                        post ? MmsHttpClient.METHOD_POST : MmsHttpClient.METHOD_GET,
+                        isProxySet, proxyHost, proxyPort, getMmsConfig(subId));
+                completed = true;
+                return response;
+            } finally {
+                if (post) {
+                    ProgressCallbackEntity.broadcastProgress(context, token, completed
+                            ? ProgressCallbackEntity.PROGRESS_COMPLETE
+                            : ProgressCallbackEntity.PROGRESS_ABORT);
+                }
+            }
+        } catch (MmsNetworkException e) {
+            throw new IOException(e);
+        } catch (MmsHttpException e) {
+            throw new IOException(e);
+        } finally {
+            networkManager.releaseNetwork();
+        }
+    }
+
+    private static MmsNetworkManager getNetworkManager(Context context, int subId) {
+        synchronized (sNetworkManagers) {
+            MmsNetworkManager networkManager = sNetworkManagers.get(subId);
+            if (networkManager == null) {
+                networkManager = new MmsNetworkManager(context.getApplicationContext(), subId);
+                sNetworkManagers.put(subId, networkManager);
+            }
+            return networkManager;
+        }
+    }
+
+    /**
+     * The config of the subscription, with the user agent and profile from the app's
+     * {@link Settings} and the http params from mms_config.xml on top, as HttpUtils
+     * sends them.
+     */
+    private static MmsConfig.Overridden getMmsConfig(int subId) {
+        MmsConfig config = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+            config = MmsConfigManager.getInstance().getMmsConfigBySubId(subId);
+        }
+        if (config == null) {
+            config = MmsConfigManager.getInstance().getMmsConfig();
+        }
+
+        Bundle overrides = new Bundle();
+        Settings settings = Transaction.settings;
+        if (settings != null) {
+            putIfSet(overrides, MmsConfig.CONFIG_USER_AGENT, settings.getAgent());
+            putIfSet(overrides, MmsConfig.CONFIG_UA_PROF_URL, settings.getUserProfileUrl());
+            putIfSet(overrides, MmsConfig.CONFIG_UA_PROF_TAG_NAME, settings.getUaProfTagName());
+        }
+        putIfSet(overrides, MmsConfig.CONFIG_HTTP_PARAMS, com.android.mms.MmsConfig.getHttpParams());
+        return new MmsConfig.Overridden(config, overrides);
+    }
+
+    private static void putIfSet(Bundle bundle, String key, String value) {
+        if (value != null && !value.trim().equals("")) {
+            bundle.putString(key, value);
+        }
+    }
+
+    /**
+     * Run a task with the whole process routed over the MMS network. Only one task can run
+     * this way at a time, and all other traffic of the app goes over the MMS network while it
+     * does, so HTTP requests should use {@link #httpConnection} instead.
+     */
     public static <T> T ensureRouteToMmsNetwork(Context context, String url, String proxy, Task<T> task) throws IOException {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
             return ensureRouteToMmsNetworkMarshmallow(context, task);
@@ -143,7 +278,7 @@ public class Utils {
         InetAddress inetAddr;
         if (proxy != null && proxy.trim().length() != 0) {
             try {
-                inetAddr = InetAddress.getByName(proxy);
+                inetAddr = resolveLegacy(proxy);
             } catch (UnknownHostException e) {
                 throw new IOException("Cannot establish route for " + url +
                         ": Unknown proxy " + proxy);
@@ -159,7 +294,7 @@ public class Utils {
         } else {
             Uri uri = Uri.parse(url);
             try {
-                inetAddr = InetAddress.getByName(uri.getHost());
+                inetAddr = resolveLegacy(uri.getHost());
             } catch (UnknownHostException e) {
                 throw new IOException("Cannot establish route for " + url + ": Unknown host");
             }
@@ -174,6 +309,20 @@ public class Utils {
         }
     }
 
+    /**
+     * Look up the MMSC or proxy before Lollipop, remembering the answer so that
+     * it doesn't have to go through the carrier's DNS for every transaction.
+     */
+    private static InetAddress resolveLegacy(String host) throws UnknownHostException {
+        return DnsCache.getInstance().resolve(DEFAULT_SUBSCRIPTION_ID, DnsCache.LEGACY_NETWORK,
+                host, new DnsCache.Resolver() {
+                    @Override
+                    public InetAddress[] resolve(String host) throws UnknownHostException {
+                        return new InetAddress[]{InetAddress.getByName(host)};
+                    }
+                })[0];
+    }
+
     /**
      * Checks whether or not mobile data is enabled and returns the result
      *
@@ -284,8 +433,7 @@ public class Utils {
             text = StripAccents.stripAccents(text);
         }
 
-        int[] data = SmsMessage.calculateLength(text, false);
-        return data[0];
+        return SmsSegmenter.getDefault().segment(text).getCount();
     }
 
     /**
@@ -309,6 +457,40 @@ public class Utils {
      */
     public static long getOrCreateThreadId(
             Context context, Set<String> recipients) {
+        long threadId = ThreadIdCache.getInstance(context).getOrCreateThreadId(recipients);
+        if (threadId != -1) {
+            return threadId;
+        }
+
+        Random random = new Random();
+        return random.nextLong();
+        //throw new IllegalArgumentException("Unable to find or allocate a thread ID.");
+    }
+
+    /**
+     * Gets the current thread_ids or creates new ones for many sets of recipients at once
+     * @param context is the context of the activity or service
+     * @param recipientSets are the sets of people messages are being sent to
+     * @return the thread_ids to use in the database, in the same order
+     */
+    public static long[] getOrCreateThreadIds(
+            Context context, List<Set<String>> recipientSets) {
+        long[] threadIds = ThreadIdCache.getInstance(context).getOrCreateThreadIds(recipientSets);
+
+        Random random = new Random();
+        for (int i = 0; i < threadIds.length; i++) {
+            if (threadIds[i] == -1) {
+                threadIds[i] = random.nextLong();
+            }
+        }
+        return threadIds;
+    }
+
+    /**
+     * Asks the provider for the thread_id of the recipients, bypassing the cache
+     * @return the thread_id, or -1 if there is none
+     */
+    static long queryThreadId(Context context, Set<String> recipients) {
         Uri.Builder uriBuilder = Uri.parse("content://mms-sms/threadID").buildUpon();
 
         for (String recipient : recipients) {
@@ -336,9 +518,7 @@ public class Utils {
             }
         }
 
-        Random random = new Random();
-        return random.nextLong();
-        //throw new IllegalArgumentException("Unable to find or allocate a thread ID.");
+        return -1;
     }
 
     public static boolean doesThreadIdExist(Context context, long threadId) {
@@ -353,7 +533,7 @@ public class Utils {
         }
     }
 
-    private static boolean isEmailAddress(String address) {
+    static boolean isEmailAddress(String address) {
         if (TextUtils.isEmpty(address)) {
             return false;
         }
@@ -377,7 +557,7 @@ public class Utils {
     private static final Pattern NAME_ADDR_EMAIL_PATTERN =
             Pattern.compile("\\s*(\"[^\"]*\"|[^<>\"]+)\\s*<([^<>]+)>\\s*");
 
-    private static String extractAddrSpec(String address) {
+    static String extractAddrSpec(String address) {
         Matcher match = NAME_ADDR_EMAIL_PATTERN.matcher(address);
 
         if (match.matches()) {
@@ -70,13 +70,13 @@ public class LogAdapter extends RecyclerView.Adapter<LogAdapter.ViewHolder> {
         return mDataset.size();
     }
 
-    public void addItem(String item) {
-        mDataset.add(0, item);
-
-        // ensure we are on the ui thread
+    public void addItem(final String item) {
+        // ensure we are on the ui thread, items come from the sending threads too
         mHandler.post(new Runnable() {
             @Override
             public void run() {
+                mDataset.add(0, item);
+
                 try {
                     notifyItemInserted(0);
                 } catch (IllegalStateException e) {
@@ -31,6 +31,7 @@ import android.widget.Button;
 import android.widget.EditText;
 import android.widget.ImageView;
 
+import com.android.mms.util.Instrumentation;
 import com.klinker.android.logger.Log;
 import com.klinker.android.logger.OnLogListener;
 import com.klinker.android.send_message.ApnUtils;
@@ -55,6 +56,7 @@ public class MainActivity extends Activity {
     private RecyclerView log;
 
     private LogAdapter logAdapter;
+    private Instrumentation.StageListener stageListener;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -158,6 +160,36 @@ public class MainActivity extends Activity {
                 //logAdapter.addItem(tag + ": " + message);
             }
         });
+
+        // show how long each step of a send or download takes, and the totals after every
+        // request. The pdu and http code needs the android framework, so this is where it
+        // gets measured: on a device, against the mmsc from the apn settings.
+        stageListener = new Instrumentation.StageListener() {
+            @Override
+            public void onStage(int stage, long durationNanos, long bytes, int outcome) {
+                logAdapter.addItem(Instrumentation.getStageName(stage) + ": "
+                        + durationNanos / 1000000 + " ms, " + bytes + " bytes, outcome " + outcome);
+
+                if (stage == Instrumentation.STAGE_REQUEST) {
+                    logAdapter.addItem(Instrumentation.dump());
+                }
+            }
+
+            @Override
+            public void onRetry(int stage, int attempt) {
+                logAdapter.addItem(Instrumentation.getStageName(stage) + ": retry " + attempt);
+            }
+        };
+        Instrumentation.addListener(stageListener);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+
+        if (stageListener != null) {
+            Instrumentation.removeListener(stageListener);
+        }
     }
 
     private void setDefaultSmsApp() {